@@ -0,0 +1,176 @@
+package com.example.zoekim.testapp1;
+
+import android.content.Context;
+import android.support.v4.view.ViewCompat;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+/*
+Class: ChatHistoryAdapter
+RecyclerView adapter over a PagedHistory.
+Rows of pages still being read show a placeholder and are rebound when the
+page arrives. A row's text is built from the stored line when it is bound.
+Lines added and pages read are passed on through ListChanges, once per
+frame, as inserts and changes of just those rows, so a burst of messages
+is one insert and visible rows are not rebound. A row's position in the
+log is its stable id. Swapping conversations swaps
+the history, not the adapter; the histories belong to the
+ConversationCache, which closes them.
+ */
+public class ChatHistoryAdapter extends RecyclerView.Adapter<ChatHistoryAdapter.LineHolder>
+{
+    //Called after each frame's changes reached the list
+    public interface Listener
+    {
+        void onUpdated();
+    }
+
+    static class LineHolder extends RecyclerView.ViewHolder
+    {
+        final TextView text;
+
+        LineHolder(TextView text)
+        {
+            super(text);
+            this.text = text;
+        }
+    }
+
+    private final LayoutInflater inflater;
+    private final Listener listener;
+    private final ListChanges changes;
+    private RecyclerView recyclerView;
+    private PagedHistory history;
+
+    public ChatHistoryAdapter(Context context, Listener listener)
+    {
+        inflater = LayoutInflater.from(context);
+        this.listener = listener;
+        setHasStableIds(true);
+        changes = new ListChanges(new ListChanges.Scheduler()
+        {
+            @Override
+            public void schedule(final Runnable flush)
+            {
+                Runnable frame = new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        flush.run();
+                        listener.onUpdated();
+                    }
+                };
+                if (recyclerView != null)
+                    ViewCompat.postOnAnimation(recyclerView, frame);
+                else
+                    frame.run();
+            }
+        }, new ListChanges.Target()
+        {
+            @Override
+            public void onReset()
+            {
+                notifyDataSetChanged();
+            }
+
+            @Override
+            public void onInserted(int from, int count)
+            {
+                //Follows new lines only if the last one was in view, like a transcript
+                boolean atEnd = from == 0 || lastVisible() >= from - 1;
+                notifyItemRangeInserted(from, count);
+                if (atEnd && recyclerView != null)
+                    recyclerView.scrollToPosition(from + count - 1);
+            }
+
+            @Override
+            public void onChanged(int from, int count)
+            {
+                notifyItemRangeChanged(from, count);
+            }
+        });
+    }
+
+    //Shows another conversation, the previous history stays open in the cache
+    public void setHistory(PagedHistory history)
+    {
+        this.history = history;
+        changes.reset(history == null ? 0 : history.size());
+    }
+
+    public PagedHistory getHistory()
+    {
+        return history;
+    }
+
+    //The history grew or read lines, shown from the next frame
+    public void update()
+    {
+        if (history != null)
+            changes.changed(history.size());
+    }
+
+    //Frames that had changes to show
+    public int getFrameUpdates()
+    {
+        return changes.getFlushes();
+    }
+
+    @Override
+    public int getItemCount()
+    {
+        return history == null ? 0 : changes.count();
+    }
+
+    @Override
+    public long getItemId(int position)
+    {
+        return position;
+    }
+
+    @Override
+    public LineHolder onCreateViewHolder(ViewGroup parent, int viewType)
+    {
+        return new LineHolder((TextView) inflater.inflate(android.R.layout.simple_list_item_1, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(LineHolder holder, int position)
+    {
+        ChatLine line = history.get(position);
+        changes.bound(position, line == null);
+        holder.text.setText(line != null ? text(line) : "...");
+    }
+
+    //How a stored line reads, lines kept before senders were hold their shown text as the body
+    static String text(ChatLine line)
+    {
+        if (line.isOutgoing())
+            return "Me: " + line.body;
+        if (line.isNotice() || line.sender.isEmpty())
+            return line.body;
+        return line.sender + ":  " + line.body;
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView)
+    {
+        this.recyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView)
+    {
+        this.recyclerView = null;
+    }
+
+    private int lastVisible()
+    {
+        RecyclerView.LayoutManager layout = recyclerView != null ? recyclerView.getLayoutManager() : null;
+        return layout instanceof LinearLayoutManager ? ((LinearLayoutManager) layout).findLastVisibleItemPosition() : -1;
+    }
+}
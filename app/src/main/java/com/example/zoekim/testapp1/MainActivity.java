@@ -1,61 +1,151 @@
 package com.example.zoekim.testapp1;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.Dialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.provider.OpenableColumns;
 import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.TextInputLayout;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 public class MainActivity extends AppCompatActivity
 {
     //Constants
     private static final int REQUEST_ENABLE_BLUETOOTH = 1;
-    public static final int MESSAGE_STATE_CHANGE = 1;
-    public static final int MESSAGE_READ = 2;
-    public static final int MESSAGE_WRITE = 3;
-    public static final int MESSAGE_CONNECTED = 4;
-    public static final int MESSAGE_TOAST = 5;
+    private static final int REQUEST_PICK_IMAGE = 2;
+    public static final int MESSAGE_FILE_PROGRESS = 7;
+    public static final int MESSAGE_FILE_DONE = 8;
     public static final int MAC_LEN = 17;
+    //Log name of the mesh conversation
+    private static final String MESH_LOG = "Mesh";
+    //Log name of the group conversation, whose members are every connected peer
+    private static final String GROUP_LOG = "Group";
+    private static final int SEARCH_LIMIT = 50;
+    private static final int SUGGESTIONS = 5;
+    private static final String TAG = "MainActivity";
 
     private TextView connStatus;
-    private ListView listView;
+    private RecyclerView chatView;
+    private LinearLayoutManager chatLayout;
     private Dialog dialog;
     private View btnSend;
     private TextInputLayout textInputLayout;
-    private ArrayAdapter<String> chatAdapter;
-    private ArrayList<String> chatLog;
+    private ChatHistoryAdapter chatAdapter;
     private BluetoothAdapter btAdapter;
-    private BluetoothDevice connectedDevice;
-    private SharedPreferences prefs;
+    private int activePeer = ConnectionManager.NO_PEER;
+    private String connectedAddress;
+    private String connectedName;
+    private ChatLogStore chatStore;
+    private boolean meshMode;
+    private boolean groupMode;
+    //Log whose history is on screen, keyed by device address, MESH_LOG or GROUP_LOG
+    private String shownLog;
+    private ConversationCache conversations;
+    //Where to scroll the shown history once its first page is in
+    private int scrollTo = -1;
+    private boolean scrollPending;
+    private SearchIndex searchIndex;
+    private File searchIndexFile;
+    //Loads and saves the search index in turn, off the UI thread
+    private final Executor indexWorker = Workers.serial("SearchIndex");
 
     private ConnectionManager connectionManager;
+    private FileTransfers fileTransfers;
+    private ChatGroup group;
+    private EventPipeline events;
+    //Outlives connection managers, so the diagnostics cover the whole run
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Histogram uiDispatch = metrics.histogram("ui.dispatch");
+    //From onCreate to the first connection, whether redialed at startup or picked by hand
+    private final Metrics.Histogram firstConnection = metrics.histogram("startup.first.connection");
+    private long createdNanos;
+    private StartupTrace startup;
+    //Run once storage has warmed up, null from then on
+    private List<Runnable> untilReady = new ArrayList<>();
+    private boolean destroyed;
+    private boolean connectedOnce;
+    private boolean autoConnectTried;
+    private PeerDirectory peerDirectory;
+    //Messages to each peer not yet acknowledged, kept across launches
+    private Outbox outbox;
+    //Peers with messages in the outbox when the app started
+    private List<String> outboxWaiting;
+    //Id of the last message this device sent, and the UI thread's decode target
+    private long lastMessageId;
+    private final MessageCodec.Message received = new MessageCodec.Message();
 
     @Override
     protected void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
-        prefs = getPreferences(MODE_PRIVATE);
+        createdNanos = System.nanoTime();
+        startup = new StartupTrace(metrics, createdNanos,
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 ? platformTrace() : null);
+        StartupTrace.Section layout = startup.begin("layout");
+        //Opens nothing until its first task, which runs on its own thread
+        chatStore = new ChatLogStore(new File(getFilesDir(), "chatlogs"));
+        searchIndex = new SearchIndex();
+        searchIndexFile = new File(getFilesDir(), "search.idx");
+        //The saved index covers most of history, only lines stored since it was saved are replayed
+        indexWorker.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                searchIndex.load(searchIndexFile);
+                chatStore.setAppendListener(searchIndex, searchIndex.indexedLines());
+            }
+        });
+        conversations = new ConversationCache(chatStore, uiExecutor, ConversationCache.DEFAULT_MAX_BYTES,
+                conversationListener);
         setContentView(R.layout.activity_main);
         connStatus = findViewById(R.id.status);
-        listView = findViewById(R.id.list);
+        chatView = findViewById(R.id.list);
         textInputLayout = findViewById(R.id.input_layout);
         btnSend = findViewById(R.id.btn_send);
 
@@ -84,15 +174,194 @@ public class MainActivity extends AppCompatActivity
             }
         });
 
-        chatLog = new ArrayList<>();
-        chatAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, chatLog);
-        listView.setAdapter(chatAdapter);
+        chatAdapter = new ChatHistoryAdapter(this, new ChatHistoryAdapter.Listener()
+        {
+            @Override
+            public void onUpdated()
+            {
+                if (scrollPending && chatAdapter.getHistory() != null && chatAdapter.getHistory().isOpened())
+                    scrollShown();
+            }
+        });
+        chatLayout = new LinearLayoutManager(this);
+        chatView.setLayoutManager(chatLayout);
+        //Rows only change text, the default animations would fade every rebound one
+        chatView.setItemAnimator(null);
+        chatView.setAdapter(chatAdapter);
+        metrics.gauge("ui.chat.frame.updates", new Metrics.Gauge()
+        {
+            @Override
+            public long value()
+            {
+                return chatAdapter.getFrameUpdates();
+            }
+        });
 
         FloatingActionButton btn_connect = findViewById(R.id.btnConn);
         btn_connect.setOnClickListener(new View.OnClickListener(){
             @Override
             public void onClick(View view) {
-                ShowDialog();
+                whenReady(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        ShowDialog();
+                    }
+                });
+            }
+        });
+        layout.end();
+
+        chatView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener()
+        {
+            @Override
+            public boolean onPreDraw()
+            {
+                chatView.getViewTreeObserver().removeOnPreDrawListener(this);
+                //Runs once the frame about to be drawn is done
+                chatView.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        startup.firstFrame();
+                    }
+                });
+                return true;
+            }
+        });
+        //Storage and history warm up behind the first frame
+        Workers.serial("Startup").execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                warmUp();
+            }
+        });
+    }
+
+    //Opens storage, migrates old history and loads the likely first conversation, off the UI thread
+    private void warmUp()
+    {
+        StartupTrace.Section section = startup.begin("storage");
+        final PeerDirectory directory = new PeerDirectory(new File(getFilesDir(), "peers.dat"));
+        final Outbox box = new Outbox(new File(getFilesDir(), "outbox"));
+        List<String> waiting;
+        try
+        {
+            waiting = box.addresses();
+            //Read here, so setOutbox() on the UI thread finds it in memory
+            box.instance();
+        }
+        catch (IOException e)
+        {
+            metrics.error("outbox", e);
+            waiting = new ArrayList<>();
+        }
+        section.end();
+
+        section = startup.begin("migrate");
+        migrateLegacyHistory(getPreferences(MODE_PRIVATE));
+        if (btAdapter != null)
+            moveNameKeyedLogs();
+        section.end();
+
+        section = startup.begin("history");
+        //The peer most likely to be opened first
+        PeerDirectory.Entry best = directory.best();
+        if (best != null)
+            conversations.prefetch(best.address);
+        section.end();
+
+        section = startup.begin("codec");
+        //Class loading and charset lookup, so the first message sent or read does not pay for them
+        byte[] sample = MessageCodec.encode(0, 0, 0, "", "");
+        MessageCodec.decode(sample, 0, sample.length, new MessageCodec.Message());
+        section.end();
+
+        final List<String> pending = waiting;
+        handler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ready(directory, box, pending);
+            }
+        });
+    }
+
+    //Storage has warmed up, runs what waited for it and marks the app interactive
+    private void ready(PeerDirectory directory, Outbox box, List<String> waiting)
+    {
+        if (destroyed)
+        {
+            directory.close();
+            box.close();
+            return;
+        }
+        peerDirectory = directory;
+        outbox = box;
+        outboxWaiting = waiting;
+        List<Runnable> actions = untilReady;
+        untilReady = null;
+        for (Runnable action : actions)
+            action.run();
+        startup.interactive();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            reportFullyDrawn();
+        Log.i(TAG, "startup: " + startup.report());
+    }
+
+    //Runs action on the UI thread now, or once storage has warmed up
+    private void whenReady(Runnable action)
+    {
+        if (untilReady == null)
+            action.run();
+        else
+            untilReady.add(action);
+    }
+
+    //Startup sections show up in systrace and the Android Studio profiler
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static StartupTrace.Sink platformTrace()
+    {
+        return new StartupTrace.Sink()
+        {
+            @Override
+            public void beginSection(String name)
+            {
+                Trace.beginSection(name);
+            }
+
+            @Override
+            public void endSection()
+            {
+                Trace.endSection();
+            }
+        };
+    }
+
+    //Creates the connection manager, starts listening and redials, once storage is ready
+    //A manager from an earlier onStart is kept, it owns the sessions, pools and outbox flushing
+    private void startConnections()
+    {
+        whenReady(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (connectionManager == null)
+                {
+                    StartupTrace.Section section = startup.begin("connections");
+                    connectionManager = createConnectionManager();
+                    section.end();
+                }
+                //onResume ran before the manager existed on a cold start
+                if (connectionManager.getState() == ConnectionManager.BT_NONE)
+                    connectionManager.start();
+                autoConnect();
             }
         });
     }
@@ -103,69 +372,295 @@ public class MainActivity extends AppCompatActivity
         @Override
         public boolean handleMessage(Message msg)
         {
-            Gson gson = new Gson();
-            SharedPreferences.Editor prefsEditor = prefs.edit();
+            //getWhen() is when the message was sent, so this is the time it waited in the queue
+            uiDispatch.record((SystemClock.uptimeMillis() - msg.getWhen()) * 1000000);
             switch (msg.what)
             {
-                case MESSAGE_STATE_CHANGE:
-                    switch (msg.arg1)
-                    {
-                        case ConnectionManager.BT_CONNECTED:
-                            connStatus.setText("Connected to: " + connectedDevice.getName());
-                            break;
-                        case ConnectionManager.BT_CONNECTING:
-                            connStatus.setText("Connecting...");
-                            break;
-                        case ConnectionManager.BT_LISTEN:
-                        case ConnectionManager.BT_NONE:
-                            connStatus.setText("Disconnected");
-                            break;
-                    }
+                case MESSAGE_FILE_PROGRESS:
+                    String direction = msg.getData().getBoolean("incoming") ? "Receiving " : "Sending ";
+                    connStatus.setText(direction + msg.getData().getString("name") + ": " + msg.arg1 + "%");
                     break;
-                case MESSAGE_WRITE:
-                    byte[] writeBuf = (byte[]) msg.obj;
-                    String writeMessage = new String(writeBuf);
-                    String history = prefs.getString(connectedDevice.getName(), "");
-                    chatLog.clear();
-                    if(history != "")
-                    {
-                        chatLog.addAll(gson.fromJson(history,ArrayList.class));
-                    }
-                    chatLog.add("Me: " + writeMessage);
-                    String json = gson.toJson(chatLog);
-                    prefsEditor.clear();
-                    prefsEditor.putString(connectedDevice.getName(), json);
-                    prefsEditor.commit();
-                    chatAdapter.notifyDataSetChanged();
-                    break;
-                case MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    String retrieve = prefs.getString(connectedDevice.getName(), "");
-                    chatLog.clear();
-                    if(retrieve != "")
-                    {
-                        chatLog.addAll(gson.fromJson(retrieve, ArrayList.class));
-                    }
-                    chatLog.add(connectedDevice.getName() + ":  " + readMessage);
-                    String json2 = gson.toJson(chatLog);
-                    prefsEditor.clear();
-                    prefsEditor.putString(connectedDevice.getName(), json2);
-                    prefsEditor.commit();
-                    chatAdapter.notifyDataSetChanged();
-                    break;
-                case MESSAGE_CONNECTED:
-                    connectedDevice = msg.getData().getParcelable("device_name");
-                    Toast.makeText(getApplicationContext(), "Connected to " + connectedDevice.getName(), Toast.LENGTH_SHORT).show();
-                    break;
-                case MESSAGE_TOAST:
-                    Toast.makeText(getApplicationContext(), msg.getData().getString("toast"), Toast.LENGTH_SHORT).show();
+                case MESSAGE_FILE_DONE:
+                    updateStatus();
+                    addChatLine(msg.arg2, ChatLine.notice(msg.getData().getString("text")));
                     break;
             }
             return false;
         }
     });
 
+    //Connection events, delivered on the UI thread in batches by the EventPipeline
+    private final ConnectionListener uiListener = new ConnectionListener()
+    {
+        @Override
+        public void onStateChanged(int peer, int state)
+        {
+            updateStatus();
+        }
+
+        @Override
+        public void onConnected(int peer, String address, String name)
+        {
+            //The newest connection becomes the conversation on screen
+            activePeer = peer;
+            connectedAddress = address;
+            connectedName = name;
+            if (!connectedOnce)
+            {
+                connectedOnce = true;
+                firstConnection.recordSince(createdNanos);
+            }
+            if (group != null)
+                group.add(peer);
+            if (!meshMode && !groupMode)
+                loadHistory(connectedAddress);
+            Toast.makeText(getApplicationContext(), "Connected to " + connectedName, Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onRead(int peer, byte[] buffer, int length)
+        {
+            ChatLine line = receivedLine(buffer, 0, length, connectionManager.getPeerName(peer));
+            connectionManager.recycle(buffer);
+            if ((line.flags & MessageCodec.FLAG_GROUP) != 0)
+                addLine(GROUP_LOG, line);
+            else
+                addChatLine(peer, line);
+        }
+
+        @Override
+        public void onRelayed(int peer, long messageId, String origin, int hops, byte[] buffer, int offset, int length)
+        {
+            ChatLine line = receivedLine(buffer, offset, length, origin);
+            connectionManager.recycle(buffer);
+            addMeshLine(line);
+        }
+
+        @Override
+        public void onWritten(int peer, byte[] payload)
+        {
+            if (MessageCodec.decode(payload, 0, payload.length, received))
+                addChatLine(peer, new ChatLine(received.id, received.timeMillis, received.flags,
+                        received.getSender(), received.getBody()));
+        }
+
+        @Override
+        public void onConnectionFailed(int peer)
+        {
+            Toast.makeText(getApplicationContext(), "Connection Failed", Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onConnectionLost(int peer)
+        {
+            Toast.makeText(getApplicationContext(), "Device connection was lost", Toast.LENGTH_SHORT).show();
+        }
+    };
+
+    //Called on I/O threads, only failures are worth telling the user about
+    private final ChatGroup.Listener groupListener = new ChatGroup.Listener()
+    {
+        @Override
+        public void onStatusChanged(ChatGroup group, long messageId, final int peer, int status)
+        {
+            if (status != ChatGroup.FAILED)
+                return;
+            handler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    String text = "Not delivered to " + connectionManager.getPeerName(peer);
+                    addLine(GROUP_LOG, ChatLine.notice(text));
+                    Toast.makeText(getApplicationContext(), text, Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+    };
+
+    //Posted once per batch rather than once per event
+    private final Runnable drainEvents = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (events != null)
+                events.drain();
+        }
+    };
+
+    //Fields of a received message, sender is used if the message does not name one
+    private ChatLine receivedLine(byte[] buffer, int offset, int length, String sender)
+    {
+        if (!MessageCodec.decode(buffer, offset, length, received))
+            return new ChatLine(0, System.currentTimeMillis(), 0, sender != null ? sender : "", "");
+        //Older peers send a bare body, stamped with when it arrived
+        long time = received.timeMillis != 0 ? received.timeMillis : System.currentTimeMillis();
+        return new ChatLine(received.id, time, received.flags & ~MessageCodec.FLAG_LEGACY,
+                received.getSenderLength() > 0 ? received.getSender() : sender != null ? sender : "", received.getBody());
+    }
+
+    //Queues a line for the peer's log, the append happens off the UI thread
+    private void addChatLine(int peer, ChatLine line)
+    {
+        String log = connectionManager.getPeerAddress(peer);
+        if (log == null)
+            return;
+        addLine(log, line);
+        //A peer that just wrote is the likeliest next conversation
+        if (!log.equals(shownLog))
+            conversations.prefetch(log);
+    }
+
+    private void addMeshLine(ChatLine line)
+    {
+        addLine(MESH_LOG, line);
+    }
+
+    private void addLine(String log, ChatLine line)
+    {
+        //A cached history stores the line and shows it when it is back on screen
+        PagedHistory history = conversations.peek(log);
+        if (history != null)
+        {
+            history.add(line);
+            //Lines added within a frame reach the list together
+            if (history == chatAdapter.getHistory())
+                chatAdapter.update();
+        }
+        else
+            chatStore.append(log, line);
+    }
+
+    private void updateStatus()
+    {
+        int connected = connectionManager.getConnectedPeers().size();
+        if (connectionManager.getState(activePeer) == ConnectionManager.BT_CONNECTED)
+        {
+            String others = connected > 1 ? " (+" + (connected - 1) + ")" : "";
+            connStatus.setText("Connected to: " + connectedName + others);
+        }
+        else if (connectionManager.getState() == ConnectionManager.BT_CONNECTING)
+            connStatus.setText("Connecting...");
+        else if (connected > 0)
+            connStatus.setText("Connected to " + connected + " devices");
+        else
+            connStatus.setText("Disconnected");
+    }
+
+    //Replaces the chat view with the peer's stored history, only the newest page is read now
+    private void loadHistory(String peer)
+    {
+        loadHistory(peer, -1);
+    }
+
+    //Same, scrolled to position instead of the end when position >= 0
+    //A cached conversation is drawn in the next frame, others once their newest page is read
+    private void loadHistory(String peer, int position)
+    {
+        shownLog = peer;
+        if (peer == null)
+        {
+            chatAdapter.setHistory(null);
+            return;
+        }
+
+        PagedHistory history = conversations.show(peer);
+        chatAdapter.setHistory(history);
+        scrollTo = position;
+        scrollPending = true;
+        if (history.isOpened())
+            scrollShown();
+    }
+
+    private void scrollShown()
+    {
+        scrollPending = false;
+        if (scrollTo >= 0)
+            chatLayout.scrollToPositionWithOffset(scrollTo, 0);
+        else if (chatAdapter.getItemCount() > 0)
+            chatView.scrollToPosition(chatAdapter.getItemCount() - 1);
+    }
+
+    //Cached histories report here, only the one on screen is redrawn
+    private final ConversationCache.Listener conversationListener = new ConversationCache.Listener()
+    {
+        @Override
+        public void onChanged(String peer, PagedHistory history)
+        {
+            if (history != chatAdapter.getHistory())
+                return;
+            //Scrolls once the change is on the list, see the adapter's listener
+            chatAdapter.update();
+        }
+    };
+
+    //Runs history callbacks on the UI thread
+    private final Executor uiExecutor = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            handler.post(command);
+        }
+    };
+
+    //Moves histories saved as Gson blobs in SharedPreferences into the chat log store
+    private void migrateLegacyHistory(SharedPreferences prefs)
+    {
+        Map<String, ?> entries = prefs.getAll();
+        if (entries.isEmpty())
+            return;
+
+        Gson gson = new Gson();
+        for (Map.Entry<String, ?> entry : entries.entrySet())
+        {
+            if (!(entry.getValue() instanceof String))
+                continue;
+            try
+            {
+                List<String> lines = gson.fromJson((String) entry.getValue(),
+                        new TypeToken<ArrayList<String>>() {}.getType());
+                //The key goes only once its lines are stored, a failed import is tried again next launch
+                Runnable imported = removeKey(prefs, entry.getKey());
+                if (lines != null)
+                    chatStore.importLegacy(entry.getKey(), lines, imported);
+                else
+                    imported.run();
+            }
+            catch (JsonSyntaxException e) {}
+        }
+    }
+
+    private static Runnable removeKey(final SharedPreferences prefs, final String key)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                prefs.edit().remove(key).apply();
+            }
+        };
+    }
+
+    //Logs used to be keyed by device name, which can change, collide or be null
+    private void moveNameKeyedLogs()
+    {
+        for (BluetoothDevice device : btAdapter.getBondedDevices())
+        {
+            if (device.getName() != null)
+                chatStore.moveLog(device.getName(), device.getAddress());
+        }
+    }
+
+    //Device name for a log key, the key itself for the mesh log and unknown peers
+    private String conversationName(String log)
+    {
+        PeerDirectory.Entry entry = peerDirectory != null ? peerDirectory.get(log) : null;
+        return entry != null ? entry.name : log;
+    }
+
     private void ShowDialog()
     {
         dialog = new Dialog(this);
@@ -180,12 +675,23 @@ public class MainActivity extends AppCompatActivity
         btAdapter = BluetoothAdapter.getDefaultAdapter();
         Set<BluetoothDevice> pairedDevices = btAdapter.getBondedDevices();
 
-        if (pairedDevices.size() > 0)
+        //Peers that answered before come first, best first, then the rest of the paired devices
+        Set<String> listed = new HashSet<>();
+        for (PeerDirectory.Entry entry : peerDirectory.ranked(SUGGESTIONS))
         {
-            for (BluetoothDevice device : pairedDevices) {
-                pairedDevicesAdapter.add(device.getName() + "\n" + device.getAddress());
+            for (BluetoothDevice device : pairedDevices)
+            {
+                if (device.getAddress().equals(entry.address))
+                {
+                    pairedDevicesAdapter.add(device.getName() + " (" + describe(entry) + ")\n" + device.getAddress());
+                    listed.add(entry.address);
+                }
             }
         }
+        for (BluetoothDevice device : pairedDevices) {
+            if (!listed.contains(device.getAddress()))
+                pairedDevicesAdapter.add(device.getName() + "\n" + device.getAddress());
+        }
 
 
         listView.setOnItemClickListener(new AdapterView.OnItemClickListener()
@@ -196,19 +702,10 @@ public class MainActivity extends AppCompatActivity
                 String contents = ((TextView) view).getText().toString();
                 String devName = contents.substring(contents.length() - MAC_LEN);
 
-                /* Should load chat history, doesn't appear to work, so commented out
-                Gson gson = new Gson();
-                String history = prefs.getString(devName, "");
-                chatLog.clear();
-                if(history != "")
-                {
-                    chatLog.addAll(gson.fromJson(history, ArrayList.class));
-                }
-                chatAdapter.notifyDataSetChanged();
-                */
-
-                BluetoothDevice device = btAdapter.getRemoteDevice(devName);
-                connectionManager.connect(device);
+                //Shown while the connection is made
+                if (!meshMode && !groupMode)
+                    loadHistory(devName);
+                connectionManager.connect(devName);
 
                 dialog.dismiss();
             }
@@ -227,36 +724,360 @@ public class MainActivity extends AppCompatActivity
         dialog.show();
     }
 
+    //Last seen, success rate and connect time of a known peer, for the device list
+    private static String describe(PeerDirectory.Entry entry)
+    {
+        long minutes = Math.max(0, System.currentTimeMillis() - entry.lastSeenMillis) / 60000;
+        String seen = minutes < 60 ? minutes + " min ago" : minutes < 48 * 60 ? minutes / 60 + " h ago"
+                : minutes / (24 * 60) + " days ago";
+        String latency = entry.latencyMillis >= 0 ? ", " + entry.latencyMillis + " ms" : "";
+        return seen + ", " + Math.round(entry.getSuccessRate() * 100) + "%" + latency;
+    }
+
+    //Searches every conversation as the query is typed, picking a hit opens its conversation there
+    private void showSearchDialog()
+    {
+        final Dialog searchDialog = new Dialog(this);
+        searchDialog.setContentView(R.layout.layout_search);
+        searchDialog.setTitle("Search");
+
+        final ArrayAdapter<String> resultsAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
+        final List<SearchIndex.Hit> hits = new ArrayList<>();
+        ListView results = searchDialog.findViewById(R.id.searchResults);
+        results.setAdapter(resultsAdapter);
+
+        EditText query = searchDialog.findViewById(R.id.searchQuery);
+        query.addTextChangedListener(new TextWatcher()
+        {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s)
+            {
+                hits.clear();
+                resultsAdapter.clear();
+                //The word being typed matches as a prefix
+                String text = s.toString().trim();
+                if (text.isEmpty())
+                    return;
+                hits.addAll(searchIndex.search(text + "*", SEARCH_LIMIT));
+                for (int i = 0; i < hits.size(); i++)
+                    resultsAdapter.add(conversationName(hits.get(i).peer) + ": ...");
+                for (int i = 0; i < hits.size(); i++)
+                    showHitLine(hits, resultsAdapter, i);
+            }
+        });
+
+        results.setOnItemClickListener(new AdapterView.OnItemClickListener()
+        {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id)
+            {
+                SearchIndex.Hit hit = hits.get(position);
+                loadHistory(hit.peer, hit.offset);
+                searchDialog.dismiss();
+            }
+        });
+        searchDialog.show();
+    }
+
+    //Fills in the text of one search hit once the store has read it
+    private void showHitLine(final List<SearchIndex.Hit> hits, final ArrayAdapter<String> adapter, final int index)
+    {
+        final SearchIndex.Hit hit = hits.get(index);
+        chatStore.readAsync(hit.peer, hit.offset, 1, new ChatLogStore.ReadCallback()
+        {
+            @Override
+            public void onRead(String peer, int from, final List<ChatLine> lines)
+            {
+                handler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        //Skip if the query changed since
+                        if (lines.isEmpty() || index >= hits.size() || hits.get(index) != hit)
+                            return;
+                        adapter.remove(adapter.getItem(index));
+                        adapter.insert(conversationName(hit.peer) + ": " + ChatHistoryAdapter.text(lines.get(0)), index);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu)
+    {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.action_mesh).setChecked(meshMode);
+        menu.findItem(R.id.action_group).setChecked(groupMode);
+        return true;
+    }
+
+    //Mesh mode relays other devices' broadcasts and shows the shared mesh conversation
+    //Group mode sends each message to every connected peer and shows the group conversation
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item)
+    {
+        if (item.getItemId() == R.id.action_mesh)
+        {
+            meshMode = !item.isChecked();
+            groupMode = groupMode && !meshMode;
+            if (connectionManager != null)
+                connectionManager.setRelay(meshMode, btAdapter.getName());
+            loadHistory(meshMode ? MESH_LOG : connectedAddress);
+            invalidateOptionsMenu();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_group)
+        {
+            groupMode = !item.isChecked();
+            if (groupMode && meshMode)
+            {
+                meshMode = false;
+                if (connectionManager != null)
+                    connectionManager.setRelay(false, btAdapter.getName());
+            }
+            loadHistory(groupMode ? GROUP_LOG : connectedAddress);
+            invalidateOptionsMenu();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_search)
+        {
+            showSearchDialog();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_diagnostics)
+        {
+            showDiagnostics();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_send_photo)
+        {
+            Intent pick = new Intent(Intent.ACTION_GET_CONTENT);
+            pick.setType("image/*");
+            pick.addCategory(Intent.CATEGORY_OPENABLE);
+            startActivityForResult(Intent.createChooser(pick, getString(R.string.send_photo)), REQUEST_PICK_IMAGE);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private ConnectionManager createConnectionManager()
+    {
+        if (events != null)
+            events.close();
+        events = new EventPipeline(uiListener, new EventPipeline.Wakeup()
+        {
+            @Override
+            public void wake()
+            {
+                handler.post(drainEvents);
+            }
+        }, EventPipeline.DEFAULT_RING_SIZE, metrics);
+        ConnectionManager manager = new ConnectionManager(new RfcommTransport(btAdapter), events,
+                ConnectionManager.DEFAULT_MAX_PEERS, metrics);
+        manager.setPeerDirectory(peerDirectory);
+        manager.setOutbox(outbox);
+        manager.setRelay(meshMode, btAdapter.getName());
+        group = manager.createGroup(GROUP_LOG, groupListener);
+        fileTransfers = manager.enableFileTransfer(new File(getFilesDir(), "received"),
+                new TransferProgressListener(handler));
+        return manager;
+    }
+
+    //Redials the best recent peer once per launch, in the background, if it is still paired
+    //Paired peers with messages waiting in the outbox are dialed too, so they get them
+    private void autoConnect()
+    {
+        if (autoConnectTried)
+            return;
+        autoConnectTried = true;
+        if (!connectionManager.getConnectedPeers().isEmpty())
+            return;
+        PeerDirectory.Entry best = peerDirectory.best();
+        for (BluetoothDevice device : btAdapter.getBondedDevices())
+        {
+            String address = device.getAddress();
+            if ((best != null && address.equals(best.address)) || outboxWaiting.contains(address))
+                connectionManager.connect(address);
+        }
+    }
+
+    //Current metrics, with a button that saves them where adb can pull them
+    private void showDiagnostics()
+    {
+        final String text = metrics.snapshot().toString();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.diagnostics)
+                .setMessage(text)
+                .setNegativeButton(android.R.string.ok, null)
+                .setPositiveButton(R.string.export, new DialogInterface.OnClickListener()
+                {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which)
+                    {
+                        exportDiagnostics(text);
+                    }
+                })
+                .show();
+    }
+
+    private void exportDiagnostics(String text)
+    {
+        File dir = getExternalFilesDir(null);
+        File file = new File(dir != null ? dir : getFilesDir(), "metrics-" + System.currentTimeMillis() + ".txt");
+        try
+        {
+            FileOutputStream out = new FileOutputStream(file);
+            try
+            {
+                out.write(text.getBytes("UTF-8"));
+            }
+            finally
+            {
+                out.close();
+            }
+            Toast.makeText(this, "Saved " + file, Toast.LENGTH_LONG).show();
+        }
+        catch (IOException e)
+        {
+            metrics.error("export", e);
+            Toast.makeText(this, "Cannot save diagnostics", Toast.LENGTH_SHORT).show();
+        }
+    }
+
     //Associates Handler to connectionManager
     public void onActivityResult(int requestCode, int resultCode, Intent data)
     {
         if (requestCode == REQUEST_ENABLE_BLUETOOTH)
         {
             if (resultCode == Activity.RESULT_OK) {
-                connectionManager = new ConnectionManager(handler);
+                startConnections();
             } else {
                 Toast.makeText(this, "Bluetooth Disabled", Toast.LENGTH_SHORT).show();
                 finish();
             }
         }
+        else if (requestCode == REQUEST_PICK_IMAGE && resultCode == Activity.RESULT_OK && data != null)
+            sendFile(data.getData());
+    }
+
+    //Streams the picked file straight from its content provider, nothing is copied first
+    private void sendFile(Uri uri)
+    {
+        if (connectionManager == null || connectionManager.getState(activePeer) != ConnectionManager.BT_CONNECTED)
+        {
+            Toast.makeText(this, "Connection Lost", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        try
+        {
+            ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "r");
+            if (pfd == null)
+                throw new IOException("Cannot open " + uri);
+            //The channel owns the descriptor from here and is closed by the transfer
+            FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+            fileTransfers.send(activePeer, displayName(uri), in.getChannel());
+        }
+        catch (IOException | SecurityException e)
+        {
+            Toast.makeText(this, "Cannot read file", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private String displayName(Uri uri)
+    {
+        Cursor cursor = getContentResolver().query(uri, new String[] {OpenableColumns.DISPLAY_NAME}, null, null, null);
+        if (cursor != null)
+        {
+            try
+            {
+                if (cursor.moveToFirst() && cursor.getString(0) != null)
+                    return cursor.getString(0);
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+        String last = uri.getLastPathSegment();
+        return last != null ? last : "photo.jpg";
     }
 
     //Send data using connectionManager
     private void sendMessage(String message)
     {
-        if (connectionManager.getState() != ConnectionManager.BT_CONNECTED)
+        //Not started yet, storage is still warming up or Bluetooth is off
+        if (connectionManager == null)
+        {
+            Toast.makeText(this, "Connection Lost", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if (meshMode)
+        {
+            if (connectionManager.getConnectedPeers().isEmpty())
+            {
+                Toast.makeText(this, "No devices connected", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            ChatLine line = outgoing(message, 0);
+            connectionManager.broadcast(encode(line), ConnectionManager.DEFAULT_TTL);
+            addMeshLine(line);
+            return;
+        }
+
+        if (groupMode)
+        {
+            if (connectionManager.getConnectedPeers().isEmpty())
+            {
+                Toast.makeText(this, "No devices connected", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            //Encoded once, members that cannot take it are reported by groupListener
+            ChatLine line = outgoing(message, MessageCodec.FLAG_GROUP);
+            connectionManager.sendToGroup(group, encode(line));
+            addLine(GROUP_LOG, line);
+            return;
+        }
+
+        if (activePeer == ConnectionManager.NO_PEER)
         {
             Toast.makeText(this, "Connection Lost", Toast.LENGTH_SHORT).show();
             return;
         }
 
+        //Stored in the outbox first, shown once written to the link
         if (message.length() > 0)
         {
-            byte[] send = message.getBytes();
-            connectionManager.write(send);
+            if (!connectionManager.write(activePeer, encode(outgoing(message, 0))))
+                Toast.makeText(this, "Cannot queue message", Toast.LENGTH_SHORT).show();
+            else if (connectionManager.getState(activePeer) != ConnectionManager.BT_CONNECTED)
+                Toast.makeText(this, "Queued until " + connectedName + " reconnects", Toast.LENGTH_SHORT).show();
         }
     }
 
+    //A message from this device, ids follow the clock so they stay unique across launches
+    //and a burst within one millisecond takes the next ones
+    private ChatLine outgoing(String message, int flags)
+    {
+        long now = System.currentTimeMillis();
+        lastMessageId = Math.max(lastMessageId + 1, now);
+        String name = btAdapter.getName();
+        return new ChatLine(lastMessageId, now, MessageCodec.FLAG_OUTGOING | flags, name != null ? name : "", message);
+    }
+
+    private static byte[] encode(ChatLine line)
+    {
+        return MessageCodec.encode(line.id, line.timeMillis, line.flags, line.sender, line.body);
+    }
+
     //Check for BT enabled on app start
     @Override
     public void onStart()
@@ -268,9 +1089,7 @@ public class MainActivity extends AppCompatActivity
             startActivityForResult(enableIntent, REQUEST_ENABLE_BLUETOOTH);
         }
         else
-        {
-            connectionManager = new ConnectionManager(handler);
-        }
+            startConnections();
     }
 
     //Start connection if connection state changed while out of app
@@ -283,11 +1102,43 @@ public class MainActivity extends AppCompatActivity
             connectionManager.start();
     }
 
+    //The process may be killed from here on, keep what the index learned
+    @Override
+    protected void onStop()
+    {
+        super.onStop();
+        indexWorker.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    searchIndex.save(searchIndexFile);
+                }
+                catch (IOException e)
+                {
+                    metrics.error("search index", e);
+                }
+            }
+        });
+    }
+
     //Stop connection if app closed
     @Override
     public void onDestroy() {
         super.onDestroy();
+        destroyed = true;
         if (connectionManager != null)
             connectionManager.stop();
+        if (events != null)
+            events.close();
+        //Null if destroyed before storage warmed up, ready() closes them then
+        if (peerDirectory != null)
+            peerDirectory.close();
+        if (outbox != null)
+            outbox.close();
+        conversations.close();
+        chatStore.close();
     }
 }
\ No newline at end of file
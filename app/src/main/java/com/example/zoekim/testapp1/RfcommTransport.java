@@ -0,0 +1,122 @@
+package com.example.zoekim.testapp1;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/*
+Class: RfcommTransport
+Transport over insecure RFCOMM sockets, addresses are Bluetooth MACs
+ */
+public class RfcommTransport implements Transport
+{
+    private static final String appName = "BT2Chat";
+    private static final UUID appUUID = UUID.fromString("85715ea5-ee6e-4086-a49c-b425d17192cd");
+
+    private final BluetoothAdapter bluetoothAdapter;
+
+    public RfcommTransport(BluetoothAdapter bluetoothAdapter)
+    {
+        this.bluetoothAdapter = bluetoothAdapter;
+    }
+
+    @Override
+    public Server listen() throws IOException
+    {
+        return new RfcommServer(bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(appName, appUUID));
+    }
+
+    @Override
+    public Link open(String address) throws IOException
+    {
+        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+        return new RfcommLink(device.createInsecureRfcommSocketToServiceRecord(appUUID), true);
+    }
+
+    private class RfcommServer implements Server
+    {
+        private final BluetoothServerSocket serverSocket;
+
+        RfcommServer(BluetoothServerSocket serverSocket)
+        {
+            this.serverSocket = serverSocket;
+        }
+
+        @Override
+        public Link accept() throws IOException
+        {
+            return new RfcommLink(serverSocket.accept(), false);
+        }
+
+        @Override
+        public String getAddress()
+        {
+            return bluetoothAdapter.getAddress();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            serverSocket.close();
+        }
+    }
+
+    private class RfcommLink implements Link
+    {
+        private final BluetoothSocket socket;
+        private final boolean outgoing;
+
+        RfcommLink(BluetoothSocket socket, boolean outgoing)
+        {
+            this.socket = socket;
+            this.outgoing = outgoing;
+        }
+
+        //Discovery slows down connecting, so stop it first, cancelDiscovery() is not free when idle
+        @Override
+        public void connect() throws IOException
+        {
+            if (!outgoing)
+                return;
+            if (bluetoothAdapter.isDiscovering())
+                bluetoothAdapter.cancelDiscovery();
+            socket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException
+        {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress()
+        {
+            return socket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public String getRemoteName()
+        {
+            return socket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.zoekim.testapp1;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+
+import java.io.File;
+
+/*
+Class: TransferProgressListener
+Forwards file transfer progress to the UI thread as Handler messages,
+the peer id travels in arg2, at most one update per percent.
+Connection events take the EventPipeline instead.
+ */
+public class TransferProgressListener implements FileTransfers.Listener
+{
+    private final Handler handler;
+    private int lastPercent = -1;
+
+    public TransferProgressListener(Handler handler)
+    {
+        this.handler = handler;
+    }
+
+    @Override
+    public synchronized void onProgress(int peer, long id, String name, long done, long size, boolean incoming)
+    {
+        //Chunks arrive far faster than the status line is worth redrawing
+        int percent = size == 0 ? 100 : (int) (done * 100 / size);
+        if (percent == lastPercent)
+            return;
+        lastPercent = percent;
+        Message msg = handler.obtainMessage(MainActivity.MESSAGE_FILE_PROGRESS, percent, peer);
+        Bundle bundle = new Bundle();
+        bundle.putString("name", name);
+        bundle.putBoolean("incoming", incoming);
+        msg.setData(bundle);
+        handler.sendMessage(msg);
+    }
+
+    @Override
+    public void onReceived(int peer, long id, File file)
+    {
+        fileDone(peer, "Received file " + file.getName());
+    }
+
+    @Override
+    public void onSent(int peer, long id, String name)
+    {
+        fileDone(peer, "Sent file " + name);
+    }
+
+    @Override
+    public void onFailed(int peer, long id, String name, String reason)
+    {
+        fileDone(peer, "Transfer of " + name + " failed: " + reason);
+    }
+
+    private synchronized void fileDone(int peer, String text)
+    {
+        lastPercent = -1;
+        Message msg = handler.obtainMessage(MainActivity.MESSAGE_FILE_DONE, -1, peer);
+        Bundle bundle = new Bundle();
+        bundle.putString("text", text);
+        msg.setData(bundle);
+        handler.sendMessage(msg);
+    }
+}
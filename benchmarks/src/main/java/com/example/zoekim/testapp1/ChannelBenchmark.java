@@ -0,0 +1,113 @@
+package com.example.zoekim.testapp1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: ChannelBenchmark
+Chat latency from write() to the peer's onRead() while another thread
+keeps the same link saturated with bulk chunks, with channel scheduling
+on and off. Off, a chat message waits behind every chunk already queued;
+on, it waits for at most about one chunk. The bulk rate reached is
+printed at teardown.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ChannelBenchmark
+{
+    @Param({"true", "false"})
+    public boolean channels;
+
+    private final byte[] chat = new byte[64];
+    private ConnectionManager server;
+    private ConnectionManager client;
+    private final PipelineBenchmark.BenchListener serverEvents = new PipelineBenchmark.BenchListener();
+    private int serverId;
+    private Thread bulk;
+    private volatile boolean running;
+    private volatile long bulkChunks;
+    private long startNanos;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        PipelineBenchmark.BenchListener clientEvents = new PipelineBenchmark.BenchListener();
+        server = new ConnectionManager(network.endpoint("server"), serverEvents);
+        client = new ConnectionManager(network.endpoint("client"), clientEvents);
+        serverEvents.manager = server;
+        clientEvents.manager = client;
+        for (ConnectionManager m : new ConnectionManager[] {server, client})
+        {
+            m.setChannels(channels);
+            //Chunks of a real file rarely compress, and deflate would hide the queueing
+            m.setCompression(false, 0);
+        }
+        server.start();
+        serverId = client.connect("server");
+        serverEvents.awaitConnected();
+        clientEvents.awaitConnected();
+
+        running = true;
+        bulk = new Thread("bulk")
+        {
+            @Override
+            public void run()
+            {
+                long sent = 0;
+                byte[] chunk = new byte[FileTransfers.CHUNK_PAYLOAD];
+                //Refills the writer's queue whenever there is room, so the link never idles
+                while (running)
+                {
+                    if (client.send(serverId, Frames.KIND_FILE_CHUNK, chunk))
+                    {
+                        bulkChunks = ++sent;
+                        chunk = new byte[FileTransfers.CHUNK_PAYLOAD];
+                    }
+                    else
+                        Thread.yield();
+                }
+            }
+        };
+        bulk.start();
+        startNanos = System.nanoTime();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException
+    {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.println(String.format("%nbulk: %.1f MB/s alongside chat",
+                bulkChunks * (double) FileTransfers.CHUNK_PAYLOAD / seconds / (1 << 20)));
+        running = false;
+        client.stop();
+        server.stop();
+        bulk.join(5000);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void chatUnderBulk() throws InterruptedException
+    {
+        //Without channels a queue full of chunks refuses chat too, waiting for room is part of the latency
+        while (!client.write(serverId, chat))
+            Thread.yield();
+        serverEvents.awaitReads(1);
+    }
+}
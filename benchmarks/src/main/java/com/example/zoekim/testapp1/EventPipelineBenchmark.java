@@ -0,0 +1,217 @@
+package com.example.zoekim.testapp1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Class: EventPipelineBenchmark
+Events per second from an I/O thread to a UI thread, through the
+EventPipeline and through one Handler message per event. There is no
+Looper outside Android, so the UI thread is modelled on it: a synchronized
+linked queue of pooled messages, a notify per enqueue, and a wait when empty.
+Each invocation sends a burst of reads and waits until the UI thread has
+handled them all. Run with -prof gc for allocations per event.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EventPipelineBenchmark
+{
+    static final int BURST = 64;
+    private static final int WHAT_DRAIN = 0;
+    private static final int WHAT_READ = 1;
+
+    private final AtomicLong handled = new AtomicLong();
+    private final byte[] buffer = new byte[32];
+    private long sent;
+    private UiThread ui;
+    private EventPipeline pipeline;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        ui = new UiThread();
+        ui.start();
+        pipeline = new EventPipeline(new Counting(), new EventPipeline.Wakeup()
+        {
+            @Override
+            public void wake()
+            {
+                ui.send(WHAT_DRAIN, 0, 0, null);
+            }
+        }, EventPipeline.DEFAULT_RING_SIZE, new Metrics());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException
+    {
+        pipeline.close();
+        ui.interrupt();
+        ui.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void pipeline()
+    {
+        for (int i = 0; i < BURST; i++)
+            pipeline.onRead(0, buffer, buffer.length);
+        await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void handlerMessages()
+    {
+        for (int i = 0; i < BURST; i++)
+            ui.send(WHAT_READ, buffer.length, 0, buffer);
+        await();
+    }
+
+    private void await()
+    {
+        sent += BURST;
+        while (handled.get() < sent)
+            Thread.yield();
+    }
+
+    private class Counting implements ConnectionListener
+    {
+        @Override
+        public void onRead(int peer, byte[] buffer, int length)
+        {
+            handled.incrementAndGet();
+        }
+
+        @Override
+        public void onStateChanged(int peer, int state) {}
+
+        @Override
+        public void onConnected(int peer, String address, String name) {}
+
+        @Override
+        public void onRelayed(int peer, long messageId, String origin, int hops, byte[] buffer, int offset, int length) {}
+
+        @Override
+        public void onWritten(int peer, byte[] payload) {}
+
+        @Override
+        public void onConnectionFailed(int peer) {}
+
+        @Override
+        public void onConnectionLost(int peer) {}
+    }
+
+    //android.os.Message: fields, a queue link, and a global pool of 50
+    private static final class Message
+    {
+        private static final Object POOL_LOCK = new Object();
+        private static Message pool;
+        private static int poolSize;
+
+        int what;
+        int arg1;
+        int arg2;
+        Object obj;
+        Message next;
+
+        static Message obtain()
+        {
+            synchronized (POOL_LOCK)
+            {
+                if (pool != null)
+                {
+                    Message m = pool;
+                    pool = m.next;
+                    m.next = null;
+                    poolSize--;
+                    return m;
+                }
+            }
+            return new Message();
+        }
+
+        void recycle()
+        {
+            obj = null;
+            synchronized (POOL_LOCK)
+            {
+                if (poolSize < 50)
+                {
+                    next = pool;
+                    pool = this;
+                    poolSize++;
+                }
+            }
+        }
+    }
+
+    //Looper and MessageQueue in one: FIFO of messages under a lock
+    private final class UiThread extends Thread
+    {
+        private Message head;
+        private Message tail;
+
+        synchronized void send(int what, int arg1, int arg2, Object obj)
+        {
+            Message m = Message.obtain();
+            m.what = what;
+            m.arg1 = arg1;
+            m.arg2 = arg2;
+            m.obj = obj;
+            if (tail == null)
+                head = m;
+            else
+                tail.next = m;
+            tail = m;
+            notify();
+        }
+
+        private synchronized Message next() throws InterruptedException
+        {
+            while (head == null)
+                wait();
+            Message m = head;
+            head = m.next;
+            if (head == null)
+                tail = null;
+            m.next = null;
+            return m;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    Message m = next();
+                    if (m.what == WHAT_DRAIN)
+                        pipeline.drain();
+                    else
+                        handled.incrementAndGet();
+                    m.recycle();
+                }
+            }
+            catch (InterruptedException e) {}
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.zoekim.testapp1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: FanOutBenchmark
+One chat message from a hub to every one of its peers over the in-memory
+transport, until each peer has read it. group encodes the message once
+and hands the same frame to every member with sendToGroup(), perPeer does
+what the app would do by hand: encode and write() once per peer. The
+time the sending thread itself spends, which is what the UI thread would
+pay, is printed at teardown.
+Run with -prof gc for bytes allocated per fan-out.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FanOutBenchmark
+{
+    @Param({"1", "2", "4", "7"})
+    public int peers;
+
+    private static final String TEXT = "on my way, see you at the station in ten minutes";
+
+    private ConnectionManager hub;
+    private ConnectionManager[] clients;
+    private PipelineBenchmark.BenchListener[] events;
+    private List<Integer> ids;
+    //Each client's listener by the id the hub gave it
+    private final HashMap<Integer, PipelineBenchmark.BenchListener> byId = new HashMap<>();
+    private ChatGroup group;
+    private long messageId;
+    private long sendNanos;
+    private long sends;
+    private long failures;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        PipelineBenchmark.BenchListener hubEvents = new PipelineBenchmark.BenchListener();
+        hub = new ConnectionManager(network.endpoint("hub"), hubEvents);
+        hubEvents.manager = hub;
+        hub.start();
+        clients = new ConnectionManager[peers];
+        events = new PipelineBenchmark.BenchListener[peers];
+        for (int i = 0; i < peers; i++)
+        {
+            events[i] = new PipelineBenchmark.BenchListener();
+            clients[i] = new ConnectionManager(network.endpoint("peer" + i), events[i]);
+            events[i].manager = clients[i];
+            clients[i].connect("hub");
+            events[i].awaitConnected();
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (hub.getConnectedPeers().size() < peers && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        ids = hub.getConnectedPeers();
+        if (ids.size() < peers)
+            throw new IllegalStateException("Only " + ids.size() + " peers connected");
+        group = hub.createGroup("bench", null);
+        for (int id : ids)
+        {
+            group.add(id);
+            byId.put(id, events[Integer.parseInt(hub.getPeerAddress(id).substring("peer".length()))]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        if (sends > 0)
+            System.out.println(String.format("%nsender: %.1f us per fan-out to %d peers, %d members refused",
+                    sendNanos / 1000.0 / sends, peers, failures));
+        for (ConnectionManager client : clients)
+            client.stop();
+        hub.stop();
+    }
+
+    private byte[] encode()
+    {
+        return MessageCodec.encode(++messageId, System.currentTimeMillis(),
+                MessageCodec.FLAG_OUTGOING | MessageCodec.FLAG_GROUP, "hub", TEXT);
+    }
+
+    @Benchmark
+    public void group() throws InterruptedException
+    {
+        long start = System.nanoTime();
+        long id = hub.sendToGroup(group, encode());
+        sendNanos += System.nanoTime() - start;
+        sends++;
+        //A member with a full queue is failed rather than waited for, so there is nothing to read
+        for (int member : ids)
+        {
+            if (group.getStatus(id, member) == ChatGroup.FAILED)
+                failures++;
+            else
+                byId.get(member).awaitReads(1);
+        }
+    }
+
+    @Benchmark
+    public void perPeer() throws InterruptedException
+    {
+        long start = System.nanoTime();
+        //write() refuses while a peer has too many messages unacknowledged, the caller has to retry
+        for (int id : ids)
+            while (!hub.write(id, encode()))
+                Thread.yield();
+        sendNanos += System.nanoTime() - start;
+        sends++;
+        for (PipelineBenchmark.BenchListener listener : events)
+            listener.awaitReads(1);
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.zoekim.testapp1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: FileTransferBenchmark
+Time to move a 16 MB file between two ConnectionManagers, from send()
+until the receiver has renamed the finished file, over in-memory and
+loopback TCP transports. The MB/s line printed at the end is the
+average over every transfer of the trial, warmup included.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class FileTransferBenchmark
+{
+    static final int FILE_SIZE = 16 << 20;
+
+    @Param({"memory", "tcp"})
+    public String transport;
+
+    private PipelineBenchmark.PeerPair pair;
+    private File source;
+    private File inbox;
+    private FileTransfers sender;
+    private final Done done = new Done();
+    private long totalNanos;
+    private int runs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        source = File.createTempFile("transfer", ".bin");
+        byte[] data = new byte[FILE_SIZE];
+        new Random(1).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(source);
+        out.write(data);
+        out.close();
+        inbox = Files.createTempDirectory("inbox").toFile();
+
+        pair = new PipelineBenchmark.PeerPair(transport, false);
+        sender = pair.client.enableFileTransfer(inbox, done);
+        pair.server.enableFileTransfer(inbox, done);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        System.out.println(String.format("%n%.1f MB/s", FILE_SIZE * (double) runs / totalNanos * 1e9 / (1 << 20)));
+        pair.close();
+        for (File f : inbox.listFiles())
+            f.delete();
+        inbox.delete();
+        source.delete();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void transfer() throws IOException, InterruptedException
+    {
+        long start = System.nanoTime();
+        sender.send(pair.serverId, source);
+        File received = done.await();
+        totalNanos += System.nanoTime() - start;
+        runs++;
+        if (received.length() != FILE_SIZE)
+            throw new IllegalStateException("Received " + received.length() + " bytes");
+        received.delete();
+    }
+
+    //Hands the received file to the benchmark thread
+    static class Done implements FileTransfers.Listener
+    {
+        private File file;
+        private String failure;
+
+        synchronized File await() throws InterruptedException
+        {
+            while (file == null && failure == null)
+                wait();
+            if (failure != null)
+                throw new IllegalStateException(failure);
+            File f = file;
+            file = null;
+            return f;
+        }
+
+        @Override
+        public void onProgress(int peer, long id, String name, long done, long size, boolean incoming) {}
+
+        @Override
+        public synchronized void onReceived(int peer, long id, File file)
+        {
+            this.file = file;
+            notifyAll();
+        }
+
+        @Override
+        public void onSent(int peer, long id, String name) {}
+
+        @Override
+        public synchronized void onFailed(int peer, long id, String name, String reason)
+        {
+            failure = reason;
+            notifyAll();
+        }
+    }
+}
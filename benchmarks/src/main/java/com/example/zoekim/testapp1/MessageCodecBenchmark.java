@@ -0,0 +1,116 @@
+package com.example.zoekim.testapp1;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: MessageCodecBenchmark
+One chat message through MessageCodec against the same message as Gson
+JSON in UTF-8. The codec benchmarks encode into and decode from reused
+buffers, the decodeString variant also builds the body String the UI
+shows. Run with -prof gc for bytes allocated per message, the encoded
+sizes are printed after setup.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageCodecBenchmark
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //What the JSON format carried
+    static final class JsonMessage
+    {
+        long id;
+        long timeMillis;
+        int flags;
+        String sender;
+        String body;
+    }
+
+    @Param({"on my way, see you at the station in ten minutes", "caf\u00e9 at 8? \ud83d\ude00"})
+    public String body;
+
+    private final String sender = "Pixel 3a";
+    private final Gson gson = new Gson();
+    private final byte[] buffer = new byte[1024];
+    private final MessageCodec.Message message = new MessageCodec.Message();
+    private final StringBuilder text = new StringBuilder(256);
+    private byte[] encoded;
+    private byte[] json;
+    private long id;
+
+    @Setup(Level.Trial)
+    public void setUp() throws UnsupportedEncodingException
+    {
+        encoded = MessageCodec.encode(1234, 1700000000000L, MessageCodec.FLAG_OUTGOING, sender, body);
+        json = gson.toJson(jsonMessage(1234)).getBytes("UTF-8");
+        System.out.printf("%nencoded: codec %d bytes, gson %d bytes%n", encoded.length, json.length);
+    }
+
+    private JsonMessage jsonMessage(long id)
+    {
+        JsonMessage m = new JsonMessage();
+        m.id = id;
+        m.timeMillis = 1700000000000L + id;
+        m.flags = MessageCodec.FLAG_OUTGOING;
+        m.sender = sender;
+        m.body = body;
+        return m;
+    }
+
+    @Benchmark
+    public int codecEncode()
+    {
+        id++;
+        return MessageCodec.encode(id, 1700000000000L + id, MessageCodec.FLAG_OUTGOING, sender, body, buffer, 0);
+    }
+
+    @Benchmark
+    public int codecDecode()
+    {
+        MessageCodec.decode(encoded, 0, encoded.length, message);
+        text.setLength(0);
+        message.appendBody(text);
+        return text.length() + (int) message.id;
+    }
+
+    @Benchmark
+    public String codecDecodeString()
+    {
+        MessageCodec.decode(encoded, 0, encoded.length, message);
+        return message.getBody();
+    }
+
+    @Benchmark
+    public byte[] gsonEncode()
+    {
+        id++;
+        return gson.toJson(jsonMessage(id)).getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public String gsonDecode()
+    {
+        return gson.fromJson(new String(json, UTF_8), JsonMessage.class).body;
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.zoekim.testapp1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: MetricsBenchmark
+Cost of recording one event, from one thread and from four threads
+hitting the same metric, as the reader and writer threads of several
+sessions do.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark
+{
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter counter = metrics.counter("events");
+    private final Metrics.Histogram histogram = metrics.histogram("latency");
+    private long value = 12345;
+
+    @Benchmark
+    public void counter()
+    {
+        counter.increment();
+    }
+
+    @Benchmark
+    public void histogram()
+    {
+        //Varies the bucket without a Random call in the measurement
+        value = value * 6364136223846793005L + 1442695040888963407L;
+        histogram.record(value >>> 40);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void counterContended()
+    {
+        counter.increment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void histogramContended()
+    {
+        histogram.record(System.nanoTime() & 0xFFFFF);
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.zoekim.testapp1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: PipelineBenchmark
+End-to-end cost of ConnectionManager.write() to the peer's onRead()
+over in-memory and loopback TCP transports, with and without compression.
+roundTrip reports latency percentiles, throughput keeps a window of
+messages in flight.
+Run with -prof gc for allocation rate.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PipelineBenchmark
+{
+    static final int BATCH = 64;
+
+    @Param({"memory", "tcp"})
+    public String transport;
+
+    @Param({"32", "1024"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean compression;
+
+    private PeerPair pair;
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        //Chat-like text, so compression has something to find
+        payload = new byte[size];
+        byte[] text = "on my way, see you at the station in ten minutes ".getBytes("UTF-8");
+        for (int i = 0; i < size; i++)
+            payload[i] = text[i % text.length];
+        pair = new PeerPair(transport, compression);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        FrameCompressor.Stats stats = pair.client.getCompressionStats();
+        if (stats.getCompressedFrames() > 0)
+            System.out.println(String.format("%ncompression ratio %.2f, %d ns deflate per frame",
+                    stats.getRatio(), stats.getDeflateNanos() / stats.getCompressedFrames()));
+        pair.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() throws InterruptedException
+    {
+        pair.client.write(pair.serverId, payload);
+        pair.serverEvents.awaitReads(1);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void throughput() throws InterruptedException
+    {
+        for (int i = 0; i < BATCH; i++)
+            pair.client.write(pair.serverId, payload);
+        pair.serverEvents.awaitReads(BATCH);
+    }
+
+    //A listening manager and a manager connected to it
+    static class PeerPair
+    {
+        final ConnectionManager server;
+        final ConnectionManager client;
+        final BenchListener serverEvents = new BenchListener();
+        final BenchListener clientEvents = new BenchListener();
+        final int serverId;
+
+        PeerPair(String kind, boolean compression) throws IOException, InterruptedException
+        {
+            Transport serverTransport;
+            Transport clientTransport;
+            String address;
+            if (kind.equals("tcp"))
+            {
+                int port = freePort();
+                serverTransport = new TcpTransport(port);
+                clientTransport = new TcpTransport(0);
+                address = "127.0.0.1:" + port;
+            }
+            else
+            {
+                MemoryTransport.Network network = new MemoryTransport.Network();
+                serverTransport = network.endpoint("server");
+                clientTransport = network.endpoint("client");
+                address = "server";
+            }
+
+            server = new ConnectionManager(serverTransport, serverEvents);
+            client = new ConnectionManager(clientTransport, clientEvents);
+            serverEvents.manager = server;
+            clientEvents.manager = client;
+            server.setBackpressure(OutboundWriter.Backpressure.BLOCK);
+            client.setBackpressure(OutboundWriter.Backpressure.BLOCK);
+            server.setCompression(compression, FrameCompressor.DEFAULT_THRESHOLD);
+            client.setCompression(compression, FrameCompressor.DEFAULT_THRESHOLD);
+
+            server.start();
+            serverId = client.connect(address);
+            serverEvents.awaitConnected();
+            clientEvents.awaitConnected();
+        }
+
+        void close()
+        {
+            client.stop();
+            server.stop();
+        }
+
+        private static int freePort() throws IOException
+        {
+            ServerSocket socket = new ServerSocket(0);
+            int port = socket.getLocalPort();
+            socket.close();
+            return port;
+        }
+    }
+
+    //Counts reads and recycles their buffers
+    static class BenchListener implements ConnectionListener
+    {
+        volatile ConnectionManager manager;
+        private int reads;
+        private boolean connected;
+
+        synchronized void awaitConnected() throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!connected)
+            {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    throw new IllegalStateException("Not connected");
+                wait(left);
+            }
+        }
+
+        synchronized void awaitReads(int n) throws InterruptedException
+        {
+            while (reads < n)
+                wait();
+            reads -= n;
+        }
+
+        @Override
+        public void onStateChanged(int peer, int state) {}
+
+        @Override
+        public synchronized void onConnected(int peer, String address, String name)
+        {
+            connected = true;
+            notifyAll();
+        }
+
+        @Override
+        public void onRead(int peer, byte[] buffer, int length)
+        {
+            manager.recycle(buffer);
+            synchronized (this)
+            {
+                reads++;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void onRelayed(int peer, long messageId, String origin, int hops, byte[] buffer, int offset, int length)
+        {
+            manager.recycle(buffer);
+        }
+
+        @Override
+        public void onWritten(int peer, byte[] payload) {}
+
+        @Override
+        public void onConnectionFailed(int peer) {}
+
+        @Override
+        public void onConnectionLost(int peer) {}
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.zoekim.testapp1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: SearchIndexBenchmark
+SearchIndex over a synthetic corpus with Zipf-distributed words.
+build times indexing the whole corpus, add is the incremental cost of one
+more message, and the query benchmarks report latency percentiles. The
+index size is printed after setup.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = "-Xmx3g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SearchIndexBenchmark
+{
+    static final int VOCABULARY = 20000;
+    static final int PEERS = 20;
+
+    @Param({"1000000"})
+    public int messages;
+
+    private String[] words;
+    private String[] corpus;
+    private SearchIndex index;
+    private Random random;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        random = new Random(42);
+        words = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++)
+        {
+            StringBuilder sb = new StringBuilder();
+            int len = 3 + random.nextInt(7);
+            for (int c = 0; c < len; c++)
+                sb.append((char) ('a' + random.nextInt(26)));
+            words[i] = sb.toString();
+        }
+
+        corpus = new String[messages];
+        for (int i = 0; i < messages; i++)
+            corpus[i] = message();
+
+        long start = System.nanoTime();
+        index = build();
+        System.out.println(String.format("%n%d messages, %d terms, ~%d MB, built in %d ms",
+                index.documents(), index.terms(), index.estimatedBytes() >> 20,
+                (System.nanoTime() - start) / 1000000));
+    }
+
+    //Word rank follows Zipf with exponent 1
+    private String word()
+    {
+        double u = random.nextDouble();
+        int rank = (int) Math.pow(VOCABULARY + 1, u) - 1;
+        return words[Math.min(rank, VOCABULARY - 1)];
+    }
+
+    private String message()
+    {
+        StringBuilder sb = new StringBuilder("Me: ");
+        int count = 3 + random.nextInt(10);
+        for (int w = 0; w < count; w++)
+            sb.append(word()).append(' ');
+        return sb.toString();
+    }
+
+    private SearchIndex build()
+    {
+        SearchIndex built = new SearchIndex();
+        for (int i = 0; i < corpus.length; i++)
+            built.add("peer" + (i % PEERS), i / PEERS, corpus[i]);
+        return built;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public SearchIndex buildAll()
+    {
+        return build();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void add()
+    {
+        index.add("peer0", messages + next, corpus[next++ % corpus.length]);
+    }
+
+    //Mid-frequency word, about a thousand hits
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<SearchIndex.Hit> rareToken()
+    {
+        return index.search(words[500], 20);
+    }
+
+    //Among the most frequent words, hundreds of thousands of postings
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<SearchIndex.Hit> commonToken()
+    {
+        return index.search(words[3], 20);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<SearchIndex.Hit> twoTerms()
+    {
+        return index.search(words[3] + " " + words[40], 20);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<SearchIndex.Hit> prefix()
+    {
+        return index.search(words[40] + " " + words[10].substring(0, 2) + "*", 20);
+    }
+}
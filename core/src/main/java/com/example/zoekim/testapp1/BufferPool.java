@@ -0,0 +1,92 @@
+package com.example.zoekim.testapp1;
+
+import java.util.ArrayDeque;
+
+/*
+Class: BufferPool
+Recycles byte arrays in power-of-two size classes.
+Each class keeps as many free buffers as were ever in use at once (up to a
+cap), so the pool grows to fit the traffic instead of being sized up front.
+Buffers larger than the biggest class are allocated and dropped normally.
+ */
+public class BufferPool
+{
+    static final int MIN_SHIFT = 8;
+    static final int MAX_SHIFT = 22;
+    private static final int MAX_RETAINED = 64;
+
+    private final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+    public BufferPool()
+    {
+        for (int i = 0; i < classes.length; i++)
+            classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+    }
+
+    //Returns a buffer of at least size bytes
+    public byte[] acquire(int size)
+    {
+        int c = classOf(size);
+        if (c < 0)
+            return new byte[size];
+        return classes[c].acquire();
+    }
+
+    //Hands a buffer back, it must not be used afterwards
+    public void release(byte[] buffer)
+    {
+        if (buffer == null)
+            return;
+        int c = classOf(buffer.length);
+        if (c >= 0 && classes[c].size == buffer.length)
+            classes[c].release(buffer);
+    }
+
+    //Free buffers currently held for the class that serves size
+    int retained(int size)
+    {
+        int c = classOf(size);
+        return c < 0 ? 0 : classes[c].retained();
+    }
+
+    private static int classOf(int size)
+    {
+        int shift = size <= (1 << MIN_SHIFT) ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    private static class SizeClass
+    {
+        final int size;
+        private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+        private int inUse;
+        private int highWater;
+
+        SizeClass(int size)
+        {
+            this.size = size;
+        }
+
+        synchronized byte[] acquire()
+        {
+            inUse++;
+            if (inUse > highWater)
+                highWater = inUse;
+            byte[] b = free.pollFirst();
+            return b != null ? b : new byte[size];
+        }
+
+        synchronized void release(byte[] b)
+        {
+            if (inUse > 0)
+                inUse--;
+            if (free.size() < Math.min(highWater, MAX_RETAINED))
+                free.addFirst(b);
+        }
+
+        synchronized int retained()
+        {
+            return free.size();
+        }
+    }
+}
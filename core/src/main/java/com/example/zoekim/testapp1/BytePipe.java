@@ -0,0 +1,158 @@
+package com.example.zoekim.testapp1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/*
+Class: BytePipe
+Bounded in-memory byte channel with one reading and one writing end.
+Unlike PipedInputStream it wakes the reader as soon as data is written and
+does not care which threads use it. Closing either end ends the pipe:
+the reader drains what is left then sees end of stream, the writer fails.
+ */
+public class BytePipe
+{
+    private final byte[] ring;
+    private int head;
+    private int size;
+    private boolean writerClosed;
+    private boolean readerClosed;
+
+    private final InputStream in = new InputStream()
+    {
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return BytePipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available()
+        {
+            synchronized (BytePipe.this)
+            {
+                return size;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            closeReader();
+        }
+    };
+
+    private final OutputStream out = new OutputStream()
+    {
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            BytePipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close()
+        {
+            closeWriter();
+        }
+    };
+
+    public BytePipe(int capacity)
+    {
+        ring = new byte[capacity];
+    }
+
+    public InputStream getInputStream()
+    {
+        return in;
+    }
+
+    public OutputStream getOutputStream()
+    {
+        return out;
+    }
+
+    public synchronized void closeReader()
+    {
+        readerClosed = true;
+        notifyAll();
+    }
+
+    public synchronized void closeWriter()
+    {
+        writerClosed = true;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+            return 0;
+        while (size == 0)
+        {
+            if (readerClosed)
+                throw new IOException("Pipe closed");
+            if (writerClosed)
+                return -1;
+            await();
+        }
+        if (readerClosed)
+            throw new IOException("Pipe closed");
+
+        int n = Math.min(len, size);
+        int first = Math.min(n, ring.length - head);
+        System.arraycopy(ring, head, b, off, first);
+        System.arraycopy(ring, 0, b, off + first, n - first);
+        head = (head + n) % ring.length;
+        size -= n;
+        notifyAll();
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            while (size == ring.length && !readerClosed && !writerClosed)
+                await();
+            if (readerClosed || writerClosed)
+                throw new IOException("Pipe closed");
+
+            int tail = (head + size) % ring.length;
+            int n = Math.min(len, Math.min(ring.length - size, ring.length - tail));
+            System.arraycopy(b, off, ring, tail, n);
+            size += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    private void await() throws InterruptedIOException
+    {
+        try
+        {
+            wait();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
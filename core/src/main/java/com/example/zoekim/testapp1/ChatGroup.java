@@ -0,0 +1,165 @@
+package com.example.zoekim.testapp1;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/*
+Class: ChatGroup
+Named set of peers that ConnectionManager.sendToGroup() sends one message
+to, and the delivery status of each member for the most recent messages.
+A member's status only moves forward, QUEUED to WRITTEN to DELIVERED, or
+to FAILED if its queue was full, it had no session, or the session ended
+before the member acknowledged the message. Statuses change on the
+manager's I/O threads and are reported to the listener there, outside the
+group's lock.
+ */
+public class ChatGroup
+{
+    public interface Listener
+    {
+        void onStatusChanged(ChatGroup group, long messageId, int peer, int status);
+    }
+
+    public static final int UNKNOWN = -1;
+    public static final int QUEUED = 0;
+    public static final int WRITTEN = 1;
+    public static final int DELIVERED = 2;
+    public static final int FAILED = 3;
+
+    //Message id in front of the body of a KIND_GROUP frame and the whole of its ack
+    static final int HEADER_LEN = 8;
+    //Messages whose statuses are kept, older ones are forgotten
+    static final int MAX_TRACKED = 64;
+
+    private final String name;
+    private final Listener listener;
+    private final LinkedHashSet<Integer> members = new LinkedHashSet<>();
+    //Message id to each member's status, oldest message first
+    private final LinkedHashMap<Long, HashMap<Integer, Integer>> sent =
+            new LinkedHashMap<Long, HashMap<Integer, Integer>>()
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, HashMap<Integer, Integer>> eldest)
+                {
+                    return size() > MAX_TRACKED;
+                }
+            };
+
+    //listener may be null
+    public ChatGroup(String name, Listener listener)
+    {
+        this.name = name;
+        this.listener = listener;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    //Adds a peer by its ConnectionManager id, false if it was already a member
+    public synchronized boolean add(int peer)
+    {
+        return members.add(peer);
+    }
+
+    //Messages already sent keep the peer's status
+    public synchronized boolean remove(int peer)
+    {
+        return members.remove(peer);
+    }
+
+    public synchronized boolean contains(int peer)
+    {
+        return members.contains(peer);
+    }
+
+    //Member ids in the order they were added
+    public synchronized List<Integer> members()
+    {
+        return new ArrayList<>(members);
+    }
+
+    //UNKNOWN if the message was not sent to peer or is no longer tracked
+    public synchronized int getStatus(long messageId, int peer)
+    {
+        HashMap<Integer, Integer> statuses = sent.get(messageId);
+        Integer status = statuses != null ? statuses.get(peer) : null;
+        return status != null ? status : UNKNOWN;
+    }
+
+    //Members the message has reached status with
+    public synchronized int count(long messageId, int status)
+    {
+        HashMap<Integer, Integer> statuses = sent.get(messageId);
+        int n = 0;
+        if (statuses != null)
+            for (int s : statuses.values())
+                if (s == status)
+                    n++;
+        return n;
+    }
+
+    //Starts tracking the message for peer, before it is offered to the peer's writer
+    void track(long messageId, int peer)
+    {
+        synchronized (this)
+        {
+            HashMap<Integer, Integer> statuses = sent.get(messageId);
+            if (statuses == null)
+            {
+                statuses = new HashMap<>();
+                sent.put(messageId, statuses);
+            }
+            statuses.put(peer, QUEUED);
+        }
+        report(messageId, peer, QUEUED);
+    }
+
+    //Moves peer's status forward, ignores messages this group did not send
+    void update(long messageId, int peer, int status)
+    {
+        synchronized (this)
+        {
+            HashMap<Integer, Integer> statuses = sent.get(messageId);
+            Integer current = statuses != null ? statuses.get(peer) : null;
+            if (current == null || current == FAILED || current == DELIVERED || current >= status)
+                return;
+            statuses.put(peer, status);
+        }
+        report(messageId, peer, status);
+    }
+
+    //Peer's session ended, nothing it has not acknowledged will be
+    void sessionEnded(int peer)
+    {
+        List<Long> failed = new ArrayList<>();
+        synchronized (this)
+        {
+            Iterator<Map.Entry<Long, HashMap<Integer, Integer>>> it = sent.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<Long, HashMap<Integer, Integer>> entry = it.next();
+                Integer status = entry.getValue().get(peer);
+                if (status != null && (status == QUEUED || status == WRITTEN))
+                {
+                    entry.getValue().put(peer, FAILED);
+                    failed.add(entry.getKey());
+                }
+            }
+        }
+        for (long messageId : failed)
+            report(messageId, peer, FAILED);
+    }
+
+    private void report(long messageId, int peer, int status)
+    {
+        if (listener != null)
+            listener.onStatusChanged(this, messageId, peer, status);
+    }
+}
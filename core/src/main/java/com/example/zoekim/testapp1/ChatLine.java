@@ -0,0 +1,45 @@
+package com.example.zoekim.testapp1;
+
+/*
+Class: ChatLine
+One line of a conversation as ChatLogStore keeps it: the message's id,
+time, MessageCodec flags, sender and body, as they came off the wire.
+How a line reads on screen is decided when it is shown. Lines stored
+before these fields were kept have only a body, the whole line as it was
+shown then, an empty sender and no FLAG_OUTGOING.
+ */
+public final class ChatLine
+{
+    public final long id;
+    //0 when not known
+    public final long timeMillis;
+    public final int flags;
+    //Empty for this device's lines stored before senders were, and for notices
+    public final String sender;
+    public final String body;
+
+    public ChatLine(long id, long timeMillis, int flags, String sender, String body)
+    {
+        this.id = id;
+        this.timeMillis = timeMillis;
+        this.flags = flags;
+        this.sender = sender;
+        this.body = body;
+    }
+
+    //Status line written by the app, such as a failed delivery
+    public static ChatLine notice(String text)
+    {
+        return new ChatLine(0, System.currentTimeMillis(), MessageCodec.FLAG_NOTICE, "", text);
+    }
+
+    public boolean isOutgoing()
+    {
+        return (flags & MessageCodec.FLAG_OUTGOING) != 0;
+    }
+
+    public boolean isNotice()
+    {
+        return (flags & MessageCodec.FLAG_NOTICE) != 0;
+    }
+}
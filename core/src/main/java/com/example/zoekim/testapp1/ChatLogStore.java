@@ -0,0 +1,663 @@
+package com.example.zoekim.testapp1;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: ChatLogStore
+Append-only chat history, one log per peer.
+<peer>.log holds length-prefixed records, <peer>.idx holds the 8 byte
+offset of every record, so an append is one small write to each file and
+record i is found with a single seek. All file I/O runs on one background thread,
+except the replay to an append listener, which reads the logs on its own
+thread so history reads never queue behind it.
+Records are MessageCodec messages holding each ChatLine's id, time,
+flags, sender and body. Logs written before that hold plain UTF-8, or the
+whole shown line as the body, and read as lines with only a body.
+ */
+public class ChatLogStore
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String LOG_EXT = ".log";
+    private static final String INDEX_EXT = ".idx";
+    private static final int HEADER_LEN = 4;
+    private static final int OFFSET_LEN = 8;
+
+    public interface ReadCallback
+    {
+        //Called on the store thread
+        void onRead(String peer, int from, List<ChatLine> lines);
+    }
+
+    public interface AppendListener
+    {
+        //Called on the store thread once line is stored at offset in the peer's log
+        void onAppended(String peer, int offset, ChatLine line);
+
+        //Called on the store thread once every line of from has become a line of to
+        void onMoved(String from, String to);
+    }
+
+    private final File dir;
+    private final ExecutorService executor;
+    //Replays run beside the store thread, which keeps taking appends meanwhile
+    private final ExecutorService replays = Workers.serial("ChatLogStore-replay");
+    private final Map<String, PeerLog> logs = new HashMap<>();
+    private byte[] scratch = new byte[256];
+    private final MessageCodec.Message decoded = new MessageCodec.Message();
+    private AppendListener appendListener;
+    private volatile boolean closed;
+    //Counted down once the append listener has every line stored before it was set
+    private volatile CountDownLatch replayed = new CountDownLatch(0);
+
+    public ChatLogStore(File dir)
+    {
+        this.dir = dir;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                return new Thread(r, "ChatLogStore");
+            }
+        });
+    }
+
+    //Queues one line to be appended to the peer's log
+    public void append(final String peer, final ChatLine line)
+    {
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    write(open(peer), line);
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    //Copies a legacy history of shown lines into an empty log, does nothing if the peer already has history
+    //imported, if not null, runs on the store thread once the lines are in the log or the log
+    //already had history, not if storing failed, so the legacy copy can be dropped then
+    public void importLegacy(final String peer, final List<String> lines, final Runnable imported)
+    {
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    PeerLog log = open(peer);
+                    if (log.count == 0)
+                    {
+                        for (String line : lines)
+                            write(log, new ChatLine(0, 0, 0, "", line));
+                    }
+                    if (imported != null)
+                        imported.run();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    //Renames from's log to to, if from has history and to has none yet
+    public void moveLog(final String from, final String to)
+    {
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    //Checked first so asking about every known name creates no empty logs
+                    if (from.equals(to) || !new File(dir, fileName(from) + LOG_EXT).exists())
+                        return;
+                    PeerLog source = open(from);
+                    PeerLog target = open(to);
+                    if (source.count == 0 || target.count > 0)
+                        return;
+                    source.close();
+                    target.close();
+                    logs.remove(from);
+                    logs.remove(to);
+                    String name = fileName(to);
+                    if (!source.logFile.renameTo(new File(dir, name + LOG_EXT))
+                            || !source.indexFile.renameTo(new File(dir, name + INDEX_EXT)))
+                        throw new IOException("Cannot move " + source.logFile);
+                    if (appendListener != null)
+                        appendListener.onMoved(from, to);
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    //Reads lines [from, from + count) once every earlier append has been written
+    public void readAsync(final String peer, final int from, final int count, final ReadCallback callback)
+    {
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                List<ChatLine> lines;
+                try
+                {
+                    lines = readLines(open(peer), from, count);
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                    lines = new ArrayList<>();
+                }
+                callback.onRead(peer, from, lines);
+            }
+        });
+    }
+
+    //Reads the last page of lines, from is a multiple of pageSize so from + lines.size() is the total count
+    public void readTailAsync(final String peer, final int pageSize, final ReadCallback callback)
+    {
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                int from = 0;
+                List<ChatLine> lines;
+                try
+                {
+                    PeerLog log = open(peer);
+                    from = Math.max(0, (log.count - 1) / pageSize * pageSize);
+                    lines = readLines(log, from, pageSize);
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                    lines = new ArrayList<>();
+                }
+                callback.onRead(peer, from, lines);
+            }
+        });
+    }
+
+    //Replays every stored line to listener on a thread of its own, then reports each new append
+    //Appends and moves made during the replay reach listener after it, in order
+    public void setAppendListener(AppendListener listener)
+    {
+        setAppendListener(listener, Collections.<String, Integer>emptyMap());
+    }
+
+    //Same, but each peer's replay starts at the line known gives for it, which listener has already seen
+    //A log shorter than that is not the one listener saw and is replayed whole
+    public void setAppendListener(final AppendListener listener, final Map<String, Integer> known)
+    {
+        final CountDownLatch done = new CountDownLatch(1);
+        replayed = done;
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                //Opened here, so the replay reads each log as it is now even if it is moved meanwhile
+                final Map<String, FileInputStream> files = new LinkedHashMap<>();
+                final Map<String, Long> ends = new HashMap<>();
+                final Map<String, Integer> starts = new HashMap<>();
+                File[] names = dir.listFiles();
+                for (int i = 0; names != null && i < names.length; i++)
+                {
+                    String name = names[i].getName();
+                    if (!name.endsWith(LOG_EXT))
+                        continue;
+                    try
+                    {
+                        String peer = peerName(name.substring(0, name.length() - LOG_EXT.length()));
+                        PeerLog log = open(peer);
+                        Integer seen = known.get(peer);
+                        int start = seen != null && seen <= log.count ? seen : 0;
+                        FileInputStream in = new FileInputStream(log.logFile);
+                        in.getChannel().position(start == log.count ? log.end : log.offsetAt(start));
+                        files.put(peer, in);
+                        ends.put(peer, log.end);
+                        starts.put(peer, start);
+                    }
+                    catch (IOException | IllegalArgumentException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+                final ReplayFeed feed = new ReplayFeed(listener);
+                appendListener = feed;
+                replays.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        replay(files, ends, starts, feed);
+                        done.countDown();
+                    }
+                });
+            }
+        });
+    }
+
+    //Waits for the append listener's replay, false if it is still running after timeoutMillis
+    public boolean awaitReplay(long timeoutMillis) throws InterruptedException
+    {
+        return replayed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    //Reads each log up to where it ended when the listener was set, then lets the feed through
+    private void replay(Map<String, FileInputStream> files, Map<String, Long> ends, Map<String, Integer> starts,
+                        ReplayFeed feed)
+    {
+        MessageCodec.Message message = new MessageCodec.Message();
+        byte[] record = new byte[256];
+        for (Map.Entry<String, FileInputStream> entry : files.entrySet())
+        {
+            String peer = entry.getKey();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(entry.getValue(), 64 * 1024));
+            try
+            {
+                long pos = entry.getValue().getChannel().position();
+                long end = ends.get(peer);
+                for (int offset = starts.get(peer); pos < end && !closed; offset++)
+                {
+                    int len = in.readInt();
+                    if (record.length < len)
+                        record = new byte[Math.max(len, record.length * 2)];
+                    in.readFully(record, 0, len);
+                    feed.listener.onAppended(peer, offset, lineOf(record, 0, len, message));
+                    pos += HEADER_LEN + len;
+                }
+            }
+            catch (EOFException e)
+            {
+                //Cannot happen below the end a recovered log had, nothing more to read
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e) {}
+            }
+        }
+        feed.replayed();
+    }
+
+    //Blocking read, must not be called from the store thread
+    public List<ChatLine> read(final String peer, final int from, final int count) throws IOException
+    {
+        return await(new Callable<List<ChatLine>>()
+        {
+            @Override
+            public List<ChatLine> call() throws IOException
+            {
+                return readLines(open(peer), from, count);
+            }
+        });
+    }
+
+    //Blocking count of persisted lines, including any appends queued before the call
+    public int count(final String peer) throws IOException
+    {
+        return await(new Callable<Integer>()
+        {
+            @Override
+            public Integer call() throws IOException
+            {
+                return open(peer).count;
+            }
+        });
+    }
+
+    //Waits for every queued append to reach the files
+    public void flush() throws IOException
+    {
+        await(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                return null;
+            }
+        });
+    }
+
+    //Finishes queued work and closes all files
+    public void close()
+    {
+        closed = true;
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (PeerLog log : logs.values())
+                    log.close();
+                logs.clear();
+            }
+        });
+        executor.shutdown();
+        replays.shutdown();
+        try
+        {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <T> T await(Callable<T> task) throws IOException
+    {
+        Future<T> future = executor.submit(task);
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for chat log");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private PeerLog open(String peer) throws IOException
+    {
+        PeerLog log = logs.get(peer);
+        if (log == null)
+        {
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Cannot create " + dir);
+            String name = fileName(peer);
+            log = new PeerLog(peer, new File(dir, name + LOG_EXT), new File(dir, name + INDEX_EXT));
+            logs.put(peer, log);
+        }
+        return log;
+    }
+
+    private void write(PeerLog log, ChatLine line) throws IOException
+    {
+        int recordLen = MessageCodec.encodedLength(line.id, line.timeMillis, line.flags, line.sender, line.body);
+        int len = HEADER_LEN + recordLen;
+        if (scratch.length < len)
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        putInt(scratch, 0, recordLen);
+        MessageCodec.encode(line.id, line.timeMillis, line.flags, line.sender, line.body, scratch, HEADER_LEN);
+
+        log.log.seek(log.end);
+        log.log.write(scratch, 0, len);
+        log.writeOffset(log.count, log.end);
+        log.end += len;
+        log.count++;
+        if (appendListener != null)
+            appendListener.onAppended(log.peer, log.count - 1, line);
+    }
+
+    private List<ChatLine> readLines(PeerLog log, int from, int count) throws IOException
+    {
+        int to = (int) Math.min((long) from + count, log.count);
+        List<ChatLine> lines = new ArrayList<>(Math.max(0, to - from));
+        if (from < 0 || from >= to)
+            return lines;
+
+        long start = log.offsetAt(from);
+        long end = to == log.count ? log.end : log.offsetAt(to);
+        byte[] data = new byte[(int) (end - start)];
+        log.log.seek(start);
+        log.log.readFully(data);
+
+        int pos = 0;
+        while (pos < data.length)
+        {
+            int len = getInt(data, pos);
+            lines.add(lineOf(data, pos + HEADER_LEN, len, decoded));
+            pos += HEADER_LEN + len;
+        }
+        return lines;
+    }
+
+    private static ChatLine lineOf(byte[] data, int offset, int len, MessageCodec.Message message)
+    {
+        if (MessageCodec.decode(data, offset, len, message))
+            return new ChatLine(message.id, message.timeMillis, message.flags, message.getSender(), message.getBody());
+        return new ChatLine(0, 0, MessageCodec.FLAG_LEGACY, "", new String(data, offset, len, UTF_8));
+    }
+
+    //Hex of the UTF-8 peer key, device names can hold any character
+    static String fileName(String peer)
+    {
+        byte[] bytes = peer.getBytes(UTF_8);
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    //Inverse of fileName
+    static String peerName(String fileName)
+    {
+        if (fileName.length() % 2 != 0)
+            throw new IllegalArgumentException("Not a peer file name: " + fileName);
+        byte[] bytes = new byte[fileName.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            int hi = Character.digit(fileName.charAt(2 * i), 16);
+            int lo = Character.digit(fileName.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("Not a peer file name: " + fileName);
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    static void putLong(byte[] b, int off, long v)
+    {
+        putInt(b, off, (int) (v >>> 32));
+        putInt(b, off + 4, (int) v);
+    }
+
+    static long getLong(byte[] b, int off)
+    {
+        return ((long) getInt(b, off) << 32) | (getInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+
+    static void putInt(byte[] b, int off, int v)
+    {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    static int getInt(byte[] b, int off)
+    {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16)
+                | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    //Holds back appends and moves reported while the replay runs, then passes them on in order
+    private static class ReplayFeed implements AppendListener
+    {
+        final AppendListener listener;
+        private List<Object[]> held = new ArrayList<>();
+
+        ReplayFeed(AppendListener listener)
+        {
+            this.listener = listener;
+        }
+
+        @Override
+        public synchronized void onAppended(String peer, int offset, ChatLine line)
+        {
+            if (held != null)
+                held.add(new Object[] {peer, offset, line});
+            else
+                listener.onAppended(peer, offset, line);
+        }
+
+        @Override
+        public synchronized void onMoved(String from, String to)
+        {
+            if (held != null)
+                held.add(new Object[] {from, to});
+            else
+                listener.onMoved(from, to);
+        }
+
+        synchronized void replayed()
+        {
+            for (Object[] event : held)
+            {
+                if (event.length == 2)
+                    listener.onMoved((String) event[0], (String) event[1]);
+                else
+                    listener.onAppended((String) event[0], (Integer) event[1], (ChatLine) event[2]);
+            }
+            held = null;
+        }
+    }
+
+    //Open log and index files for one peer
+    private static class PeerLog
+    {
+        final String peer;
+        final File logFile;
+        final File indexFile;
+        final RandomAccessFile log;
+        final RandomAccessFile index;
+        final byte[] offsetBuf = new byte[OFFSET_LEN];
+        int count;
+        long end;
+
+        PeerLog(String peer, File logFile, File indexFile) throws IOException
+        {
+            this.peer = peer;
+            this.logFile = logFile;
+            this.indexFile = indexFile;
+            log = new RandomAccessFile(logFile, "rw");
+            index = new RandomAccessFile(indexFile, "rw");
+            recover();
+        }
+
+        //Drops a torn last record and re-indexes records whose index entry never got written
+        private void recover() throws IOException
+        {
+            long logLen = log.length();
+            count = (int) (index.length() / OFFSET_LEN);
+            end = 0;
+            while (count > 0)
+            {
+                long off = offsetAt(count - 1);
+                if (off + HEADER_LEN <= logLen)
+                {
+                    long recEnd = off + HEADER_LEN + lengthAt(off);
+                    if (recEnd >= off + HEADER_LEN && recEnd <= logLen)
+                    {
+                        end = recEnd;
+                        break;
+                    }
+                }
+                count--;
+            }
+
+            while (end + HEADER_LEN <= logLen)
+            {
+                long recEnd = end + HEADER_LEN + lengthAt(end);
+                if (recEnd < end + HEADER_LEN || recEnd > logLen)
+                    break;
+                writeOffset(count, end);
+                count++;
+                end = recEnd;
+            }
+
+            index.setLength((long) count * OFFSET_LEN);
+            log.setLength(end);
+        }
+
+        //RandomAccessFile.readLong/writeLong go to the file a byte at a time
+        long offsetAt(int i) throws IOException
+        {
+            index.seek((long) i * OFFSET_LEN);
+            index.readFully(offsetBuf);
+            return getLong(offsetBuf, 0);
+        }
+
+        int lengthAt(long offset) throws IOException
+        {
+            log.seek(offset);
+            log.readFully(offsetBuf, 0, HEADER_LEN);
+            return getInt(offsetBuf, 0);
+        }
+
+        void writeOffset(int i, long offset) throws IOException
+        {
+            putLong(offsetBuf, 0, offset);
+            index.seek((long) i * OFFSET_LEN);
+            index.write(offsetBuf);
+        }
+
+        void close()
+        {
+            try
+            {
+                log.close();
+                index.close();
+            }
+            catch (IOException e) {}
+        }
+    }
+}
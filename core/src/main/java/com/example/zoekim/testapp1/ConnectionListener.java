@@ -0,0 +1,28 @@
+package com.example.zoekim.testapp1;
+
+/*
+Interface: ConnectionListener
+Events from ConnectionManager, called on its I/O threads.
+peer is the id ConnectionManager gave the peer's address.
+ */
+public interface ConnectionListener
+{
+    //peer is ConnectionManager.NO_PEER for the manager's own listening state
+    void onStateChanged(int peer, int state);
+
+    void onConnected(int peer, String address, String name);
+
+    //buffer holds the message in [0, length), hand it back with ConnectionManager.recycle()
+    void onRead(int peer, byte[] buffer, int length);
+
+    //Mesh broadcast from origin that crossed hops links, the body is buffer[offset, offset + length)
+    //buffer must be recycled like an onRead buffer
+    void onRelayed(int peer, long messageId, String origin, int hops, byte[] buffer, int offset, int length);
+
+    //payload has been written to the stream
+    void onWritten(int peer, byte[] payload);
+
+    void onConnectionFailed(int peer);
+
+    void onConnectionLost(int peer);
+}
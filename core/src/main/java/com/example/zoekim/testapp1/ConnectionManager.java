@@ -0,0 +1,1510 @@
+package com.example.zoekim.testapp1;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+
+/*
+Class: ConnectionManager
+Manages connections and threads over a Transport.
+Keeps accepting while connected and holds up to maxPeers concurrent
+sessions, each with its own reader and writer. The accept loop, dials
+and sessions are tasks on Workers, bounded pools of reusable threads, so
+reconnecting starts no threads and a stopped manager keeps none. Peers get a small
+id the first time their address is seen, and keep it for the manager's
+lifetime, so events and writes are routed by id.
+
+In relay mode, broadcast frames received from one peer are forwarded to
+all others. Each carries a message id and a hop TTL, and ids already seen
+are dropped, so loops and storms die out.
+
+sendToGroup() builds a message's frame once and queues the same buffer to
+each member of a ChatGroup without waiting on any of them, so a member
+with a full queue is marked failed instead of delaying the rest.
+
+Each link carries control, chat and bulk channels (see OutboundWriter):
+a file transfer cannot delay chat behind its chunks, and each side returns
+credit per channel as it consumes frames, so the sender never runs more
+than a receive window ahead on any of them.
+
+Links are encrypted by default (see SecureChannel): each session starts
+with a key exchange on its reader thread, and its writer only starts once
+the link is keyed, so not even the hello goes out in the clear.
+
+A lost session to a peer this side dialed is redialed with jittered
+exponential backoff. Chat messages are sequenced per peer (see
+ResumeState), so the new session replays only what the peer did not get.
+With an Outbox set, write() hands each message to the outbox thread,
+which stores it, syncs once for everything written meanwhile and only
+then sends it, whether or not the peer is connected. Every session takes
+the backlog from the outbox in batches once the peer's hello is read;
+messages leave the outbox as the peer acknowledges them.
+
+The manager's listening state and each peer's connection state are
+StateMachines with fixed transition tables. The peer table is guarded by
+the manager, but the lock is only held to decide and make a transition:
+opening, connecting and closing links, and listener calls, all happen
+after it is released. Each transition is reported once, by the thread
+that made it, so reports from different threads may arrive out of order;
+getState() is always current.
+ */
+public class ConnectionManager
+{
+    private final Transport transport;
+    private final ConnectionListener listener;
+    private final BufferPool pool = new BufferPool();
+    private volatile OutboundWriter.Backpressure backpressure = OutboundWriter.Backpressure.REJECT;
+    private volatile boolean compression = true;
+    private volatile int compressionThreshold = FrameCompressor.DEFAULT_THRESHOLD;
+    private volatile boolean channels = true;
+    private volatile boolean encryption = true;
+    private final FrameCompressor.Stats compressionStats = new FrameCompressor.Stats();
+    private volatile FileTransfers fileTransfers;
+    private volatile PeerDirectory directory;
+    private volatile Outbox outbox;
+    //Outbox disk work runs here in order, never on the caller's or a session's thread
+    private final Executor outboxThread = Workers.serial("ConnectionManager-outbox");
+    //Messages written but not yet stored, and whether a task to store them is queued
+    private final List<Peer> unstoredPeers = new ArrayList<>();
+    private final List<byte[]> unstored = new ArrayList<>();
+    private boolean storing;
+    private final List<Peer> peers = new ArrayList<>();
+    private final HashMap<String, Peer> peersByAddress = new HashMap<>();
+    private final int maxPeers;
+    private AcceptTask acceptTask;
+    //Null until there is work for it and again after stop()
+    private Workers workers;
+    private int sessionCount;
+    private final StateMachine lifecycle = new StateMachine(BT_NONE, LIFECYCLE);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    //Relay frame: message id, ttl, hops so far, origin length, origin, body
+    static final int RELAY_HEADER_LEN = 11;
+    private final SeenCache seen = new SeenCache(4096, 60 * 1000);
+    private final int nodeTag = new Random().nextInt();
+    private final AtomicInteger nextMessage = new AtomicInteger();
+    private volatile boolean relayEnabled;
+    private volatile byte[] nodeName = new byte[0];
+    private final List<ChatGroup> groups = new CopyOnWriteArrayList<>();
+
+    private final Random random = new Random();
+    //Replaced by the outbox's, which outlives the manager
+    private volatile long instance = random.nextLong();
+    private volatile boolean reconnect = true;
+    private volatile long reconnectBaseMillis = DEFAULT_RECONNECT_BASE_MILLIS;
+    private volatile long reconnectMaxMillis = DEFAULT_RECONNECT_MAX_MILLIS;
+
+    private final Metrics metrics;
+    private final Metrics.Counter connectAttempts;
+    private final Metrics.Counter connectFailures;
+    private final Metrics.Histogram connectLatency;
+    private final Metrics.Histogram keyExchangeLatency;
+    private final Metrics.Counter accepted;
+    private final Metrics.Counter rejected;
+    private final Metrics.Counter sessionsLost;
+    private final Metrics.Counter reconnects;
+    private final Metrics.Counter framesRead;
+    private final Metrics.Counter bytesRead;
+    private final Metrics.Counter framesWritten;
+    private final Metrics.Counter bytesWritten;
+    private final Metrics.Counter writesRefused;
+    private final Metrics.Counter chatReplayed;
+    private final Metrics.Counter chatDuplicates;
+    private final Metrics.Histogram ackLatency;
+    private final Metrics.Counter relayDuplicates;
+    private final Metrics.Counter relayForwarded;
+
+    public static final int BT_NONE = 0;
+    public static final int BT_LISTEN = 1;
+    public static final int BT_CONNECTING = 2;
+    public static final int BT_CONNECTED = 3;
+    //Manager lifecycle states between BT_NONE and BT_LISTEN, never reported
+    private static final int STARTING = 4;
+    private static final int STOPPING = 5;
+
+    //stop() during STARTING leaves it to start() to finish the stop
+    private static final int[][] LIFECYCLE = {
+            {BT_NONE, STARTING}, {STARTING, BT_LISTEN}, {STARTING, BT_NONE}, {STARTING, STOPPING},
+            {BT_LISTEN, STOPPING}, {STOPPING, BT_NONE}};
+    //A lost session goes through BT_NONE before any redial
+    private static final int[][] PEER_LIFECYCLE = {
+            {BT_NONE, BT_CONNECTING}, {BT_NONE, BT_CONNECTED}, {BT_CONNECTING, BT_CONNECTED},
+            {BT_CONNECTING, BT_NONE}, {BT_CONNECTED, BT_NONE}};
+
+    //Peer id used for events about the manager itself
+    public static final int NO_PEER = -1;
+
+    //Active links a Bluetooth piconet allows
+    public static final int DEFAULT_MAX_PEERS = 7;
+
+    public static final int DEFAULT_TTL = 4;
+
+    public static final long DEFAULT_RECONNECT_BASE_MILLIS = 500;
+    public static final long DEFAULT_RECONNECT_MAX_MILLIS = 30 * 1000;
+    //Redials in a row without a completed handshake before the peer is given up
+    static final int RECONNECT_ATTEMPTS = 8;
+    //Chat messages a peer may leave unacknowledged before write() refuses more
+    static final int MAX_UNACKED = OutboundWriter.DEFAULT_CAPACITY / 2;
+
+    public ConnectionManager(Transport transport, ConnectionListener listener)
+    {
+        this(transport, listener, DEFAULT_MAX_PEERS);
+    }
+
+    public ConnectionManager(Transport transport, ConnectionListener listener, int maxPeers)
+    {
+        this(transport, listener, maxPeers, new Metrics());
+    }
+
+    //Records into metrics, which may be shared with other components
+    public ConnectionManager(Transport transport, ConnectionListener listener, int maxPeers, Metrics metrics)
+    {
+        this.transport = transport;
+        this.listener = listener;
+        this.maxPeers = maxPeers;
+        this.metrics = metrics;
+
+        connectAttempts = metrics.counter("connect.attempts");
+        connectFailures = metrics.counter("connect.failures");
+        connectLatency = metrics.histogram("connect.latency");
+        keyExchangeLatency = metrics.histogram("connect.key.exchange");
+        accepted = metrics.counter("accept.sessions");
+        rejected = metrics.counter("accept.rejected");
+        sessionsLost = metrics.counter("sessions.lost");
+        reconnects = metrics.counter("reconnects");
+        framesRead = metrics.counter("read.frames");
+        bytesRead = metrics.counter("read.bytes");
+        framesWritten = metrics.counter("write.frames");
+        //Before compression, unlike read.bytes
+        bytesWritten = metrics.counter("write.bytes");
+        writesRefused = metrics.counter("write.refused");
+        chatReplayed = metrics.counter("chat.replayed");
+        chatDuplicates = metrics.counter("chat.duplicates");
+        ackLatency = metrics.histogram("chat.ack.latency");
+        relayDuplicates = metrics.counter("relay.duplicates");
+        relayForwarded = metrics.counter("relay.forwarded");
+        metrics.gauge("sessions", new Metrics.Gauge()
+        {
+            @Override
+            public long value()
+            {
+                synchronized (ConnectionManager.this)
+                {
+                    return sessionCount;
+                }
+            }
+        });
+        metrics.gauge("write.queued", new Metrics.Gauge()
+        {
+            @Override
+            public long value()
+            {
+                long queued = 0;
+                for (ReadWriteTask session : sessions())
+                    queued += session.writer.queued();
+                return queued;
+            }
+        });
+        metrics.gauge("write.credit.waits", new Metrics.Gauge()
+        {
+            @Override
+            public long value()
+            {
+                long waits = 0;
+                for (ReadWriteTask session : sessions())
+                    waits += session.writer.getCreditWaits();
+                return waits;
+            }
+        });
+        metrics.gauge("chat.unacked", new Metrics.Gauge()
+        {
+            @Override
+            public long value()
+            {
+                long unacked = 0;
+                for (ReadWriteTask session : sessions())
+                    unacked += session.peer.resume.unacknowledged();
+                return unacked;
+            }
+        });
+    }
+
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
+
+    //BT_CONNECTED if any peer is connected, else BT_CONNECTING if any is connecting, else the listening state
+    public synchronized int getState()
+    {
+        int best = lifecycle.get() == BT_LISTEN ? BT_LISTEN : BT_NONE;
+        for (Peer peer : peers)
+            best = Math.max(best, peer.state.get());
+        return best;
+    }
+
+    public synchronized int getState(int peer)
+    {
+        Peer p = peer(peer);
+        return p != null ? p.state.get() : BT_NONE;
+    }
+
+    //Null for an id this manager never gave out
+    public synchronized String getPeerAddress(int peer)
+    {
+        Peer p = peer(peer);
+        return p != null ? p.address : null;
+    }
+
+    public synchronized String getPeerName(int peer)
+    {
+        Peer p = peer(peer);
+        return p != null ? p.name : null;
+    }
+
+    //Ids of all peers with an open session
+    public synchronized List<Integer> getConnectedPeers()
+    {
+        List<Integer> ids = new ArrayList<>();
+        for (Peer peer : peers)
+            if (peer.session != null)
+                ids.add(peer.id);
+        return ids;
+    }
+
+    //Starts listening unless already listening or still stopping, existing sessions are kept
+    public void start()
+    {
+        if (!lifecycle.transition(BT_NONE, STARTING))
+            return;
+        Transport.Server server;
+        try
+        {
+            server = transport.listen();
+        }
+        catch (IOException e)
+        {
+            metrics.error("listen", e);
+            if (!lifecycle.transition(STARTING, BT_NONE))
+                lifecycle.transition(STOPPING, BT_NONE);
+            return;
+        }
+
+        AcceptTask accept = new AcceptTask(server);
+        synchronized (this)
+        {
+            acceptTask = accept;
+        }
+        if (lifecycle.transition(STARTING, BT_LISTEN))
+        {
+            execute("AcceptThread", accept);
+            listener.onStateChanged(NO_PEER, BT_LISTEN);
+            return;
+        }
+        //stop() came while the server was opening
+        synchronized (this)
+        {
+            if (acceptTask == accept)
+                acceptTask = null;
+        }
+        accept.cancel();
+        lifecycle.transition(STOPPING, BT_NONE);
+    }
+
+    //Connects to address unless a session or attempt for it already exists, returns the peer id
+    public int connect(String address)
+    {
+        Peer peer;
+        ConnectTask attempt;
+        boolean moved;
+        synchronized (this)
+        {
+            peer = peerFor(address, null);
+            peer.redial = true;
+            if (peer.session != null || peer.connecting != null)
+                return peer.id;
+            peer.attempts = 0;
+            attempt = new ConnectTask(peer, 0);
+            peer.connecting = attempt;
+            moved = peer.state.transition(BT_NONE, BT_CONNECTING);
+        }
+        if (moved)
+            listener.onStateChanged(peer.id, BT_CONNECTING);
+        attempt.start();
+        return peer.id;
+    }
+
+    //Starts a session for the link, drops it if the peer already has one or the table is full
+    public void connected(Transport.Link link)
+    {
+        connected(link, null);
+    }
+
+    //attempt is the ConnectTask that dialed the link, false if it is no longer wanted
+    private boolean connected(Transport.Link link, ConnectTask attempt)
+    {
+        Peer peer;
+        String name;
+        ReadWriteTask session = null;
+        boolean moved = false;
+        synchronized (this)
+        {
+            peer = peerFor(link.getRemoteAddress(), link.getRemoteName());
+            if (attempt != null && peer.connecting != attempt)
+                return false;
+            name = peer.name;
+            peer.connecting = null;
+            if (peer.session == null && sessionCount < maxPeers)
+            {
+                session = new ReadWriteTask(peer, link);
+                peer.session = session;
+                sessionCount++;
+                moved = peer.state.moveTo(BT_CONNECTED);
+            }
+            else if (peer.session == null)
+                moved = peer.state.moveTo(BT_NONE);
+        }
+
+        if (session == null)
+        {
+            rejected.increment();
+            close(link);
+            if (moved)
+                listener.onStateChanged(peer.id, BT_NONE);
+            return true;
+        }
+        accepted.increment();
+        PeerDirectory peers = directory;
+        if (attempt == null && peers != null)
+            peers.recordSeen(peer.address, name);
+        session.start();
+        listener.onConnected(peer.id, peer.address, name);
+        if (moved)
+            listener.onStateChanged(peer.id, BT_CONNECTED);
+        return true;
+    }
+
+    //Closes one peer's session or connect attempt, does nothing for an unknown id
+    public void disconnect(int id)
+    {
+        ReadWriteTask session;
+        ConnectTask connecting;
+        boolean reset;
+        synchronized (this)
+        {
+            Peer peer = peer(id);
+            if (peer == null)
+                return;
+            session = peer.session;
+            connecting = peer.connecting;
+            peer.connecting = null;
+            peer.redial = false;
+            reset = session == null && connecting != null && peer.state.transition(BT_CONNECTING, BT_NONE);
+        }
+        if (connecting != null)
+            connecting.cancel();
+        if (session != null)
+            session.cancel();
+        if (reset)
+            listener.onStateChanged(id, BT_NONE);
+    }
+
+    //Stops listening and closes every session and connect attempt
+    public void stop()
+    {
+        //If start() is still opening the server, it finishes the stop
+        boolean listening = lifecycle.transition(BT_LISTEN, STOPPING);
+        if (!listening)
+            lifecycle.transition(STARTING, STOPPING);
+
+        AcceptTask accept;
+        Workers retired;
+        List<ConnectTask> attempts = new ArrayList<>();
+        List<ReadWriteTask> ended = new ArrayList<>();
+        List<Peer> reset = new ArrayList<>();
+        synchronized (this)
+        {
+            accept = acceptTask;
+            acceptTask = null;
+            //Work handed over after this, such as a later connect(), gets fresh pools
+            retired = workers;
+            workers = null;
+            for (Peer peer : peers)
+            {
+                peer.redial = false;
+                if (peer.connecting != null)
+                {
+                    attempts.add(peer.connecting);
+                    peer.connecting = null;
+                }
+                if (peer.session != null)
+                {
+                    ended.add(peer.session);
+                    peer.session = null;
+                    sessionCount--;
+                }
+                if (peer.state.moveTo(BT_NONE))
+                    reset.add(peer);
+            }
+        }
+
+        if (accept != null)
+            accept.cancel();
+        for (ConnectTask attempt : attempts)
+            attempt.cancel();
+        for (ReadWriteTask session : ended)
+            session.cancel();
+        //Every task was just cancelled, so the threads end as soon as they return
+        if (retired != null)
+            retired.shutdown();
+        for (Peer peer : reset)
+            listener.onStateChanged(peer.id, BT_NONE);
+        if (listening && lifecycle.transition(STOPPING, BT_NONE))
+            listener.onStateChanged(NO_PEER, BT_NONE);
+    }
+
+    //What write() does when the outbound queue is full, applies to new connections
+    public void setBackpressure(OutboundWriter.Backpressure backpressure)
+    {
+        this.backpressure = backpressure;
+    }
+
+    //Whether new connections offer compression, frames under threshold bytes are always sent raw
+    public void setCompression(boolean enabled, int threshold)
+    {
+        compression = enabled;
+        compressionThreshold = threshold;
+    }
+
+    //Whether new connections schedule frames by channel and offer per-channel flow control
+    //Off, frames go out in the order they were queued, as with peers that predate channels
+    public void setChannels(boolean enabled)
+    {
+        channels = enabled;
+    }
+
+    //Whether new connections run a key exchange and encrypt every frame, both sides must agree
+    public void setEncryption(boolean enabled)
+    {
+        encryption = enabled;
+    }
+
+    //Code the users can compare to rule out a man in the middle, -1 if the link is not encrypted or not yet keyed
+    public synchronized int getVerificationCode(int peer)
+    {
+        ReadWriteTask session = session(peer);
+        return session != null && session.secure != null ? session.secure.getVerificationCode() : -1;
+    }
+
+    public FrameCompressor.Stats getCompressionStats()
+    {
+        return compressionStats;
+    }
+
+    //True once the peer's hello has been read and frames to it are compressed
+    public synchronized boolean isCompressing(int peer)
+    {
+        ReadWriteTask session = session(peer);
+        return session != null && session.compressor != null && session.compressor.isActive();
+    }
+
+    //Whether lost sessions to peers this side dialed are redialed, waiting baseMillis doubling up to maxMillis
+    public void setReconnect(boolean enabled, long baseMillis, long maxMillis)
+    {
+        reconnectBaseMillis = baseMillis;
+        reconnectMaxMillis = maxMillis;
+        reconnect = enabled;
+    }
+
+    //Redials started after a lost session or a failed redial
+    public long getReconnects()
+    {
+        return reconnects.get();
+    }
+
+    //Chat messages sent again because the peer had not acknowledged them when its session was lost
+    public long getChatReplayed()
+    {
+        return chatReplayed.get();
+    }
+
+    //Replayed chat messages the peer had already delivered, dropped on arrival
+    public long getChatDuplicates()
+    {
+        return chatDuplicates.get();
+    }
+
+    //Queues a message for the peer, false if not connected or too much is queued or unacknowledged
+    //With an outbox, true for any known peer, it gets the message whenever it next connects
+    public boolean write(int peer, byte[] out)
+    {
+        Peer p;
+        final Outbox box = outbox;
+        synchronized (this)
+        {
+            if (peer < 0 || peer >= peers.size() || (box == null && peers.get(peer).session == null))
+                return false;
+            p = peers.get(peer);
+        }
+        if (box != null)
+        {
+            synchronized (unstored)
+            {
+                unstoredPeers.add(p);
+                unstored.add(out);
+                if (storing)
+                    return true;
+                storing = true;
+            }
+            outboxThread.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    store(box);
+                }
+            });
+            return true;
+        }
+        if (p.resume.send(out))
+            return true;
+        writesRefused.increment();
+        return false;
+    }
+
+    //Stores messages written to each peer until it acknowledges them, applies to later writes
+    //Call before connecting: the manager takes on the outbox's instance id, so after a restart
+    //peers know which of its messages they already have
+    public void setOutbox(Outbox outbox)
+    {
+        try
+        {
+            instance = outbox.instance();
+        }
+        catch (IOException e)
+        {
+            metrics.error("outbox", e);
+        }
+        this.outbox = outbox;
+    }
+
+    //Outbox thread: stores every message written since the last call, then sends them
+    private void store(Outbox box)
+    {
+        List<Peer> to;
+        List<byte[]> bodies;
+        synchronized (unstored)
+        {
+            to = new ArrayList<>(unstoredPeers);
+            bodies = new ArrayList<>(unstored);
+            unstoredPeers.clear();
+            unstored.clear();
+            storing = false;
+        }
+        LinkedHashSet<Peer> stored = new LinkedHashSet<>();
+        int appended = 0;
+        try
+        {
+            for (; appended < to.size(); appended++)
+            {
+                box.append(to.get(appended).address, bodies.get(appended));
+                stored.add(to.get(appended));
+            }
+            //One sync for the whole run, nothing is sent before it is on disk
+            box.sync();
+        }
+        catch (IOException e)
+        {
+            metrics.error("outbox", e);
+            writesRefused.add(to.size() - appended);
+            return;
+        }
+        for (Peer peer : stored)
+            flushOutboxNow(box, peer);
+    }
+
+    //Sends whatever of the peer's outbox fits, and drops what it has acknowledged, on the outbox thread
+    private void flushOutbox(final Peer peer)
+    {
+        final Outbox box = outbox;
+        if (box == null)
+        {
+            peer.resume.retry();
+            return;
+        }
+        outboxThread.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flushOutboxNow(box, peer);
+            }
+        });
+    }
+
+    private void flushOutboxNow(Outbox box, Peer peer)
+    {
+        try
+        {
+            peer.resume.flush(box, peer.address);
+            box.acknowledge(peer.address, peer.resume.outboxAcknowledged());
+        }
+        catch (IOException e)
+        {
+            metrics.error("outbox for " + peer.address, e);
+        }
+    }
+
+    boolean send(int peer, int kind, byte[] payload)
+    {
+        ReadWriteTask r = session(peer);
+        if (r != null && r.write(kind, payload))
+            return true;
+        writesRefused.increment();
+        return false;
+    }
+
+    //Current session of the peer or null, a new object after every reconnect
+    Object sessionOf(int peer)
+    {
+        return session(peer);
+    }
+
+    private synchronized ReadWriteTask session(int peer)
+    {
+        Peer p = peer(peer);
+        return p != null ? p.session : null;
+    }
+
+    //Caller holds the lock
+    private Peer peer(int id)
+    {
+        return id >= 0 && id < peers.size() ? peers.get(id) : null;
+    }
+
+    //Accepts incoming files into dir and allows sending them, returns the same instance on later calls
+    public synchronized FileTransfers enableFileTransfer(File dir, FileTransfers.Listener listener)
+    {
+        if (fileTransfers == null)
+            fileTransfers = new FileTransfers(this, pool, dir, listener, FileTransfers.DEFAULT_WINDOW);
+        return fileTransfers;
+    }
+
+    //Records every dial's outcome and latency, and every accepted peer, in directory
+    public void setPeerDirectory(PeerDirectory directory)
+    {
+        this.directory = directory;
+    }
+
+    //Turns forwarding of other nodes' broadcasts on or off, name is the origin put on our own broadcasts
+    public void setRelay(boolean enabled, String name)
+    {
+        byte[] bytes = name.getBytes(UTF_8);
+        nodeName = bytes.length > 255 ? Arrays.copyOf(bytes, 255) : bytes;
+        relayEnabled = enabled;
+    }
+
+    //Sends body to every connected peer for relaying up to ttl hops, returns the message id
+    public long broadcast(byte[] body, int ttl)
+    {
+        long id = nextMessageId();
+        seen.markSeen(id, System.currentTimeMillis());
+
+        byte[] name = nodeName;
+        byte[] frame = new byte[RELAY_HEADER_LEN + name.length + body.length];
+        ChatLogStore.putLong(frame, 0, id);
+        frame[8] = (byte) Math.min(ttl, 255);
+        frame[9] = 0;
+        frame[10] = (byte) name.length;
+        System.arraycopy(name, 0, frame, RELAY_HEADER_LEN, name.length);
+        System.arraycopy(body, 0, frame, RELAY_HEADER_LEN + name.length, body.length);
+        sendToAll(Frames.KIND_RELAY, frame, NO_PEER);
+        return id;
+    }
+
+    //New group whose members' delivery statuses this manager keeps up to date, listener may be null
+    public ChatGroup createGroup(String name, ChatGroup.Listener listener)
+    {
+        ChatGroup group = new ChatGroup(name, listener);
+        groups.add(group);
+        return group;
+    }
+
+    public void removeGroup(ChatGroup group)
+    {
+        groups.remove(group);
+    }
+
+    //Queues body to every member of a group from createGroup(), returns the message id
+    //The frame is built once and shared by every member's writer. A member whose queue is
+    //full or who has no session is marked FAILED rather than waited for, so this never blocks
+    public long sendToGroup(ChatGroup group, byte[] body)
+    {
+        long id = nextMessageId();
+        byte[] frame = new byte[ChatGroup.HEADER_LEN + body.length];
+        ChatLogStore.putLong(frame, 0, id);
+        System.arraycopy(body, 0, frame, ChatGroup.HEADER_LEN, body.length);
+        for (int member : group.members())
+        {
+            //Tracked first, the frame can be written and acked before tryWrite returns
+            group.track(id, member);
+            ReadWriteTask session = session(member);
+            if (session == null || !session.tryWrite(Frames.KIND_GROUP, frame))
+            {
+                writesRefused.increment();
+                group.update(id, member, ChatGroup.FAILED);
+            }
+        }
+        return id;
+    }
+
+    //Relay frames dropped because their id was already seen
+    public long getRelayDuplicates()
+    {
+        return relayDuplicates.get();
+    }
+
+    public long getRelayForwarded()
+    {
+        return relayForwarded.get();
+    }
+
+    //Returns an onRead buffer once the listener is done with it
+    public void recycle(byte[] buffer)
+    {
+        pool.release(buffer);
+    }
+
+    //Unique across nodes, never 0
+    private long nextMessageId()
+    {
+        long id = ((long) nodeTag << 32) | (nextMessage.incrementAndGet() & 0xFFFFFFFFL);
+        if (id == 0)
+            id = ((long) nodeTag << 32) | (nextMessage.incrementAndGet() & 0xFFFFFFFFL);
+        return id;
+    }
+
+    private void groupStatus(long messageId, int peer, int status)
+    {
+        for (ChatGroup group : groups)
+            group.update(messageId, peer, status);
+    }
+
+    //Queues one shared frame to every session except one peer's
+    private void sendToAll(int kind, byte[] frame, int except)
+    {
+        for (ReadWriteTask session : sessions())
+            if (session.peer.id != except)
+                session.write(kind, frame);
+    }
+
+    private synchronized List<ReadWriteTask> sessions()
+    {
+        List<ReadWriteTask> sessions = new ArrayList<>();
+        for (Peer peer : peers)
+            if (peer.session != null)
+                sessions.add(peer.session);
+        return sessions;
+    }
+
+    private void handleRelay(Peer from, byte[] buffer, int length)
+    {
+        int originLen = length >= RELAY_HEADER_LEN ? buffer[10] & 0xFF : 0;
+        int bodyOff = RELAY_HEADER_LEN + originLen;
+        long id = length >= RELAY_HEADER_LEN ? ChatLogStore.getLong(buffer, 0) : 0;
+        if (length < bodyOff || id == 0 || !seen.markSeen(id, System.currentTimeMillis()))
+        {
+            relayDuplicates.increment();
+            pool.release(buffer);
+            return;
+        }
+
+        int ttl = buffer[8] & 0xFF;
+        int hops = (buffer[9] & 0xFF) + 1;
+        if (relayEnabled && ttl > 1)
+        {
+            byte[] forward = Arrays.copyOf(buffer, length);
+            forward[8] = (byte) (ttl - 1);
+            forward[9] = (byte) Math.min(hops, 255);
+            relayForwarded.increment();
+            sendToAll(Frames.KIND_RELAY, forward, from.id);
+        }
+
+        String origin = new String(buffer, RELAY_HEADER_LEN, originLen, UTF_8);
+        listener.onRelayed(from.id, id, origin, hops, buffer, bodyOff, length - bodyOff);
+    }
+
+    private Peer peerFor(String address, String name)
+    {
+        Peer peer = peersByAddress.get(address);
+        if (peer == null)
+        {
+            peer = new Peer(peers.size(), address, new ResumeState(instance, MAX_UNACKED, ackLatency));
+            peers.add(peer);
+            peersByAddress.put(address, peer);
+        }
+        if (name != null)
+            peer.name = name;
+        return peer;
+    }
+
+    private void handleFail(Peer peer, ConnectTask attempt)
+    {
+        ConnectTask next = null;
+        boolean moved = false;
+        synchronized (this)
+        {
+            if (peer.connecting != attempt)
+                return;
+            peer.connecting = null;
+            //A failed redial is retried and the peer stays BT_CONNECTING, a failed first connect is reported
+            if (peer.attempts > 0)
+                next = redial(peer);
+            if (next == null)
+            {
+                peer.attempts = 0;
+                moved = peer.state.transition(BT_CONNECTING, BT_NONE);
+            }
+        }
+        if (next != null)
+        {
+            next.start();
+            return;
+        }
+        connectFailures.increment();
+        if (moved)
+            listener.onStateChanged(peer.id, BT_NONE);
+        listener.onConnectionFailed(peer.id);
+    }
+
+    private void handleConnectionLoss(Peer peer, ReadWriteTask session)
+    {
+        ConnectTask next;
+        boolean lost;
+        boolean redialing = false;
+        synchronized (this)
+        {
+            if (peer.session != session)
+                return;
+            peer.session = null;
+            sessionCount--;
+            lost = peer.state.transition(BT_CONNECTED, BT_NONE);
+            next = redial(peer);
+            if (next != null)
+                redialing = peer.state.transition(BT_NONE, BT_CONNECTING);
+        }
+        sessionsLost.increment();
+        if (lost)
+            listener.onStateChanged(peer.id, BT_NONE);
+        listener.onConnectionLost(peer.id);
+        if (redialing)
+            listener.onStateChanged(peer.id, BT_CONNECTING);
+        if (next != null)
+            next.start();
+    }
+
+    //Next connect attempt to a peer this side dialed, null once it should be given up
+    //Called with the lock held, the caller starts the attempt once it is released
+    private ConnectTask redial(Peer peer)
+    {
+        if (!reconnect || !peer.redial || peer.attempts >= RECONNECT_ATTEMPTS)
+            return null;
+        //Equal jitter, so peers that lost each other at once do not redial in step
+        long delay = Math.min(reconnectMaxMillis, reconnectBaseMillis << peer.attempts);
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        peer.attempts++;
+        reconnects.increment();
+        peer.connecting = new ConnectTask(peer, delay);
+        return peer.connecting;
+    }
+
+    //Runs an accept loop, session reader or writer on the I/O pool
+    private synchronized void execute(String name, Runnable task)
+    {
+        workers().execute(name, task);
+    }
+
+    private synchronized Future<?> schedule(String name, Runnable task, long delayMillis)
+    {
+        return workers().schedule(name, task, delayMillis);
+    }
+
+    private Workers workers()
+    {
+        if (workers == null)
+            workers = new Workers("ConnectionManager", maxPeers);
+        return workers;
+    }
+
+    private void close(Transport.Link link)
+    {
+        try
+        {
+            link.close();
+        }
+        catch (IOException e) {}
+    }
+
+    //Peer's hello completed the handshake, so the link works and backoff starts over
+    private synchronized void handshakeDone(Peer peer)
+    {
+        peer.attempts = 0;
+    }
+
+    //Per-peer state, guarded by the manager
+    private static class Peer
+    {
+        final int id;
+        final String address;
+        String name;
+        //Read without the lock, changed only with it
+        final StateMachine state = new StateMachine(BT_NONE, PEER_LIFECYCLE);
+        ConnectTask connecting;
+        ReadWriteTask session;
+        //Set by connect(), cleared by disconnect() and stop()
+        boolean redial;
+        int attempts;
+        final ResumeState resume;
+
+        Peer(int id, String address, ResumeState resume)
+        {
+            this.id = id;
+            this.address = address;
+            this.name = address;
+            this.resume = resume;
+        }
+    }
+
+    //Accepts incoming connections until cancelled
+    private class AcceptTask implements Runnable
+    {
+        private final Transport.Server server;
+
+        public AcceptTask(Transport.Server server)
+        {
+            this.server = server;
+        }
+
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                Transport.Link link;
+                try
+                {
+                    link = server.accept();
+                }
+                catch (IOException e)
+                {
+                    break;
+                }
+
+                if (link != null)
+                    connected(link, null);
+            }
+        }
+
+        public void cancel()
+        {
+            try
+            {
+                server.close();
+            }
+            catch (IOException e) {}
+        }
+    }
+
+    //Handles Device Connection
+    private class ConnectTask implements Runnable
+    {
+        private final Peer peer;
+        private final long delayMillis;
+        //Opened by the task, so a slow transport never holds up the caller
+        private volatile Transport.Link link;
+        private volatile Future<?> future;
+        private volatile boolean cancelled;
+
+        public ConnectTask(Peer peer, long delayMillis)
+        {
+            this.peer = peer;
+            this.delayMillis = delayMillis;
+        }
+
+        //Schedules the dial once the backoff delay has passed
+        public void start()
+        {
+            future = schedule("ConnectThread", this, delayMillis);
+            //cancel() may have run before there was a future to cancel
+            if (cancelled)
+                future.cancel(false);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                if (cancelled)
+                    throw new InterruptedException();
+                link = transport.open(peer.address);
+                //cancel() may have run before the link was there to close
+                if (cancelled)
+                    throw new InterruptedException();
+                connectAttempts.increment();
+                long start = System.nanoTime();
+                try
+                {
+                    link.connect();
+                }
+                catch (IOException e)
+                {
+                    recordDial(false, 0);
+                    throw e;
+                }
+                long elapsed = System.nanoTime() - start;
+                connectLatency.record(elapsed);
+                recordDial(true, elapsed);
+            }
+            catch (IOException e)
+            {
+                metrics.error("connect " + peer.address, e);
+                closeLink();
+                handleFail(peer, this);
+                return;
+            }
+            catch (InterruptedException e)
+            {
+                closeLink();
+                handleFail(peer, this);
+                return;
+            }
+
+            if (!connected(link, this))
+                closeLink();
+        }
+
+        private void recordDial(boolean success, long latencyNanos)
+        {
+            PeerDirectory peers = directory;
+            if (peers != null && !cancelled)
+                peers.recordConnect(peer.address, success ? link.getRemoteName() : null, success, latencyNanos);
+        }
+
+        //An attempt still waiting out its backoff never runs, one in progress is interrupted
+        public void cancel()
+        {
+            cancelled = true;
+            Future<?> f = future;
+            if (f != null)
+                f.cancel(true);
+            closeLink();
+        }
+
+        private void closeLink()
+        {
+            Transport.Link l = link;
+            if (l != null)
+                close(l);
+        }
+    }
+
+    //Manages one peer's link & I/O
+    private class ReadWriteTask implements Runnable
+    {
+        private final Peer peer;
+        private final Transport.Link link;
+        private final InputStream inputStream;
+        private final OutputStream outputStream;
+        //Null when the link is not encrypted
+        private final SecureChannel secure;
+        private final OutboundWriter writer;
+        //Null when this side does not offer compression
+        private final FrameCompressor compressor;
+        private final boolean offersChannels;
+        //Both sides do credit-based flow control, set from the peer's hello
+        private boolean peerChannels;
+        //Payload bytes consumed per channel since credit was last returned, reader thread only
+        private final int[] consumed = new int[Frames.CHANNELS];
+
+        public ReadWriteTask(final Peer peer, Transport.Link link)
+        {
+            this.peer = peer;
+            this.link = link;
+            InputStream tmpIn = null;
+            OutputStream tmpOut = null;
+
+            try
+            {
+                tmpIn = link.getInputStream();
+                tmpOut = link.getOutputStream();
+            }
+            catch (IOException e) {}
+            //Frames go through the channel, which is keyed in run() before the writer starts
+            secure = encryption && tmpIn != null && tmpOut != null ? new SecureChannel(tmpIn, tmpOut) : null;
+            inputStream = secure != null ? secure.getInputStream() : tmpIn;
+            outputStream = secure != null ? secure.getOutputStream() : tmpOut;
+            writer = new OutboundWriter(outputStream, pool, backpressure, new OutboundWriter.Listener()
+            {
+                @Override
+                public void onWritten(int kind, byte[] payload)
+                {
+                    framesWritten.increment();
+                    bytesWritten.add(FrameDecoder.HEADER_LEN + payload.length);
+                    //The queue has room again for what the resume ring could not hand over
+                    if (peer.resume.clearStalled())
+                        flushOutbox(peer);
+                    if (kind == Frames.KIND_SEQ_CHAT)
+                    {
+                        if (peer.resume.markWritten(ChatLogStore.getLong(payload, 0)))
+                            listener.onWritten(peer.id, Arrays.copyOfRange(payload, ResumeState.SEQ_LEN, payload.length));
+                    }
+                    else if (kind == Frames.KIND_SEQ_BATCH)
+                    {
+                        long seq = ChatLogStore.getLong(payload, 0);
+                        for (int pos = ResumeState.SEQ_LEN; pos < payload.length; seq++)
+                        {
+                            int next = ResumeState.nextInBatch(payload, payload.length, pos);
+                            if (peer.resume.markWritten(seq))
+                                listener.onWritten(peer.id, Arrays.copyOfRange(payload, pos + ResumeState.BATCH_ENTRY_LEN, next));
+                            pos = next;
+                        }
+                    }
+                    else if (kind == Frames.KIND_CHAT)
+                        listener.onWritten(peer.id, payload);
+                    else if (kind == Frames.KIND_GROUP)
+                        groupStatus(ChatLogStore.getLong(payload, 0), peer.id, ChatGroup.WRITTEN);
+                    else if (kind == Frames.KIND_FILE_CHUNK)
+                    {
+                        pool.release(payload);
+                        FileTransfers transfers = fileTransfers;
+                        if (transfers != null)
+                            transfers.onChunkWritten(peer.id);
+                    }
+                }
+
+                @Override
+                public void onDropped(int kind, byte[] payload)
+                {
+                    if (kind == Frames.KIND_GROUP)
+                        groupStatus(ChatLogStore.getLong(payload, 0), peer.id, ChatGroup.FAILED);
+                    else if (kind == Frames.KIND_FILE_CHUNK)
+                        pool.release(payload);
+                }
+
+                //The reader sees the closed link and reports the loss
+                @Override
+                public void onWriteFailed(IOException e)
+                {
+                    metrics.error("write to " + peer.address, e);
+                    ReadWriteTask.this.cancel();
+                }
+            });
+
+            boolean deflate = compression && FrameCompressor.isSupported();
+            compressor = deflate ? new FrameCompressor(pool, compressionStats, compressionThreshold) : null;
+            writer.setCompressor(compressor);
+            offersChannels = channels;
+            writer.setScheduled(offersChannels);
+            //Until the hello says otherwise the peer is assumed to grant credit
+            writer.limitCredits(offersChannels);
+            //Queued before anything the listener can write once it hears of the connection
+            byte[] hello = new byte[Frames.HELLO_LEN];
+            hello[0] = Frames.HELLO_VERSION;
+            hello[1] = (byte) ((deflate ? Frames.FEATURE_DEFLATE : 0) | Frames.FEATURE_RESUME
+                    | (offersChannels ? Frames.FEATURE_CHANNELS : 0) | Frames.FEATURE_BATCH);
+            ChatLogStore.putLong(hello, 2, peer.resume.getInstance());
+            ChatLogStore.putLong(hello, 10, peer.resume.getPeerInstance());
+            ChatLogStore.putLong(hello, 18, peer.resume.helloReceived());
+            writer.offer(Frames.KIND_HELLO, hello);
+        }
+
+        public void start()
+        {
+            execute("ReadWriteThread-" + peer.id, this);
+        }
+
+        @Override
+        public void run()
+        {
+            if (secure != null && !exchangeKeys())
+            {
+                ended();
+                return;
+            }
+            execute("OutboundWriter-" + peer.id, writer);
+
+            //Each complete frame goes to the listener in its own pooled buffer
+            final FrameDecoder.FrameHandler inflated = new FrameDecoder.FrameHandler()
+            {
+                @Override
+                public void onFrame(int kind, byte[] buffer, int length)
+                {
+                    dispatch(this, kind, buffer, length);
+                }
+            };
+            //Frames as they came off the link are the ones counted
+            FrameDecoder decoder = new FrameDecoder(pool, new FrameDecoder.FrameHandler()
+            {
+                @Override
+                public void onFrame(int kind, byte[] buffer, int length)
+                {
+                    framesRead.increment();
+                    bytesRead.add(FrameDecoder.HEADER_LEN + length);
+                    dispatch(inflated, kind, buffer, length);
+                }
+            });
+
+            try
+            {
+                //One cumulative ack per read covers every message it delivered
+                while (decoder.readFrom(inputStream))
+                {
+                    long ack = peer.resume.ackDue();
+                    if (ack > 0)
+                    {
+                        byte[] frame = new byte[ResumeState.SEQ_LEN];
+                        ChatLogStore.putLong(frame, 0, ack);
+                        writer.offerControl(Frames.KIND_CHAT_ACK, frame);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                metrics.error("read from " + peer.address, e);
+            }
+            ended();
+        }
+
+        //Keys the link before any frame is written, false if the exchange failed
+        private boolean exchangeKeys()
+        {
+            long start = System.nanoTime();
+            try
+            {
+                secure.handshake();
+                keyExchangeLatency.recordSince(start);
+                return true;
+            }
+            catch (IOException e)
+            {
+                metrics.error("key exchange with " + peer.address, e);
+                return false;
+            }
+        }
+
+        private void ended()
+        {
+            peer.resume.detach(writer);
+            cancel();
+            for (ChatGroup group : groups)
+                group.sessionEnded(peer.id);
+            if (compressor != null)
+                compressor.endInflate();
+            handleConnectionLoss(peer, this);
+        }
+
+        private void dispatch(FrameDecoder.FrameHandler handler, int kind, byte[] buffer, int length)
+        {
+            deliver(handler, kind, buffer, length);
+            //Deflated frames are counted as the frames they inflate to, like the sender counts them
+            if (kind != Frames.KIND_DEFLATED)
+                consumed(kind, length);
+        }
+
+        private void deliver(FrameDecoder.FrameHandler handler, int kind, byte[] buffer, int length)
+        {
+            switch (kind)
+            {
+                case Frames.KIND_CHAT:
+                    listener.onRead(peer.id, buffer, length);
+                    break;
+                case Frames.KIND_SEQ_CHAT:
+                    if (length >= ResumeState.SEQ_LEN && peer.resume.accept(ChatLogStore.getLong(buffer, 0)))
+                    {
+                        System.arraycopy(buffer, ResumeState.SEQ_LEN, buffer, 0, length - ResumeState.SEQ_LEN);
+                        listener.onRead(peer.id, buffer, length - ResumeState.SEQ_LEN);
+                    }
+                    else
+                    {
+                        chatDuplicates.increment();
+                        pool.release(buffer);
+                    }
+                    break;
+                case Frames.KIND_SEQ_BATCH:
+                    deliverBatch(buffer, length);
+                    pool.release(buffer);
+                    break;
+                case Frames.KIND_CHAT_ACK:
+                    if (length >= ResumeState.SEQ_LEN)
+                    {
+                        peer.resume.acknowledge(ChatLogStore.getLong(buffer, 0));
+                        //The ring has room again and the outbox can let go of what was acked
+                        flushOutbox(peer);
+                    }
+                    pool.release(buffer);
+                    break;
+                case Frames.KIND_RELAY:
+                    handleRelay(peer, buffer, length);
+                    break;
+                case Frames.KIND_GROUP:
+                    if (length >= ChatGroup.HEADER_LEN)
+                    {
+                        //The sender tracks each member by this ack, the body reads like any chat message
+                        writer.offerControl(Frames.KIND_GROUP_ACK, Arrays.copyOf(buffer, ChatGroup.HEADER_LEN));
+                        System.arraycopy(buffer, ChatGroup.HEADER_LEN, buffer, 0, length - ChatGroup.HEADER_LEN);
+                        listener.onRead(peer.id, buffer, length - ChatGroup.HEADER_LEN);
+                    }
+                    else
+                        pool.release(buffer);
+                    break;
+                case Frames.KIND_GROUP_ACK:
+                    if (length >= ChatGroup.HEADER_LEN)
+                        groupStatus(ChatLogStore.getLong(buffer, 0), peer.id, ChatGroup.DELIVERED);
+                    pool.release(buffer);
+                    break;
+                case Frames.KIND_FILE_OFFER:
+                case Frames.KIND_FILE_CHUNK:
+                case Frames.KIND_FILE_ACK:
+                    FileTransfers transfers = fileTransfers;
+                    if (transfers != null)
+                        transfers.onFrame(peer.id, kind, buffer, length);
+                    else
+                        pool.release(buffer);
+                    break;
+                case Frames.KIND_HELLO:
+                    onHello(buffer, length);
+                    pool.release(buffer);
+                    break;
+                case Frames.KIND_CREDIT:
+                    if (length >= Frames.CREDIT_LEN)
+                        writer.addCredit(buffer[0], ChatLogStore.getInt(buffer, 1));
+                    pool.release(buffer);
+                    break;
+                case Frames.KIND_DEFLATED:
+                    try
+                    {
+                        if (compressor == null)
+                            throw new DataFormatException("Compression was not offered");
+                        compressor.inflate(buffer, length, handler);
+                    }
+                    catch (DataFormatException e)
+                    {
+                        //The stream cannot be resynchronised, drop the connection
+                        cancel();
+                    }
+                    finally
+                    {
+                        pool.release(buffer);
+                    }
+                    break;
+                default:
+                    pool.release(buffer);
+                    break;
+            }
+        }
+
+        //Hands each message of a batch to the listener in its own pooled buffer, dropping ones seen before
+        private void deliverBatch(byte[] buffer, int length)
+        {
+            if (length < ResumeState.SEQ_LEN)
+                return;
+            long seq = ChatLogStore.getLong(buffer, 0);
+            int pos = ResumeState.SEQ_LEN;
+            while (pos < length)
+            {
+                int next = ResumeState.nextInBatch(buffer, length, pos);
+                if (next < 0)
+                    return;
+                if (peer.resume.accept(seq++))
+                {
+                    int len = next - pos - ResumeState.BATCH_ENTRY_LEN;
+                    byte[] message = pool.acquire(len);
+                    System.arraycopy(buffer, pos + ResumeState.BATCH_ENTRY_LEN, message, 0, len);
+                    listener.onRead(peer.id, message, len);
+                }
+                else
+                    chatDuplicates.increment();
+                pos = next;
+            }
+        }
+
+        //Returns credit for a channel once a quarter of its window has been consumed
+        private void consumed(int kind, int length)
+        {
+            int channel = Frames.channelOf(kind);
+            if (!peerChannels || channel == Frames.CHANNEL_CONTROL)
+                return;
+            consumed[channel] += length;
+            if (consumed[channel] < Frames.receiveWindow(channel) / 4)
+                return;
+            byte[] credit = new byte[Frames.CREDIT_LEN];
+            credit[0] = (byte) channel;
+            ChatLogStore.putInt(credit, 1, consumed[channel]);
+            consumed[channel] = 0;
+            writer.offerControl(Frames.KIND_CREDIT, credit);
+        }
+
+        //Peer's hello: turns on compression and flow control if agreed and resumes the chat sequence
+        private void onHello(byte[] hello, int length)
+        {
+            int features = length >= 2 ? hello[1] : 0;
+            peerChannels = offersChannels && (features & Frames.FEATURE_CHANNELS) != 0;
+            if (!peerChannels)
+                writer.limitCredits(false);
+            if (compressor != null)
+                compressor.setPeerAccepts((features & Frames.FEATURE_DEFLATE) != 0);
+            boolean resumes = length >= Frames.HELLO_LEN && (features & Frames.FEATURE_RESUME) != 0;
+            long theirInstance = resumes ? ChatLogStore.getLong(hello, 2) : 0;
+            long knownInstance = resumes ? ChatLogStore.getLong(hello, 10) : 0;
+            long theirReceived = resumes ? ChatLogStore.getLong(hello, 18) : 0;
+            boolean batches = (features & Frames.FEATURE_BATCH) != 0;
+            chatReplayed.add(peer.resume.onHello(writer, resumes, batches, theirInstance, knownInstance, theirReceived));
+            //The backlog goes out behind the replay, before anything written from here on
+            flushOutbox(peer);
+            handshakeDone(peer);
+            FileTransfers transfers = fileTransfers;
+            if (transfers != null)
+                transfers.onConnected(peer.id);
+        }
+
+        //Control frames, such as the file acks sent from the reader, are never refused for room
+        public boolean write(int kind, byte[] buffer)
+        {
+            if (Frames.channelOf(kind) == Frames.CHANNEL_CONTROL)
+                return writer.offerControl(kind, buffer);
+            return writer.offer(kind, buffer);
+        }
+
+        public boolean tryWrite(int kind, byte[] buffer)
+        {
+            return writer.tryOffer(kind, buffer);
+        }
+
+        public void cancel()
+        {
+            writer.cancel();
+            try
+            {
+                link.close();
+            }
+            catch (IOException e)
+            {
+                metrics.error("close " + peer.address, e);
+            }
+        }
+    }
+}
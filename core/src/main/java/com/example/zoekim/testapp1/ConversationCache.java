@@ -0,0 +1,175 @@
+package com.example.zoekim.testapp1;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/*
+Class: ConversationCache
+Open PagedHistory per recently active conversation, keyed by the stable
+log key (the device address, or the mesh log), so switching back to one
+shows its loaded pages at once instead of reading the log again.
+Conversations are kept in access order and the least recently used ones
+are closed while the lines they hold add up to more than maxBytes. That
+total is kept as each history changes, so neither a change nor a trim
+walks every cached history. The
+conversation on screen is never evicted. prefetch() opens a conversation
+in the background without putting it on screen.
+ */
+public class ConversationCache
+{
+    public interface Listener
+    {
+        //Called on the callback executor when a cached history's size or lines change
+        void onChanged(String peer, PagedHistory history);
+    }
+
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    private final ChatLogStore store;
+    private final Executor callbackExecutor;
+    private final long maxBytes;
+    private final Listener listener;
+    //Log key to its history, least recently shown or opened first
+    private final LinkedHashMap<String, Cached> histories = new LinkedHashMap<>();
+    //Sum of what each history held when it last changed
+    private long bytes;
+    private String shown;
+    private int hits;
+    private int misses;
+    private boolean closed;
+
+    public ConversationCache(ChatLogStore store, Executor callbackExecutor, long maxBytes, Listener listener)
+    {
+        this.store = store;
+        this.callbackExecutor = callbackExecutor;
+        this.maxBytes = maxBytes;
+        this.listener = listener;
+    }
+
+    //History of peer to put on screen, cached or newly opened
+    public synchronized PagedHistory show(String peer)
+    {
+        shown = peer;
+        Cached cached = histories.remove(peer);
+        if (cached != null)
+        {
+            hits++;
+            //Back in as the most recently used
+            histories.put(peer, cached);
+        }
+        else
+        {
+            misses++;
+            cached = open(peer);
+        }
+        trim();
+        return cached.history;
+    }
+
+    //Starts reading peer's newest page, so a later show() finds it loaded
+    public synchronized void prefetch(String peer)
+    {
+        if (closed || peer == null || histories.containsKey(peer))
+            return;
+        open(peer);
+        trim();
+    }
+
+    //Cached history of peer, without opening one or changing its rank
+    public synchronized PagedHistory peek(String peer)
+    {
+        Cached cached = histories.get(peer);
+        return cached != null ? cached.history : null;
+    }
+
+    public synchronized boolean contains(String peer)
+    {
+        return histories.containsKey(peer);
+    }
+
+    //Log keys, least recently used first
+    public synchronized List<String> peers()
+    {
+        return new ArrayList<>(histories.keySet());
+    }
+
+    //Approximate heap held by the cached histories as of their last change
+    public synchronized long estimatedBytes()
+    {
+        return bytes;
+    }
+
+    public synchronized int getHits()
+    {
+        return hits;
+    }
+
+    public synchronized int getMisses()
+    {
+        return misses;
+    }
+
+    //Closes every history, shown or not
+    public synchronized void close()
+    {
+        closed = true;
+        for (Cached cached : histories.values())
+            cached.history.close();
+        histories.clear();
+        bytes = 0;
+    }
+
+    private Cached open(final String peer)
+    {
+        final Cached cached = new Cached();
+        cached.history = new PagedHistory(store, peer, callbackExecutor, new PagedHistory.Listener()
+        {
+            @Override
+            public void onChanged()
+            {
+                //Pages arriving grow the cache, so this is where it goes over the bound
+                synchronized (ConversationCache.this)
+                {
+                    //An evicted history may still have had a change on its way
+                    if (histories.get(peer) == cached)
+                    {
+                        long now = cached.history.estimatedBytes();
+                        bytes += now - cached.bytes;
+                        cached.bytes = now;
+                        trim();
+                    }
+                }
+                listener.onChanged(peer, cached.history);
+            }
+        });
+        histories.put(peer, cached);
+        cached.history.open();
+        return cached;
+    }
+
+    //Closes least recently used histories until the rest fit in maxBytes
+    private void trim()
+    {
+        Iterator<Map.Entry<String, Cached>> it = histories.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext())
+        {
+            Map.Entry<String, Cached> entry = it.next();
+            if (entry.getKey().equals(shown))
+                continue;
+            bytes -= entry.getValue().bytes;
+            entry.getValue().history.close();
+            it.remove();
+        }
+    }
+
+    //A history and the bytes counted for it when it last changed
+    private static class Cached
+    {
+        PagedHistory history;
+        long bytes;
+    }
+}
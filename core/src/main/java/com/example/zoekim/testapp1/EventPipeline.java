@@ -0,0 +1,337 @@
+package com.example.zoekim.testapp1;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Class: EventPipeline
+Hands ConnectionManager events from its I/O threads to one consumer
+thread in batches, calling the consumer's ConnectionListener there.
+Every producer thread, which means every session's reader and writer,
+gets its own preallocated single-producer ring. Reads, relays and writes
+are published into it with plain stores and one volatile store of the
+tail: no allocation, no locks, and buffers passed by reference. A full
+ring makes its producer wait, which pushes back on that link only.
+State, connect and loss events are rare and raised while ConnectionManager
+holds its lock, so they go through a shared queue that never waits.
+The consumer is woken once when events arrive and then drains everything
+published since, so a burst of frames costs one wakeup. Events from one
+thread keep their order, there is no order between threads.
+ */
+public class EventPipeline implements ConnectionListener
+{
+    //Asks the consumer to call drain(), called on a producer thread
+    public interface Wakeup
+    {
+        void wake();
+    }
+
+    public static final int DEFAULT_RING_SIZE = 1024;
+    //Events delivered per drain() before yielding the consumer thread
+    static final int MAX_BATCH = 512;
+    private static final long FULL_WAIT_NANOS = 50 * 1000;
+
+    private static final int READ = 0;
+    private static final int RELAYED = 1;
+    private static final int WRITTEN = 2;
+    private static final int STATE = 3;
+    private static final int CONNECTED = 4;
+    private static final int FAILED = 5;
+    private static final int LOST = 6;
+
+    private final ConnectionListener consumer;
+    private final Wakeup wakeup;
+    private final int ringSize;
+    private final List<Ring> rings = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Control> control = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile long wokenNanos;
+    private volatile boolean closed;
+
+    private final Metrics.Histogram dispatchDelay;
+    private final Metrics.Counter delivered;
+    private final Metrics.Counter wakeups;
+    private final Metrics.Counter producerWaits;
+
+    private final ThreadLocal<Ring> local = new ThreadLocal<Ring>()
+    {
+        @Override
+        protected Ring initialValue()
+        {
+            Ring ring = new Ring(Thread.currentThread(), ringSize);
+            rings.add(ring);
+            return ring;
+        }
+    };
+
+    //ringSize is rounded up to a power of two
+    public EventPipeline(ConnectionListener consumer, Wakeup wakeup, int ringSize, Metrics metrics)
+    {
+        this.consumer = consumer;
+        this.wakeup = wakeup;
+        this.ringSize = Integer.highestOneBit(Math.max(ringSize, 2) * 2 - 1);
+        dispatchDelay = metrics.histogram("events.dispatch");
+        delivered = metrics.counter("events.delivered");
+        wakeups = metrics.counter("events.wakeups");
+        producerWaits = metrics.counter("events.producer.waits");
+    }
+
+    @Override
+    public void onRead(int peer, byte[] buffer, int length)
+    {
+        Ring r = claim();
+        if (r == null)
+            return;
+        int i = r.slot(r.tail);
+        r.kinds[i] = READ;
+        r.peers[i] = peer;
+        r.buffers[i] = buffer;
+        r.lengths[i] = length;
+        publish(r);
+    }
+
+    @Override
+    public void onRelayed(int peer, long messageId, String origin, int hops, byte[] buffer, int offset, int length)
+    {
+        Ring r = claim();
+        if (r == null)
+            return;
+        int i = r.slot(r.tail);
+        r.kinds[i] = RELAYED;
+        r.peers[i] = peer;
+        r.ids[i] = messageId;
+        r.origins[i] = origin;
+        r.hops[i] = hops;
+        r.buffers[i] = buffer;
+        r.offsets[i] = offset;
+        r.lengths[i] = length;
+        publish(r);
+    }
+
+    @Override
+    public void onWritten(int peer, byte[] payload)
+    {
+        Ring r = claim();
+        if (r == null)
+            return;
+        int i = r.slot(r.tail);
+        r.kinds[i] = WRITTEN;
+        r.peers[i] = peer;
+        r.buffers[i] = payload;
+        publish(r);
+    }
+
+    @Override
+    public void onStateChanged(int peer, int state)
+    {
+        post(new Control(STATE, peer, state, null, null));
+    }
+
+    @Override
+    public void onConnected(int peer, String address, String name)
+    {
+        post(new Control(CONNECTED, peer, 0, address, name));
+    }
+
+    @Override
+    public void onConnectionFailed(int peer)
+    {
+        post(new Control(FAILED, peer, 0, null, null));
+    }
+
+    @Override
+    public void onConnectionLost(int peer)
+    {
+        post(new Control(LOST, peer, 0, null, null));
+    }
+
+    //Delivers what has been published to the consumer, call on the consumer thread after a wakeup
+    public int drain()
+    {
+        //Cleared first, so anything published from here on wakes the consumer again
+        scheduled.set(false);
+        dispatchDelay.recordSince(wokenNanos);
+        int count = 0;
+        Control c;
+        while ((c = control.poll()) != null)
+        {
+            deliver(c);
+            count++;
+        }
+
+        boolean more = false;
+        for (Ring ring : rings)
+        {
+            count += ring.drain(MAX_BATCH);
+            if (ring.head.get() != ring.published.get())
+                more = true;
+            else if (!ring.owner.isAlive())
+                rings.remove(ring);
+        }
+        delivered.add(count);
+        if (more)
+            wake();
+        return count;
+    }
+
+    //Stops delivery, producers drop their events instead of waiting for a consumer that is gone
+    public void close()
+    {
+        closed = true;
+    }
+
+    //Producer's ring with room for one more event, null once closed
+    private Ring claim()
+    {
+        Ring r = local.get();
+        if (r.tail - r.cachedHead < r.kinds.length)
+            return r;
+        r.cachedHead = r.head.get();
+        while (r.tail - r.cachedHead >= r.kinds.length)
+        {
+            if (closed)
+                return null;
+            producerWaits.increment();
+            wake();
+            LockSupport.parkNanos(FULL_WAIT_NANOS);
+            r.cachedHead = r.head.get();
+        }
+        return r;
+    }
+
+    private void publish(Ring r)
+    {
+        //A full store, not lazySet: the wake() check after it must not see a stale scheduled flag
+        r.tail++;
+        r.published.set(r.tail);
+        wake();
+    }
+
+    private void post(Control c)
+    {
+        if (closed)
+            return;
+        control.add(c);
+        wake();
+    }
+
+    private void wake()
+    {
+        if (!scheduled.get() && scheduled.compareAndSet(false, true))
+        {
+            wokenNanos = System.nanoTime();
+            wakeups.increment();
+            wakeup.wake();
+        }
+    }
+
+    private void deliver(Control c)
+    {
+        switch (c.kind)
+        {
+            case STATE:
+                consumer.onStateChanged(c.peer, c.state);
+                break;
+            case CONNECTED:
+                consumer.onConnected(c.peer, c.address, c.name);
+                break;
+            case FAILED:
+                consumer.onConnectionFailed(c.peer);
+                break;
+            case LOST:
+                consumer.onConnectionLost(c.peer);
+                break;
+        }
+    }
+
+    private static final class Control
+    {
+        final int kind;
+        final int peer;
+        final int state;
+        final String address;
+        final String name;
+
+        Control(int kind, int peer, int state, String address, String name)
+        {
+            this.kind = kind;
+            this.peer = peer;
+            this.state = state;
+            this.address = address;
+            this.name = name;
+        }
+    }
+
+    //One producer thread's events, slots are columns so nothing is allocated per event
+    private final class Ring
+    {
+        final Thread owner;
+        final int mask;
+        final int[] kinds;
+        final int[] peers;
+        final int[] lengths;
+        final int[] offsets;
+        final int[] hops;
+        final long[] ids;
+        final byte[][] buffers;
+        final String[] origins;
+        //Producer side: next slot to fill and the consumer position last seen
+        long tail;
+        long cachedHead;
+        //How far the producer has published and the consumer has taken
+        final AtomicLong published = new AtomicLong();
+        final AtomicLong head = new AtomicLong();
+
+        Ring(Thread owner, int size)
+        {
+            this.owner = owner;
+            mask = size - 1;
+            kinds = new int[size];
+            peers = new int[size];
+            lengths = new int[size];
+            offsets = new int[size];
+            hops = new int[size];
+            ids = new long[size];
+            buffers = new byte[size][];
+            origins = new String[size];
+        }
+
+        int slot(long seq)
+        {
+            return (int) seq & mask;
+        }
+
+        //Consumer side
+        int drain(int limit)
+        {
+            long h = head.get();
+            long end = Math.min(published.get(), h + limit);
+            for (long seq = h; seq < end; seq++)
+            {
+                int i = slot(seq);
+                byte[] buffer = buffers[i];
+                String origin = origins[i];
+                buffers[i] = null;
+                origins[i] = null;
+                switch (kinds[i])
+                {
+                    case READ:
+                        consumer.onRead(peers[i], buffer, lengths[i]);
+                        break;
+                    case RELAYED:
+                        consumer.onRelayed(peers[i], ids[i], origin, hops[i], buffer, offsets[i], lengths[i]);
+                        break;
+                    case WRITTEN:
+                        consumer.onWritten(peers[i], buffer);
+                        break;
+                }
+            }
+            head.lazySet(end);
+            return (int) (end - h);
+        }
+    }
+}
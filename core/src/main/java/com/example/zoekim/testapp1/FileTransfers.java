@@ -0,0 +1,644 @@
+package com.example.zoekim.testapp1;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/*
+Class: FileTransfers
+Streams files to peers over their ConnectionManager sessions.
+The sender reads fixed-size chunks with positional FileChannel reads and
+keeps at most window chunks unacknowledged, so memory use does not depend
+on file size. Each chunk carries its offset and a CRC32. The receiver
+writes good in-order chunks into a .part file and acknowledges the offset
+it has; a bad or out-of-order chunk gets a retry ack and the sender goes
+back to that offset. After a dropped connection the sender offers the
+transfer again and the receiver answers with the length of its .part
+file, so the transfer resumes where it stopped instead of restarting.
+The receiver refuses offers larger than its maximum size or than the
+space left for them, and .part files untouched for STALE_PART_MILLIS are
+deleted when it starts, as no sender is coming back for them.
+Senders hold no thread while they wait. Each is a task run on one shared
+transfer thread whenever an ack, a new session, room in the peer's queue
+or the stall timer gives it something to do; it sends what the window
+allows and returns.
+ */
+public class FileTransfers
+{
+    public interface Listener
+    {
+        //done bytes of size have been acknowledged, called on I/O threads
+        void onProgress(int peer, long id, String name, long done, long size, boolean incoming);
+
+        void onReceived(int peer, long id, File file);
+
+        void onSent(int peer, long id, String name);
+
+        void onFailed(int peer, long id, String name, String reason);
+    }
+
+    //A full chunk frame fills one pooled buffer exactly
+    static final int CHUNK_PAYLOAD = 16 * 1024;
+    //Transfer id, offset, CRC32
+    static final int CHUNK_HEADER = 20;
+    static final int CHUNK_DATA = CHUNK_PAYLOAD - CHUNK_HEADER;
+    public static final int DEFAULT_WINDOW = 8;
+
+    static final int ACK_OK = 0;
+    static final int ACK_RETRY = 1;
+    static final int ACK_RESUME = 2;
+    static final int ACK_DONE = 3;
+    //The receiver will not take the file, the sender gives up
+    static final int ACK_REFUSED = 4;
+    static final int ACK_LEN = 17;
+
+    //No ack for this long while connected and the transfer is offered again
+    static final long STALL_MILLIS = 10000;
+    //Finished incoming transfers remembered, for senders that missed the last ack
+    static final int MAX_COMPLETED = 256;
+    public static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+    static final long STALE_PART_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    private static final String PART_EXT = ".part";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ConnectionManager manager;
+    private final BufferPool pool;
+    private final File incomingDir;
+    private final Listener listener;
+    private final int window;
+    private final Random random = new Random();
+    private final Map<Long, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Incoming> incoming = new ConcurrentHashMap<>();
+    private final Set<Long> completed = Collections.newSetFromMap(Collections.synchronizedMap(
+            new LinkedHashMap<Long, Boolean>()
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest)
+                {
+                    return size() > MAX_COMPLETED;
+                }
+            }));
+    private final AtomicLong chunksSent = new AtomicLong();
+    private final ScheduledThreadPoolExecutor executor = Workers.serialScheduler("FileTransfers");
+    private volatile long maxSize = DEFAULT_MAX_SIZE;
+
+    FileTransfers(ConnectionManager manager, BufferPool pool, File incomingDir, Listener listener, int window)
+    {
+        this.manager = manager;
+        this.pool = pool;
+        this.incomingDir = incomingDir;
+        this.listener = listener;
+        this.window = window;
+        deleteStaleParts(System.currentTimeMillis() - STALE_PART_MILLIS);
+    }
+
+    //Largest incoming file accepted, bigger offers are refused
+    public void setMaxSize(long bytes)
+    {
+        maxSize = bytes;
+    }
+
+    //Starts sending file to peer, returns the transfer id
+    public long send(int peer, File file) throws IOException
+    {
+        return send(peer, file.getName(), new FileInputStream(file).getChannel());
+    }
+
+    //Same for any readable channel with a known size, the transfer closes it when it ends
+    public long send(int peer, String name, FileChannel channel) throws IOException
+    {
+        long id;
+        do
+            id = random.nextLong();
+        while (id == 0 || outgoing.containsKey(id));
+        Outgoing transfer = new Outgoing(id, peer, name, channel);
+        outgoing.put(id, transfer);
+        transfer.wake();
+        return id;
+    }
+
+    public void cancel(long id)
+    {
+        Outgoing transfer = outgoing.get(id);
+        if (transfer != null)
+            transfer.cancel();
+    }
+
+    //Chunk frames handed to the connection, including resends
+    public long getChunksSent()
+    {
+        return chunksSent.get();
+    }
+
+    //The peer has a new session, transfers to it offer themselves again
+    void onConnected(int peer)
+    {
+        for (Outgoing out : outgoing.values())
+        {
+            if (out.peer == peer)
+                out.wake();
+        }
+    }
+
+    //A chunk left the peer's queue, transfers it refused send on
+    void onChunkWritten(int peer)
+    {
+        for (Outgoing out : outgoing.values())
+        {
+            if (out.peer == peer)
+                out.onRoom();
+        }
+    }
+
+    //Called on the peer's reader thread, buffer goes back to the pool
+    void onFrame(int peer, int kind, byte[] buffer, int length)
+    {
+        try
+        {
+            switch (kind)
+            {
+                case Frames.KIND_FILE_OFFER:
+                    onOffer(peer, buffer, length);
+                    break;
+                case Frames.KIND_FILE_CHUNK:
+                    onChunk(peer, buffer, length);
+                    break;
+                case Frames.KIND_FILE_ACK:
+                    onAck(buffer, length);
+                    break;
+            }
+        }
+        finally
+        {
+            pool.release(buffer);
+        }
+    }
+
+    private void onOffer(int peer, byte[] b, int length)
+    {
+        if (length < 18)
+            return;
+        long id = ChatLogStore.getLong(b, 0);
+        long size = ChatLogStore.getLong(b, 8);
+        int nameLen = ((b[16] & 0xFF) << 8) | (b[17] & 0xFF);
+        if (length < 18 + nameLen || size < 0)
+            return;
+        String name = new String(b, 18, nameLen, UTF_8);
+
+        if (completed.contains(id))
+        {
+            sendAck(peer, id, size, ACK_DONE);
+            return;
+        }
+        Incoming previous = incoming.remove(id);
+        if (previous != null)
+            previous.close();
+
+        Incoming in = null;
+        try
+        {
+            if (!incomingDir.isDirectory() && !incomingDir.mkdirs())
+                throw new IOException("Cannot create " + incomingDir);
+            String refused = refusal(id, size);
+            if (refused != null)
+            {
+                sendAck(peer, id, 0, ACK_REFUSED);
+                listener.onFailed(peer, id, name, refused);
+                return;
+            }
+            in = new Incoming(peer, id, name, size);
+            incoming.put(id, in);
+            sendAck(peer, id, in.expected, ACK_RESUME);
+            if (in.expected == size)
+                finish(in);
+        }
+        catch (IOException e)
+        {
+            if (in != null)
+                in.close();
+            listener.onFailed(peer, id, name, e.toString());
+        }
+    }
+
+    private void onChunk(int peer, byte[] b, int length)
+    {
+        if (length < CHUNK_HEADER)
+            return;
+        long id = ChatLogStore.getLong(b, 0);
+        Incoming in = incoming.get(id);
+        if (in == null || in.peer != peer)
+            return;
+        long offset = ChatLogStore.getLong(b, 8);
+        int crc = ChatLogStore.getInt(b, 16);
+        int n = length - CHUNK_HEADER;
+
+        //Resends after a retry arrive behind chunks already written, those are skipped
+        if (offset < in.expected)
+            return;
+        in.crc.reset();
+        in.crc.update(b, CHUNK_HEADER, n);
+        if (offset > in.expected || (int) in.crc.getValue() != crc || offset + n > in.size)
+        {
+            //One retry per gap, the chunks behind it are already on their way
+            if (in.retryAt != in.expected)
+            {
+                in.retryAt = in.expected;
+                sendAck(peer, id, in.expected, ACK_RETRY);
+            }
+            return;
+        }
+
+        try
+        {
+            ByteBuffer data = ByteBuffer.wrap(b, CHUNK_HEADER, n);
+            long pos = offset;
+            while (data.hasRemaining())
+                pos += in.channel.write(data, pos);
+            in.expected += n;
+            in.retryAt = -1;
+            if (in.expected == in.size)
+                finish(in);
+            else
+            {
+                sendAck(peer, id, in.expected, ACK_OK);
+                listener.onProgress(peer, id, in.name, in.expected, in.size, true);
+            }
+        }
+        catch (IOException e)
+        {
+            in.close();
+            //Not a failure if a newer offer replaced this one under the old session's reader
+            if (incoming.remove(id, in))
+                listener.onFailed(peer, id, in.name, e.toString());
+        }
+    }
+
+    private void finish(Incoming in) throws IOException
+    {
+        in.close();
+        if (!incoming.remove(in.id, in))
+            return;
+        File target = uniqueFile(incomingDir, in.name);
+        if (!in.part.renameTo(target))
+            throw new IOException("Cannot move " + in.part + " to " + target);
+        completed.add(in.id);
+        sendAck(in.peer, in.id, in.size, ACK_DONE);
+        listener.onReceived(in.peer, in.id, target);
+    }
+
+    //Why an offer of size bytes cannot be taken, or null if it can
+    private String refusal(long id, long size)
+    {
+        if (size > maxSize)
+            return "Larger than " + maxSize + " bytes";
+        //What a resumed transfer already has needs no more room
+        long remaining = size - new File(incomingDir, Long.toHexString(id) + PART_EXT).length();
+        if (remaining > incomingDir.getUsableSpace())
+            return "Not enough free space";
+        return null;
+    }
+
+    //Removes .part files last written before cutoff
+    private void deleteStaleParts(long cutoff)
+    {
+        File[] files = incomingDir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++)
+        {
+            if (files[i].getName().endsWith(PART_EXT) && files[i].lastModified() < cutoff)
+                files[i].delete();
+        }
+    }
+
+    private void onAck(byte[] b, int length)
+    {
+        if (length < ACK_LEN)
+            return;
+        Outgoing out = outgoing.get(ChatLogStore.getLong(b, 0));
+        if (out != null)
+            out.onAck(ChatLogStore.getLong(b, 8), b[16]);
+    }
+
+    private void sendAck(int peer, long id, long offset, int status)
+    {
+        byte[] ack = new byte[ACK_LEN];
+        ChatLogStore.putLong(ack, 0, id);
+        ChatLogStore.putLong(ack, 8, offset);
+        ack[16] = (byte) status;
+        manager.send(peer, Frames.KIND_FILE_ACK, ack);
+    }
+
+    //name with any path stripped, numbered if the directory already has it
+    static File uniqueFile(File dir, String name)
+    {
+        String base = new File(name).getName();
+        if (base.isEmpty() || base.equals(".") || base.equals(".."))
+            base = "file";
+        File f = new File(dir, base);
+        int dot = base.lastIndexOf('.');
+        String stem = dot > 0 ? base.substring(0, dot) : base;
+        String ext = dot > 0 ? base.substring(dot) : "";
+        for (int i = 1; f.exists(); i++)
+            f = new File(dir, stem + " (" + i + ")" + ext);
+        return f;
+    }
+
+    //Receiving side of one transfer, only touched by the peer's reader thread
+    private class Incoming
+    {
+        final int peer;
+        final long id;
+        final String name;
+        final long size;
+        final File part;
+        final RandomAccessFile file;
+        final FileChannel channel;
+        final CRC32 crc = new CRC32();
+        long expected;
+        long retryAt = -1;
+
+        Incoming(int peer, long id, String name, long size) throws IOException
+        {
+            this.peer = peer;
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            part = new File(incomingDir, Long.toHexString(id) + PART_EXT);
+            file = new RandomAccessFile(part, "rw");
+            channel = file.getChannel();
+            //Whole chunks already written survive, a torn last one is dropped
+            expected = Math.min(file.length(), size) / CHUNK_DATA * CHUNK_DATA;
+            if (file.length() >= size)
+                expected = size;
+            file.setLength(expected);
+        }
+
+        void close()
+        {
+            try
+            {
+                file.close();
+            }
+            catch (IOException e) {}
+        }
+    }
+
+    //Sending side of one transfer, run on the transfer thread each time something changed
+    private class Outgoing implements Runnable
+    {
+        final long id;
+        final int peer;
+        final String name;
+        final FileChannel channel;
+        final CRC32 crc = new CRC32();
+        long size = -1;
+
+        //Guarded by this, set from the reader thread's acks
+        private long acked = -1;
+        private boolean rewind;
+        private boolean done;
+        private boolean refused;
+        private boolean cancelled;
+        private long lastAck;
+        //run() is waiting on the executor, and the queue refused a chunk
+        private boolean queued;
+        private boolean full;
+
+        //Only touched by run()
+        private Object session;
+        private long next;
+        private long reported = -1;
+        private Future<?> stallCheck;
+        private boolean ended;
+
+        private final Runnable stalled = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                wake();
+            }
+        };
+
+        Outgoing(long id, int peer, String name, FileChannel channel)
+        {
+            this.id = id;
+            this.peer = peer;
+            this.name = name;
+            this.channel = channel;
+        }
+
+        synchronized void onAck(long offset, int status)
+        {
+            lastAck = System.currentTimeMillis();
+            if (status == ACK_DONE)
+                done = true;
+            else if (status == ACK_REFUSED)
+                refused = true;
+            else if (status == ACK_RESUME || status == ACK_RETRY)
+            {
+                acked = offset;
+                rewind = true;
+            }
+            else if (offset > acked)
+                acked = offset;
+            wake();
+        }
+
+        synchronized void cancel()
+        {
+            cancelled = true;
+            wake();
+        }
+
+        //Runs the transfer once more, calls made before it starts count as one
+        synchronized void wake()
+        {
+            if (queued)
+                return;
+            queued = true;
+            executor.execute(this);
+        }
+
+        synchronized void onRoom()
+        {
+            if (!full)
+                return;
+            full = false;
+            wake();
+        }
+
+        @Override
+        public void run()
+        {
+            synchronized (this)
+            {
+                queued = false;
+            }
+            if (ended)
+                return;
+            String failure = null;
+            try
+            {
+                if (size < 0)
+                    size = channel.size();
+                if (!step())
+                    return;
+            }
+            catch (IOException e)
+            {
+                failure = e.toString();
+            }
+            end(failure);
+        }
+
+        //Sends what can go now, true once the transfer is over
+        private boolean step() throws IOException
+        {
+            while (true)
+            {
+                Object current = manager.sessionOf(peer);
+                long ackedNow;
+                synchronized (this)
+                {
+                    if (cancelled || done || refused)
+                        return true;
+                    long now = System.currentTimeMillis();
+                    //A new session, or the old one went quiet: offer again and wait for the resume offset
+                    if (current != session || (current != null && now - lastAck >= STALL_MILLIS))
+                    {
+                        session = current;
+                        acked = -1;
+                        rewind = false;
+                        lastAck = now;
+                        if (current != null)
+                            sendOffer();
+                    }
+                    //Woken again by onConnected()
+                    if (current == null)
+                        return false;
+                    if (rewind)
+                    {
+                        next = acked;
+                        rewind = false;
+                    }
+                    ackedNow = acked;
+                    //Woken again by the next ack, or the stall timer if none comes
+                    if (acked < 0 || next >= size || next - ackedNow >= (long) window * CHUNK_DATA)
+                    {
+                        checkStall(now);
+                        return false;
+                    }
+                    //Set first, so room made while the chunk is refused is not missed
+                    full = true;
+                }
+
+                if (ackedNow != reported)
+                {
+                    reported = ackedNow;
+                    listener.onProgress(peer, id, name, ackedNow, size, false);
+                }
+                int n = sendChunk(next);
+                //Woken again by onRoom(), or onConnected() if the session is gone
+                if (n == 0)
+                    return false;
+                next += n;
+                synchronized (this)
+                {
+                    full = false;
+                }
+            }
+        }
+
+        //Runs again STALL_MILLIS after the last ack, unless a check is already due
+        private void checkStall(long now)
+        {
+            if (stallCheck != null && !stallCheck.isDone())
+                return;
+            stallCheck = executor.schedule(stalled, lastAck + STALL_MILLIS - now, TimeUnit.MILLISECONDS);
+        }
+
+        private void end(String failure)
+        {
+            ended = true;
+            outgoing.remove(id);
+            if (stallCheck != null)
+                stallCheck.cancel(false);
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e) {}
+
+            boolean finished;
+            synchronized (this)
+            {
+                finished = done;
+                if (failure == null && refused)
+                    failure = "Refused by peer";
+                else if (failure == null && !done)
+                    failure = "Cancelled";
+            }
+            if (finished)
+                listener.onSent(peer, id, name);
+            else
+                listener.onFailed(peer, id, name, failure);
+        }
+
+        private void sendOffer()
+        {
+            byte[] nameBytes = name.getBytes(UTF_8);
+            int nameLen = Math.min(nameBytes.length, 0xFFFF);
+            byte[] offer = new byte[18 + nameLen];
+            ChatLogStore.putLong(offer, 0, id);
+            ChatLogStore.putLong(offer, 8, size);
+            offer[16] = (byte) (nameLen >> 8);
+            offer[17] = (byte) nameLen;
+            System.arraycopy(nameBytes, 0, offer, 18, nameLen);
+            manager.send(peer, Frames.KIND_FILE_OFFER, offer);
+        }
+
+        //Reads and queues the chunk at offset, returns its length or 0 if the queue took nothing
+        private int sendChunk(long offset) throws IOException
+        {
+            int n = (int) Math.min(CHUNK_DATA, size - offset);
+            byte[] chunk = n == CHUNK_DATA ? pool.acquire(CHUNK_PAYLOAD) : new byte[CHUNK_HEADER + n];
+            ByteBuffer data = ByteBuffer.wrap(chunk, CHUNK_HEADER, n);
+            long pos = offset;
+            while (data.hasRemaining())
+            {
+                int r = channel.read(data, pos);
+                if (r < 0)
+                    throw new IOException(name + " shrank while sending");
+                pos += r;
+            }
+            crc.reset();
+            crc.update(chunk, CHUNK_HEADER, n);
+            ChatLogStore.putLong(chunk, 0, id);
+            ChatLogStore.putLong(chunk, 8, offset);
+            ChatLogStore.putInt(chunk, 16, (int) crc.getValue());
+
+            if (!manager.send(peer, Frames.KIND_FILE_CHUNK, chunk))
+            {
+                pool.release(chunk);
+                return 0;
+            }
+            chunksSent.incrementAndGet();
+            return n;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.zoekim.testapp1;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+Class: FrameCompressor
+Streaming deflate for one connection, one direction each way.
+Both ends start from the same preset dictionary and every frame is
+flushed with SYNC_FLUSH rather than finished, so the window carries over
+and a short message can refer back to earlier ones. A compressed frame is
+KIND_DEFLATED with the original kind in its first byte. compress() runs
+on the writer thread and inflate() on the reader thread, so each side of
+the stream is used by one thread only.
+ */
+public class FrameCompressor
+{
+    //Words chat lines are made of, so the first messages compress too
+    private static final byte[] DICTIONARY = ("ok okay yes no lol haha thanks thank you "
+            + "hey hi hello bye see you later tomorrow today tonight now what when where why how "
+            + "I'm you're it's that's don't can't will would could should have has had are is was "
+            + "the and for with this that just not but about from your my me we they "
+            + "? ! . , ").getBytes(Charset.forName("UTF-8"));
+
+    public static final int DEFAULT_THRESHOLD = 24;
+
+    //Counters for every connection of one ConnectionManager
+    public static class Stats
+    {
+        final AtomicLong rawBytes = new AtomicLong();
+        final AtomicLong compressedBytes = new AtomicLong();
+        final AtomicLong compressedFrames = new AtomicLong();
+        final AtomicLong skippedFrames = new AtomicLong();
+        final AtomicLong deflateNanos = new AtomicLong();
+        final AtomicLong inflateNanos = new AtomicLong();
+
+        //Payload bytes of frames sent compressed, before compression
+        public long getRawBytes()
+        {
+            return rawBytes.get();
+        }
+
+        public long getCompressedBytes()
+        {
+            return compressedBytes.get();
+        }
+
+        public long getCompressedFrames()
+        {
+            return compressedFrames.get();
+        }
+
+        //Frames sent raw because they were under the threshold
+        public long getSkippedFrames()
+        {
+            return skippedFrames.get();
+        }
+
+        public long getDeflateNanos()
+        {
+            return deflateNanos.get();
+        }
+
+        public long getInflateNanos()
+        {
+            return inflateNanos.get();
+        }
+
+        //Compressed size over original size, 1 when nothing was compressed
+        public double getRatio()
+        {
+            long raw = rawBytes.get();
+            return raw == 0 ? 1 : compressedBytes.get() / (double) raw;
+        }
+    }
+
+    private static Boolean syncFlushSupported;
+
+    private final BufferPool pool;
+    private final Stats stats;
+    private final int threshold;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private byte[] deflateOut = new byte[1024];
+    private volatile boolean peerAccepts;
+
+    public FrameCompressor(BufferPool pool, Stats stats, int threshold)
+    {
+        this.pool = pool;
+        this.stats = stats;
+        this.threshold = threshold;
+        deflater.setDictionary(DICTIONARY);
+        inflater.setDictionary(DICTIONARY);
+    }
+
+    //Deflater.SYNC_FLUSH only arrived in Android API 19, without it nothing is advertised
+    public static synchronized boolean isSupported()
+    {
+        if (syncFlushSupported == null)
+        {
+            Deflater probe = new Deflater();
+            try
+            {
+                probe.setInput(new byte[1]);
+                probe.deflate(new byte[16], 0, 16, Deflater.SYNC_FLUSH);
+                syncFlushSupported = true;
+            }
+            catch (NoSuchMethodError e)
+            {
+                syncFlushSupported = false;
+            }
+            finally
+            {
+                probe.end();
+            }
+        }
+        return syncFlushSupported;
+    }
+
+    //Called once the peer's hello says it can inflate
+    public void setPeerAccepts(boolean accepts)
+    {
+        peerAccepts = accepts;
+    }
+
+    public boolean isActive()
+    {
+        return peerAccepts;
+    }
+
+    //KIND_DEFLATED payload for the frame, or null to send it as it is
+    public byte[] compress(int kind, byte[] payload)
+    {
+        //File chunks are mostly photos, which deflate cannot shrink
+        if (!peerAccepts || kind == Frames.KIND_FILE_CHUNK)
+            return null;
+        if (payload.length < threshold)
+        {
+            stats.skippedFrames.incrementAndGet();
+            return null;
+        }
+
+        long start = System.nanoTime();
+        deflater.setInput(payload);
+        deflateOut[0] = (byte) kind;
+        int len = 1;
+        while (true)
+        {
+            len += deflater.deflate(deflateOut, len, deflateOut.length - len, Deflater.SYNC_FLUSH);
+            //A full buffer may mean more output is pending
+            if (len < deflateOut.length)
+                break;
+            deflateOut = Arrays.copyOf(deflateOut, deflateOut.length * 2);
+        }
+        byte[] out = Arrays.copyOf(deflateOut, len);
+        stats.deflateNanos.addAndGet(System.nanoTime() - start);
+        stats.rawBytes.addAndGet(payload.length);
+        stats.compressedBytes.addAndGet(len);
+        stats.compressedFrames.incrementAndGet();
+        return out;
+    }
+
+    //Inflates a KIND_DEFLATED payload and hands the original frame to handler in a pooled buffer
+    public void inflate(byte[] frame, int length, FrameDecoder.FrameHandler handler) throws DataFormatException
+    {
+        if (length < 1)
+            throw new DataFormatException("Empty compressed frame");
+        long start = System.nanoTime();
+        inflater.setInput(frame, 1, length - 1);
+
+        byte[] out = pool.acquire(Math.min(FrameDecoder.MAX_FRAME_LEN, Math.max(256, length * 4)));
+        int len = 0;
+        try
+        {
+            while (true)
+            {
+                len += inflater.inflate(out, len, out.length - len);
+                if (len < out.length)
+                {
+                    if (inflater.needsInput())
+                        break;
+                    //Room left and input left but no output: a finished or foreign stream
+                    throw new DataFormatException("Compressed stream out of sync");
+                }
+                if (out.length >= FrameDecoder.MAX_FRAME_LEN)
+                    throw new DataFormatException("Inflated frame too large");
+                byte[] bigger = pool.acquire(out.length * 2);
+                System.arraycopy(out, 0, bigger, 0, len);
+                pool.release(out);
+                out = bigger;
+            }
+        }
+        catch (DataFormatException e)
+        {
+            pool.release(out);
+            throw e;
+        }
+        stats.inflateNanos.addAndGet(System.nanoTime() - start);
+        handler.onFrame(frame[0] & 0xFF, out, len);
+    }
+
+    //Frees the native deflate state, called by the writer thread as it exits
+    public void endDeflate()
+    {
+        deflater.end();
+    }
+
+    //Same for the reader thread
+    public void endInflate()
+    {
+        inflater.end();
+    }
+}
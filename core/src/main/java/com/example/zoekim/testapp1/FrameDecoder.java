@@ -0,0 +1,116 @@
+package com.example.zoekim.testapp1;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+Class: FrameDecoder
+Splits a byte stream into length-prefixed frames.
+A frame is a 4 byte big-endian payload length, a kind byte (see Frames)
+and the payload.
+Bytes may arrive in any split, each complete payload is handed over in its
+own pooled buffer which the receiver must give back to the pool.
+ */
+public class FrameDecoder
+{
+    public static final int HEADER_LEN = 5;
+    public static final int MAX_FRAME_LEN = 1 << BufferPool.MAX_SHIFT;
+    private static final int STAGING_LEN = 4096;
+
+    public interface FrameHandler
+    {
+        //buffer holds the payload in [0, length) and now belongs to the handler
+        void onFrame(int kind, byte[] buffer, int length);
+    }
+
+    private final BufferPool pool;
+    private final FrameHandler handler;
+    private final byte[] staging = new byte[STAGING_LEN];
+    private int header;
+    private int headerFilled;
+    private int kind;
+    private byte[] body;
+    private int bodyLen;
+    private int bodyFilled;
+
+    public FrameDecoder(BufferPool pool, FrameHandler handler)
+    {
+        this.pool = pool;
+        this.handler = handler;
+    }
+
+    //Writes the frame header for a payload of len bytes at b[off]
+    public static void putHeader(byte[] b, int off, int kind, int len)
+    {
+        ChatLogStore.putInt(b, off, len);
+        b[off + 4] = (byte) kind;
+    }
+
+    //Does one read from the stream, returns false at end of stream
+    public boolean readFrom(InputStream in) throws IOException
+    {
+        //Large bodies are read straight into their frame buffer
+        if (body != null && bodyLen - bodyFilled >= STAGING_LEN)
+        {
+            int n = in.read(body, bodyFilled, bodyLen - bodyFilled);
+            if (n < 0)
+                return false;
+            bodyFilled += n;
+            if (bodyFilled == bodyLen)
+                emit();
+            return true;
+        }
+
+        int n = in.read(staging);
+        if (n < 0)
+            return false;
+        feed(staging, 0, n);
+        return true;
+    }
+
+    //Consumes len bytes, emitting every frame they complete
+    public void feed(byte[] data, int off, int len) throws IOException
+    {
+        int end = off + len;
+        while (off < end)
+        {
+            if (body == null)
+            {
+                if (headerFilled < 4)
+                    header = (header << 8) | (data[off++] & 0xFF);
+                else
+                    kind = data[off++] & 0xFF;
+                if (++headerFilled < HEADER_LEN)
+                    continue;
+                startBody();
+            }
+            else
+            {
+                int n = Math.min(end - off, bodyLen - bodyFilled);
+                System.arraycopy(data, off, body, bodyFilled, n);
+                off += n;
+                bodyFilled += n;
+            }
+            if (body != null && bodyFilled == bodyLen)
+                emit();
+        }
+    }
+
+    private void startBody() throws IOException
+    {
+        if (header < 0 || header > MAX_FRAME_LEN)
+            throw new IOException("Bad frame length " + header);
+        bodyLen = header;
+        bodyFilled = 0;
+        body = pool.acquire(Math.max(bodyLen, 1));
+        header = 0;
+        headerFilled = 0;
+    }
+
+    private void emit()
+    {
+        byte[] frame = body;
+        body = null;
+        handler.onFrame(kind, frame, bodyLen);
+    }
+}
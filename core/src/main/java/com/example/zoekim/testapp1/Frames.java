@@ -0,0 +1,99 @@
+package com.example.zoekim.testapp1;
+
+/*
+Class: Frames
+Frame kinds, carried in the byte after the frame length
+ */
+public final class Frames
+{
+    //Chat message for the peer at the other end of the link
+    public static final int KIND_CHAT = 0;
+
+    //Mesh broadcast, see ConnectionManager.broadcast()
+    public static final int KIND_RELAY = 1;
+
+    //First frame each side sends, version and feature flags
+    public static final int KIND_HELLO = 2;
+
+    //Another frame compressed, see FrameCompressor
+    public static final int KIND_DEFLATED = 3;
+
+    //File transfer, see FileTransfers
+    public static final int KIND_FILE_OFFER = 4;
+    public static final int KIND_FILE_CHUNK = 5;
+    public static final int KIND_FILE_ACK = 6;
+
+    //Chat message with a sequence number, and the cumulative ack for them, see ResumeState
+    public static final int KIND_SEQ_CHAT = 7;
+    public static final int KIND_CHAT_ACK = 8;
+
+    //Receive credit for one channel: channel byte, 4 byte count of payload bytes consumed
+    public static final int KIND_CREDIT = 9;
+    public static final int CREDIT_LEN = 5;
+
+    //Message sent to a group: message id, body. The same payload goes to every member,
+    //each acks the id on its own, see ChatGroup
+    public static final int KIND_GROUP = 10;
+    public static final int KIND_GROUP_ACK = 11;
+
+    //Run of chat messages from an Outbox: first sequence number, then a 4 byte length and
+    //body for each, numbered on from the first and acked as KIND_SEQ_CHAT, see ResumeState
+    public static final int KIND_SEQ_BATCH = 12;
+
+    //Logical channels sharing a link, see OutboundWriter. Control frames are small and
+    //always go first, chat is scheduled ahead of bulk, and each data channel has its own
+    //receive window the peer returns credit for as it consumes frames
+    public static final int CHANNEL_CONTROL = 0;
+    public static final int CHANNEL_CHAT = 1;
+    public static final int CHANNEL_BULK = 2;
+    public static final int CHANNELS = 3;
+    static final int CHAT_WINDOW = 64 * 1024;
+    static final int BULK_WINDOW = 256 * 1024;
+
+    //Hello: version, features, own instance id, peer instance last heard from, chat messages received
+    public static final int HELLO_VERSION = 2;
+    public static final int HELLO_LEN = 26;
+    public static final int FEATURE_DEFLATE = 1;
+    public static final int FEATURE_RESUME = 2;
+    public static final int FEATURE_CHANNELS = 4;
+    public static final int FEATURE_BATCH = 8;
+
+    private Frames() {}
+
+    public static int channelOf(int kind)
+    {
+        switch (kind)
+        {
+            case KIND_CHAT:
+            case KIND_SEQ_CHAT:
+            case KIND_SEQ_BATCH:
+            case KIND_RELAY:
+            case KIND_GROUP:
+                return CHANNEL_CHAT;
+            case KIND_FILE_CHUNK:
+                return CHANNEL_BULK;
+            default:
+                return CHANNEL_CONTROL;
+        }
+    }
+
+    //Frames the peer numbers and drops repeats of, so none may be left out
+    public static boolean isSequenced(int kind)
+    {
+        return kind == KIND_SEQ_CHAT || kind == KIND_SEQ_BATCH;
+    }
+
+    //Payload bytes a peer may send on channel before hearing of any credit, 0 for no limit
+    public static int receiveWindow(int channel)
+    {
+        switch (channel)
+        {
+            case CHANNEL_CHAT:
+                return CHAT_WINDOW;
+            case CHANNEL_BULK:
+                return BULK_WINDOW;
+            default:
+                return 0;
+        }
+    }
+}
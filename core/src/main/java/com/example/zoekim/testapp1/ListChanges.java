@@ -0,0 +1,133 @@
+package com.example.zoekim.testapp1;
+
+/*
+Class: ListChanges
+Collects changes to a list on screen and hands them to its view once a
+frame, as the fewest notifications that describe them. The view only
+ever sees count(), the size it was last told of, so a list that grows
+500 times within a frame is one insert of 500 rows at the next frame,
+and rows that are not on screen are never bound.
+Rows shown as placeholders, because their line was not read yet, are
+remembered, and only that range is rebound when the list reports that
+lines arrived. The list is append-only between resets, so a row's
+position is a stable id.
+Not thread safe, use it on the UI thread.
+ */
+public class ListChanges
+{
+    //Notifications the view gets, each describes rows against count() before the call
+    public interface Target
+    {
+        void onReset();
+
+        void onInserted(int from, int count);
+
+        void onChanged(int from, int count);
+    }
+
+    //Runs the flush once before the next frame is drawn
+    public interface Scheduler
+    {
+        void schedule(Runnable flush);
+    }
+
+    private final Scheduler scheduler;
+    private final Target target;
+    //Size the target knows of, and the latest size of the list
+    private int shown;
+    private int size;
+    //Range of rows bound as placeholders, empty when first > last
+    private int firstPlaceholder = Integer.MAX_VALUE;
+    private int lastPlaceholder = -1;
+    private boolean scheduled;
+    private int flushes;
+
+    private final Runnable flush = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            flush();
+        }
+    };
+
+    public ListChanges(Scheduler scheduler, Target target)
+    {
+        this.scheduler = scheduler;
+        this.target = target;
+    }
+
+    //Rows the target may bind
+    public int count()
+    {
+        return shown;
+    }
+
+    //The list was replaced, the target is told at once, anything pending is dropped
+    public void reset(int size)
+    {
+        this.size = size;
+        shown = size;
+        clearPlaceholders();
+        target.onReset();
+    }
+
+    //The list now has size rows, or lines of rows already shown arrived
+    public void changed(int size)
+    {
+        this.size = size;
+        if (scheduled)
+            return;
+        scheduled = true;
+        scheduler.schedule(flush);
+    }
+
+    //A row was bound, placeholder if its line was not there yet
+    public void bound(int position, boolean placeholder)
+    {
+        if (!placeholder)
+            return;
+        firstPlaceholder = Math.min(firstPlaceholder, position);
+        lastPlaceholder = Math.max(lastPlaceholder, position);
+    }
+
+    //Flushes run, one per frame that had changes
+    public int getFlushes()
+    {
+        return flushes;
+    }
+
+    private void flush()
+    {
+        if (!scheduled)
+            return;
+        scheduled = false;
+        flushes++;
+        if (size < shown)
+        {
+            reset(size);
+            return;
+        }
+        if (firstPlaceholder <= lastPlaceholder)
+        {
+            int from = firstPlaceholder;
+            int to = Math.min(lastPlaceholder, shown - 1);
+            //Rebinding may mark rows again if their page is still on its way
+            clearPlaceholders();
+            if (from <= to)
+                target.onChanged(from, to - from + 1);
+        }
+        if (size > shown)
+        {
+            int from = shown;
+            shown = size;
+            target.onInserted(from, size - from);
+        }
+    }
+
+    private void clearPlaceholders()
+    {
+        firstPlaceholder = Integer.MAX_VALUE;
+        lastPlaceholder = -1;
+    }
+}
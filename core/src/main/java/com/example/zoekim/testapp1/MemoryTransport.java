@@ -0,0 +1,197 @@
+package com.example.zoekim.testapp1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+Class: MemoryTransport
+In-process transport for tests and benchmarks.
+Endpoints created from the same Network reach each other by address,
+every link is a pair of BytePipes.
+ */
+public class MemoryTransport implements Transport
+{
+    static final int PIPE_CAPACITY = 64 * 1024;
+
+    //Address space shared by a set of endpoints
+    public static class Network
+    {
+        private final ConcurrentHashMap<String, MemoryServer> servers = new ConcurrentHashMap<>();
+        private final Set<MemoryLink> links = Collections.newSetFromMap(new ConcurrentHashMap<MemoryLink, Boolean>());
+
+        public MemoryTransport endpoint(String address)
+        {
+            return new MemoryTransport(this, address);
+        }
+
+        //Closes both ends of every connected link, as if the radio dropped out
+        public void dropLinks()
+        {
+            for (MemoryLink link : links)
+                link.close();
+        }
+    }
+
+    private final Network network;
+    private final String address;
+
+    private MemoryTransport(Network network, String address)
+    {
+        this.network = network;
+        this.address = address;
+    }
+
+    public String getAddress()
+    {
+        return address;
+    }
+
+    @Override
+    public Server listen() throws IOException
+    {
+        MemoryServer server = new MemoryServer();
+        if (network.servers.putIfAbsent(address, server) != null)
+            throw new IOException("Already listening on " + address);
+        return server;
+    }
+
+    @Override
+    public Link open(String remote)
+    {
+        return new MemoryLink(remote);
+    }
+
+    private class MemoryServer implements Server
+    {
+        private final LinkedBlockingQueue<Link> pending = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        @Override
+        public Link accept() throws IOException
+        {
+            try
+            {
+                Link link = closed ? null : pending.take();
+                if (link == null || closed)
+                    throw new IOException("Server closed");
+                return link;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+
+        @Override
+        public String getAddress()
+        {
+            return address;
+        }
+
+        //Wakes a blocked accept() with a link that is already closed, links never accepted are closed too
+        @Override
+        public void close()
+        {
+            closed = true;
+            network.servers.remove(address, this);
+            Link pendingLink;
+            while ((pendingLink = pending.poll()) != null)
+                ((MemoryLink) pendingLink).close();
+            MemoryLink poison = new MemoryLink(address);
+            poison.close();
+            pending.offer(poison);
+        }
+    }
+
+    private class MemoryLink implements Link
+    {
+        private final String remote;
+        private BytePipe in;
+        private BytePipe out;
+        private boolean closed;
+
+        MemoryLink(String remote)
+        {
+            this.remote = remote;
+        }
+
+        MemoryLink(String remote, BytePipe in, BytePipe out)
+        {
+            this.remote = remote;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void connect() throws IOException
+        {
+            MemoryServer server = network.servers.get(remote);
+            BytePipe up = new BytePipe(PIPE_CAPACITY);
+            BytePipe down = new BytePipe(PIPE_CAPACITY);
+            synchronized (this)
+            {
+                if (in != null)
+                    return;
+                if (closed)
+                    throw new IOException("Link closed");
+                if (server == null || server.closed)
+                    throw new IOException("No listener at " + remote);
+                in = down;
+                out = up;
+            }
+            MemoryLink remoteEnd = new MemoryLink(address, up, down);
+            network.links.add(this);
+            network.links.add(remoteEnd);
+            server.pending.offer(remoteEnd);
+            //The server closed after the check above and will not accept it
+            if (server.closed)
+                remoteEnd.close();
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException
+        {
+            if (in == null)
+                throw new IOException("Not connected");
+            return in.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException
+        {
+            if (out == null)
+                throw new IOException("Not connected");
+            return out.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress()
+        {
+            return remote;
+        }
+
+        @Override
+        public String getRemoteName()
+        {
+            return remote;
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            closed = true;
+            network.links.remove(this);
+            if (in != null)
+            {
+                in.closeReader();
+                out.closeWriter();
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.example.zoekim.testapp1;
+
+/*
+Class: MessageCodec
+Binary form of one chat message, the same on the wire and in ChatLogStore:
+  0xF5 (format version 1), flags, id, timestamp in ms, sender length,
+  sender, body length, body
+Numbers are unsigned LEB128 varints, sender and body are UTF-8.
+0xF5 never starts UTF-8 text, so a payload that does not begin with it is
+read as a plain UTF-8 body, as older versions sent and stored.
+Encoding writes into a caller's buffer and decoding fills a reused
+Message that points into the buffer, so neither allocates. The strings
+are only built when asked for.
+ */
+public final class MessageCodec
+{
+    public static final int MAGIC = 0xF5;
+    //Set on messages this device sent
+    public static final int FLAG_OUTGOING = 1;
+    //Status lines written by the app rather than typed by anyone
+    public static final int FLAG_NOTICE = 2;
+    //Sent to a group, shown in the group conversation rather than the sender's
+    public static final int FLAG_GROUP = 4;
+    //Decoded from a payload without the header
+    public static final int FLAG_LEGACY = 1 << 30;
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private MessageCodec() {}
+
+    //One decoded message, fields are overwritten by every decode() into it
+    public static final class Message
+    {
+        public long id;
+        public long timeMillis;
+        public int flags;
+        private byte[] buffer;
+        private int senderOffset;
+        private int senderLength;
+        private int bodyOffset;
+        private int bodyLength;
+        //Read position while decoding, -1 once the input turned out malformed
+        private int pos;
+
+        public String getSender()
+        {
+            return utf8ToString(buffer, senderOffset, senderLength);
+        }
+
+        public String getBody()
+        {
+            return utf8ToString(buffer, bodyOffset, bodyLength);
+        }
+
+        //Appends the body to out without any intermediate String
+        public void appendBody(StringBuilder out)
+        {
+            decodeUtf8(buffer, bodyOffset, bodyLength, out);
+        }
+
+        public int getSenderLength()
+        {
+            return senderLength;
+        }
+
+        public int getBodyLength()
+        {
+            return bodyLength;
+        }
+    }
+
+    //Exact number of bytes encode() writes
+    public static int encodedLength(long id, long timeMillis, int flags, CharSequence sender, CharSequence body)
+    {
+        int senderLen = utf8Length(sender);
+        int bodyLen = utf8Length(body);
+        return 1 + varintLength(flags & 0xFFFFFFFFL) + varintLength(id) + varintLength(timeMillis)
+                + varintLength(senderLen) + senderLen + varintLength(bodyLen) + bodyLen;
+    }
+
+    //Writes the message at out[offset], returns the offset after it
+    //out must hold encodedLength() bytes from offset
+    public static int encode(long id, long timeMillis, int flags, CharSequence sender, CharSequence body,
+                             byte[] out, int offset)
+    {
+        int pos = offset;
+        out[pos++] = (byte) MAGIC;
+        pos = writeVarint(flags & 0xFFFFFFFFL, out, pos);
+        pos = writeVarint(id, out, pos);
+        pos = writeVarint(timeMillis, out, pos);
+        pos = writeVarint(utf8Length(sender), out, pos);
+        pos = writeUtf8(sender, out, pos);
+        pos = writeVarint(utf8Length(body), out, pos);
+        return writeUtf8(body, out, pos);
+    }
+
+    //Array holding exactly the encoded message, for APIs that take ownership of a payload
+    public static byte[] encode(long id, long timeMillis, int flags, CharSequence sender, CharSequence body)
+    {
+        byte[] out = new byte[encodedLength(id, timeMillis, flags, sender, body)];
+        encode(id, timeMillis, flags, sender, body, out, 0);
+        return out;
+    }
+
+    //Reads buffer[offset, offset + length) into message, false if it is truncated or malformed
+    //message points into buffer until the next decode, so buffer must not be recycled before its strings are read
+    public static boolean decode(byte[] buffer, int offset, int length, Message message)
+    {
+        int end = offset + length;
+        message.buffer = buffer;
+        if (length == 0 || (buffer[offset] & 0xFF) != MAGIC)
+        {
+            message.id = 0;
+            message.timeMillis = 0;
+            message.flags = FLAG_LEGACY;
+            message.senderOffset = offset;
+            message.senderLength = 0;
+            message.bodyOffset = offset;
+            message.bodyLength = length;
+            return true;
+        }
+
+        message.pos = offset + 1;
+        message.flags = (int) readVarint(buffer, end, message);
+        message.id = readVarint(buffer, end, message);
+        message.timeMillis = readVarint(buffer, end, message);
+        long senderLen = readVarint(buffer, end, message);
+        if (message.pos < 0 || senderLen > end - message.pos)
+            return false;
+        message.senderOffset = message.pos;
+        message.senderLength = (int) senderLen;
+        message.pos += (int) senderLen;
+        long bodyLen = readVarint(buffer, end, message);
+        if (message.pos < 0 || bodyLen != end - message.pos)
+            return false;
+        message.bodyOffset = message.pos;
+        message.bodyLength = (int) bodyLen;
+        return true;
+    }
+
+    static int varintLength(long value)
+    {
+        int n = 1;
+        while ((value >>>= 7) != 0)
+            n++;
+        return n;
+    }
+
+    static int writeVarint(long value, byte[] out, int pos)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    //Reads at message.pos and advances it, sets it to -1 on a truncated or overlong varint
+    private static long readVarint(byte[] in, int end, Message message)
+    {
+        int pos = message.pos;
+        long value = 0;
+        for (int shift = 0; pos >= 0 && pos < end && shift < 64; shift += 7)
+        {
+            int b = in[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+            {
+                message.pos = pos;
+                return value;
+            }
+        }
+        message.pos = -1;
+        return 0;
+    }
+
+    //Bytes the UTF-8 form of s takes, unpaired surrogates count as the 3 byte replacement character
+    public static int utf8Length(CharSequence s)
+    {
+        int n = 0;
+        int len = s.length();
+        for (int i = 0; i < len; i++)
+        {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                n++;
+            else if (c < 0x800)
+                n += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                n += 4;
+                i++;
+            }
+            else
+                n += 3;
+        }
+        return n;
+    }
+
+    static int writeUtf8(CharSequence s, byte[] out, int pos)
+    {
+        int len = s.length();
+        for (int i = 0; i < len; i++)
+        {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                out[pos++] = (byte) c;
+            else if (c < 0x800)
+            {
+                out[pos++] = (byte) (0xC0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out[pos++] = (byte) (0xF0 | (cp >> 18));
+                out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (cp & 0x3F));
+            }
+            else
+            {
+                if (c >= 0xD800 && c < 0xE000)
+                    c = REPLACEMENT;
+                out[pos++] = (byte) (0xE0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    //Malformed sequences become one replacement character each
+    static void decodeUtf8(byte[] in, int offset, int length, StringBuilder out)
+    {
+        int end = offset + length;
+        int i = offset;
+        while (i < end)
+        {
+            int b = in[i++] & 0xFF;
+            if (b < 0x80)
+            {
+                out.append((char) b);
+                continue;
+            }
+            int extra;
+            int cp;
+            int min;
+            if (b >= 0xC2 && b < 0xE0)
+            {
+                extra = 1;
+                cp = b & 0x1F;
+                min = 0x80;
+            }
+            else if (b >= 0xE0 && b < 0xF0)
+            {
+                extra = 2;
+                cp = b & 0x0F;
+                min = 0x800;
+            }
+            else if (b >= 0xF0 && b < 0xF5)
+            {
+                extra = 3;
+                cp = b & 0x07;
+                min = 0x10000;
+            }
+            else
+            {
+                out.append(REPLACEMENT);
+                continue;
+            }
+            int j = i;
+            while (extra > 0 && j < end && (in[j] & 0xC0) == 0x80)
+            {
+                cp = (cp << 6) | (in[j++] & 0x3F);
+                extra--;
+            }
+            if (extra > 0 || cp < min || cp > Character.MAX_CODE_POINT || (cp >= 0xD800 && cp < 0xE000))
+            {
+                out.append(REPLACEMENT);
+                i = j;
+                continue;
+            }
+            i = j;
+            if (cp >= 0x10000)
+            {
+                out.append((char) (0xD800 + ((cp - 0x10000) >> 10)));
+                out.append((char) (0xDC00 + (cp & 0x3FF)));
+            }
+            else
+                out.append((char) cp);
+        }
+    }
+
+    private static String utf8ToString(byte[] in, int offset, int length)
+    {
+        StringBuilder sb = new StringBuilder(length);
+        decodeUtf8(in, offset, length, sb);
+        return sb.toString();
+    }
+}
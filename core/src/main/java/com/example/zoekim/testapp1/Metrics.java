@@ -0,0 +1,270 @@
+package com.example.zoekim.testapp1;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Class: Metrics
+Named counters, gauges and latency histograms for one ConnectionManager
+and whatever else shares it. Metrics are looked up once by name and kept
+in fields, so recording is a few atomic adds with no locking or
+allocation. Histograms are log-linear: every power of two is split into
+8 buckets, so a recorded value is known within 12.5% and a histogram is
+a fixed 488 longs whatever it records. snapshot() copies everything into
+plain values for a debug screen or a file.
+ */
+public class Metrics
+{
+    //Polled when a snapshot is taken
+    public interface Gauge
+    {
+        long value();
+    }
+
+    public static final class Counter
+    {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment()
+        {
+            value.incrementAndGet();
+        }
+
+        public void add(long n)
+        {
+            value.addAndGet(n);
+        }
+
+        public long get()
+        {
+            return value.get();
+        }
+    }
+
+    public static final class Histogram
+    {
+        static final int SUB_BITS = 3;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+        //Exact buckets below SUB_BUCKETS, then SUB_BUCKETS per power of two up to 2^62
+        static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        //Negative values count as 0
+        public void record(long value)
+        {
+            if (value < 0)
+                value = 0;
+            counts.incrementAndGet(bucket(value));
+            sum.addAndGet(value);
+            long m = max.get();
+            while (value > m && !max.compareAndSet(m, value))
+                m = max.get();
+        }
+
+        //Nanoseconds since start, from System.nanoTime()
+        public void recordSince(long startNanos)
+        {
+            record(System.nanoTime() - startNanos);
+        }
+
+        static int bucket(long value)
+        {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        //Smallest value that falls in bucket
+        static long lowerBound(int bucket)
+        {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            return (1L << exp) | (sub << (exp - SUB_BITS));
+        }
+
+        HistogramSnapshot snapshot()
+        {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+                copy[i] = counts.get(i);
+            return new HistogramSnapshot(copy, sum.get(), max.get());
+        }
+    }
+
+    //Counts of one histogram at snapshot time
+    public static final class HistogramSnapshot
+    {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        HistogramSnapshot(long[] counts, long sum, long max)
+        {
+            this.counts = counts;
+            long n = 0;
+            for (long c : counts)
+                n += c;
+            this.count = n;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public long getMax()
+        {
+            return max;
+        }
+
+        public double getMean()
+        {
+            return count == 0 ? 0 : sum / (double) count;
+        }
+
+        //Lower bound of the bucket holding the p-th fraction of values, 0 when empty
+        public long getPercentile(double p)
+        {
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank && seen > 0)
+                    return Math.min(Histogram.lowerBound(i), max);
+            }
+            return 0;
+        }
+    }
+
+    //Every metric's value at one moment
+    public static final class Snapshot
+    {
+        private final long uptimeNanos;
+        private final Map<String, Long> values = new LinkedHashMap<>();
+        private final Map<String, HistogramSnapshot> histograms = new LinkedHashMap<>();
+        private final String lastError;
+
+        Snapshot(long uptimeNanos, String lastError)
+        {
+            this.uptimeNanos = uptimeNanos;
+            this.lastError = lastError;
+        }
+
+        //Counter or gauge value, 0 if there is none by that name
+        public long get(String name)
+        {
+            Long v = values.get(name);
+            return v == null ? 0 : v;
+        }
+
+        public HistogramSnapshot getHistogram(String name)
+        {
+            return histograms.get(name);
+        }
+
+        public String getLastError()
+        {
+            return lastError;
+        }
+
+        //One metric per line, counters with their average rate, latencies in microseconds
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder();
+            double seconds = Math.max(uptimeNanos / 1e9, 1e-3);
+            sb.append(String.format("uptime %.1f s%n", seconds));
+            for (Map.Entry<String, Long> entry : values.entrySet())
+                sb.append(String.format("%s %d (%.1f/s)%n", entry.getKey(), entry.getValue(), entry.getValue() / seconds));
+            for (Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet())
+            {
+                HistogramSnapshot h = entry.getValue();
+                sb.append(String.format("%s n=%d mean=%.1f p50=%.1f p99=%.1f max=%.1f us%n", entry.getKey(),
+                        h.getCount(), h.getMean() / 1e3, h.getPercentile(0.5) / 1e3,
+                        h.getPercentile(0.99) / 1e3, h.getMax() / 1e3));
+            }
+            if (lastError != null)
+                sb.append("last error: ").append(lastError).append('\n');
+            return sb.toString();
+        }
+    }
+
+    private final long created = System.nanoTime();
+    //Name to Counter, Gauge or Histogram, in registration order
+    private final Map<String, Object> metrics = new LinkedHashMap<>();
+    private volatile String lastError;
+
+    public synchronized Counter counter(String name)
+    {
+        return get(name, Counter.class, new Counter());
+    }
+
+    public synchronized Histogram histogram(String name)
+    {
+        return get(name, Histogram.class, new Histogram());
+    }
+
+    //Replaces any gauge of the same name
+    public synchronized void gauge(String name, Gauge gauge)
+    {
+        Object old = metrics.get(name);
+        if (old != null && !(old instanceof Gauge))
+            throw new IllegalArgumentException(name + " is not a gauge");
+        metrics.put(name, gauge);
+    }
+
+    //Keeps the most recent failure that would otherwise only be swallowed
+    public void error(String where, Throwable e)
+    {
+        lastError = where + ": " + e;
+    }
+
+    public Snapshot snapshot()
+    {
+        List<Map.Entry<String, Object>> entries;
+        synchronized (this)
+        {
+            entries = new ArrayList<>(metrics.entrySet());
+        }
+        Snapshot snapshot = new Snapshot(System.nanoTime() - created, lastError);
+        for (Map.Entry<String, Object> entry : entries)
+        {
+            Object m = entry.getValue();
+            if (m instanceof Counter)
+                snapshot.values.put(entry.getKey(), ((Counter) m).get());
+            else if (m instanceof Gauge)
+                snapshot.values.put(entry.getKey(), ((Gauge) m).value());
+            else
+                snapshot.histograms.put(entry.getKey(), ((Histogram) m).snapshot());
+        }
+        return snapshot;
+    }
+
+    private <T> T get(String name, Class<T> type, T fresh)
+    {
+        Object m = metrics.get(name);
+        if (m == null)
+        {
+            metrics.put(name, fresh);
+            return fresh;
+        }
+        if (!type.isInstance(m))
+            throw new IllegalArgumentException(name + " is not a " + type.getSimpleName());
+        return type.cast(m);
+    }
+}
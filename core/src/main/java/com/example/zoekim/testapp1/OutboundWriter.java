@@ -0,0 +1,488 @@
+package com.example.zoekim.testapp1;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Class: OutboundWriter
+Writer task for one connection, its owner runs it on a thread of its own,
+ConnectionManager on one from its I/O pool.
+Callers queue payloads without touching the socket. The writer drains
+whatever is queued, frames it into one buffer and writes that with a single
+call, then flushes the stream once the queue runs dry.
+
+Each logical channel (see Frames.channelOf) has its own queue. Control
+frames go first. Chat and bulk share what is left by deficit round robin,
+chat with CHAT_WEIGHT times the quantum of bulk, so a chat message waits
+for at most about one bulk frame however much bulk is queued, and bulk
+gets the whole link while chat is idle. With credits limited, a data
+channel only sends while the peer's credit for it is positive, so a slow
+consumer of one channel does not hold up the others.
+ */
+public class OutboundWriter implements Runnable
+{
+    //What offer() does when the queue is full
+    public enum Backpressure
+    {
+        BLOCK,
+        DROP_OLDEST,
+        REJECT
+    }
+
+    public interface Listener
+    {
+        //Called on the writer thread once the payload has been written to the stream
+        void onWritten(int kind, byte[] payload);
+
+        //Called when DROP_OLDEST evicts a queued payload, never a sequenced one,
+        //and for each payload still queued when the writer is cancelled
+        void onDropped(int kind, byte[] payload);
+
+        void onWriteFailed(IOException e);
+    }
+
+    static final int DEFAULT_CAPACITY = 256;
+    static final int DEFAULT_BATCH_BYTES = 16 * 1024;
+    //Bytes a data channel may send per round robin turn, bulk gets one quantum
+    static final int QUANTUM = 4 * 1024;
+    static final int CHAT_WEIGHT = 4;
+
+    private final OutputStream out;
+    private final BufferPool pool;
+    private final Backpressure backpressure;
+    private final Listener listener;
+    private final int batchBytes;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed;
+
+    //Ring of queued frames per channel, guarded by lock
+    private final byte[][][] payloads = new byte[Frames.CHANNELS][][];
+    private final int[][] kinds = new int[Frames.CHANNELS][];
+    private final int[] heads = new int[Frames.CHANNELS];
+    private final int[] sizes = new int[Frames.CHANNELS];
+    private int size;
+    //False puts every frame on the control queue, which is one FIFO
+    private boolean scheduled = true;
+
+    //Deficit round robin over the data channels
+    private final int[] quantum = new int[Frames.CHANNELS];
+    private final int[] deficit = new int[Frames.CHANNELS];
+    private int current = Frames.CHANNEL_CHAT;
+    private boolean turnStarted;
+
+    //Payload bytes each channel may still send, enforced while creditLimited
+    private final long[] credits = new long[Frames.CHANNELS];
+    private boolean creditLimited;
+    private long creditWaits;
+
+    //Frames taken by the writer thread for the current write
+    private final byte[][] batch;
+    private final int[] batchKinds;
+    //What goes on the wire for each, compressed or the payload itself
+    private final byte[][] encoded;
+    private final int[] encodedKinds;
+    private FrameCompressor compressor;
+
+    public OutboundWriter(OutputStream out, BufferPool pool, Backpressure backpressure, Listener listener)
+    {
+        this(out, pool, backpressure, listener, DEFAULT_CAPACITY, DEFAULT_BATCH_BYTES);
+    }
+
+    public OutboundWriter(OutputStream out, BufferPool pool, Backpressure backpressure, Listener listener,
+                          int capacity, int batchBytes)
+    {
+        this.out = out;
+        this.pool = pool;
+        this.backpressure = backpressure;
+        this.listener = listener;
+        this.batchBytes = batchBytes;
+        this.capacity = capacity;
+        for (int c = 0; c < Frames.CHANNELS; c++)
+        {
+            payloads[c] = new byte[capacity][];
+            kinds[c] = new int[capacity];
+            credits[c] = Frames.receiveWindow(c);
+        }
+        quantum[Frames.CHANNEL_CHAT] = CHAT_WEIGHT * QUANTUM;
+        quantum[Frames.CHANNEL_BULK] = QUANTUM;
+        batch = new byte[capacity][];
+        batchKinds = new int[capacity];
+        encoded = new byte[capacity][];
+        encodedKinds = new int[capacity];
+    }
+
+    //Compresses frames once the compressor is active, call before start()
+    public void setCompressor(FrameCompressor compressor)
+    {
+        this.compressor = compressor;
+    }
+
+    //False sends frames in the order they were offered, call before start()
+    public void setScheduled(boolean scheduled)
+    {
+        this.scheduled = scheduled;
+    }
+
+    //Whether data channels wait for credit, the peer's first window is granted up front
+    public void limitCredits(boolean limited)
+    {
+        lock.lock();
+        try
+        {
+            creditLimited = limited;
+            notEmpty.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    //The peer consumed bytes more of channel
+    public void addCredit(int channel, int bytes)
+    {
+        if (channel <= Frames.CHANNEL_CONTROL || channel >= Frames.CHANNELS || bytes <= 0)
+            return;
+        lock.lock();
+        try
+        {
+            credits[channel] += bytes;
+            notEmpty.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    //Times the writer had frames queued but no credit to send any of them
+    public long getCreditWaits()
+    {
+        lock.lock();
+        try
+        {
+            return creditWaits;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    //Queues a payload, returns false if it was rejected or the writer is closed
+    //The queue limit applies per channel, so bulk filling up does not refuse chat
+    public boolean offer(int kind, byte[] payload)
+    {
+        return offer(kind, payload, backpressure);
+    }
+
+    //Queues a payload if its channel has room, never waits or drops whatever the backpressure
+    //For fan-out, where one full queue must not hold up the other peers
+    public boolean tryOffer(int kind, byte[] payload)
+    {
+        return offer(kind, payload, Backpressure.REJECT);
+    }
+
+    //Queues a control frame past the queue limit, never waits or drops
+    //For acks and credit the reader owes the peer: the reader must not block on its own writer,
+    //and a lost credit would stall the peer's channel for good. These are small and come at the
+    //rate the peer sends, so the control queue grows to hold them.
+    public boolean offerControl(int kind, byte[] payload)
+    {
+        lock.lock();
+        try
+        {
+            if (closed)
+                return false;
+            if (sizes[Frames.CHANNEL_CONTROL] == payloads[Frames.CHANNEL_CONTROL].length)
+                grow(Frames.CHANNEL_CONTROL);
+            add(Frames.CHANNEL_CONTROL, kind, payload);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private boolean offer(int kind, byte[] payload, Backpressure backpressure)
+    {
+        int channel = scheduled ? Frames.channelOf(kind) : Frames.CHANNEL_CONTROL;
+        byte[] dropped = null;
+        int droppedKind = 0;
+        lock.lock();
+        try
+        {
+            while (!closed && sizes[channel] >= capacity)
+            {
+                if (backpressure == Backpressure.REJECT)
+                    return false;
+                if (backpressure == Backpressure.DROP_OLDEST)
+                {
+                    //A dropped sequenced frame would be a gap the peer skips, the new one is refused instead
+                    if (Frames.isSequenced(kinds[channel][heads[channel]]))
+                        return false;
+                    droppedKind = kinds[channel][heads[channel]];
+                    dropped = poll(channel);
+                    break;
+                }
+                notFull.awaitUninterruptibly();
+            }
+            if (closed)
+                return false;
+            add(channel, kind, payload);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (dropped != null)
+            listener.onDropped(droppedKind, dropped);
+        return true;
+    }
+
+    private void add(int channel, int kind, byte[] payload)
+    {
+        byte[][] ring = payloads[channel];
+        int tail = (heads[channel] + sizes[channel]) % ring.length;
+        ring[tail] = payload;
+        kinds[channel][tail] = kind;
+        sizes[channel]++;
+        size++;
+        notEmpty.signal();
+    }
+
+    //Doubles a full ring, keeping its frames in order from the start
+    private void grow(int channel)
+    {
+        byte[][] ring = payloads[channel];
+        byte[][] grown = new byte[ring.length * 2][];
+        int[] grownKinds = new int[grown.length];
+        for (int i = 0; i < sizes[channel]; i++)
+        {
+            int at = (heads[channel] + i) % ring.length;
+            grown[i] = ring[at];
+            grownKinds[i] = kinds[channel][at];
+        }
+        payloads[channel] = grown;
+        kinds[channel] = grownKinds;
+        heads[channel] = 0;
+    }
+
+    public int queued()
+    {
+        lock.lock();
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (true)
+            {
+                int count = takeBatch();
+                if (count < 0)
+                    break;
+                writeBatch(count);
+            }
+        }
+        catch (IOException e)
+        {
+            cancel();
+            listener.onWriteFailed(e);
+        }
+        finally
+        {
+            if (compressor != null)
+                compressor.endDeflate();
+        }
+    }
+
+    //Stops the writer, anything still queued is discarded and reported through onDropped
+    public void cancel()
+    {
+        byte[][] dropped;
+        int[] droppedKinds;
+        lock.lock();
+        try
+        {
+            closed = true;
+            dropped = new byte[size][];
+            droppedKinds = new int[size];
+            int count = 0;
+            for (int c = 0; c < Frames.CHANNELS; c++)
+            {
+                while (sizes[c] > 0)
+                {
+                    droppedKinds[count] = kinds[c][heads[c]];
+                    dropped[count++] = poll(c);
+                }
+            }
+            notEmpty.signalAll();
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        //Outside the lock, like a DROP_OLDEST eviction, listeners release buffers or fail messages
+        for (int i = 0; i < dropped.length; i++)
+            listener.onDropped(droppedKinds[i], dropped[i]);
+    }
+
+    private byte[] poll(int channel)
+    {
+        byte[][] ring = payloads[channel];
+        int head = heads[channel];
+        byte[] payload = ring[head];
+        ring[head] = null;
+        heads[channel] = (head + 1) % ring.length;
+        sizes[channel]--;
+        size--;
+        return payload;
+    }
+
+    //Channel whose head frame goes next, or -1 if nothing can be sent now
+    private int pick()
+    {
+        if (sizes[Frames.CHANNEL_CONTROL] > 0)
+            return Frames.CHANNEL_CONTROL;
+        //Visits until one channel's deficit covers its head frame, or every channel is idle or out of credit
+        int idle = 0;
+        while (idle < Frames.CHANNELS - 1)
+        {
+            int c = current;
+            if (sizes[c] == 0 || (creditLimited && credits[c] <= 0))
+            {
+                if (sizes[c] == 0)
+                    deficit[c] = 0;
+                nextTurn();
+                idle++;
+                continue;
+            }
+            idle = 0;
+            if (!turnStarted)
+            {
+                deficit[c] += quantum[c];
+                turnStarted = true;
+            }
+            if (deficit[c] >= payloads[c][heads[c]].length)
+                return c;
+            nextTurn();
+        }
+        return -1;
+    }
+
+    private void nextTurn()
+    {
+        current = current + 1 < Frames.CHANNELS ? current + 1 : Frames.CHANNEL_CONTROL + 1;
+        turnStarted = false;
+    }
+
+    //Moves queued payloads into batch, flushing the stream first if there is nothing to send
+    private int takeBatch() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if (pick() < 0 && !closed)
+            {
+                lock.unlock();
+                try
+                {
+                    out.flush();
+                }
+                finally
+                {
+                    lock.lock();
+                }
+            }
+            while (!closed && pick() < 0)
+            {
+                if (size > 0)
+                    creditWaits++;
+                notEmpty.awaitUninterruptibly();
+            }
+            if (closed)
+                return -1;
+
+            int count = 0;
+            int bytes = 0;
+            int c;
+            while (count < batch.length && (c = pick()) >= 0)
+            {
+                int payloadLen = payloads[c][heads[c]].length;
+                int len = FrameDecoder.HEADER_LEN + payloadLen;
+                if (count > 0 && bytes + len > batchBytes)
+                    break;
+                if (c != Frames.CHANNEL_CONTROL)
+                {
+                    deficit[c] -= payloadLen;
+                    credits[c] -= payloadLen;
+                }
+                batchKinds[count] = kinds[c][heads[c]];
+                batch[count++] = poll(c);
+                bytes += len;
+            }
+            notFull.signalAll();
+            return count;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void writeBatch(int count) throws IOException
+    {
+        int total = 0;
+        for (int i = 0; i < count; i++)
+        {
+            byte[] compressed = compressor != null ? compressor.compress(batchKinds[i], batch[i]) : null;
+            encoded[i] = compressed != null ? compressed : batch[i];
+            encodedKinds[i] = compressed != null ? Frames.KIND_DEFLATED : batchKinds[i];
+            total += FrameDecoder.HEADER_LEN + encoded[i].length;
+        }
+
+        byte[] frames = pool.acquire(total);
+        try
+        {
+            int pos = 0;
+            for (int i = 0; i < count; i++)
+            {
+                FrameDecoder.putHeader(frames, pos, encodedKinds[i], encoded[i].length);
+                pos += FrameDecoder.HEADER_LEN;
+                System.arraycopy(encoded[i], 0, frames, pos, encoded[i].length);
+                pos += encoded[i].length;
+                encoded[i] = null;
+            }
+            out.write(frames, 0, total);
+        }
+        finally
+        {
+            pool.release(frames);
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            listener.onWritten(batchKinds[i], batch[i]);
+            batch[i] = null;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.example.zoekim.testapp1;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/*
+Class: Outbox
+Durable per-peer queue of outgoing chat messages, kept until the peer
+acknowledges them. With an outbox set, ConnectionManager.write() stores
+a message here first, so it survives the link being down and the app
+being killed, and sessions take messages from here in order, many to a
+frame, once the peer's hello has been read.
+<address>.outbox starts with the 8 byte id of the last acknowledged
+message, followed by [4 byte length][8 byte id][body] records with ids
+increasing by one. Acknowledging rewrites the header; the file is
+truncated once nothing is pending and compacted once most of it is
+acknowledged. A record torn by a crash is dropped on load.
+The file instance holds the id a ConnectionManager using this outbox
+gives in its hellos. Sessions number outbox messages by their ids, so
+after a restart the manager is the same instance to its peers, sending
+the same numbers. A message delivered but not yet acknowledged when the
+app died is known to the peer and is neither sent nor delivered again.
+Pending messages are also kept in memory. Appends and acknowledgements
+are one small write each, on the calling thread, which for
+ConnectionManager is its outbox thread. An append is only on disk once
+sync() has returned, which forces every file appended to since the last
+sync, so a run of appends costs one sync.
+ */
+public class Outbox
+{
+    static final String EXT = ".outbox";
+    static final String INSTANCE_FILE = "instance";
+    static final int FILE_HEADER_LEN = 8;
+    static final int RECORD_HEADER_LEN = 12;
+    //Acknowledged bytes at the front of a file worth rewriting it for
+    static final long COMPACT_BYTES = 256 * 1024;
+
+    //One pending message
+    public static final class Entry
+    {
+        public final long id;
+        public final byte[] body;
+
+        Entry(long id, byte[] body)
+        {
+            this.id = id;
+            this.body = body;
+        }
+    }
+
+    private final File dir;
+    private final Map<String, Queue> queues = new HashMap<>();
+    private byte[] scratch = new byte[256];
+    //Appended to since the last sync()
+    private final List<Queue> unsynced = new ArrayList<>();
+    //0 until read
+    private long instance;
+
+    public Outbox(File dir)
+    {
+        this.dir = dir;
+    }
+
+    //Stores a message for the peer at address, returns its id
+    public synchronized long append(String address, byte[] body) throws IOException
+    {
+        Queue queue = open(address);
+        long id = queue.nextId++;
+        int len = RECORD_HEADER_LEN + body.length;
+        if (scratch.length < len)
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        ChatLogStore.putInt(scratch, 0, body.length);
+        ChatLogStore.putLong(scratch, 4, id);
+        System.arraycopy(body, 0, scratch, RECORD_HEADER_LEN, body.length);
+        queue.file.seek(queue.end);
+        queue.file.write(scratch, 0, len);
+        queue.end += len;
+        queue.entries.add(new Entry(id, body));
+        queue.offsets.add(queue.end - len);
+        if (!unsynced.contains(queue))
+            unsynced.add(queue);
+        return id;
+    }
+
+    //Forces every append so far to the disk, a crash after this loses none of them
+    public synchronized void sync() throws IOException
+    {
+        for (Queue queue : unsynced)
+            queue.file.getFD().sync();
+        unsynced.clear();
+    }
+
+    //Messages stored for address and not yet acknowledged
+    public synchronized int pending(String address) throws IOException
+    {
+        return open(address).entries.size();
+    }
+
+    //Addresses with messages pending, worth dialing when they come in range
+    public synchronized List<String> addresses() throws IOException
+    {
+        List<String> addresses = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null)
+            return addresses;
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (!name.endsWith(EXT))
+                continue;
+            String address;
+            try
+            {
+                address = ChatLogStore.peerName(name.substring(0, name.length() - EXT.length()));
+            }
+            catch (IllegalArgumentException e)
+            {
+                continue;
+            }
+            if (pending(address) > 0)
+                addresses.add(address);
+        }
+        return addresses;
+    }
+
+    //Id of whoever sends these messages, made once and kept with them, never 0
+    public synchronized long instance() throws IOException
+    {
+        if (instance != 0)
+            return instance;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        RandomAccessFile file = new RandomAccessFile(new File(dir, INSTANCE_FILE), "rw");
+        try
+        {
+            byte[] b = new byte[8];
+            long id = 0;
+            if (file.length() == b.length)
+            {
+                file.readFully(b);
+                id = ChatLogStore.getLong(b, 0);
+            }
+            //New, or torn by a crash before any message could have been sent under it
+            if (id == 0)
+            {
+                Random random = new Random();
+                while (id == 0)
+                    id = random.nextLong();
+                ChatLogStore.putLong(b, 0, id);
+                file.setLength(0);
+                file.write(b);
+                file.getFD().sync();
+            }
+            instance = id;
+            return id;
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    //Pending messages after afterId in order, at least one if there is any, then up to maxBytes of bodies
+    synchronized List<Entry> after(String address, long afterId, int maxBytes) throws IOException
+    {
+        List<Entry> batch = new ArrayList<>();
+        int bytes = 0;
+        for (Entry entry : open(address).entries)
+        {
+            if (entry.id <= afterId)
+                continue;
+            if (!batch.isEmpty() && bytes + entry.body.length > maxBytes)
+                break;
+            batch.add(entry);
+            bytes += entry.body.length;
+        }
+        return batch;
+    }
+
+    //The peer has every message up to id, they are removed
+    public synchronized void acknowledge(String address, long id) throws IOException
+    {
+        Queue queue = open(address);
+        if (id <= queue.acked)
+            return;
+        while (!queue.entries.isEmpty() && queue.entries.peekFirst().id <= id)
+        {
+            queue.entries.pollFirst();
+            queue.offsets.pollFirst();
+        }
+        queue.acked = Math.min(id, queue.nextId - 1);
+        ChatLogStore.putLong(scratch, 0, queue.acked);
+        queue.file.seek(0);
+        queue.file.write(scratch, 0, FILE_HEADER_LEN);
+        if (queue.entries.isEmpty())
+        {
+            queue.file.setLength(FILE_HEADER_LEN);
+            queue.end = FILE_HEADER_LEN;
+        }
+        else if (queue.offsets.peekFirst() - FILE_HEADER_LEN >= COMPACT_BYTES
+                && queue.offsets.peekFirst() - FILE_HEADER_LEN > queue.end / 2)
+            compact(address, queue);
+    }
+
+    //Closes every file, the outbox opens them again on next use
+    public synchronized void close()
+    {
+        for (Queue queue : queues.values())
+            queue.close();
+        queues.clear();
+        unsynced.clear();
+    }
+
+    private Queue open(String address) throws IOException
+    {
+        Queue queue = queues.get(address);
+        if (queue == null)
+        {
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Cannot create " + dir);
+            queue = new Queue(new File(dir, ChatLogStore.fileName(address) + EXT));
+            queues.put(address, queue);
+        }
+        return queue;
+    }
+
+    //Rewrites the pending records into a new file, then swaps it in
+    private void compact(String address, Queue queue) throws IOException
+    {
+        File tmp = new File(queue.path.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try
+        {
+            out.setLength(0);
+            ChatLogStore.putLong(scratch, 0, queue.acked);
+            out.write(scratch, 0, FILE_HEADER_LEN);
+            byte[] copy = new byte[(int) (queue.end - queue.offsets.peekFirst())];
+            queue.file.seek(queue.offsets.peekFirst());
+            queue.file.readFully(copy);
+            out.write(copy);
+            //The rename must not replace the old file with one still in the page cache
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        queue.close();
+        queues.remove(address);
+        unsynced.remove(queue);
+        if (!tmp.renameTo(queue.path))
+            throw new IOException("Cannot replace " + queue.path);
+        open(address);
+    }
+
+    //One peer's file and what is pending in it
+    private static class Queue
+    {
+        final File path;
+        final RandomAccessFile file;
+        final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        //File offset of each pending record
+        final ArrayDeque<Long> offsets = new ArrayDeque<>();
+        long acked;
+        long nextId;
+        long end;
+
+        Queue(File path) throws IOException
+        {
+            this.path = path;
+            file = new RandomAccessFile(path, "rw");
+            try
+            {
+                load();
+            }
+            catch (IOException e)
+            {
+                file.close();
+                throw e;
+            }
+        }
+
+        private void load() throws IOException
+        {
+            long length = file.length();
+            if (length < FILE_HEADER_LEN)
+            {
+                file.setLength(0);
+                file.write(new byte[FILE_HEADER_LEN]);
+                end = FILE_HEADER_LEN;
+                nextId = 1;
+                return;
+            }
+            byte[] data = new byte[(int) length];
+            file.seek(0);
+            file.readFully(data);
+            acked = ChatLogStore.getLong(data, 0);
+            nextId = acked + 1;
+            int pos = FILE_HEADER_LEN;
+            while (pos + RECORD_HEADER_LEN <= data.length)
+            {
+                int len = ChatLogStore.getInt(data, pos);
+                if (len < 0 || pos + RECORD_HEADER_LEN + len > data.length)
+                    break;
+                long id = ChatLogStore.getLong(data, pos + 4);
+                if (id > acked)
+                {
+                    byte[] body = new byte[len];
+                    System.arraycopy(data, pos + RECORD_HEADER_LEN, body, 0, len);
+                    entries.add(new Entry(id, body));
+                    offsets.add((long) pos);
+                }
+                nextId = Math.max(nextId, id + 1);
+                pos += RECORD_HEADER_LEN + len;
+            }
+            //Whatever follows the last whole record was torn by a crash
+            if (pos < data.length)
+                file.setLength(pos);
+            end = pos;
+        }
+
+        void close()
+        {
+            try
+            {
+                file.close();
+            }
+            catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.zoekim.testapp1;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/*
+Class: PagedHistory
+Windowed view of one peer's ChatLogStore history.
+Only the newest page is read on open; older pages are read when get()
+first touches them. At most maxPages pages are held, the least recently
+used one is dropped when another arrives, so opening and scrolling cost the
+same for 100 lines as for 100k. Lines of a page not in memory read as null
+until it arrives and the listener runs.
+ */
+public class PagedHistory
+{
+    public interface Listener
+    {
+        //Called on the callback executor when size or loaded lines change
+        void onChanged();
+    }
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int DEFAULT_MAX_PAGES = 8;
+    //Heap cost of a ChatLine with its two Strings and of a page list beyond their characters, roughly
+    static final int LINE_OVERHEAD = 112;
+    static final int PAGE_OVERHEAD = 64;
+
+    private final ChatLogStore store;
+    private final String peer;
+    private final int pageSize;
+    private final int maxPages;
+    private final Executor callbackExecutor;
+    private final Listener listener;
+
+    //Page index to its lines, in access order
+    private final LinkedHashMap<Integer, List<ChatLine>> pages;
+    private final Set<Integer> loading = new HashSet<>();
+    //Lines added before the tail arrived
+    private final List<ChatLine> early = new ArrayList<>();
+    private int size;
+    private boolean opened;
+    private boolean closed;
+
+    public PagedHistory(ChatLogStore store, String peer, Executor callbackExecutor, Listener listener)
+    {
+        this(store, peer, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES, callbackExecutor, listener);
+    }
+
+    public PagedHistory(ChatLogStore store, String peer, int pageSize, int maxPages,
+                        Executor callbackExecutor, Listener listener)
+    {
+        this.store = store;
+        this.peer = peer;
+        this.pageSize = pageSize;
+        this.maxPages = Math.max(2, maxPages);
+        this.callbackExecutor = callbackExecutor;
+        this.listener = listener;
+        pages = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    //Reads the newest page, size() is 0 until it arrives
+    public void open()
+    {
+        store.readTailAsync(peer, pageSize, new ChatLogStore.ReadCallback()
+        {
+            @Override
+            public void onRead(String p, final int from, final List<ChatLine> lines)
+            {
+                deliver(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        onTail(from, lines);
+                    }
+                });
+            }
+        });
+    }
+
+    //Stops callbacks, pages still loading are discarded
+    public synchronized void close()
+    {
+        closed = true;
+        pages.clear();
+    }
+
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    public synchronized boolean isOpened()
+    {
+        return opened;
+    }
+
+    public synchronized int pagesInMemory()
+    {
+        return pages.size();
+    }
+
+    //Approximate heap held by the lines in memory
+    public synchronized long estimatedBytes()
+    {
+        long bytes = 0;
+        for (List<ChatLine> lines : pages.values())
+        {
+            bytes += PAGE_OVERHEAD;
+            for (int i = 0; i < lines.size(); i++)
+            {
+                ChatLine line = lines.get(i);
+                bytes += LINE_OVERHEAD + 2L * (line.sender.length() + line.body.length());
+            }
+        }
+        return bytes;
+    }
+
+    //Line at position, or null while its page is being read
+    public synchronized ChatLine get(int position)
+    {
+        int page = position / pageSize;
+        List<ChatLine> lines = pages.get(page);
+        if (lines == null || position - page * pageSize >= lines.size())
+        {
+            load(page);
+            return null;
+        }
+        //Near the top of a page, start reading the older one before it is needed
+        int offset = position - page * pageSize;
+        if (offset < pageSize / 4 && page > 0)
+            load(page - 1);
+        return lines.get(offset);
+    }
+
+    //Persists a new line and shows it at the end, call after open()
+    public void add(ChatLine line)
+    {
+        store.append(peer, line);
+        synchronized (this)
+        {
+            if (opened)
+                addLoaded(line);
+            else
+                early.add(line);
+        }
+    }
+
+    private void addLoaded(ChatLine line)
+    {
+        int page = size / pageSize;
+        List<ChatLine> lines = pages.get(page);
+        if (lines == null && size % pageSize == 0)
+        {
+            lines = new ArrayList<>(pageSize);
+            put(page, lines);
+        }
+        //Otherwise the page is read later, after this line reaches the store
+        if (lines != null)
+            lines.add(line);
+        size++;
+    }
+
+    private synchronized void onTail(int from, List<ChatLine> lines)
+    {
+        if (closed)
+            return;
+        put(from / pageSize, new ArrayList<>(lines));
+        size = from + lines.size();
+        opened = true;
+        //The tail was read before these were appended
+        for (ChatLine line : early)
+            addLoaded(line);
+        early.clear();
+    }
+
+    private void load(final int page)
+    {
+        if (page < 0 || loading.contains(page) || page * pageSize >= size)
+            return;
+        loading.add(page);
+        store.readAsync(peer, page * pageSize, pageSize, new ChatLogStore.ReadCallback()
+        {
+            @Override
+            public void onRead(String p, int from, final List<ChatLine> lines)
+            {
+                deliver(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        onPage(page, lines);
+                    }
+                });
+            }
+        });
+    }
+
+    private synchronized void onPage(int page, List<ChatLine> lines)
+    {
+        loading.remove(page);
+        if (closed)
+            return;
+        //An add() queued after this read is missing, read the page again to pick it up
+        int expected = Math.min(pageSize, size - page * pageSize);
+        if (lines.size() < expected)
+        {
+            load(page);
+            return;
+        }
+        put(page, lines);
+    }
+
+    private void put(int page, List<ChatLine> lines)
+    {
+        pages.put(page, lines);
+        Iterator<Map.Entry<Integer, List<ChatLine>>> it = pages.entrySet().iterator();
+        while (pages.size() > maxPages && it.hasNext())
+        {
+            if (it.next().getKey() != page)
+                it.remove();
+        }
+    }
+
+    private void deliver(final Runnable update)
+    {
+        callbackExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                update.run();
+                synchronized (PagedHistory.this)
+                {
+                    if (closed)
+                        return;
+                }
+                listener.onChanged();
+            }
+        });
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.zoekim.testapp1;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: PeerDirectory
+Every peer this device has talked to, with when it was last seen, how
+often dialing it worked and how long the connect took, kept in one small
+file across runs. Peers are ranked by smoothed success rate, discounted
+by age and by connect latency, so the app can redial the best recent peer
+at startup and put the likely ones first when the user picks.
+The file is read once when the directory is created and rewritten on a
+background thread after changes, many changes in a row cost one write.
+ */
+public class PeerDirectory
+{
+    private static final int VERSION = 1;
+    static final int MAX_ENTRIES = 64;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    //best() only suggests peers reached within this long
+    static final long BEST_MAX_AGE_MILLIS = 7 * DAY_MILLIS;
+    //Weight of the newest sample in the latency average
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    //One peer's record at the time it was read
+    public static final class Entry
+    {
+        public final String address;
+        public final String name;
+        public final long lastSeenMillis;
+        public final int attempts;
+        public final int successes;
+        //Average connect time, -1 until a connect succeeded
+        public final long latencyMillis;
+
+        Entry(String address, String name, long lastSeenMillis, int attempts, int successes, long latencyMillis)
+        {
+            this.address = address;
+            this.name = name;
+            this.lastSeenMillis = lastSeenMillis;
+            this.attempts = attempts;
+            this.successes = successes;
+            this.latencyMillis = latencyMillis;
+        }
+
+        //Successes over attempts, smoothed so one lucky or unlucky dial does not decide
+        public double getSuccessRate()
+        {
+            return (successes + 1.0) / (attempts + 2.0);
+        }
+
+        //Higher is better, halves after a day unseen and again for each second of connect time
+        double score(long nowMillis)
+        {
+            double age = Math.max(0, nowMillis - lastSeenMillis) / (double) DAY_MILLIS;
+            double latency = latencyMillis < 0 ? 1 : latencyMillis / 1000.0;
+            return getSuccessRate() / (1 + age) / (1 + latency);
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final ExecutorService executor;
+    private boolean saveQueued;
+
+    //Reads file if it exists, a missing or unreadable file starts an empty directory
+    public PeerDirectory(File file)
+    {
+        this.file = file;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                return new Thread(r, "PeerDirectory");
+            }
+        });
+        try
+        {
+            load();
+        }
+        catch (IOException e)
+        {
+            entries.clear();
+        }
+    }
+
+    //A dial of address finished, latencyNanos is the time link.connect() took when it succeeded
+    public void recordConnect(String address, String name, boolean success, long latencyNanos)
+    {
+        recordConnect(address, name, success, latencyNanos, System.currentTimeMillis());
+    }
+
+    synchronized void recordConnect(String address, String name, boolean success, long latencyNanos, long nowMillis)
+    {
+        Entry old = entries.get(address);
+        long latency = old != null ? old.latencyMillis : -1;
+        if (success)
+        {
+            long sample = latencyNanos / 1000000;
+            latency = latency < 0 ? sample : Math.round(latency + LATENCY_WEIGHT * (sample - latency));
+        }
+        put(new Entry(address, nameOf(name, old, address), success || old == null ? nowMillis : old.lastSeenMillis,
+                (old != null ? old.attempts : 0) + 1, (old != null ? old.successes : 0) + (success ? 1 : 0), latency),
+                nowMillis);
+    }
+
+    //The peer connected to us, which says it is near without saying anything about dialing it
+    public void recordSeen(String address, String name)
+    {
+        recordSeen(address, name, System.currentTimeMillis());
+    }
+
+    synchronized void recordSeen(String address, String name, long nowMillis)
+    {
+        Entry old = entries.get(address);
+        put(new Entry(address, nameOf(name, old, address), nowMillis, old != null ? old.attempts : 0,
+                old != null ? old.successes : 0, old != null ? old.latencyMillis : -1), nowMillis);
+    }
+
+    public synchronized Entry get(String address)
+    {
+        return entries.get(address);
+    }
+
+    //Best first, at most limit entries
+    public List<Entry> ranked(int limit)
+    {
+        return ranked(limit, System.currentTimeMillis());
+    }
+
+    synchronized List<Entry> ranked(int limit, final long nowMillis)
+    {
+        List<Entry> list = new ArrayList<>(entries.values());
+        Collections.sort(list, new Comparator<Entry>()
+        {
+            @Override
+            public int compare(Entry a, Entry b)
+            {
+                return Double.compare(b.score(nowMillis), a.score(nowMillis));
+            }
+        });
+        return list.size() > limit ? new ArrayList<>(list.subList(0, limit)) : list;
+    }
+
+    //Peer worth dialing without asking: the best ranked one that was reached recently, or null
+    public Entry best()
+    {
+        return best(System.currentTimeMillis());
+    }
+
+    synchronized Entry best(long nowMillis)
+    {
+        for (Entry entry : ranked(entries.size(), nowMillis))
+            if (entry.successes > 0 && nowMillis - entry.lastSeenMillis <= BEST_MAX_AGE_MILLIS)
+                return entry;
+        return null;
+    }
+
+    //Writes any pending change and stops the background thread
+    public void close()
+    {
+        executor.shutdown();
+        try
+        {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String nameOf(String name, Entry old, String address)
+    {
+        if (name != null && !name.equals(address))
+            return name;
+        return old != null ? old.name : address;
+    }
+
+    //Stores entry, evicting the lowest ranked peer when full, and queues a save
+    private void put(Entry entry, long nowMillis)
+    {
+        entries.put(entry.address, entry);
+        if (entries.size() > MAX_ENTRIES)
+        {
+            List<Entry> list = ranked(entries.size(), nowMillis);
+            entries.remove(list.get(list.size() - 1).address);
+        }
+        if (saveQueued || executor.isShutdown())
+            return;
+        saveQueued = true;
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                List<Entry> snapshot;
+                synchronized (PeerDirectory.this)
+                {
+                    saveQueued = false;
+                    snapshot = new ArrayList<>(entries.values());
+                }
+                try
+                {
+                    save(snapshot);
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private void load() throws IOException
+    {
+        if (!file.exists())
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            if (in.readInt() != VERSION)
+                return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                Entry entry = new Entry(in.readUTF(), in.readUTF(), in.readLong(), in.readInt(), in.readInt(),
+                        in.readLong());
+                entries.put(entry.address, entry);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    //Written beside the file and renamed over it, so a crash leaves the old or the new directory
+    private void save(List<Entry> snapshot) throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try
+        {
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (Entry entry : snapshot)
+            {
+                out.writeUTF(entry.address);
+                out.writeUTF(entry.name);
+                out.writeLong(entry.lastSeenMillis);
+                out.writeInt(entry.attempts);
+                out.writeInt(entry.successes);
+                out.writeLong(entry.latencyMillis);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+    }
+}
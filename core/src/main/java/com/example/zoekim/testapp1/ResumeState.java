@@ -0,0 +1,346 @@
+package com.example.zoekim.testapp1;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Class: ResumeState
+Chat sequencing for one peer, kept across that peer's sessions.
+Every chat message gets the next sequence number and stays queued until
+the peer acknowledges it. The peer acknowledges cumulatively, and each
+side's hello says how far it has received, so after a reconnect only the
+unacknowledged tail is sent again and anything already delivered is
+dropped by sequence number. Hellos also carry both managers' instance ids,
+so a peer that restarted and lost its counters starts over from zero.
+Messages taken from an Outbox are numbered by their outbox ids. With the
+outbox's instance id, a sender that restarted numbers them as before, and
+a peer that already has some says so in its hello.
+Messages taken from an Outbox go many to a KIND_SEQ_BATCH frame, which
+holds one sequence number per message and is acknowledged by its last,
+so a long backlog needs a handful of frames and acks instead of one
+each. For a peer that cannot read batches they are split up again.
+Frames reach the writer only through tryOffer(), in order, so a full
+writer never blocks a caller holding this lock nor drops a numbered
+frame. What it refuses waits in the ring until the writer has written
+something and the session calls retry().
+ */
+class ResumeState
+{
+    //Sequence number in front of each KIND_SEQ_CHAT message and KIND_SEQ_BATCH frame
+    static final int SEQ_LEN = 8;
+    //Length in front of each message in a batch
+    static final int BATCH_ENTRY_LEN = 4;
+    //Message bytes put in one batch, one writer batch
+    static final int BATCH_BYTES = OutboundWriter.DEFAULT_BATCH_BYTES;
+
+    private final long instance;
+    private final Metrics.Histogram ackLatency;
+    //Ring of frames sent or waiting for the handshake, with the time each was queued
+    private final byte[][] unacked;
+    private final long[] queuedNanos;
+    //Kind, sequence number of the last message and id of the last outbox entry, 0 for none, of each frame
+    private final int[] kinds;
+    private final long[] lastSeqs;
+    private final long[] outboxIds;
+    private int head;
+    private int size;
+    private long nextSeq = 1;
+    //Highest sequence number handed to any session's writer, and to the current one
+    private long offered;
+    private long sent;
+    //The writer refused a frame, set until the next retry
+    private final AtomicBoolean stalled = new AtomicBoolean();
+    private long peerInstance;
+    private long received;
+    private long ackSent;
+    private long reported;
+    //Current session's writer, null until its handshake completes
+    private OutboundWriter writer;
+    private boolean retain = true;
+    private boolean batches;
+    //Last outbox entry put in the ring, and the last the peer has
+    private long outboxQueued;
+    private long outboxAcked;
+
+    //ackLatency records the time from send() to the peer's ack
+    ResumeState(long instance, int capacity, Metrics.Histogram ackLatency)
+    {
+        this.instance = instance;
+        this.ackLatency = ackLatency;
+        unacked = new byte[capacity][];
+        queuedNanos = new long[capacity];
+        kinds = new int[capacity];
+        lastSeqs = new long[capacity];
+        outboxIds = new long[capacity];
+    }
+
+    //Numbers and queues a message, false if too many are unacknowledged
+    synchronized boolean send(byte[] body)
+    {
+        if (size == unacked.length)
+            return false;
+        queue(Frames.KIND_SEQ_CHAT, seqChat(nextSeq, body), nextSeq++, 0);
+        resend();
+        return true;
+    }
+
+    //Sends outbox entries for address after those already sent, as many as fit in the ring
+    //Does nothing until a session's handshake, entries stay in the outbox until acknowledged
+    //Each entry's sequence number is its id, so nothing may have gone out through send() first
+    synchronized void flush(Outbox outbox, String address) throws IOException
+    {
+        resend();
+        //More is read from the outbox only once the writer has all of the ring
+        while (writer != null && !stalled.get() && size < unacked.length)
+        {
+            List<Outbox.Entry> entries = outbox.after(address, outboxQueued, batches ? BATCH_BYTES : 0);
+            if (entries.isEmpty())
+                return;
+            long firstId = entries.get(0).id;
+            long lastId = entries.get(entries.size() - 1).id;
+            //Ids of pending entries run on by one, as sequence numbers do
+            if (batches)
+                queue(Frames.KIND_SEQ_BATCH, batch(firstId, entries), lastId, lastId);
+            else
+                queue(Frames.KIND_SEQ_CHAT, seqChat(firstId, entries.get(0).body), lastId, lastId);
+            nextSeq = lastId + 1;
+            outboxQueued = lastId;
+            resend();
+        }
+    }
+
+    //Hands the writer what it refused before, call once it has written something
+    synchronized void retry()
+    {
+        resend();
+    }
+
+    //True if the writer refused a frame since the last call, which then should retry()
+    boolean clearStalled()
+    {
+        return stalled.compareAndSet(true, false);
+    }
+
+    //Last outbox entry the peer has acknowledged, or that went to a peer that never does
+    synchronized long outboxAcknowledged()
+    {
+        return outboxAcked;
+    }
+
+    private void queue(int kind, byte[] frame, long lastSeq, long outboxId)
+    {
+        int tail = (head + size++) % unacked.length;
+        unacked[tail] = frame;
+        queuedNanos[tail] = System.nanoTime();
+        kinds[tail] = kind;
+        lastSeqs[tail] = lastSeq;
+        outboxIds[tail] = outboxId;
+    }
+
+    private static byte[] seqChat(long seq, byte[] body)
+    {
+        byte[] frame = new byte[SEQ_LEN + body.length];
+        ChatLogStore.putLong(frame, 0, seq);
+        System.arraycopy(body, 0, frame, SEQ_LEN, body.length);
+        return frame;
+    }
+
+    //First sequence number, then each message with its length
+    private static byte[] batch(long firstSeq, List<Outbox.Entry> entries)
+    {
+        int len = SEQ_LEN;
+        for (Outbox.Entry entry : entries)
+            len += BATCH_ENTRY_LEN + entry.body.length;
+        byte[] frame = new byte[len];
+        ChatLogStore.putLong(frame, 0, firstSeq);
+        int pos = SEQ_LEN;
+        for (Outbox.Entry entry : entries)
+        {
+            ChatLogStore.putInt(frame, pos, entry.body.length);
+            System.arraycopy(entry.body, 0, frame, pos + BATCH_ENTRY_LEN, entry.body.length);
+            pos += BATCH_ENTRY_LEN + entry.body.length;
+        }
+        return frame;
+    }
+
+    //Offset of the batch message after the one at pos, or -1 if the frame is malformed there
+    static int nextInBatch(byte[] frame, int length, int pos)
+    {
+        if (pos + BATCH_ENTRY_LEN > length)
+            return -1;
+        int len = ChatLogStore.getInt(frame, pos);
+        return len < 0 || len > length - pos - BATCH_ENTRY_LEN ? -1 : pos + BATCH_ENTRY_LEN + len;
+    }
+
+    long getInstance()
+    {
+        return instance;
+    }
+
+    //What this side's hello reports: how far it has received from which peer instance
+    synchronized long getPeerInstance()
+    {
+        return peerInstance;
+    }
+
+    //The hello acknowledges this too
+    synchronized long helloReceived()
+    {
+        ackSent = received;
+        return received;
+    }
+
+    //Peer's hello: trims what it already holds and sends the rest on writer
+    //Returns how many of those had been sent on an earlier session
+    synchronized int onHello(OutboundWriter writer, boolean resumes, boolean batches, long theirInstance,
+                             long knownInstance, long theirReceived)
+    {
+        if (theirInstance != peerInstance)
+        {
+            peerInstance = theirInstance;
+            received = 0;
+            ackSent = 0;
+        }
+        //A peer that does not know this instance has received nothing from it
+        if (knownInstance == instance)
+        {
+            acknowledge(theirReceived);
+            //Outbox entries it has from before a restart, numbered the same then, are not sent again
+            if (theirReceived > outboxQueued)
+            {
+                outboxQueued = theirReceived;
+                outboxAcked = theirReceived;
+                nextSeq = Math.max(nextSeq, theirReceived + 1);
+            }
+        }
+
+        //A peer without resume never acks, so it gets plain chat frames and nothing is kept
+        retain = resumes;
+        this.batches = resumes && batches;
+        this.writer = writer;
+        sent = 0;
+        return resend();
+    }
+
+    //Offers ring frames the current writer does not have yet, in order, until it refuses one
+    //Returns how many of those had been sent on an earlier session
+    private int resend()
+    {
+        stalled.set(false);
+        int replayed = 0;
+        for (int i = 0; writer != null && i < size; i++)
+        {
+            int slot = (head + i) % unacked.length;
+            long seq = lastSeqs[slot];
+            if (seq <= sent)
+                continue;
+            if (!offer(kinds[slot], unacked[slot], seq))
+            {
+                stalled.set(true);
+                break;
+            }
+            if (seq <= offered)
+                replayed++;
+            else
+                offered = seq;
+        }
+        //Nothing will be acknowledged, handing a message to the writer is as far as it goes
+        if (!retain)
+            trim(sent, false);
+        return replayed;
+    }
+
+    //Offers one ring frame, split into single messages if the peer cannot take it whole
+    //A split frame resumes after the messages already offered, false if the writer is full
+    private boolean offer(int kind, byte[] frame, long lastSeq)
+    {
+        if ((kind == Frames.KIND_SEQ_BATCH && batches) || (kind == Frames.KIND_SEQ_CHAT && retain))
+        {
+            if (!writer.tryOffer(kind, frame))
+                return false;
+            sent = lastSeq;
+            return true;
+        }
+        if (kind == Frames.KIND_SEQ_CHAT)
+        {
+            if (!writer.tryOffer(Frames.KIND_CHAT, Arrays.copyOfRange(frame, SEQ_LEN, frame.length)))
+                return false;
+            sent = lastSeq;
+            return true;
+        }
+        long seq = ChatLogStore.getLong(frame, 0);
+        for (int pos = SEQ_LEN; pos < frame.length; seq++)
+        {
+            int next = nextInBatch(frame, frame.length, pos);
+            if (seq > sent)
+            {
+                byte[] body = Arrays.copyOfRange(frame, pos + BATCH_ENTRY_LEN, next);
+                if (!(retain ? writer.tryOffer(Frames.KIND_SEQ_CHAT, seqChat(seq, body)) : writer.tryOffer(Frames.KIND_CHAT, body)))
+                    return false;
+                sent = seq;
+            }
+            pos = next;
+        }
+        return true;
+    }
+
+    synchronized void detach(OutboundWriter writer)
+    {
+        if (this.writer == writer)
+            this.writer = null;
+    }
+
+    //Received frame's sequence number, false if it was delivered before
+    synchronized boolean accept(long seq)
+    {
+        if (seq <= received)
+            return false;
+        received = seq;
+        return true;
+    }
+
+    //Sequence number to acknowledge now, or 0 if the peer already knows
+    synchronized long ackDue()
+    {
+        if (received == ackSent)
+            return 0;
+        ackSent = received;
+        return received;
+    }
+
+    //Drops every message up to seq, which the peer has received
+    synchronized void acknowledge(long seq)
+    {
+        trim(seq, true);
+    }
+
+    private void trim(long seq, boolean acked)
+    {
+        long now = System.nanoTime();
+        while (size > 0 && lastSeqs[head] <= seq)
+        {
+            if (acked)
+                ackLatency.record(now - queuedNanos[head]);
+            outboxAcked = Math.max(outboxAcked, outboxIds[head]);
+            unacked[head] = null;
+            head = (head + 1) % unacked.length;
+            size--;
+        }
+    }
+
+    //True the first time a frame is written, so replays are not reported again
+    synchronized boolean markWritten(long seq)
+    {
+        if (seq <= reported)
+            return false;
+        reported = seq;
+        return true;
+    }
+
+    synchronized int unacknowledged()
+    {
+        return size;
+    }
+}
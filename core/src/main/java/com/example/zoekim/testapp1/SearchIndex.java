@@ -0,0 +1,541 @@
+package com.example.zoekim.testapp1;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/*
+Class: SearchIndex
+In-memory inverted index over chat lines from every peer.
+Each line is a document numbered in arrival order, and each term keeps a
+posting list of (document delta, term count) varints. Lists therefore stay
+sorted, appending is cheap, and a list costs about two bytes per posting.
+Attached to a ChatLogStore, the index is filled by replaying the logs and
+then updated on every append. save() writes it to a file and load() reads
+it back with how many lines of each peer's log it covers, so a later
+launch replays only the lines added since. Queries are ANDed terms, where
+a term ending in '*' matches as a prefix, every term it expands to
+counting. Hits are ranked by tf-idf, newer first on ties.
+ */
+public class SearchIndex implements ChatLogStore.AppendListener
+{
+    public static final class Hit
+    {
+        public final String peer;
+        //Line number in the peer's ChatLogStore log
+        public final int offset;
+        public final float score;
+
+        Hit(String peer, int offset, float score)
+        {
+            this.peer = peer;
+            this.offset = offset;
+            this.score = score;
+        }
+    }
+
+    static final int MAX_TERM_LEN = 32;
+    static final int MAX_COUNT = 255;
+    private static final int FILE_VERSION = 1;
+
+    //1 + ln(count), looked up so decoding a long list makes no log calls
+    private static final float[] TF_WEIGHT = new float[MAX_COUNT + 1];
+
+    static
+    {
+        for (int i = 1; i <= MAX_COUNT; i++)
+            TF_WEIGHT[i] = (float) (1 + Math.log(i));
+    }
+
+    private final List<String> peers = new ArrayList<>();
+    private final HashMap<String, Integer> peerIds = new HashMap<>();
+    //Lines of each peer's log indexed, by peer id
+    private final List<Integer> peerLines = new ArrayList<>();
+    //Changed since the last save or load
+    private boolean dirty;
+    private int[] docPeer = new int[1024];
+    private int[] docOffset = new int[1024];
+    private int docCount;
+
+    //Same postings, hashed for updates and sorted for prefix queries
+    private final HashMap<String, Postings> postings = new HashMap<>();
+    private final TreeMap<String, Postings> sortedTerms = new TreeMap<>();
+
+    private final HashMap<String, int[]> tokenCounts = new HashMap<>();
+    private final StringBuilder token = new StringBuilder();
+
+    //Senders are searchable along with what they wrote
+    @Override
+    public void onAppended(String peer, int offset, ChatLine line)
+    {
+        add(peer, offset, line.sender.isEmpty() ? line.body : line.sender + ' ' + line.body);
+    }
+
+    //Hits of from's lines now point into to's log
+    @Override
+    public synchronized void onMoved(String from, String to)
+    {
+        //The store only moves into an empty log, so to has no documents yet
+        Integer peerId = peerIds.get(from);
+        if (peerId == null || peerIds.containsKey(to))
+            return;
+        peerIds.remove(from);
+        peers.set(peerId, to);
+        peerIds.put(to, peerId);
+        dirty = true;
+    }
+
+    public synchronized void add(String peer, int offset, String line)
+    {
+        Integer peerId = peerIds.get(peer);
+        if (peerId == null)
+        {
+            peerId = peers.size();
+            peers.add(peer);
+            peerIds.put(peer, peerId);
+            peerLines.add(0);
+        }
+        peerLines.set(peerId, Math.max(peerLines.get(peerId), offset + 1));
+        dirty = true;
+        if (docCount == docPeer.length)
+        {
+            docPeer = Arrays.copyOf(docPeer, docCount * 2);
+            docOffset = Arrays.copyOf(docOffset, docCount * 2);
+        }
+        int doc = docCount++;
+        docPeer[doc] = peerId;
+        docOffset[doc] = offset;
+
+        tokenCounts.clear();
+        int pos = 0;
+        while ((pos = nextToken(line, pos, token)) >= 0)
+        {
+            String term = token.toString();
+            int[] count = tokenCounts.get(term);
+            if (count == null)
+                tokenCounts.put(term, new int[] {1});
+            else
+                count[0]++;
+        }
+        for (Map.Entry<String, int[]> entry : tokenCounts.entrySet())
+        {
+            Postings p = postings.get(entry.getKey());
+            if (p == null)
+            {
+                p = new Postings();
+                postings.put(entry.getKey(), p);
+                sortedTerms.put(entry.getKey(), p);
+            }
+            p.add(doc, Math.min(entry.getValue()[0], MAX_COUNT));
+        }
+    }
+
+    //Best limit hits for query, see the class comment for the syntax
+    public synchronized List<Hit> search(String query, int limit)
+    {
+        List<Matches> terms = new ArrayList<>();
+        for (String part : query.trim().split("\\s+"))
+        {
+            boolean prefix = part.endsWith("*");
+            int pos = 0;
+            List<String> words = new ArrayList<>();
+            while ((pos = nextToken(part, pos, token)) >= 0)
+                words.add(token.toString());
+            for (int i = 0; i < words.size(); i++)
+                terms.add(prefix && i == words.size() - 1 ? matchPrefix(words.get(i)) : matchTerm(words.get(i)));
+        }
+        if (terms.isEmpty())
+            return new ArrayList<>();
+
+        //Intersect from the shortest list so the work is bounded by the rarest term
+        Collections.sort(terms, new Comparator<Matches>()
+        {
+            @Override
+            public int compare(Matches a, Matches b)
+            {
+                return a.size - b.size;
+            }
+        });
+        Matches result = terms.get(0);
+        for (int i = 1; i < terms.size() && result.size > 0; i++)
+            result = intersect(result, terms.get(i));
+        return top(result, limit);
+    }
+
+    //Lines of each peer's log the index covers, the replay goes on from there
+    public synchronized Map<String, Integer> indexedLines()
+    {
+        Map<String, Integer> lines = new HashMap<>();
+        for (int i = 0; i < peers.size(); i++)
+            lines.put(peers.get(i), peerLines.get(i));
+        return lines;
+    }
+
+    //Writes the index to file if it changed since it was last saved or loaded
+    public synchronized void save(File file) throws IOException
+    {
+        if (!dirty)
+            return;
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        try
+        {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(peers.size());
+            for (int i = 0; i < peers.size(); i++)
+            {
+                out.writeUTF(peers.get(i));
+                out.writeInt(peerLines.get(i));
+            }
+            out.writeInt(docCount);
+            for (int doc = 0; doc < docCount; doc++)
+            {
+                out.writeInt(docPeer[doc]);
+                out.writeInt(docOffset[doc]);
+            }
+            out.writeInt(postings.size());
+            for (Map.Entry<String, Postings> entry : postings.entrySet())
+            {
+                Postings p = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(p.df);
+                out.writeInt(p.lastDoc);
+                out.writeInt(p.length);
+                out.write(p.data, 0, p.length);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        //Replaced whole, a save cut short leaves the last one as it was
+        if (!tmp.renameTo(file))
+            throw new IOException("Cannot move " + tmp + " to " + file);
+        dirty = false;
+    }
+
+    //Reads what save() wrote into this empty index, false if there was nothing usable and it stays empty
+    public synchronized boolean load(File file)
+    {
+        if (!file.exists())
+            return false;
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            if (in.readInt() != FILE_VERSION)
+                return false;
+            int peerCount = in.readInt();
+            for (int i = 0; i < peerCount; i++)
+            {
+                String peer = in.readUTF();
+                peerIds.put(peer, peers.size());
+                peers.add(peer);
+                peerLines.add(in.readInt());
+            }
+            docCount = in.readInt();
+            docPeer = new int[Math.max(1024, docCount)];
+            docOffset = new int[docPeer.length];
+            for (int doc = 0; doc < docCount; doc++)
+            {
+                docPeer[doc] = in.readInt();
+                docOffset[doc] = in.readInt();
+            }
+            int termCount = in.readInt();
+            for (int i = 0; i < termCount; i++)
+            {
+                String term = in.readUTF();
+                Postings p = new Postings();
+                p.df = in.readInt();
+                p.lastDoc = in.readInt();
+                p.length = in.readInt();
+                p.data = new byte[p.length + 4];
+                in.readFully(p.data, 0, p.length);
+                postings.put(term, p);
+                sortedTerms.put(term, p);
+            }
+            return true;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            //Unreadable, the replay rebuilds it from the logs
+            e.printStackTrace();
+            clear();
+            return false;
+        }
+        finally
+        {
+            try
+            {
+                if (in != null)
+                    in.close();
+            }
+            catch (IOException e) {}
+        }
+    }
+
+    private void clear()
+    {
+        peers.clear();
+        peerIds.clear();
+        peerLines.clear();
+        docPeer = new int[1024];
+        docOffset = new int[1024];
+        docCount = 0;
+        postings.clear();
+        sortedTerms.clear();
+    }
+
+    public synchronized int documents()
+    {
+        return docCount;
+    }
+
+    public synchronized int terms()
+    {
+        return postings.size();
+    }
+
+    //Rough heap footprint: posting bytes, document table and per-term map overhead
+    public synchronized long estimatedBytes()
+    {
+        long bytes = 8L * docPeer.length;
+        for (Map.Entry<String, Postings> entry : postings.entrySet())
+            bytes += entry.getValue().data.length + 2L * entry.getKey().length() + 160;
+        return bytes;
+    }
+
+    //Lower-cased run of letters and digits starting at or after pos, returns the index after it or -1
+    static int nextToken(String text, int pos, StringBuilder out)
+    {
+        int n = text.length();
+        while (pos < n && !Character.isLetterOrDigit(text.charAt(pos)))
+            pos++;
+        if (pos == n)
+            return -1;
+        out.setLength(0);
+        while (pos < n && Character.isLetterOrDigit(text.charAt(pos)))
+        {
+            if (out.length() < MAX_TERM_LEN)
+                out.append(Character.toLowerCase(text.charAt(pos)));
+            pos++;
+        }
+        return pos;
+    }
+
+    private float idf(Postings p)
+    {
+        return (float) Math.log(1 + docCount / (double) p.df);
+    }
+
+    private Matches matchTerm(String term)
+    {
+        Postings p = postings.get(term);
+        return p == null ? new Matches(0) : p.decode(idf(p));
+    }
+
+    //Every term starting with prefix, summed into one score per document
+    private Matches matchPrefix(String prefix)
+    {
+        Collection<Postings> expanded = sortedTerms.subMap(prefix, prefix + Character.MAX_VALUE).values();
+        if (expanded.isEmpty())
+            return new Matches(0);
+        if (expanded.size() == 1)
+        {
+            Postings p = expanded.iterator().next();
+            return p.decode(idf(p));
+        }
+        //However many terms a short prefix expands to, each posting is touched once
+        float[] scores = new float[docCount];
+        int size = 0;
+        for (Postings p : expanded)
+            size += p.addTo(scores, idf(p));
+        Matches m = new Matches(Math.min(size, docCount));
+        for (int doc = 0; doc < docCount; doc++)
+        {
+            if (scores[doc] > 0)
+                m.add(doc, scores[doc]);
+        }
+        return m;
+    }
+
+    private static Matches intersect(Matches a, Matches b)
+    {
+        Matches out = new Matches(Math.min(a.size, b.size));
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size)
+        {
+            if (a.docs[i] < b.docs[j])
+                i++;
+            else if (b.docs[j] < a.docs[i])
+                j++;
+            else
+            {
+                out.add(a.docs[i], a.scores[i] + b.scores[j]);
+                i++;
+                j++;
+            }
+        }
+        return out;
+    }
+
+    private List<Hit> top(final Matches m, int limit)
+    {
+        //Min-heap of the best limit indexes into m
+        Comparator<Integer> order = new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer x, Integer y)
+            {
+                int c = Float.compare(m.scores[x], m.scores[y]);
+                return c != 0 ? c : m.docs[x] - m.docs[y];
+            }
+        };
+        PriorityQueue<Integer> best = new PriorityQueue<>(limit + 1, order);
+        //Newest first, so an equal score never displaces a kept hit and the heap is rarely touched
+        for (int i = m.size - 1; i >= 0; i--)
+        {
+            if (best.size() == limit && m.scores[i] <= m.scores[best.peek()])
+                continue;
+            best.add(i);
+            if (best.size() > limit)
+                best.poll();
+        }
+
+        Hit[] hits = new Hit[best.size()];
+        for (int k = hits.length - 1; k >= 0; k--)
+        {
+            int i = best.poll();
+            int doc = m.docs[i];
+            hits[k] = new Hit(peers.get(docPeer[doc]), docOffset[doc], m.scores[i]);
+        }
+        return Arrays.asList(hits);
+    }
+
+    //Documents sorted by number, with their score for one term
+    private static class Matches
+    {
+        int[] docs;
+        float[] scores;
+        int size;
+
+        Matches(int capacity)
+        {
+            docs = new int[capacity];
+            scores = new float[capacity];
+        }
+
+        void add(int doc, float score)
+        {
+            docs[size] = doc;
+            scores[size++] = score;
+        }
+    }
+
+    //Varint-encoded (doc delta, count) pairs of one term
+    private static class Postings
+    {
+        byte[] data = new byte[4];
+        int length;
+        int df;
+        int lastDoc = -1;
+
+        void add(int doc, int count)
+        {
+            if (length + 10 > data.length)
+                data = Arrays.copyOf(data, data.length + (data.length >> 1) + 10);
+            length = putVarint(data, length, doc - lastDoc);
+            length = putVarint(data, length, count);
+            lastDoc = doc;
+            df++;
+        }
+
+        Matches decode(float idf)
+        {
+            Matches m = new Matches(df);
+            int doc = -1;
+            int pos = 0;
+            while (pos < length)
+            {
+                int delta = 0;
+                for (int shift = 0; ; shift += 7)
+                {
+                    byte b = data[pos++];
+                    delta |= (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                int count = 0;
+                for (int shift = 0; ; shift += 7)
+                {
+                    byte b = data[pos++];
+                    count |= (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                doc += delta;
+                m.add(doc, TF_WEIGHT[count] * idf);
+            }
+            return m;
+        }
+
+        //Adds this term's score to each of its documents in scores, returns how many were not scored yet
+        int addTo(float[] scores, float idf)
+        {
+            int added = 0;
+            int doc = -1;
+            int pos = 0;
+            while (pos < length)
+            {
+                int delta = 0;
+                for (int shift = 0; ; shift += 7)
+                {
+                    byte b = data[pos++];
+                    delta |= (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                int count = 0;
+                for (int shift = 0; ; shift += 7)
+                {
+                    byte b = data[pos++];
+                    count |= (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                doc += delta;
+                if (scores[doc] == 0)
+                    added++;
+                scores[doc] += TF_WEIGHT[count] * idf;
+            }
+            return added;
+        }
+
+        private static int putVarint(byte[] b, int pos, int v)
+        {
+            while ((v & ~0x7F) != 0)
+            {
+                b[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            b[pos++] = (byte) v;
+            return pos;
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package com.example.zoekim.testapp1;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+Class: SecureChannel
+Encrypts and authenticates one link, for transports that give neither
+(insecure RFCOMM, TCP).
+handshake() swaps ephemeral P-256 public keys and derives, with
+HKDF-SHA256 over the ECDH secret, a key set per direction. After that
+every write to getOutputStream() goes out as sealed records:
+    length (4) | AES-128-CTR ciphertext | HMAC-SHA256 tag truncated to 16
+The tag covers an implicit record counter, the length and the ciphertext
+(encrypt-then-MAC), so a record that is altered, replayed, reordered or
+dropped fails the next check and the link is dropped. The link is an
+ordered stream, so each direction's CTR keystream simply runs on from one
+record to the next and the Cipher is initialised once per session.
+Nothing in the record path allocates: the Cipher, both digests and the
+record buffers are made at handshake and reused.
+
+Keys are not authenticated, so an active man in the middle can run a
+handshake with each side. getVerificationCode() is the same six digits on
+both ends only if they share keys, for users who want to compare them.
+
+The output stream is used by the writer thread and the input stream by
+the reader thread only.
+ */
+public class SecureChannel
+{
+    static final int MAGIC = 0xEC;
+    static final int VERSION = 1;
+    //Plaintext per record, larger writes are split
+    static final int MAX_RECORD = 16 * 1024;
+    static final int RECORD_HEADER = 4;
+    static final int TAG_LEN = 16;
+    //Magic, version and key length in front of the encoded public key
+    private static final int HELLO_HEADER = 4;
+    private static final int MAX_KEY_LEN = 1024;
+    private static final int AES_KEY_LEN = 16;
+    private static final int IV_LEN = 16;
+    private static final int MAC_KEY_LEN = 32;
+    private static final int DIRECTION_KEYS = AES_KEY_LEN + IV_LEN + MAC_KEY_LEN;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] KEYS_INFO = "zoekim link keys v1".getBytes(UTF_8);
+    private static final byte[] VERIFY_INFO = "zoekim verification code v1".getBytes(UTF_8);
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final SealingOutputStream sealing = new SealingOutputStream();
+    private final OpeningInputStream opening = new OpeningInputStream();
+    private volatile int verificationCode = -1;
+
+    public SecureChannel(InputStream in, OutputStream out)
+    {
+        this.in = in;
+        this.out = out;
+    }
+
+    //Whether this platform has the EC and AES algorithms the handshake needs
+    public static boolean isSupported()
+    {
+        try
+        {
+            KeyPairGenerator.getInstance("EC");
+            KeyAgreement.getInstance("ECDH");
+            Cipher.getInstance("AES/CTR/NoPadding");
+            MessageDigest.getInstance("SHA-256");
+            Mac.getInstance("HmacSHA256");
+            return true;
+        }
+        catch (GeneralSecurityException e)
+        {
+            return false;
+        }
+    }
+
+    //Runs the key exchange over the raw streams, blocks until the peer's key arrives
+    public void handshake() throws IOException
+    {
+        try
+        {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            KeyPair pair = generator.generateKeyPair();
+            byte[] ours = pair.getPublic().getEncoded();
+
+            //Both sides send first, neither waits for the other
+            byte[] hello = new byte[HELLO_HEADER + ours.length];
+            hello[0] = (byte) MAGIC;
+            hello[1] = VERSION;
+            hello[2] = (byte) (ours.length >>> 8);
+            hello[3] = (byte) ours.length;
+            System.arraycopy(ours, 0, hello, HELLO_HEADER, ours.length);
+            out.write(hello);
+            out.flush();
+
+            byte[] header = new byte[HELLO_HEADER];
+            readFully(in, header, 0, HELLO_HEADER);
+            if ((header[0] & 0xFF) != MAGIC)
+                throw new IOException("Peer does not encrypt");
+            if (header[1] != VERSION)
+                throw new IOException("Unknown key exchange version " + header[1]);
+            int length = (header[2] & 0xFF) << 8 | header[3] & 0xFF;
+            if (length == 0 || length > MAX_KEY_LEN)
+                throw new IOException("Bad public key length " + length);
+            byte[] theirs = new byte[length];
+            readFully(in, theirs, 0, length);
+
+            int order = compare(ours, theirs);
+            if (order == 0)
+                throw new IOException("Peer echoed our key");
+            PublicKey peerKey = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(theirs));
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(pair.getPrivate());
+            agreement.doPhase(peerKey, true);
+            byte[] secret = agreement.generateSecret();
+
+            //Both keys, in the same order on both sides, salt the derivation
+            byte[] low = order < 0 ? ours : theirs;
+            byte[] high = order < 0 ? theirs : ours;
+            MessageDigest transcript = MessageDigest.getInstance("SHA-256");
+            transcript.update(low);
+            transcript.update(high);
+            byte[] prk = hmac(transcript.digest(), secret);
+            Arrays.fill(secret, (byte) 0);
+
+            byte[] keys = expand(prk, KEYS_INFO, 2 * DIRECTION_KEYS);
+            byte[] code = expand(prk, VERIFY_INFO, 4);
+            Arrays.fill(prk, (byte) 0);
+            //The side with the lower key sends with the first set
+            int send = order < 0 ? 0 : DIRECTION_KEYS;
+            int receive = DIRECTION_KEYS - send;
+            sealing.init(keys, send);
+            opening.init(keys, receive);
+            Arrays.fill(keys, (byte) 0);
+            verificationCode = (int) ((ChatLogStore.getInt(code, 0) & 0xFFFFFFFFL) % 1000000);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("Key exchange failed", e);
+        }
+    }
+
+    //Plaintext from the peer, only after handshake()
+    public InputStream getInputStream()
+    {
+        return opening;
+    }
+
+    //Sealed toward the peer, only after handshake()
+    public OutputStream getOutputStream()
+    {
+        return sealing;
+    }
+
+    //Six digits both users see if nobody sits between them, -1 before handshake()
+    public int getVerificationCode()
+    {
+        return verificationCode;
+    }
+
+    //HMAC-SHA256 over the record counter, length and ciphertext with the digests kept across records
+    private static final class RecordMac
+    {
+        private static final int BLOCK = 64;
+        private final MessageDigest inner;
+        private final MessageDigest outer;
+        private final byte[] innerPad = new byte[BLOCK];
+        private final byte[] outerPad = new byte[BLOCK];
+        private final byte[] prefix = new byte[8 + RECORD_HEADER];
+        private final byte[] digest = new byte[32];
+        private long counter;
+
+        RecordMac(byte[] keys, int offset) throws GeneralSecurityException
+        {
+            inner = MessageDigest.getInstance("SHA-256");
+            outer = MessageDigest.getInstance("SHA-256");
+            //The key is shorter than a block, so it is padded rather than hashed
+            for (int i = 0; i < BLOCK; i++)
+            {
+                byte k = i < MAC_KEY_LEN ? keys[offset + i] : 0;
+                innerPad[i] = (byte) (k ^ 0x36);
+                outerPad[i] = (byte) (k ^ 0x5c);
+            }
+        }
+
+        //Tag of the next record, left in the first TAG_LEN bytes of digest
+        byte[] tag(byte[] ciphertext, int offset, int length) throws IOException
+        {
+            ChatLogStore.putLong(prefix, 0, counter++);
+            ChatLogStore.putInt(prefix, 8, length);
+            try
+            {
+                inner.reset();
+                inner.update(innerPad);
+                inner.update(prefix);
+                inner.update(ciphertext, offset, length);
+                inner.digest(digest, 0, digest.length);
+                outer.reset();
+                outer.update(outerPad);
+                outer.update(digest);
+                outer.digest(digest, 0, digest.length);
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IOException("Record MAC failed", e);
+            }
+            return digest;
+        }
+    }
+
+    private static Cipher cipher(int mode, byte[] keys, int offset) throws GeneralSecurityException
+    {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(mode, new SecretKeySpec(keys, offset, AES_KEY_LEN, "AES"),
+                new IvParameterSpec(keys, offset + AES_KEY_LEN, IV_LEN));
+        return cipher;
+    }
+
+    private final class SealingOutputStream extends OutputStream
+    {
+        private final byte[] record = new byte[RECORD_HEADER + MAX_RECORD + TAG_LEN];
+        private final byte[] one = new byte[1];
+        private Cipher cipher;
+        private RecordMac mac;
+
+        void init(byte[] keys, int offset) throws GeneralSecurityException
+        {
+            cipher = cipher(Cipher.ENCRYPT_MODE, keys, offset);
+            mac = new RecordMac(keys, offset + AES_KEY_LEN + IV_LEN);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            one[0] = (byte) b;
+            write(one, 0, 1);
+        }
+
+        //One record per MAX_RECORD bytes, each in a single write to the link
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (cipher == null)
+                throw new IOException("Write before key exchange");
+            while (len > 0)
+            {
+                int n = Math.min(len, MAX_RECORD);
+                ChatLogStore.putInt(record, 0, n);
+                try
+                {
+                    cipher.update(b, off, n, record, RECORD_HEADER);
+                }
+                catch (ShortBufferException e)
+                {
+                    throw new IOException("Record buffer too small", e);
+                }
+                System.arraycopy(mac.tag(record, RECORD_HEADER, n), 0, record, RECORD_HEADER + n, TAG_LEN);
+                out.write(record, 0, RECORD_HEADER + n + TAG_LEN);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+
+    private final class OpeningInputStream extends InputStream
+    {
+        private final byte[] record = new byte[MAX_RECORD + TAG_LEN];
+        private final byte[] plain = new byte[MAX_RECORD];
+        private final byte[] header = new byte[RECORD_HEADER];
+        private final byte[] one = new byte[1];
+        private int position;
+        private int limit;
+        private Cipher cipher;
+        private RecordMac mac;
+
+        void init(byte[] keys, int offset) throws GeneralSecurityException
+        {
+            cipher = cipher(Cipher.DECRYPT_MODE, keys, offset);
+            mac = new RecordMac(keys, offset + AES_KEY_LEN + IV_LEN);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return 0;
+            if (position == limit && !open())
+                return -1;
+            int n = Math.min(len, limit - position);
+            System.arraycopy(plain, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available()
+        {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+
+        //Reads, checks and decrypts the next record, false at a clean end of stream
+        private boolean open() throws IOException
+        {
+            if (cipher == null)
+                throw new IOException("Read before key exchange");
+            int first = in.read(header, 0, RECORD_HEADER);
+            if (first < 0)
+                return false;
+            readFully(in, header, first, RECORD_HEADER - first);
+            int length = ChatLogStore.getInt(header, 0);
+            if (length <= 0 || length > MAX_RECORD)
+                throw new IOException("Bad record length " + length);
+            readFully(in, record, 0, length + TAG_LEN);
+            //Checked before anything is decrypted
+            byte[] tag = mac.tag(record, 0, length);
+            int diff = 0;
+            for (int i = 0; i < TAG_LEN; i++)
+                diff |= tag[i] ^ record[length + i];
+            if (diff != 0)
+                throw new IOException("Record failed authentication");
+            try
+            {
+                cipher.update(record, 0, length, plain, 0);
+            }
+            catch (ShortBufferException e)
+            {
+                throw new IOException("Record buffer too small", e);
+            }
+            position = 0;
+            limit = length;
+            return true;
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            int n = in.read(buffer, offset, length);
+            if (n < 0)
+                throw new EOFException();
+            offset += n;
+            length -= n;
+        }
+    }
+
+    //Unsigned lexicographic order, shorter first on a common prefix
+    private static int compare(byte[] a, byte[] b)
+    {
+        for (int i = 0; i < Math.min(a.length, b.length); i++)
+        {
+            int d = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (d != 0)
+                return d;
+        }
+        return a.length - b.length;
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException
+    {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    //HKDF-Expand (RFC 5869) of length bytes from prk
+    private static byte[] expand(byte[] prk, byte[] info, int length) throws GeneralSecurityException
+    {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        byte[] result = new byte[length];
+        byte[] block = new byte[0];
+        int filled = 0;
+        for (int i = 1; filled < length; i++)
+        {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) i);
+            block = mac.doFinal();
+            int n = Math.min(block.length, length - filled);
+            System.arraycopy(block, 0, result, filled, n);
+            filled += n;
+        }
+        return result;
+    }
+}
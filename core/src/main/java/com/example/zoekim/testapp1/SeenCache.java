@@ -0,0 +1,91 @@
+package com.example.zoekim.testapp1;
+
+import java.util.Arrays;
+
+/*
+Class: SeenCache
+Remembers recently seen message ids in fixed memory.
+Two generations of open-addressed long sets: new ids go into the current
+one, and when it is full or its window has passed it becomes the previous
+generation and the old previous one is cleared. An id is therefore kept
+for at least one window (or capacity ids) and at most two. Lookups and
+inserts are O(1) and never allocate. Id 0 is reserved.
+ */
+public class SeenCache
+{
+    private final int capacity;
+    private final long windowMillis;
+    private long[] current;
+    private long[] previous;
+    private int currentSize;
+    private long currentStart;
+
+    public SeenCache(int capacity, long windowMillis)
+    {
+        this.capacity = capacity;
+        this.windowMillis = windowMillis;
+        //Load factor of at most one half keeps probe chains short
+        int slots = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) << 1;
+        current = new long[slots];
+        previous = new long[slots];
+    }
+
+    //Records id, returns false if it was already seen
+    public synchronized boolean markSeen(long id, long nowMillis)
+    {
+        if (nowMillis - currentStart >= windowMillis || currentSize >= capacity)
+            rotate(nowMillis);
+        if (contains(previous, id))
+            return false;
+        return insert(current, id);
+    }
+
+    public synchronized boolean contains(long id)
+    {
+        return contains(current, id) || contains(previous, id);
+    }
+
+    private void rotate(long nowMillis)
+    {
+        long[] t = previous;
+        previous = current;
+        current = t;
+        Arrays.fill(current, 0);
+        currentSize = 0;
+        currentStart = nowMillis;
+    }
+
+    private static int slot(long id, int mask)
+    {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static boolean contains(long[] table, long id)
+    {
+        int mask = table.length - 1;
+        for (int i = slot(id, mask); ; i = (i + 1) & mask)
+        {
+            if (table[i] == id)
+                return true;
+            if (table[i] == 0)
+                return false;
+        }
+    }
+
+    private boolean insert(long[] table, long id)
+    {
+        int mask = table.length - 1;
+        for (int i = slot(id, mask); ; i = (i + 1) & mask)
+        {
+            if (table[i] == id)
+                return false;
+            if (table[i] == 0)
+            {
+                table[i] = id;
+                currentSize++;
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.zoekim.testapp1;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Class: StartupTrace
+Timeline of one cold start, measured from the moment the activity was
+created. Sections time each step, on whatever thread runs it, and two
+milestones mark the first frame drawn and the app becoming usable. Each
+section and milestone is also recorded in a "startup." histogram of the
+Metrics, so the diagnostics screen shows them next to everything else,
+and report() gives the whole timeline on one line for the log, to be
+compared across versions. A Sink sees every section as it begins and
+ends, for platform tracing.
+ */
+public class StartupTrace
+{
+    static final String PREFIX = "startup.";
+    static final String FIRST_FRAME = "first.frame";
+    static final String INTERACTIVE = "interactive";
+
+    //Called on the thread that runs the section
+    public interface Sink
+    {
+        void beginSection(String name);
+
+        void endSection();
+    }
+
+    //One running step, end() it on the thread that began it
+    public final class Section
+    {
+        private final String name;
+        private final long begin = System.nanoTime();
+        private boolean ended;
+
+        private Section(String name)
+        {
+            this.name = name;
+        }
+
+        public void end()
+        {
+            if (ended)
+                return;
+            ended = true;
+            long took = System.nanoTime() - begin;
+            if (sink != null)
+                sink.endSection();
+            metrics.histogram(PREFIX + name).record(took);
+            add(name, begin - startNanos, took);
+        }
+    }
+
+    private final Metrics metrics;
+    private final long startNanos;
+    private final Sink sink;
+    //Name, offset from start and duration of every section, in the order they ended
+    private final List<String> names = new ArrayList<>();
+    private final List<long[]> times = new ArrayList<>();
+    private long firstFrame = -1;
+    private long interactive = -1;
+
+    //startNanos is System.nanoTime() when the activity was created, sink may be null
+    public StartupTrace(Metrics metrics, long startNanos, Sink sink)
+    {
+        this.metrics = metrics;
+        this.startNanos = startNanos;
+        this.sink = sink;
+    }
+
+    public Section begin(String name)
+    {
+        if (sink != null)
+            sink.beginSection(name);
+        return new Section(name);
+    }
+
+    //First frame is on screen, only the first call counts
+    public void firstFrame()
+    {
+        long now = System.nanoTime() - startNanos;
+        synchronized (this)
+        {
+            if (firstFrame >= 0)
+                return;
+            firstFrame = now;
+        }
+        metrics.histogram(PREFIX + FIRST_FRAME).record(now);
+    }
+
+    //Storage and connections are ready for the user, only the first call counts
+    public void interactive()
+    {
+        long now = System.nanoTime() - startNanos;
+        synchronized (this)
+        {
+            if (interactive >= 0)
+                return;
+            interactive = now;
+        }
+        metrics.histogram(PREFIX + INTERACTIVE).record(now);
+    }
+
+    //Nanoseconds from start to the first frame, -1 until it is drawn
+    public synchronized long getFirstFrame()
+    {
+        return firstFrame;
+    }
+
+    //Nanoseconds from start until interactive, -1 until then
+    public synchronized long getInteractive()
+    {
+        return interactive;
+    }
+
+    //"first.frame 180 ms, interactive 420 ms | storage +5 12 ms, ..." with sections at their start offset
+    public synchronized String report()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(FIRST_FRAME).append(' ').append(millis(firstFrame)).append(" ms, ")
+                .append(INTERACTIVE).append(' ').append(millis(interactive)).append(" ms");
+        String separator = " | ";
+        for (int i = 0; i < names.size(); i++)
+        {
+            long[] t = times.get(i);
+            sb.append(separator).append(names.get(i)).append(" +").append(millis(t[0]))
+                    .append(' ').append(millis(t[1])).append(" ms");
+            separator = ", ";
+        }
+        return sb.toString();
+    }
+
+    private synchronized void add(String name, long offset, long took)
+    {
+        names.add(name);
+        times.add(new long[] {offset, took});
+    }
+
+    private static long millis(long nanos)
+    {
+        return nanos < 0 ? -1 : nanos / 1000000;
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.zoekim.testapp1;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Class: StateMachine
+A small int state changed only by compare-and-set along a fixed table of
+allowed transitions. Whoever's transition succeeds is the one that
+reports it, so every transition is reported exactly once however many
+threads race for it. A transition missing from the table is a bug in the
+caller and throws.
+ */
+class StateMachine
+{
+    private final AtomicInteger state;
+    //allowed[from] has bit `to` set
+    private final int[] allowed;
+
+    //transitions holds {from, to} pairs, states are small non-negative ints
+    StateMachine(int initial, int[][] transitions)
+    {
+        int max = initial;
+        for (int[] t : transitions)
+            max = Math.max(max, Math.max(t[0], t[1]));
+        if (max >= 32)
+            throw new IllegalArgumentException("States must be below 32");
+        allowed = new int[max + 1];
+        for (int[] t : transitions)
+            allowed[t[0]] |= 1 << t[1];
+        state = new AtomicInteger(initial);
+    }
+
+    int get()
+    {
+        return state.get();
+    }
+
+    //Moves from one state to another, false if the state was not from
+    boolean transition(int from, int to)
+    {
+        check(from, to);
+        return state.compareAndSet(from, to);
+    }
+
+    //Moves to a state from whatever the current one is, false if already there
+    boolean moveTo(int to)
+    {
+        while (true)
+        {
+            int from = state.get();
+            if (from == to)
+                return false;
+            check(from, to);
+            if (state.compareAndSet(from, to))
+                return true;
+        }
+    }
+
+    boolean isAllowed(int from, int to)
+    {
+        return from < allowed.length && (allowed[from] & (1 << to)) != 0;
+    }
+
+    private void check(int from, int to)
+    {
+        if (!isAllowed(from, to))
+            throw new IllegalStateException("No transition from " + from + " to " + to);
+    }
+}
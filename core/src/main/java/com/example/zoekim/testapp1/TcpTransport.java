@@ -0,0 +1,122 @@
+package com.example.zoekim.testapp1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/*
+Class: TcpTransport
+Loopback TCP transport, addresses are "host:port".
+Lets the connection pipeline run against real sockets on any JVM.
+ */
+public class TcpTransport implements Transport
+{
+    private final int port;
+
+    //port 0 picks a free port, read it back from Server.getAddress()
+    public TcpTransport(int port)
+    {
+        this.port = port;
+    }
+
+    @Override
+    public Server listen() throws IOException
+    {
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        return new TcpServer(socket);
+    }
+
+    @Override
+    public Link open(String address)
+    {
+        int colon = address.lastIndexOf(':');
+        String host = address.substring(0, colon);
+        int remotePort = Integer.parseInt(address.substring(colon + 1));
+        return new TcpLink(new Socket(), new InetSocketAddress(host, remotePort));
+    }
+
+    private static class TcpServer implements Server
+    {
+        private final ServerSocket socket;
+
+        TcpServer(ServerSocket socket)
+        {
+            this.socket = socket;
+        }
+
+        @Override
+        public Link accept() throws IOException
+        {
+            Socket s = socket.accept();
+            return new TcpLink(s, null);
+        }
+
+        @Override
+        public String getAddress()
+        {
+            return socket.getInetAddress().getHostAddress() + ":" + socket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            socket.close();
+        }
+    }
+
+    private static class TcpLink implements Link
+    {
+        private final Socket socket;
+        private final InetSocketAddress target;
+
+        TcpLink(Socket socket, InetSocketAddress target)
+        {
+            this.socket = socket;
+            this.target = target;
+        }
+
+        @Override
+        public void connect() throws IOException
+        {
+            if (target != null)
+                socket.connect(target);
+            socket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException
+        {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress()
+        {
+            return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        @Override
+        public String getRemoteName()
+        {
+            return getRemoteAddress();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.zoekim.testapp1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+Interface: Transport
+Stream transport under ConnectionManager.
+Mirrors the BluetoothServerSocket/BluetoothSocket split: a Server accepts
+incoming links, and an outgoing link is created first and connected later
+so that closing it aborts a connect in progress.
+ */
+public interface Transport
+{
+    //Starts accepting incoming links
+    Server listen() throws IOException;
+
+    //Creates an unconnected link to the peer at address
+    Link open(String address) throws IOException;
+
+    interface Server extends Closeable
+    {
+        //Blocks until a peer connects, throws once the server is closed
+        Link accept() throws IOException;
+
+        //Address peers use to reach this server
+        String getAddress();
+    }
+
+    interface Link extends Closeable
+    {
+        //Blocks until connected, does nothing for accepted links
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        String getRemoteAddress();
+
+        String getRemoteName();
+    }
+}
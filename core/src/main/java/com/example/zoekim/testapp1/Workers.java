@@ -0,0 +1,129 @@
+package com.example.zoekim.testapp1;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Class: Workers
+Bounded pools of reusable threads that ConnectionManager runs its
+blocking work on, in place of a new thread per accept loop, dial and
+session. The I/O pool has one thread for the accept loop and two for
+each session the manager may hold, its reader and its writer, so they
+never wait for one another. Dials run on a separate scheduler of
+MAX_DIALS threads: a redial waiting out its backoff holds no thread, and
+however many peers are dialed at once only MAX_DIALS connect calls block
+while the rest wait their turn.
+Threads are started as work arrives and end after KEEP_ALIVE_SECONDS
+idle, or as soon as their task returns once the pools are shut down.
+While it runs a task a thread carries the task's name.
+ */
+class Workers
+{
+    static final int MAX_DIALS = 2;
+    static final long KEEP_ALIVE_SECONDS = 3;
+
+    private final ThreadPoolExecutor io;
+    private final ScheduledThreadPoolExecutor dials;
+
+    //sessions is the most sessions that run at once
+    Workers(String name, int sessions)
+    {
+        int ioThreads = 1 + 2 * sessions;
+        io = new ThreadPoolExecutor(ioThreads, ioThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory(name + "-io"));
+        io.allowCoreThreadTimeOut(true);
+        dials = new ScheduledThreadPoolExecutor(MAX_DIALS, factory(name + "-dial"));
+        dials.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        dials.allowCoreThreadTimeOut(true);
+        //A cancelled redial leaves the queue at once rather than when it falls due
+        dials.setRemoveOnCancelPolicy(true);
+    }
+
+    //Runs a session or accept loop
+    void execute(String name, Runnable task)
+    {
+        io.execute(named(name, task));
+    }
+
+    //Runs a dial after delayMillis, cancel the future to withdraw it or interrupt it
+    Future<?> schedule(String name, Runnable task, long delayMillis)
+    {
+        return dials.schedule(named(name, task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    //Tasks already given still run, threads end as they finish
+    void shutdown()
+    {
+        io.shutdown();
+        dials.shutdown();
+    }
+
+    //Threads currently alive in both pools
+    int threads()
+    {
+        return io.getPoolSize() + dials.getPoolSize();
+    }
+
+    //One thread running tasks in order, started as they arrive and ended once idle, never shut down
+    static ThreadPoolExecutor serial(String name)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    //Same, and runs tasks after a delay too
+    static ScheduledThreadPoolExecutor serialScheduler(String name)
+    {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, factory(name));
+        executor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static Runnable named(final String name, final Runnable task)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Thread thread = Thread.currentThread();
+                String idle = thread.getName();
+                thread.setName(name);
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException | Error e)
+                {
+                    //Handled as if the task had its own thread, on Android that ends the process
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+                finally
+                {
+                    thread.setName(idle);
+                }
+            }
+        };
+    }
+
+    private static ThreadFactory factory(final String name)
+    {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                return new Thread(r, name + "-" + count.incrementAndGet());
+            }
+        };
+    }
+}
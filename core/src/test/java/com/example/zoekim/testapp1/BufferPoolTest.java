@@ -0,0 +1,49 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    @Test
+    public void roundsUpToSizeClass() {
+        BufferPool pool = new BufferPool();
+        assertEquals(256, pool.acquire(1).length);
+        assertEquals(256, pool.acquire(256).length);
+        assertEquals(512, pool.acquire(257).length);
+        assertEquals(1 << 20, pool.acquire((1 << 19) + 1).length);
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        BufferPool pool = new BufferPool();
+        byte[] a = pool.acquire(1000);
+        pool.release(a);
+        assertSame(a, pool.acquire(700));
+    }
+
+    @Test
+    public void growsToPeakUsage() {
+        BufferPool pool = new BufferPool();
+        byte[][] held = new byte[10][];
+        for (int i = 0; i < held.length; i++)
+            held[i] = pool.acquire(5000);
+        for (byte[] b : held)
+            pool.release(b);
+        assertEquals(10, pool.retained(5000));
+
+        for (int i = 0; i < held.length; i++)
+            assertSame(held[held.length - 1 - i], pool.acquire(5000));
+    }
+
+    @Test
+    public void oversizedAndForeignBuffersAreNotPooled() {
+        BufferPool pool = new BufferPool();
+        int huge = (1 << BufferPool.MAX_SHIFT) + 1;
+        byte[] big = pool.acquire(huge);
+        assertEquals(huge, big.length);
+        pool.release(big);
+        pool.release(new byte[300]);
+        assertEquals(0, pool.retained(300));
+    }
+}
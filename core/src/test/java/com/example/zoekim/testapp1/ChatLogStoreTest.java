@@ -0,0 +1,233 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class ChatLogStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private ChatLogStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder("chatlogs");
+        store = new ChatLogStore(dir);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    //A line with only a body, as stored before senders and flags were
+    static ChatLine line(String body) {
+        return new ChatLine(0, 0, 0, "", body);
+    }
+
+    static List<String> bodies(List<ChatLine> lines) {
+        List<String> bodies = new ArrayList<>();
+        for (ChatLine line : lines)
+            bodies.add(line.body);
+        return bodies;
+    }
+
+    @Test
+    public void appendAndRead() throws Exception {
+        store.append("alice", line("Me: hi"));
+        store.append("alice", line("alice:  h\u00e9llo \u2713"));
+        store.append("bob", line("Me: other peer"));
+
+        assertEquals(2, store.count("alice"));
+        assertEquals(1, store.count("bob"));
+        assertEquals(Arrays.asList("Me: hi", "alice:  h\u00e9llo \u2713"), bodies(store.read("alice", 0, 10)));
+        assertEquals(Arrays.asList("alice:  h\u00e9llo \u2713"), bodies(store.read("alice", 1, 1)));
+        assertTrue(store.read("alice", 2, 5).isEmpty());
+    }
+
+    @Test
+    public void keepsEveryFieldOfTheMessage() throws Exception {
+        store.append("alice", new ChatLine(1700000000123L, 1700000000000L, MessageCodec.FLAG_OUTGOING, "Pixel", "hi"));
+        store.append("alice", new ChatLine(42, 1700000001000L, 0, "alice", "h\u00e9llo"));
+        store.append("alice", ChatLine.notice("Not delivered to alice"));
+        store.close();
+
+        store = new ChatLogStore(dir);
+        List<ChatLine> lines = store.read("alice", 0, 10);
+        assertEquals(1700000000123L, lines.get(0).id);
+        assertEquals(1700000000000L, lines.get(0).timeMillis);
+        assertTrue(lines.get(0).isOutgoing());
+        assertEquals("Pixel", lines.get(0).sender);
+        assertEquals("hi", lines.get(0).body);
+        assertEquals(42, lines.get(1).id);
+        assertEquals("alice", lines.get(1).sender);
+        assertFalse(lines.get(1).isOutgoing());
+        assertTrue(lines.get(2).isNotice());
+        assertEquals("", lines.get(2).sender);
+    }
+
+    @Test
+    public void reopenKeepsHistory() throws Exception {
+        for (int i = 0; i < 100; i++)
+            store.append("peer", line("line " + i));
+        store.close();
+
+        store = new ChatLogStore(dir);
+        assertEquals(100, store.count("peer"));
+        assertEquals(Arrays.asList("line 98", "line 99"), bodies(store.read("peer", 98, 2)));
+    }
+
+    @Test
+    public void recoversTornTailAndMissingIndex() throws Exception {
+        store.append("peer", line("one"));
+        store.append("peer", line("two"));
+        store.append("peer", line("three"));
+        store.close();
+
+        String name = ChatLogStore.fileName("peer");
+        RandomAccessFile index = new RandomAccessFile(new File(dir, name + ".idx"), "rw");
+        index.setLength(8);
+        index.close();
+        RandomAccessFile log = new RandomAccessFile(new File(dir, name + ".log"), "rw");
+        log.setLength(log.length() - 2);
+        log.close();
+
+        store = new ChatLogStore(dir);
+        assertEquals(Arrays.asList("one", "two"), bodies(store.read("peer", 0, 10)));
+        store.append("peer", line("four"));
+        assertEquals(Arrays.asList("one", "two", "four"), bodies(store.read("peer", 0, 10)));
+    }
+
+    @Test
+    public void readsPlainTextRecordsWrittenBeforeTheCodec() throws Exception {
+        byte[] old = "alice:  h\u00e9llo".getBytes("UTF-8");
+        RandomAccessFile log = new RandomAccessFile(new File(dir, ChatLogStore.fileName("old") + ".log"), "rw");
+        log.writeInt(old.length);
+        log.write(old);
+        log.close();
+
+        store.append("old", line("Me: new \ud83d\ude00"));
+        assertEquals(Arrays.asList("alice:  h\u00e9llo", "Me: new \ud83d\ude00"), bodies(store.read("old", 0, 10)));
+    }
+
+    @Test
+    public void moveLogCarriesHistoryToANewKey() throws Exception {
+        SearchIndex index = new SearchIndex();
+        store.setAppendListener(index);
+        store.append("Pixel", line("Me: lunch?"));
+        store.append("Pixel", line("Pixel:  sure"));
+        store.append("Other", line("Me: kept"));
+        store.moveLog("Pixel", "00:11:22:33:44:55");
+        //Never merges into a log that already has history
+        store.moveLog("Other", "00:11:22:33:44:55");
+        store.append("00:11:22:33:44:55", line("Me: see you"));
+
+        assertEquals(0, store.count("Pixel"));
+        assertEquals(Arrays.asList("Me: lunch?", "Pixel:  sure", "Me: see you"),
+                bodies(store.read("00:11:22:33:44:55", 0, 10)));
+        assertEquals(1, store.count("Other"));
+        assertTrue(store.awaitReplay(5000));
+        List<SearchIndex.Hit> hits = index.search("lunch", 10);
+        assertEquals(1, hits.size());
+        assertEquals("00:11:22:33:44:55", hits.get(0).peer);
+        assertEquals(0, hits.get(0).offset);
+    }
+
+    @Test
+    public void historyReadsDoNotWaitForTheListenerReplay() throws Exception {
+        for (int i = 0; i < 200; i++)
+            store.append("peer", line("line " + i));
+        store.flush();
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> seen = new CopyOnWriteArrayList<>();
+        store.setAppendListener(new ChatLogStore.AppendListener() {
+            @Override
+            public void onAppended(String peer, int offset, ChatLine line) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                seen.add(offset + " " + line.body);
+            }
+
+            @Override
+            public void onMoved(String from, String to) {
+            }
+        });
+        store.append("peer", line("live"));
+
+        //The replay is stuck in the listener, reads and appends still go through
+        assertEquals(Arrays.asList("line 199", "live"), bodies(store.read("peer", 199, 2)));
+        assertFalse(store.awaitReplay(10));
+        release.countDown();
+        assertTrue(store.awaitReplay(5000));
+        assertEquals(201, seen.size());
+        assertEquals("0 line 0", seen.get(0));
+        //Appended during the replay, reported after it
+        assertEquals("200 live", seen.get(200));
+    }
+
+    @Test
+    public void legacyImportOnlyFillsEmptyLogs() throws Exception {
+        final List<String> done = new CopyOnWriteArrayList<>();
+        store.importLegacy("old", Arrays.asList("a", "b"), new Runnable() {
+            @Override
+            public void run() {
+                done.add("first");
+            }
+        });
+        store.importLegacy("old", Arrays.asList("c"), new Runnable() {
+            @Override
+            public void run() {
+                done.add("second");
+            }
+        });
+        store.append("old", line("d"));
+
+        assertEquals(Arrays.asList("a", "b", "d"), bodies(store.read("old", 0, 10)));
+        //Both copies may go, the second because the log already had history
+        assertEquals(Arrays.asList("first", "second"), done);
+    }
+
+    //Appends per message should not get slower as the history grows
+    @Test
+    public void appendCostStaysFlat() throws Exception {
+        final int total = 100000;
+        final int window = 5000;
+        double first = 0;
+        double last = 0;
+        String text = "peer:  a typical chat message of a few dozen characters";
+
+        for (int n = 0; n < total; n += window) {
+            long start = System.nanoTime();
+            for (int i = 0; i < window; i++)
+                store.append("bench", line(text));
+            store.flush();
+            double perMessage = (System.nanoTime() - start) / (double) window;
+            if (n == window)
+                first = perMessage;
+            last = perMessage;
+        }
+
+        System.out.printf("append: %.0f ns/msg at 5k messages, %.0f ns/msg at 100k%n", first, last);
+        assertEquals(total, store.count("bench"));
+        List<ChatLine> tail = store.read("bench", total - 1, 1);
+        assertEquals(text, tail.get(0).body);
+        assertTrue("append cost grew with history", last < first * 5 + 20000);
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionLifecycleTest {
+    private final MemoryTransport.Network network = new MemoryTransport.Network();
+    private final List<ConnectionManager> managers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ConnectionManager m : managers)
+            m.stop();
+    }
+
+    //Counts reports and flags any state outside the public ones
+    private static class CheckingListener implements ConnectionListener {
+        ConnectionManager manager;
+        final AtomicInteger listening = new AtomicInteger();
+        final AtomicInteger stopped = new AtomicInteger();
+        final AtomicInteger connectedReports = new AtomicInteger();
+        final AtomicInteger connectedEvents = new AtomicInteger();
+        final List<String> illegal = new ArrayList<>();
+
+        @Override
+        public void onStateChanged(int peer, int state) {
+            boolean legal = peer == ConnectionManager.NO_PEER
+                    ? state == ConnectionManager.BT_NONE || state == ConnectionManager.BT_LISTEN
+                    : state == ConnectionManager.BT_NONE || state == ConnectionManager.BT_CONNECTING
+                            || state == ConnectionManager.BT_CONNECTED;
+            if (!legal) {
+                synchronized (illegal) {
+                    illegal.add(peer + " -> " + state);
+                }
+            }
+            if (peer == ConnectionManager.NO_PEER)
+                (state == ConnectionManager.BT_LISTEN ? listening : stopped).incrementAndGet();
+            else if (state == ConnectionManager.BT_CONNECTED)
+                connectedReports.incrementAndGet();
+        }
+
+        @Override
+        public void onConnected(int peer, String address, String name) {
+            connectedEvents.incrementAndGet();
+        }
+
+        @Override
+        public void onRead(int peer, byte[] buffer, int length) {
+            manager.recycle(buffer);
+        }
+
+        @Override
+        public void onRelayed(int peer, long messageId, String origin, int hops, byte[] buffer, int offset, int length) {
+            manager.recycle(buffer);
+        }
+
+        @Override
+        public void onWritten(int peer, byte[] payload) {
+        }
+
+        @Override
+        public void onConnectionFailed(int peer) {
+        }
+
+        @Override
+        public void onConnectionLost(int peer) {
+        }
+    }
+
+    private ConnectionManager manager(String address, CheckingListener events) {
+        ConnectionManager m = new ConnectionManager(network.endpoint(address), events);
+        m.setReconnect(true, 2, 20);
+        events.manager = m;
+        managers.add(m);
+        return m;
+    }
+
+    private static Set<Thread> liveThreads() {
+        return new HashSet<>(Thread.getAllStackTraces().keySet());
+    }
+
+    private static void awaitSessions(ConnectionManager a, ConnectionManager b, int sessions) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (a.getConnectedPeers().size() != sessions || b.getConnectedPeers().size() != sessions) {
+            assertTrue("sessions never reached " + sessions, System.currentTimeMillis() < deadline);
+            Thread.yield();
+        }
+    }
+
+    @Test
+    public void startStopAndRestartReportEachTransitionOnce() {
+        CheckingListener events = new CheckingListener();
+        ConnectionManager m = manager("a", events);
+        m.start();
+        m.start();
+        assertEquals(ConnectionManager.BT_LISTEN, m.getState());
+        m.stop();
+        m.stop();
+        assertEquals(ConnectionManager.BT_NONE, m.getState());
+        m.start();
+        assertEquals(ConnectionManager.BT_LISTEN, m.getState());
+        m.stop();
+        assertEquals(2, events.listening.get());
+        assertEquals(2, events.stopped.get());
+    }
+
+    @Test
+    public void illegalTransitionsAreRejected() {
+        StateMachine machine = new StateMachine(0, new int[][] {{0, 1}, {1, 2}, {2, 0}});
+        assertFalse(machine.transition(1, 2));
+        assertTrue(machine.transition(0, 1));
+        assertFalse(machine.moveTo(1));
+        assertTrue(machine.moveTo(2));
+        try {
+            machine.moveTo(1);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(2, machine.get());
+    }
+
+    @Test
+    public void concurrentConnectStopAndStartNeitherStallNorLeak() throws Exception {
+        final String[] addresses = {"a", "b", "c"};
+        final CheckingListener[] events = new CheckingListener[addresses.length];
+        final ConnectionManager[] nodes = new ConnectionManager[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            events[i] = new CheckingListener();
+            nodes[i] = manager(addresses[i], events[i]);
+        }
+        Set<Thread> before = liveThreads();
+        final List<Throwable> errors = new ArrayList<>();
+        Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            public void uncaughtException(Thread t, Throwable e) {
+                synchronized (errors) {
+                    errors.add(e);
+                }
+            }
+        });
+
+        final AtomicInteger operations = new AtomicInteger();
+        final long end = System.currentTimeMillis() + 1500;
+        Thread[] workers = new Thread[8];
+        try {
+            for (int w = 0; w < workers.length; w++) {
+                final Random random = new Random(w);
+                workers[w] = new Thread() {
+                    @Override
+                    public void run() {
+                        while (System.currentTimeMillis() < end) {
+                            int n = random.nextInt(nodes.length);
+                            ConnectionManager m = nodes[n];
+                            String other = addresses[(n + 1 + random.nextInt(nodes.length - 1)) % nodes.length];
+                            switch (random.nextInt(6)) {
+                                case 0:
+                                    m.start();
+                                    break;
+                                case 1:
+                                    m.stop();
+                                    break;
+                                case 2:
+                                case 3:
+                                    m.connect(other);
+                                    break;
+                                case 4:
+                                    m.disconnect(m.connect(other));
+                                    break;
+                                default:
+                                    for (int peer : m.getConnectedPeers())
+                                        m.write(peer, new byte[] {1, 2, 3});
+                                    break;
+                            }
+                            operations.incrementAndGet();
+                        }
+                    }
+                };
+                workers[w].start();
+            }
+            for (Thread worker : workers) {
+                worker.join(10000);
+                assertFalse("worker stalled", worker.isAlive());
+            }
+
+            for (ConnectionManager m : nodes)
+                m.stop();
+            //Every thread the managers started ends once they are stopped
+            long deadline = System.currentTimeMillis() + 5000;
+            Set<Thread> leaked;
+            do {
+                leaked = liveThreads();
+                leaked.removeAll(before);
+                for (Thread worker : workers)
+                    leaked.remove(worker);
+                if (!leaked.isEmpty())
+                    Thread.sleep(10);
+            } while (!leaked.isEmpty() && System.currentTimeMillis() < deadline);
+            assertTrue("threads left running: " + leaked, leaked.isEmpty());
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(previous);
+        }
+
+        assertTrue("uncaught: " + errors, errors.isEmpty());
+        for (int i = 0; i < nodes.length; i++) {
+            assertTrue("illegal states: " + events[i].illegal, events[i].illegal.isEmpty());
+            assertEquals(ConnectionManager.BT_NONE, nodes[i].getState());
+            assertTrue(nodes[i].getConnectedPeers().isEmpty());
+            assertEquals(0, nodes[i].getMetrics().snapshot().get("sessions"));
+            //Every listen reported is matched by one stop, every session by one BT_CONNECTED
+            assertEquals(events[i].listening.get(), events[i].stopped.get());
+            assertEquals(events[i].connectedEvents.get(), events[i].connectedReports.get());
+        }
+        System.out.printf("lifecycle: %d operations, %d sessions%n", operations.get(),
+                events[0].connectedEvents.get() + events[1].connectedEvents.get() + events[2].connectedEvents.get());
+    }
+
+    @Test
+    public void connectDisconnectCyclesReuseABoundedSetOfThreads() throws Exception {
+        CheckingListener hubEvents = new CheckingListener();
+        CheckingListener dialerEvents = new CheckingListener();
+        ConnectionManager hub = new ConnectionManager(network.endpoint("hub"), hubEvents, 1);
+        ConnectionManager dialer = new ConnectionManager(network.endpoint("dialer"), dialerEvents, 1);
+        hubEvents.manager = hub;
+        dialerEvents.manager = dialer;
+        managers.add(hub);
+        managers.add(dialer);
+        //Keying every link would dominate, this is about threads
+        hub.setEncryption(false);
+        dialer.setEncryption(false);
+        hub.start();
+
+        Set<Thread> before = liveThreads();
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        int baseline = mx.getThreadCount();
+        mx.resetPeakThreadCount();
+        int cycles = 10000;
+        long start = System.nanoTime();
+        for (int i = 0; i < cycles; i++) {
+            int peer = dialer.connect("hub");
+            awaitSessions(hub, dialer, 1);
+            dialer.disconnect(peer);
+            awaitSessions(hub, dialer, 0);
+        }
+        long perCycle = (System.nanoTime() - start) / cycles;
+        //Each side at most runs an accept loop, one session's reader and writer, and its dials
+        int bound = 2 * (1 + 2 + Workers.MAX_DIALS);
+        int peak = mx.getPeakThreadCount() - baseline;
+        assertTrue("peak of " + peak + " threads over the baseline", peak <= bound);
+        assertEquals(cycles, dialerEvents.connectedEvents.get());
+
+        hub.stop();
+        dialer.stop();
+        long deadline = System.currentTimeMillis() + 5000;
+        Set<Thread> leaked;
+        do {
+            leaked = liveThreads();
+            leaked.removeAll(before);
+            if (!leaked.isEmpty())
+                Thread.sleep(10);
+        } while (!leaked.isEmpty() && System.currentTimeMillis() < deadline);
+        assertTrue("threads left running: " + leaked, leaked.isEmpty());
+        System.out.printf("lifecycle: %d connect/disconnect cycles, %d us each, peak %d threads%n",
+                cycles, perCycle / 1000, peak);
+    }
+}
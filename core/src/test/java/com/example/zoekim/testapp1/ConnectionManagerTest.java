@@ -0,0 +1,452 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ConnectionManagerTest {
+    private final List<ConnectionManager> managers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ConnectionManager m : managers)
+            m.stop();
+    }
+
+    private ConnectionManager manager(Transport transport, RecordingListener events, int maxPeers) {
+        ConnectionManager m = new ConnectionManager(transport, events, maxPeers);
+        events.manager = m;
+        managers.add(m);
+        return m;
+    }
+
+    private void exchange(Transport serverTransport, Transport clientTransport, String address) throws Exception {
+        RecordingListener serverEvents = new RecordingListener();
+        RecordingListener clientEvents = new RecordingListener();
+        ConnectionManager server = manager(serverTransport, serverEvents, 7);
+        ConnectionManager client = manager(clientTransport, clientEvents, 7);
+        server.start();
+        int toServer = client.connect(address);
+        assertEquals(toServer, clientEvents.awaitConnected(address));
+        int toClient = serverEvents.awaitConnected(1);
+
+        byte[] big = new byte[100000];
+        for (int i = 0; i < big.length; i++)
+            big[i] = (byte) i;
+        assertTrue(client.write(toServer, "hello".getBytes("UTF-8")));
+        assertTrue(client.write(toServer, big));
+        assertTrue(server.write(toClient, "reply".getBytes("UTF-8")));
+
+        List<byte[]> atServer = serverEvents.awaitReads(toClient, 2);
+        assertArrayEquals("hello".getBytes("UTF-8"), atServer.get(0));
+        assertArrayEquals(big, atServer.get(1));
+        assertArrayEquals("reply".getBytes("UTF-8"), clientEvents.awaitReads(toServer, 1).get(0));
+        assertEquals(ConnectionManager.BT_CONNECTED, client.getState(toServer));
+    }
+
+    @Test
+    public void exchangeOverMemoryTransport() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        exchange(network.endpoint("server"), network.endpoint("client"), "server");
+    }
+
+    @Test
+    public void exchangeOverTcpTransport() throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+        exchange(new TcpTransport(port), new TcpTransport(0), "127.0.0.1:" + port);
+    }
+
+    @Test
+    public void encryptedPeersAgreeOnAVerificationCode() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        RecordingListener serverEvents = new RecordingListener();
+        RecordingListener clientEvents = new RecordingListener();
+        ConnectionManager server = manager(network.endpoint("server"), serverEvents, 7);
+        ConnectionManager client = manager(network.endpoint("client"), clientEvents, 7);
+        server.start();
+        int toServer = client.connect("server");
+        assertEquals(toServer, clientEvents.awaitConnected("server"));
+        int toClient = serverEvents.awaitConnected(1);
+        assertTrue(client.write(toServer, "hello".getBytes("UTF-8")));
+        serverEvents.awaitReads(toClient, 1);
+        assertTrue(server.write(toClient, "reply".getBytes("UTF-8")));
+        clientEvents.awaitReads(toServer, 1);
+
+        int code = client.getVerificationCode(toServer);
+        assertTrue(code >= 0);
+        assertEquals(code, server.getVerificationCode(toClient));
+        assertEquals(1, client.getMetrics().snapshot().getHistogram("connect.key.exchange").getCount());
+    }
+
+    @Test
+    public void plainPeerCannotTalkToAnEncryptedOne() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        RecordingListener serverEvents = new RecordingListener();
+        RecordingListener clientEvents = new RecordingListener();
+        ConnectionManager server = manager(network.endpoint("server"), serverEvents, 7);
+        ConnectionManager client = manager(network.endpoint("client"), clientEvents, 7);
+        server.setEncryption(false);
+        client.setReconnect(false, ConnectionManager.DEFAULT_RECONNECT_BASE_MILLIS, ConnectionManager.DEFAULT_RECONNECT_MAX_MILLIS);
+        server.start();
+        int toServer = client.connect("server");
+        clientEvents.awaitConnected("server");
+        client.write(toServer, "hello".getBytes("UTF-8"));
+        clientEvents.awaitLoss(toServer);
+        assertEquals(-1, client.getVerificationCode(toServer));
+        assertTrue(client.getMetrics().snapshot().getLastError().contains("key exchange"));
+    }
+
+    @Test
+    public void unknownPeerIdsAreHarmless() {
+        ConnectionManager m = new ConnectionManager(new MemoryTransport.Network().endpoint("a"), new RecordingListener());
+        for (int id : new int[] {-1, 0, 7}) {
+            assertNull(m.getPeerAddress(id));
+            assertNull(m.getPeerName(id));
+            assertEquals(-1, m.getVerificationCode(id));
+            assertEquals(ConnectionManager.BT_NONE, m.getState(id));
+            m.disconnect(id);
+        }
+    }
+
+    @Test
+    public void connectWithoutListenerFails() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        RecordingListener events = new RecordingListener();
+        ConnectionManager client = manager(network.endpoint("client"), events, 7);
+        int peer = client.connect("nobody");
+        events.awaitFailure(peer);
+        assertFalse(client.write(peer, new byte[1]));
+    }
+
+    @Test
+    public void hubServesManyPeersAndRoutesById() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        RecordingListener hubEvents = new RecordingListener();
+        ConnectionManager hub = manager(network.endpoint("hub"), hubEvents, 7);
+        hub.start();
+
+        int peers = 7;
+        RecordingListener[] events = new RecordingListener[peers];
+        ConnectionManager[] clients = new ConnectionManager[peers];
+        for (int i = 0; i < peers; i++) {
+            events[i] = new RecordingListener();
+            clients[i] = manager(network.endpoint("peer" + i), events[i], 7);
+            clients[i].connect("hub");
+        }
+        hubEvents.awaitConnected(peers);
+        assertEquals(peers, hub.getConnectedPeers().size());
+
+        for (int i = 0; i < peers; i++)
+            clients[i].write(events[i].awaitConnected("hub"), ("from " + i).getBytes("UTF-8"));
+        for (int i = 0; i < peers; i++) {
+            int id = hubEvents.idOf("peer" + i);
+            assertArrayEquals(("from " + i).getBytes("UTF-8"), hubEvents.awaitReads(id, 1).get(0));
+            hub.write(id, ("to " + i).getBytes("UTF-8"));
+        }
+        for (int i = 0; i < peers; i++)
+            assertArrayEquals(("to " + i).getBytes("UTF-8"), events[i].awaitReads(events[i].idOf("hub"), 1).get(0));
+    }
+
+    @Test
+    public void groupMessageReachesEveryMemberWithStatusEach() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        RecordingListener hubEvents = new RecordingListener();
+        ConnectionManager hub = manager(network.endpoint("hub"), hubEvents, 7);
+        hub.start();
+        int members = 3;
+        RecordingListener[] events = new RecordingListener[members];
+        for (int i = 0; i < members; i++) {
+            events[i] = new RecordingListener();
+            manager(network.endpoint("peer" + i), events[i], 7).connect("hub");
+        }
+        hubEvents.awaitConnected(members);
+
+        final List<Integer> changes = new ArrayList<>();
+        ChatGroup group = hub.createGroup("friends", new ChatGroup.Listener() {
+            @Override
+            public void onStatusChanged(ChatGroup group, long messageId, int peer, int status) {
+                synchronized (changes) {
+                    changes.add(status);
+                }
+            }
+        });
+        for (int i = 0; i < members; i++)
+            assertTrue(group.add(hubEvents.idOf("peer" + i)));
+        //Known to nobody, so it has no session to take the message
+        int absent = 42;
+        group.add(absent);
+
+        long id = hub.sendToGroup(group, "to all".getBytes("UTF-8"));
+        for (int i = 0; i < members; i++)
+            assertArrayEquals("to all".getBytes("UTF-8"), events[i].awaitReads(events[i].awaitConnected("hub"), 1).get(0));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (group.count(id, ChatGroup.DELIVERED) < members && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(members, group.count(id, ChatGroup.DELIVERED));
+        assertEquals(ChatGroup.FAILED, group.getStatus(id, absent));
+        assertEquals(ChatGroup.UNKNOWN, group.getStatus(id + 1, absent));
+        synchronized (changes) {
+            //Each status is reported once, the absent member went from queued to failed
+            assertEquals(members + 1, Collections.frequency(changes, ChatGroup.QUEUED));
+            assertEquals(members, Collections.frequency(changes, ChatGroup.DELIVERED));
+            assertEquals(1, Collections.frequency(changes, ChatGroup.FAILED));
+        }
+    }
+
+    @Test
+    public void fullTableRejectsWithoutDroppingSessions() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        RecordingListener hubEvents = new RecordingListener();
+        ConnectionManager hub = manager(network.endpoint("hub"), hubEvents, 2);
+        hub.start();
+
+        RecordingListener a = new RecordingListener();
+        RecordingListener b = new RecordingListener();
+        RecordingListener c = new RecordingListener();
+        manager(network.endpoint("a"), a, 7).connect("hub");
+        manager(network.endpoint("b"), b, 7).connect("hub");
+        hubEvents.awaitConnected(2);
+        ConnectionManager third = manager(network.endpoint("c"), c, 7);
+        int toHub = third.connect("hub");
+        c.awaitLoss(toHub);
+
+        assertEquals(2, hub.getConnectedPeers().size());
+        hub.write(hubEvents.idOf("a"), new byte[] {1});
+        a.awaitReads(a.awaitConnected("hub"), 1);
+    }
+
+    @Test
+    public void losingOnePeerKeepsOthers() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        RecordingListener hubEvents = new RecordingListener();
+        ConnectionManager hub = manager(network.endpoint("hub"), hubEvents, 7);
+        hub.start();
+
+        RecordingListener a = new RecordingListener();
+        RecordingListener b = new RecordingListener();
+        ConnectionManager ma = manager(network.endpoint("a"), a, 7);
+        ma.connect("hub");
+        manager(network.endpoint("b"), b, 7).connect("hub");
+        hubEvents.awaitConnected(2);
+
+        ma.stop();
+        hubEvents.awaitLoss(hubEvents.idOf("a"));
+        assertEquals(Arrays.asList(hubEvents.idOf("b")), hub.getConnectedPeers());
+        assertTrue(hub.write(hubEvents.idOf("b"), new byte[] {2}));
+        b.awaitReads(b.awaitConnected("hub"), 1);
+    }
+
+    //The client streams more bulk than one receive window and chats alongside it
+    private void bulkAndChat(boolean serverChannels) throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        RecordingListener serverEvents = new RecordingListener();
+        RecordingListener clientEvents = new RecordingListener();
+        ConnectionManager server = manager(network.endpoint("server"), serverEvents, 7);
+        ConnectionManager client = manager(network.endpoint("client"), clientEvents, 7);
+        server.setChannels(serverChannels);
+        server.start();
+        int toServer = client.connect("server");
+        clientEvents.awaitConnected("server");
+        int toClient = serverEvents.awaitConnected(1);
+
+        int chunks = 4 * Frames.BULK_WINDOW / FileTransfers.CHUNK_PAYLOAD;
+        for (int i = 0; i < chunks; i++)
+            assertTrue(client.send(toServer, Frames.KIND_FILE_CHUNK, new byte[FileTransfers.CHUNK_PAYLOAD]));
+        assertTrue(client.write(toServer, "still here".getBytes("UTF-8")));
+        assertArrayEquals("still here".getBytes("UTF-8"), serverEvents.awaitReads(toClient, 1).get(0));
+
+        //Only arrives if the server kept returning credit, or never asked for it
+        long expected = (long) chunks * (FrameDecoder.HEADER_LEN + FileTransfers.CHUNK_PAYLOAD);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getMetrics().snapshot().get("read.bytes") < expected && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertTrue(server.getMetrics().snapshot().get("read.bytes") >= expected);
+    }
+
+    @Test
+    public void bulkBeyondTheReceiveWindowFlowsOnCredit() throws Exception {
+        bulkAndChat(true);
+    }
+
+    @Test
+    public void peerWithoutChannelsIsNotHeldToCredit() throws Exception {
+        bulkAndChat(false);
+    }
+
+    @Test
+    public void compressionIsNegotiated() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        RecordingListener aEvents = new RecordingListener();
+        RecordingListener bEvents = new RecordingListener();
+        RecordingListener cEvents = new RecordingListener();
+        ConnectionManager a = manager(network.endpoint("a"), aEvents, 7);
+        ConnectionManager b = manager(network.endpoint("b"), bEvents, 7);
+        ConnectionManager c = manager(network.endpoint("c"), cEvents, 7);
+        c.setCompression(false, 0);
+        a.start();
+        b.connect("a");
+        c.connect("a");
+        aEvents.awaitConnected(2);
+        bEvents.awaitConnected("a");
+        cEvents.awaitConnected("a");
+
+        //Anything read after it means the peer's hello has been seen
+        assertTrue(b.write(bEvents.idOf("a"), new byte[] {1}));
+        aEvents.awaitReads(aEvents.idOf("b"), 1);
+
+        byte[] text = "see you at the station tomorrow, the one by the river".getBytes("UTF-8");
+        for (int i = 0; i < 20; i++) {
+            assertTrue(a.write(aEvents.idOf("b"), text));
+            assertTrue(a.write(aEvents.idOf("c"), text));
+        }
+        assertArrayEquals(text, bEvents.awaitReads(bEvents.idOf("a"), 20).get(19));
+        assertArrayEquals(text, cEvents.awaitReads(cEvents.idOf("a"), 20).get(19));
+
+        assertTrue(a.isCompressing(aEvents.idOf("b")));
+        assertFalse(a.isCompressing(aEvents.idOf("c")));
+        assertFalse(c.isCompressing(cEvents.idOf("a")));
+        assertTrue(a.getCompressionStats().getCompressedFrames() > 0);
+        assertTrue(a.getCompressionStats().getRatio() < 0.5);
+    }
+
+    static class RecordingListener implements ConnectionListener {
+        volatile ConnectionManager manager;
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final Map<Integer, List<byte[]>> reads = new HashMap<>();
+        private final List<Integer> failed = new ArrayList<>();
+        private final List<Integer> lost = new ArrayList<>();
+        //origin, hops and body of each relayed message, with its arrival time
+        final List<String> relayed = new ArrayList<>();
+        final List<Long> relayedNanos = new ArrayList<>();
+        private int connected;
+
+        private void await(Condition condition) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!condition.met() && System.currentTimeMillis() < deadline)
+                wait(50);
+            assertTrue("timed out", condition.met());
+        }
+
+        interface Condition {
+            boolean met();
+        }
+
+        synchronized int awaitConnected(final String address) throws InterruptedException {
+            await(new Condition() {
+                public boolean met() {
+                    return ids.containsKey(address);
+                }
+            });
+            return ids.get(address);
+        }
+
+        synchronized int awaitConnected(final int count) throws InterruptedException {
+            await(new Condition() {
+                public boolean met() {
+                    return connected >= count;
+                }
+            });
+            return ids.values().iterator().next();
+        }
+
+        synchronized int idOf(String address) {
+            return ids.get(address);
+        }
+
+        synchronized void awaitFailure(final int peer) throws InterruptedException {
+            await(new Condition() {
+                public boolean met() {
+                    return failed.contains(peer);
+                }
+            });
+        }
+
+        synchronized void awaitLoss(final int peer) throws InterruptedException {
+            await(new Condition() {
+                public boolean met() {
+                    return lost.contains(peer);
+                }
+            });
+        }
+
+        synchronized List<byte[]> awaitReads(final int peer, final int n) throws InterruptedException {
+            await(new Condition() {
+                public boolean met() {
+                    return reads.containsKey(peer) && reads.get(peer).size() >= n;
+                }
+            });
+            return new ArrayList<>(reads.get(peer));
+        }
+
+        @Override
+        public void onStateChanged(int peer, int state) {
+        }
+
+        @Override
+        public synchronized void onConnected(int peer, String address, String name) {
+            ids.put(address, peer);
+            connected++;
+            notifyAll();
+        }
+
+        @Override
+        public void onRead(int peer, byte[] buffer, int length) {
+            byte[] copy = Arrays.copyOf(buffer, length);
+            manager.recycle(buffer);
+            synchronized (this) {
+                if (!reads.containsKey(peer))
+                    reads.put(peer, new ArrayList<byte[]>());
+                reads.get(peer).add(copy);
+                notifyAll();
+            }
+        }
+
+        synchronized List<String> awaitRelayed(final int n) throws InterruptedException {
+            await(new Condition() {
+                public boolean met() {
+                    return relayed.size() >= n;
+                }
+            });
+            return new ArrayList<>(relayed);
+        }
+
+        @Override
+        public void onRelayed(int peer, long messageId, String origin, int hops, byte[] buffer, int offset, int length) {
+            String body = new String(buffer, offset, length, Charset.forName("UTF-8"));
+            manager.recycle(buffer);
+            synchronized (this) {
+                relayed.add(origin + "/" + hops + "/" + body);
+                relayedNanos.add(System.nanoTime());
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void onWritten(int peer, byte[] payload) {
+        }
+
+        @Override
+        public synchronized void onConnectionFailed(int peer) {
+            failed.add(peer);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onConnectionLost(int peer) {
+            lost.add(peer);
+            notifyAll();
+        }
+    }
+}
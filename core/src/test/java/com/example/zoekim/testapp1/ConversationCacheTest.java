@@ -0,0 +1,151 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ConversationCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ChatLogStore store;
+    private final Executor direct = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    private final ConversationCache.Listener ignore = new ConversationCache.Listener() {
+        @Override
+        public void onChanged(String peer, PagedHistory history) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        store = new ChatLogStore(folder.newFolder("chatlogs"));
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    private void fill(String peer, int count) {
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            lines.add(peer + " line " + i);
+        store.importLegacy(peer, lines, null);
+    }
+
+    private static void awaitOpened(PagedHistory history) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!history.isOpened() && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertTrue(history.isOpened());
+    }
+
+    @Test
+    public void switchingBackToACachedConversationNeedsNoRead() throws Exception {
+        fill("00:11:22:33:44:55", 500);
+        fill("66:77:88:99:AA:BB", 500);
+        ConversationCache cache = new ConversationCache(store, direct, ConversationCache.DEFAULT_MAX_BYTES, ignore);
+        PagedHistory first = cache.show("00:11:22:33:44:55");
+        awaitOpened(first);
+        awaitOpened(cache.show("66:77:88:99:AA:BB"));
+
+        long start = System.nanoTime();
+        PagedHistory again = cache.show("00:11:22:33:44:55");
+        //Everything a frame draws is already in memory
+        assertSame(first, again);
+        assertTrue(again.isOpened());
+        assertEquals(500, again.size());
+        assertEquals("00:11:22:33:44:55 line 499", again.get(499).body);
+        long micros = (System.nanoTime() - start) / 1000;
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        System.out.printf("conversations: cached switch took %d us%n", micros);
+        cache.close();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedButNeverTheShownOne() throws Exception {
+        String[] peers = {"a", "b", "c", "d", "e"};
+        for (String peer : peers)
+            fill(peer, 50);
+        ConversationCache probe = new ConversationCache(store, direct, ConversationCache.DEFAULT_MAX_BYTES, ignore);
+        PagedHistory page = probe.show("a");
+        awaitOpened(page);
+        long one = page.estimatedBytes();
+        assertTrue(one > 2 * 1024 && one < 8 * 1024);
+        probe.close();
+
+        //Room for three conversations of one page each
+        long max = 3 * one + one / 2;
+        ConversationCache cache = new ConversationCache(store, direct, max, ignore);
+        for (String peer : peers)
+            awaitOpened(cache.show(peer));
+        //Trimming runs after a page is delivered, on the store thread
+        store.flush();
+        assertTrue(cache.estimatedBytes() <= max);
+        assertEquals(Arrays.asList("c", "d", "e"), cache.peers());
+        //The running total matches what the cached histories hold
+        long held = 0;
+        for (String peer : cache.peers())
+            held += cache.peek(peer).estimatedBytes();
+        assertEquals(held, cache.estimatedBytes());
+
+        //Using c makes d the next to go
+        cache.show("c");
+        cache.prefetch("a");
+        awaitOpened(cache.peek("a"));
+        store.flush();
+        assertEquals(Arrays.asList("e", "c", "a"), cache.peers());
+
+        //Too big alone, the shown conversation stays anyway
+        ConversationCache tiny = new ConversationCache(store, direct, 1, ignore);
+        PagedHistory shown = tiny.show("a");
+        awaitOpened(shown);
+        tiny.prefetch("b");
+        store.flush();
+        assertEquals(Arrays.asList("a"), tiny.peers());
+        assertEquals(50, shown.size());
+        tiny.close();
+        cache.close();
+    }
+
+    @Test
+    public void prefetchedConversationShowsLoaded() throws Exception {
+        fill("next", 120);
+        final List<String> changed = new ArrayList<>();
+        ConversationCache cache = new ConversationCache(store, direct, ConversationCache.DEFAULT_MAX_BYTES,
+                new ConversationCache.Listener() {
+                    @Override
+                    public void onChanged(String peer, PagedHistory history) {
+                        synchronized (changed) {
+                            changed.add(peer);
+                        }
+                    }
+                });
+        cache.prefetch("next");
+        awaitOpened(cache.peek("next"));
+        PagedHistory history = cache.show("next");
+        assertTrue(history.isOpened());
+        assertEquals(120, history.size());
+        assertEquals(1, cache.getHits());
+        synchronized (changed) {
+            assertEquals(Arrays.asList("next"), changed);
+        }
+        cache.close();
+        assertFalse(cache.contains("next"));
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EventPipelineTest {
+    //Consumer that records what it is given, and a wakeup that only counts
+    private static class Collector implements ConnectionListener {
+        final List<String> events = new ArrayList<>();
+        final int[] lastPerPeer = new int[8];
+        int outOfOrder;
+
+        @Override
+        public void onStateChanged(int peer, int state) {
+            events.add("state " + peer + " " + state);
+        }
+
+        @Override
+        public void onConnected(int peer, String address, String name) {
+            events.add("connected " + peer + " " + address + " " + name);
+        }
+
+        @Override
+        public void onRead(int peer, byte[] buffer, int length) {
+            //Each producer numbers its reads in length, starting at 1
+            if (length != lastPerPeer[peer] + 1)
+                outOfOrder++;
+            lastPerPeer[peer] = length;
+        }
+
+        @Override
+        public void onRelayed(int peer, long messageId, String origin, int hops, byte[] buffer, int offset, int length) {
+            events.add("relayed " + peer + " " + messageId + " " + origin + " " + hops + " " + offset + " " + length);
+        }
+
+        @Override
+        public void onWritten(int peer, byte[] payload) {
+            events.add("written " + peer + " " + new String(payload));
+        }
+
+        @Override
+        public void onConnectionFailed(int peer) {
+            events.add("failed " + peer);
+        }
+
+        @Override
+        public void onConnectionLost(int peer) {
+            events.add("lost " + peer);
+        }
+    }
+
+    private static class CountingWakeup implements EventPipeline.Wakeup {
+        final Semaphore wakes = new Semaphore(0);
+
+        @Override
+        public void wake() {
+            wakes.release();
+        }
+    }
+
+    @Test
+    public void deliversEveryKindOnDrain() {
+        Collector consumer = new Collector();
+        CountingWakeup wakeup = new CountingWakeup();
+        Metrics metrics = new Metrics();
+        EventPipeline pipeline = new EventPipeline(consumer, wakeup, 16, metrics);
+
+        pipeline.onConnected(1, "addr", "name");
+        pipeline.onWritten(1, "hi".getBytes());
+        pipeline.onRelayed(2, 77, "origin", 3, new byte[10], 2, 5);
+        pipeline.onStateChanged(1, 3);
+        pipeline.onConnectionLost(2);
+        pipeline.onConnectionFailed(3);
+        assertTrue(consumer.events.isEmpty());
+        //One wakeup for the whole burst
+        assertEquals(1, wakeup.wakes.availablePermits());
+
+        assertEquals(6, pipeline.drain());
+        //Control events come first, then each ring in order
+        assertEquals("connected 1 addr name", consumer.events.get(0));
+        assertEquals("state 1 3", consumer.events.get(1));
+        assertEquals("lost 2", consumer.events.get(2));
+        assertEquals("failed 3", consumer.events.get(3));
+        assertEquals("written 1 hi", consumer.events.get(4));
+        assertEquals("relayed 2 77 origin 3 2 5", consumer.events.get(5));
+        assertEquals(0, pipeline.drain());
+        assertEquals(6, metrics.snapshot().get("events.delivered"));
+        //Kept apart from the UI Handler's own delay in milliseconds
+        assertNotNull(metrics.snapshot().getHistogram("events.dispatch"));
+        assertNull(metrics.snapshot().getHistogram("ui.dispatch"));
+    }
+
+    @Test
+    public void producersKeepTheirOrderAndBlockWhenFull() throws Exception {
+        final Collector consumer = new Collector();
+        final CountingWakeup wakeup = new CountingWakeup();
+        Metrics metrics = new Metrics();
+        final EventPipeline pipeline = new EventPipeline(consumer, wakeup, 64, metrics);
+        final int perProducer = 20000;
+        final byte[] buffer = new byte[1];
+        int producers = 3;
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final int peer = p;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= perProducer; i++)
+                        pipeline.onRead(peer, buffer, i);
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        //The consumer drains only when woken, like a Handler posting the drain
+        int delivered = 0;
+        while (delivered < producers * perProducer) {
+            assertTrue("no wakeup", wakeup.wakes.tryAcquire(5, TimeUnit.SECONDS));
+            delivered += pipeline.drain();
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, consumer.outOfOrder);
+        for (int p = 0; p < producers; p++)
+            assertEquals(perProducer, consumer.lastPerPeer[p]);
+        Metrics.Snapshot s = metrics.snapshot();
+        assertTrue("rings of 64 never filled", s.get("events.producer.waits") > 0);
+        System.out.printf("pipeline: %d events in %d wakeups%n", delivered, s.get("events.wakeups"));
+    }
+
+    @Test
+    public void closedPipelineReleasesBlockedProducer() throws Exception {
+        final EventPipeline pipeline = new EventPipeline(new Collector(), new CountingWakeup(), 2, new Metrics());
+        final AtomicInteger sent = new AtomicInteger();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= 10; i++) {
+                    pipeline.onRead(0, null, i);
+                    sent.incrementAndGet();
+                }
+            }
+        };
+        producer.start();
+        Thread.sleep(50);
+        assertEquals(2, sent.get());
+        pipeline.close();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+    }
+
+    @Test
+    public void producerAllocatesNothingPerEvent() {
+        Collector consumer = new Collector();
+        EventPipeline pipeline = new EventPipeline(consumer, new CountingWakeup(), 1024, new Metrics());
+        byte[] buffer = new byte[16];
+        int length = 0;
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < 500; j++)
+                pipeline.onRead(0, buffer, ++length);
+            pipeline.drain();
+        }
+
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int events = 300000;
+        long before = mx.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < events / 500; i++) {
+            for (int j = 0; j < 500; j++)
+                pipeline.onRead(0, buffer, ++length);
+            pipeline.drain();
+        }
+        double perEvent = (mx.getThreadAllocatedBytes(thread) - before) / (double) events;
+
+        System.out.printf("pipeline: %.2f bytes allocated per event%n", perEvent);
+        assertEquals(0, consumer.outOfOrder);
+        assertTrue(perEvent < 1.0);
+    }
+}
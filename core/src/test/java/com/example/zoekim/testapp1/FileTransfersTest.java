@@ -0,0 +1,233 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FileTransfersTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MemoryTransport.Network network = new MemoryTransport.Network();
+    private ConnectionManager sender;
+    private ConnectionManager receiver;
+    private ConnectionManagerTest.RecordingListener senderEvents = new ConnectionManagerTest.RecordingListener();
+    private ConnectionManagerTest.RecordingListener receiverEvents = new ConnectionManagerTest.RecordingListener();
+    private final Recorder sent = new Recorder();
+    private final Recorder received = new Recorder();
+    private File inbox;
+    private FileTransfers transfers;
+
+    static class Recorder implements FileTransfers.Listener {
+        final List<File> files = new ArrayList<>();
+        final List<String> failures = new ArrayList<>();
+        long progress;
+        boolean sent;
+
+        @Override
+        public synchronized void onProgress(int peer, long id, String name, long done, long size, boolean incoming) {
+            progress = done;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onReceived(int peer, long id, File file) {
+            files.add(file);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onSent(int peer, long id, String name) {
+            sent = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onFailed(int peer, long id, String name, String reason) {
+            failures.add(reason);
+            notifyAll();
+        }
+
+        synchronized void awaitProgress(long bytes) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (progress < bytes && System.currentTimeMillis() < deadline)
+                wait(50);
+            assertTrue("progress " + progress, progress >= bytes);
+        }
+
+        synchronized File awaitFile() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 20000;
+            while (files.isEmpty() && System.currentTimeMillis() < deadline)
+                wait(50);
+            assertFalse("no file, failures " + failures, files.isEmpty());
+            return files.get(0);
+        }
+
+        synchronized String awaitFailure() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (failures.isEmpty() && System.currentTimeMillis() < deadline)
+                wait(50);
+            assertFalse(failures.isEmpty());
+            return failures.get(0);
+        }
+
+        synchronized void awaitSent() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!sent && System.currentTimeMillis() < deadline)
+                wait(50);
+            assertTrue(sent);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        inbox = folder.newFolder("inbox");
+        receiver = new ConnectionManager(network.endpoint("receiver"), receiverEvents);
+        sender = new ConnectionManager(network.endpoint("sender"), senderEvents);
+        receiverEvents.manager = receiver;
+        senderEvents.manager = sender;
+        receiver.enableFileTransfer(inbox, received);
+        transfers = sender.enableFileTransfer(folder.newFolder("unused"), sent);
+        receiver.start();
+    }
+
+    @After
+    public void tearDown() {
+        sender.stop();
+        receiver.stop();
+    }
+
+    private File randomFile(String name, int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File f = folder.newFile(name);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        return f;
+    }
+
+    private static byte[] read(File f) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        byte[] data = new byte[(int) raf.length()];
+        raf.readFully(data);
+        raf.close();
+        return data;
+    }
+
+    private int connect() throws Exception {
+        int id = sender.connect("receiver");
+        senderEvents.awaitConnected("receiver");
+        return id;
+    }
+
+    @Test
+    public void sendsFileIntact() throws Exception {
+        File photo = randomFile("photo.jpg", 1000000);
+        int peer = connect();
+
+        transfers.send(peer, photo);
+        File got = received.awaitFile();
+        sent.awaitSent();
+
+        assertEquals("photo.jpg", got.getName());
+        assertArrayEquals(read(photo), read(got));
+        int chunks = (1000000 + FileTransfers.CHUNK_DATA - 1) / FileTransfers.CHUNK_DATA;
+        assertEquals(chunks, transfers.getChunksSent());
+        assertEquals(1, inbox.list().length);
+    }
+
+    @Test
+    public void emptyFileAndNameClash() throws Exception {
+        File empty = randomFile("notes.txt", 0);
+        assertTrue(new File(inbox, "notes.txt").createNewFile());
+        int peer = connect();
+
+        transfers.send(peer, empty);
+        File got = received.awaitFile();
+        assertEquals("notes (1).txt", got.getName());
+        assertEquals(0, got.length());
+    }
+
+    @Test
+    public void refusesOfferAboveMaxSize() throws Exception {
+        receiver.enableFileTransfer(inbox, received).setMaxSize(50000);
+        int peer = connect();
+
+        transfers.send(peer, randomFile("big.iso", 100000));
+        assertEquals("Refused by peer", sent.awaitFailure());
+        assertTrue(received.awaitFailure().startsWith("Larger than"));
+        assertFalse(sent.sent);
+        assertEquals(0, inbox.list().length);
+        assertEquals(0, transfers.getChunksSent());
+    }
+
+    @Test
+    public void deletesStalePartFilesOnStart() throws Exception {
+        File dir = folder.newFolder("parts");
+        File stale = new File(dir, "1a.part");
+        File recent = new File(dir, "2b.part");
+        File kept = new File(dir, "old.txt");
+        for (File f : new File[] {stale, recent, kept})
+            assertTrue(f.createNewFile());
+        long old = System.currentTimeMillis() - FileTransfers.STALE_PART_MILLIS - 60000;
+        assertTrue(stale.setLastModified(old));
+        assertTrue(kept.setLastModified(old));
+
+        new FileTransfers(receiver, new BufferPool(), dir, received, FileTransfers.DEFAULT_WINDOW);
+        assertFalse(stale.exists());
+        assertTrue(recent.exists());
+        assertTrue(kept.exists());
+    }
+
+    @Test
+    public void waitingTransferStartsOnReconnect() throws Exception {
+        File doc = randomFile("doc.pdf", 100000);
+        int peer = connect();
+        sender.disconnect(peer);
+        senderEvents.awaitLoss(peer);
+
+        //Holds no thread until the session is back
+        transfers.send(peer, doc);
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            assertFalse(t.getName(), t.getName().startsWith("FileTransfer-"));
+        connect();
+        assertArrayEquals(read(doc), read(received.awaitFile()));
+        sent.awaitSent();
+    }
+
+    @Test
+    public void resumesAfterDroppedConnection() throws Exception {
+        int size = 4000000;
+        File video = randomFile("clip.mp4", size);
+        int peer = connect();
+
+        transfers.send(peer, video);
+        received.awaitProgress(size / 4);
+        sender.disconnect(peer);
+        senderEvents.awaitLoss(peer);
+        long before = received.progress;
+        assertTrue(before < size);
+
+        connect();
+        File got = received.awaitFile();
+        assertArrayEquals(read(video), read(got));
+
+        //Only what was in flight at the drop is sent twice
+        int chunks = (size + FileTransfers.CHUNK_DATA - 1) / FileTransfers.CHUNK_DATA;
+        long sentChunks = transfers.getChunksSent();
+        assertTrue(sentChunks + " of " + chunks, sentChunks <= chunks + 2 * FileTransfers.DEFAULT_WINDOW);
+        assertTrue(received.failures.isEmpty());
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+public class FrameCompressorTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final BufferPool pool = new BufferPool();
+
+    //Collects inflated frames as strings
+    private static class Collector implements FrameDecoder.FrameHandler {
+        final List<String> frames = new ArrayList<>();
+        int lastKind;
+
+        @Override
+        public void onFrame(int kind, byte[] buffer, int length) {
+            lastKind = kind;
+            frames.add(new String(buffer, 0, length, UTF_8));
+        }
+    }
+
+    @Test
+    public void roundTripsAndSharesContextAcrossMessages() throws Exception {
+        FrameCompressor.Stats stats = new FrameCompressor.Stats();
+        FrameCompressor sender = new FrameCompressor(pool, stats, 0);
+        FrameCompressor receiver = new FrameCompressor(pool, new FrameCompressor.Stats(), 0);
+        sender.setPeerAccepts(true);
+        Collector out = new Collector();
+
+        long firstLen = 0;
+        long lastLen = 0;
+        for (int i = 0; i < 200; i++) {
+            String line = "are you coming to the meeting at " + (i % 12) + " tomorrow?";
+            byte[] frame = sender.compress(Frames.KIND_CHAT, line.getBytes(UTF_8));
+            receiver.inflate(frame, frame.length, out);
+            assertEquals(line, out.frames.get(i));
+            assertEquals(Frames.KIND_CHAT, out.lastKind);
+            if (i == 0)
+                firstLen = frame.length;
+            lastLen = frame.length;
+        }
+        //Later messages are mostly back-references into earlier ones
+        assertTrue(lastLen + " vs " + firstLen, lastLen < firstLen / 2);
+        assertTrue(stats.getRatio() < 0.3);
+        assertEquals(200, stats.getCompressedFrames());
+        System.out.println(String.format("compression: ratio %.2f, %d ns/frame",
+                stats.getRatio(), stats.getDeflateNanos() / stats.getCompressedFrames()));
+    }
+
+    @Test
+    public void inactiveOrShortFramesStayRaw() {
+        FrameCompressor.Stats stats = new FrameCompressor.Stats();
+        FrameCompressor c = new FrameCompressor(pool, stats, 24);
+        assertNull(c.compress(Frames.KIND_CHAT, new byte[100]));
+        c.setPeerAccepts(true);
+        assertNull(c.compress(Frames.KIND_CHAT, new byte[10]));
+        assertNotNull(c.compress(Frames.KIND_CHAT, new byte[100]));
+        assertEquals(1, stats.getSkippedFrames());
+        assertEquals(100, stats.getRawBytes());
+    }
+
+    @Test
+    public void largeFramesGrowTheBuffers() throws Exception {
+        FrameCompressor sender = new FrameCompressor(pool, new FrameCompressor.Stats(), 0);
+        FrameCompressor receiver = new FrameCompressor(pool, new FrameCompressor.Stats(), 0);
+        sender.setPeerAccepts(true);
+        byte[] big = new byte[300000];
+        Random random = new Random(1);
+        for (int i = 0; i < big.length; i++)
+            big[i] = (byte) ('a' + random.nextInt(4));
+        byte[] frame = sender.compress(Frames.KIND_RELAY, big);
+
+        final byte[][] got = new byte[1][];
+        receiver.inflate(frame, frame.length, new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(int kind, byte[] buffer, int length) {
+                assertEquals(Frames.KIND_RELAY, kind);
+                got[0] = Arrays.copyOf(buffer, length);
+            }
+        });
+        assertArrayEquals(big, got[0]);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void garbageIsRejected() throws Exception {
+        FrameCompressor receiver = new FrameCompressor(pool, new FrameCompressor.Stats(), 0);
+        byte[] junk = new byte[64];
+        for (int i = 0; i < junk.length; i++)
+            junk[i] = (byte) (i * 37);
+        receiver.inflate(junk, junk.length, new Collector());
+    }
+}
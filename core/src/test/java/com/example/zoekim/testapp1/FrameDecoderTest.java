@@ -0,0 +1,166 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+    private BufferPool pool;
+    private List<byte[]> frames;
+    private FrameDecoder decoder;
+
+    @Before
+    public void setUp() {
+        pool = new BufferPool();
+        frames = new ArrayList<>();
+        decoder = new FrameDecoder(pool, new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(int kind, byte[] buffer, int length) {
+                frames.add(Arrays.copyOf(buffer, length));
+                pool.release(buffer);
+            }
+        });
+    }
+
+    private static byte[] payload(int len, int seed) {
+        byte[] b = new byte[len];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    private static byte[] encode(byte[]... payloads) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] header = new byte[FrameDecoder.HEADER_LEN];
+        for (byte[] p : payloads) {
+            FrameDecoder.putHeader(header, 0, Frames.KIND_CHAT, p.length);
+            out.write(header, 0, header.length);
+            out.write(p, 0, p.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void fragmentedByteAtATime() throws Exception {
+        byte[] a = payload(300, 1);
+        byte[] b = payload(5, 2);
+        byte[] stream = encode(a, b);
+        for (int i = 0; i < stream.length; i++)
+            decoder.feed(stream, i, 1);
+
+        assertEquals(2, frames.size());
+        assertArrayEquals(a, frames.get(0));
+        assertArrayEquals(b, frames.get(1));
+    }
+
+    @Test
+    public void coalescedInOneRead() throws Exception {
+        byte[][] payloads = new byte[50][];
+        for (int i = 0; i < payloads.length; i++)
+            payloads[i] = payload(i * 7, i);
+        byte[] stream = encode(payloads);
+        decoder.feed(stream, 0, stream.length);
+
+        assertEquals(payloads.length, frames.size());
+        for (int i = 0; i < payloads.length; i++)
+            assertArrayEquals(payloads[i], frames.get(i));
+    }
+
+    @Test
+    public void randomSplitsThroughStream() throws Exception {
+        byte[][] payloads = new byte[200][];
+        Random random = new Random(42);
+        for (int i = 0; i < payloads.length; i++)
+            payloads[i] = payload(random.nextInt(20000), i);
+        InputStream in = new ChoppyInputStream(encode(payloads), random);
+
+        while (decoder.readFrom(in)) {}
+
+        assertEquals(payloads.length, frames.size());
+        for (int i = 0; i < payloads.length; i++)
+            assertArrayEquals(payloads[i], frames.get(i));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOversizedFrame() throws Exception {
+        byte[] header = new byte[FrameDecoder.HEADER_LEN];
+        FrameDecoder.putHeader(header, 0, Frames.KIND_CHAT, FrameDecoder.MAX_FRAME_LEN + 1);
+        decoder.feed(header, 0, header.length);
+    }
+
+    //Frames handed off are not overwritten by later reads while the receiver still holds them
+    @Test
+    public void heldFramesAreNotOverwritten() throws Exception {
+        final List<byte[]> held = new ArrayList<>();
+        FrameDecoder holding = new FrameDecoder(pool, new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(int kind, byte[] buffer, int length) {
+                held.add(buffer);
+            }
+        });
+        byte[] a = payload(100, 1);
+        byte[] b = payload(100, 2);
+        byte[] stream = encode(a, b);
+        holding.feed(stream, 0, stream.length);
+
+        assertNotSame(held.get(0), held.get(1));
+        assertArrayEquals(a, Arrays.copyOf(held.get(0), 100));
+        assertArrayEquals(b, Arrays.copyOf(held.get(1), 100));
+    }
+
+    @Test
+    public void steadyStateAllocationPerMessage() throws Exception {
+        FrameDecoder recycling = new FrameDecoder(pool, new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(int kind, byte[] buffer, int length) {
+                pool.release(buffer);
+            }
+        });
+        byte[] stream = encode(payload(120, 1), payload(900, 2), payload(40, 3));
+        for (int i = 0; i < 1000; i++)
+            recycling.feed(stream, 0, stream.length);
+
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int messages = 300000;
+        long before = mx.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < messages / 3; i++)
+            recycling.feed(stream, 0, stream.length);
+        double perMessage = (mx.getThreadAllocatedBytes(thread) - before) / (double) messages;
+
+        System.out.printf("decode: %.2f bytes allocated per message%n", perMessage);
+        assertTrue(perMessage < 1.0);
+    }
+
+    //Returns the data in reads of random size
+    private static class ChoppyInputStream extends InputStream {
+        private final ByteArrayInputStream in;
+        private final Random random;
+
+        ChoppyInputStream(byte[] data, Random random) {
+            this.in = new ByteArrayInputStream(data);
+            this.random = random;
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return in.read(b, off, Math.min(len, 1 + random.nextInt(9000)));
+        }
+    }
+}
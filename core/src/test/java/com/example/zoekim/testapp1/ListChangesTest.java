@@ -0,0 +1,90 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ListChangesTest {
+    //Frames run by hand, each runs what was scheduled before it
+    private final List<Runnable> frame = new ArrayList<>();
+    private final List<String> notified = new ArrayList<>();
+    private final ListChanges changes = new ListChanges(new ListChanges.Scheduler() {
+        @Override
+        public void schedule(Runnable flush) {
+            frame.add(flush);
+        }
+    }, new ListChanges.Target() {
+        @Override
+        public void onReset() {
+            notified.add("reset " + changes.count());
+        }
+
+        @Override
+        public void onInserted(int from, int count) {
+            notified.add("insert " + from + "+" + count);
+        }
+
+        @Override
+        public void onChanged(int from, int count) {
+            notified.add("change " + from + "+" + count);
+        }
+    });
+
+    private void nextFrame() {
+        List<Runnable> due = new ArrayList<>(frame);
+        frame.clear();
+        for (Runnable r : due)
+            r.run();
+    }
+
+    @Test
+    public void burstWithinAFrameIsOneInsert() {
+        changes.reset(10);
+        for (int i = 1; i <= 500; i++) {
+            changes.changed(10 + i);
+            //The view keeps the old size until the frame
+            assertEquals(10, changes.count());
+        }
+        assertEquals(1, frame.size());
+        nextFrame();
+        assertEquals(510, changes.count());
+        assertEquals(1, changes.getFlushes());
+        assertEquals("[reset 10, insert 10+500]", notified.toString());
+    }
+
+    @Test
+    public void onlyPlaceholderRowsAreRebound() {
+        changes.reset(200);
+        changes.bound(150, false);
+        changes.bound(120, true);
+        changes.bound(125, true);
+        changes.changed(200);
+        changes.changed(201);
+        nextFrame();
+        assertEquals("[reset 200, change 120+6, insert 200+1]", notified.toString());
+
+        //Nothing left to rebind
+        changes.changed(201);
+        nextFrame();
+        assertEquals(3, notified.size());
+    }
+
+    @Test
+    public void resetDropsPendingChanges() {
+        changes.reset(5);
+        changes.bound(2, true);
+        changes.changed(8);
+        changes.reset(3);
+        nextFrame();
+        assertEquals("[reset 5, reset 3]", notified.toString());
+        assertEquals(3, changes.count());
+
+        //A list that shrank is reset rather than described
+        changes.changed(1);
+        nextFrame();
+        assertEquals("[reset 5, reset 3, reset 1]", notified.toString());
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MeshRelayTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final MemoryTransport.Network network = new MemoryTransport.Network();
+    private final List<ConnectionManager> nodes = new ArrayList<>();
+    private final List<ConnectionManagerTest.RecordingListener> events = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ConnectionManager m : nodes)
+            m.stop();
+    }
+
+    private void createNodes(int count) {
+        for (int i = 0; i < count; i++) {
+            ConnectionManagerTest.RecordingListener e = new ConnectionManagerTest.RecordingListener();
+            ConnectionManager m = new ConnectionManager(network.endpoint("n" + i), e);
+            e.manager = m;
+            m.setRelay(true, "n" + i);
+            m.start();
+            nodes.add(m);
+            events.add(e);
+        }
+    }
+
+    //Links node i to node j and waits until both ends have the session
+    private void link(int i, int j) throws InterruptedException {
+        nodes.get(i).connect("n" + j);
+        events.get(i).awaitConnected("n" + j);
+        events.get(j).awaitConnected("n" + i);
+    }
+
+    private void line(int count) throws InterruptedException {
+        createNodes(count);
+        for (int i = 0; i + 1 < count; i++)
+            link(i, i + 1);
+    }
+
+    @Test
+    public void lineCountsHopsUpToTtl() throws Exception {
+        line(5);
+        nodes.get(0).broadcast("far".getBytes(UTF_8), 4);
+
+        for (int i = 1; i < 5; i++)
+            assertEquals("n0/" + i + "/far", events.get(i).awaitRelayed(1).get(0));
+        assertTrue(events.get(0).relayed.isEmpty());
+    }
+
+    @Test
+    public void ttlStopsForwarding() throws Exception {
+        line(5);
+        nodes.get(0).broadcast("near".getBytes(UTF_8), 3);
+
+        assertEquals("n0/3/near", events.get(3).awaitRelayed(1).get(0));
+        Thread.sleep(200);
+        assertTrue(events.get(4).relayed.isEmpty());
+        assertEquals(2, nodes.get(1).getRelayForwarded() + nodes.get(2).getRelayForwarded());
+        assertEquals(0, nodes.get(3).getRelayForwarded());
+    }
+
+    @Test
+    public void nodeWithRelayOffDeliversButDoesNotForward() throws Exception {
+        line(3);
+        nodes.get(1).setRelay(false, "n1");
+        nodes.get(0).broadcast("hi".getBytes(UTF_8), ConnectionManager.DEFAULT_TTL);
+
+        assertEquals("n0/1/hi", events.get(1).awaitRelayed(1).get(0));
+        Thread.sleep(200);
+        assertTrue(events.get(2).relayed.isEmpty());
+    }
+
+    //Every node linked to every other, so each message reaches each node over several paths
+    @Test
+    public void fullMeshDeliversExactlyOnce() throws Exception {
+        int count = 5;
+        int perNode = 50;
+        createNodes(count);
+        for (int i = 0; i < count; i++)
+            for (int j = i + 1; j < count; j++)
+                link(i, j);
+
+        long start = System.nanoTime();
+        for (int n = 0; n < perNode; n++)
+            for (int i = 0; i < count; i++)
+                nodes.get(i).broadcast(("m" + n).getBytes(UTF_8), ConnectionManager.DEFAULT_TTL);
+
+        int expected = (count - 1) * perNode;
+        long duplicates = 0;
+        long hops = 0;
+        long latency = 0;
+        int delivered = 0;
+        for (int i = 0; i < count; i++) {
+            ConnectionManagerTest.RecordingListener e = events.get(i);
+            List<String> got = e.awaitRelayed(expected);
+            Thread.sleep(50);
+            synchronized (e) {
+                assertEquals(expected, e.relayed.size());
+                HashSet<String> unique = new HashSet<>();
+                for (int k = 0; k < got.size(); k++) {
+                    String[] parts = got.get(k).split("/");
+                    assertNotEquals("n" + i, parts[0]);
+                    assertTrue(got.get(k), unique.add(parts[0] + "/" + parts[2]));
+                    hops += Integer.parseInt(parts[1]);
+                    latency += e.relayedNanos.get(k) - start;
+                }
+                delivered += got.size();
+            }
+            duplicates += nodes.get(i).getRelayDuplicates();
+        }
+
+        assertTrue(duplicates > 0);
+        System.out.println(String.format("mesh of %d: delivery %.2f, duplicates per delivery %.2f, "
+                        + "mean hops %.2f, mean delivery %d us after first send",
+                count, delivered / (double) (count * expected), duplicates / (double) delivered,
+                hops / (double) delivered, latency / delivered / 1000));
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MessageCodecTest {
+    private static final String[] SAMPLES = {
+            "",
+            "hello",
+            "h\u00e9llo w\u00f6rld",
+            "\u3053\u3093\u306b\u3061\u306f",
+            "emoji \ud83d\ude00 and \ud83c\udde9\ud83c\uddea",
+            "\u00ff\u0800\uffff\u07ff\u0080",
+    };
+
+    @Test
+    public void roundTripsHeaderAndUtf8() throws Exception {
+        MessageCodec.Message m = new MessageCodec.Message();
+        for (String body : SAMPLES) {
+            byte[] encoded = MessageCodec.encode(Long.MAX_VALUE, 1700000000000L, MessageCodec.FLAG_OUTGOING,
+                    "Zo\u00eb's phone", body);
+            assertEquals(MessageCodec.encodedLength(Long.MAX_VALUE, 1700000000000L, MessageCodec.FLAG_OUTGOING,
+                    "Zo\u00eb's phone", body), encoded.length);
+            //Same bytes as the JDK's encoder
+            byte[] utf8 = body.getBytes("UTF-8");
+            assertArrayEquals(utf8, Arrays.copyOfRange(encoded, encoded.length - utf8.length, encoded.length));
+
+            assertTrue(MessageCodec.decode(encoded, 0, encoded.length, m));
+            assertEquals(Long.MAX_VALUE, m.id);
+            assertEquals(1700000000000L, m.timeMillis);
+            assertEquals(MessageCodec.FLAG_OUTGOING, m.flags);
+            assertEquals("Zo\u00eb's phone", m.getSender());
+            assertEquals(body, m.getBody());
+        }
+    }
+
+    @Test
+    public void decodesAtAnOffsetInAReusedBuffer() {
+        byte[] buffer = new byte[256];
+        MessageCodec.Message m = new MessageCodec.Message();
+        int end = MessageCodec.encode(7, 8, 0, "a", "first", buffer, 10);
+        int second = MessageCodec.encode(300, 9, MessageCodec.FLAG_NOTICE, "", "second", buffer, end);
+
+        assertTrue(MessageCodec.decode(buffer, end, second - end, m));
+        assertEquals(300, m.id);
+        assertEquals("second", m.getBody());
+        assertEquals(0, m.getSenderLength());
+        assertTrue(MessageCodec.decode(buffer, 10, end - 10, m));
+        assertEquals("first", m.getBody());
+    }
+
+    @Test
+    public void plainTextIsReadAsALegacyBody() throws Exception {
+        byte[] old = "h\u00e9llo".getBytes("UTF-8");
+        MessageCodec.Message m = new MessageCodec.Message();
+        assertTrue(MessageCodec.decode(old, 0, old.length, m));
+        assertEquals(MessageCodec.FLAG_LEGACY, m.flags);
+        assertEquals("h\u00e9llo", m.getBody());
+        assertEquals("", m.getSender());
+    }
+
+    @Test
+    public void rejectsTruncatedAndReplacesMalformedUtf8() {
+        byte[] encoded = MessageCodec.encode(1, 2, 0, "sender", "body");
+        MessageCodec.Message m = new MessageCodec.Message();
+        for (int len = 1; len < encoded.length; len++)
+            assertFalse("accepted " + len + " bytes", MessageCodec.decode(encoded, 0, len, m));
+        byte[] longer = Arrays.copyOf(encoded, encoded.length + 1);
+        assertFalse(MessageCodec.decode(longer, 0, longer.length, m));
+
+        //Lone continuation byte, overlong '/', truncated 3 byte sequence, unpaired surrogate
+        byte[] bad = {(byte) 0x80, (byte) 0xC0, (byte) 0xAF, 'x', (byte) 0xE2, (byte) 0x82, 'y'};
+        StringBuilder sb = new StringBuilder();
+        MessageCodec.decodeUtf8(bad, 0, bad.length, sb);
+        assertEquals("\ufffd\ufffd\ufffdx\ufffdy", sb.toString());
+        assertEquals("a\ufffdb", decode("a\ud800b"));
+    }
+
+    @Test
+    public void randomTextMatchesTheJdk() throws Exception {
+        Random random = new Random(3);
+        MessageCodec.Message m = new MessageCodec.Message();
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int n = random.nextInt(40);
+            for (int j = 0; j < n; j++) {
+                int cp = random.nextInt(4) == 0 ? 0x10000 + random.nextInt(0x100000) : random.nextInt(0xD800);
+                sb.appendCodePoint(cp);
+            }
+            String text = sb.toString();
+            byte[] encoded = MessageCodec.encode(i, i, 0, text, text);
+            assertTrue(MessageCodec.decode(encoded, 0, encoded.length, m));
+            assertEquals(text, m.getBody());
+            assertEquals(text.getBytes("UTF-8").length, MessageCodec.utf8Length(text));
+        }
+    }
+
+    @Test
+    public void encodeAndDecodeAllocateNothing() {
+        byte[] buffer = new byte[512];
+        StringBuilder body = new StringBuilder("on my way, see you at the station in ten minutes \u00e9\u2713");
+        StringBuilder out = new StringBuilder(128);
+        MessageCodec.Message m = new MessageCodec.Message();
+        long sum = 0;
+        for (int i = 0; i < 20000; i++)
+            sum += roundTrip(i, body, buffer, m, out);
+
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int messages = 200000;
+        long before = mx.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < messages; i++)
+            sum += roundTrip(i, body, buffer, m, out);
+        double perMessage = (mx.getThreadAllocatedBytes(thread) - before) / (double) messages;
+
+        System.out.printf("codec: %.2f bytes allocated per message%n", perMessage);
+        assertTrue(sum > 0);
+        assertTrue(perMessage < 1.0);
+    }
+
+    private static int roundTrip(int i, CharSequence body, byte[] buffer, MessageCodec.Message m, StringBuilder out) {
+        int end = MessageCodec.encode(i, 1700000000000L + i, 0, "", body, buffer, 0);
+        if (!MessageCodec.decode(buffer, 0, end, m))
+            return -1;
+        out.setLength(0);
+        m.appendBody(out);
+        return out.length();
+    }
+
+    private static String decode(String text) {
+        byte[] encoded = MessageCodec.encode(0, 0, 0, "", text);
+        MessageCodec.Message m = new MessageCodec.Message();
+        assertTrue(MessageCodec.decode(encoded, 0, encoded.length, m));
+        return m.getBody();
+    }
+}
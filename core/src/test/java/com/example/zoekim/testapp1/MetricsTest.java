@@ -0,0 +1,120 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+    private ConnectionManager server;
+    private ConnectionManager client;
+
+    @After
+    public void tearDown() {
+        if (client != null)
+            client.stop();
+        if (server != null)
+            server.stop();
+    }
+
+    @Test
+    public void bucketsCoverEveryValueWithinAnEighth() {
+        assertEquals(0, Metrics.Histogram.bucket(0));
+        assertEquals(7, Metrics.Histogram.bucket(7));
+        assertEquals(Metrics.Histogram.BUCKETS - 1, Metrics.Histogram.bucket(Long.MAX_VALUE));
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long v = random.nextLong() >>> (1 + random.nextInt(63));
+            int b = Metrics.Histogram.bucket(v);
+            long low = Metrics.Histogram.lowerBound(b);
+            assertTrue(v + " below " + low, low <= v);
+            assertTrue(v + " not within an eighth of " + low, v - low <= low / 8);
+            if (b + 1 < Metrics.Histogram.BUCKETS)
+                assertTrue(Metrics.Histogram.lowerBound(b + 1) > v);
+        }
+    }
+
+    @Test
+    public void percentilesAndMean() {
+        Metrics metrics = new Metrics();
+        Metrics.Histogram h = metrics.histogram("latency");
+        for (int i = 1; i <= 1000; i++)
+            h.record(i * 1000L);
+        h.record(-5);
+
+        Metrics.HistogramSnapshot s = metrics.snapshot().getHistogram("latency");
+        assertEquals(1001, s.getCount());
+        assertEquals(1000000, s.getMax());
+        assertEquals(500000, s.getPercentile(0.5), 500000 / 8);
+        assertEquals(990000, s.getPercentile(0.99), 990000 / 8);
+        assertEquals(1000000, s.getPercentile(1.0), 1000000 / 8);
+        assertEquals(500000, s.getMean(), 1000);
+    }
+
+    @Test
+    public void countersAreExactUnderContention() throws Exception {
+        final Metrics metrics = new Metrics();
+        final Metrics.Counter counter = metrics.counter("events");
+        assertSame(counter, metrics.counter("events"));
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 100000; i++)
+                        counter.increment();
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(400000, metrics.snapshot().get("events"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nameKeepsItsType() {
+        Metrics metrics = new Metrics();
+        metrics.counter("x");
+        metrics.histogram("x");
+    }
+
+    @Test
+    public void connectionManagerIsInstrumented() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        ConnectionManagerTest.RecordingListener serverEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManagerTest.RecordingListener clientEvents = new ConnectionManagerTest.RecordingListener();
+        Metrics metrics = new Metrics();
+        server = new ConnectionManager(network.endpoint("server"), serverEvents);
+        client = new ConnectionManager(network.endpoint("client"), clientEvents, 7, metrics);
+        serverEvents.manager = server;
+        clientEvents.manager = client;
+        server.start();
+        int peer = client.connect("server");
+        clientEvents.awaitConnected("server");
+
+        for (int i = 0; i < 20; i++)
+            assertTrue(client.write(peer, ("message " + i).getBytes("UTF-8")));
+        serverEvents.awaitReads(serverEvents.awaitConnected(1), 20);
+        assertTrue(server.write(serverEvents.idOf("client"), new byte[] {1}));
+        clientEvents.awaitReads(peer, 1);
+        //The acks for the last messages may still be on their way, and the writer counts after writing
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((metrics.snapshot().getHistogram("chat.ack.latency").getCount() < 20
+                || metrics.snapshot().get("write.frames") < 21) && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.get("connect.attempts"));
+        assertEquals(1, snapshot.getHistogram("connect.latency").getCount());
+        assertEquals(1, snapshot.get("accept.sessions"));
+        assertEquals(1, snapshot.get("sessions"));
+        assertTrue(snapshot.get("write.frames") >= 21);
+        assertTrue(snapshot.get("read.frames") >= 2);
+        assertTrue(snapshot.get("read.bytes") > 0);
+        assertEquals(20, snapshot.getHistogram("chat.ack.latency").getCount());
+        assertEquals(0, snapshot.get("chat.unacked"));
+        assertTrue(snapshot.toString().contains("chat.ack.latency n=20"));
+    }
+}
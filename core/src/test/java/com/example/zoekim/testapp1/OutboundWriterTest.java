@@ -0,0 +1,308 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class OutboundWriterTest {
+    private final BufferPool pool = new BufferPool();
+    private final List<byte[]> written = Collections.synchronizedList(new ArrayList<byte[]>());
+    private final List<byte[]> dropped = Collections.synchronizedList(new ArrayList<byte[]>());
+    private OutboundWriter writer;
+
+    private final OutboundWriter.Listener listener = new OutboundWriter.Listener() {
+        @Override
+        public void onWritten(int kind, byte[] payload) {
+            written.add(payload);
+        }
+
+        @Override
+        public void onDropped(int kind, byte[] payload) {
+            dropped.add(payload);
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+        }
+    };
+
+    @After
+    public void tearDown() {
+        if (writer != null)
+            writer.cancel();
+    }
+
+    private static byte[] msg(int i) {
+        return ("message " + i).getBytes();
+    }
+
+    private List<byte[]> decode(byte[] stream) throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        new FrameDecoder(pool, new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(int kind, byte[] buffer, int length) {
+                byte[] copy = new byte[length];
+                System.arraycopy(buffer, 0, copy, 0, length);
+                frames.add(copy);
+            }
+        }).feed(stream, 0, stream.length);
+        return frames;
+    }
+
+    private static void waitFor(List<?> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (list.size() < size && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(size, list.size());
+    }
+
+    @Test
+    public void coalescesQueuedFramesIntoOneWrite() throws Exception {
+        GatedStream out = new GatedStream();
+        writer = new OutboundWriter(out, pool, OutboundWriter.Backpressure.BLOCK, listener);
+        Workers.serial("OutboundWriter").execute(writer);
+
+        writer.offer(Frames.KIND_CHAT, msg(0));
+        assertTrue(out.firstWrite.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 100; i++)
+            writer.offer(Frames.KIND_CHAT, msg(i));
+        out.gate.countDown();
+        waitFor(written, 101);
+
+        assertEquals(2, out.writes);
+        List<byte[]> frames = decode(out.toByteArray());
+        assertEquals(101, frames.size());
+        for (int i = 0; i <= 100; i++)
+            assertArrayEquals(msg(i), frames.get(i));
+    }
+
+    @Test
+    public void writtenOnlyAfterBytesReachStream() throws Exception {
+        GatedStream out = new GatedStream();
+        writer = new OutboundWriter(out, pool, OutboundWriter.Backpressure.BLOCK, listener);
+        Workers.serial("OutboundWriter").execute(writer);
+
+        writer.offer(Frames.KIND_CHAT, msg(0));
+        assertTrue(out.firstWrite.await(5, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        assertTrue(written.isEmpty());
+        out.gate.countDown();
+        waitFor(written, 1);
+    }
+
+    @Test
+    public void rejectWhenFull() {
+        writer = new OutboundWriter(new ByteArrayOutputStream(), pool,
+                OutboundWriter.Backpressure.REJECT, listener, 2, 1024);
+        assertTrue(writer.offer(Frames.KIND_CHAT, msg(0)));
+        assertTrue(writer.offer(Frames.KIND_CHAT, msg(1)));
+        assertFalse(writer.offer(Frames.KIND_CHAT, msg(2)));
+        assertEquals(2, writer.queued());
+    }
+
+    @Test
+    public void dropOldestWhenFull() {
+        writer = new OutboundWriter(new ByteArrayOutputStream(), pool,
+                OutboundWriter.Backpressure.DROP_OLDEST, listener, 2, 1024);
+        byte[] first = msg(0);
+        writer.offer(Frames.KIND_CHAT, first);
+        writer.offer(Frames.KIND_CHAT, msg(1));
+        assertTrue(writer.offer(Frames.KIND_CHAT, msg(2)));
+        assertEquals(1, dropped.size());
+        assertSame(first, dropped.get(0));
+        assertEquals(2, writer.queued());
+    }
+
+    @Test
+    public void dropOldestNeverDropsSequencedFrames() {
+        writer = new OutboundWriter(new ByteArrayOutputStream(), pool,
+                OutboundWriter.Backpressure.DROP_OLDEST, listener, 1, 1024);
+        assertTrue(writer.offer(Frames.KIND_SEQ_CHAT, msg(0)));
+        assertFalse(writer.offer(Frames.KIND_CHAT, msg(1)));
+        assertTrue(dropped.isEmpty());
+        assertEquals(1, writer.queued());
+    }
+
+    @Test
+    public void blockWaitsForSpace() throws Exception {
+        GatedStream out = new GatedStream();
+        writer = new OutboundWriter(out, pool, OutboundWriter.Backpressure.BLOCK, listener, 1, 1024);
+        Workers.serial("OutboundWriter").execute(writer);
+        writer.offer(Frames.KIND_CHAT, msg(0));
+        assertTrue(out.firstWrite.await(5, TimeUnit.SECONDS));
+        writer.offer(Frames.KIND_CHAT, msg(1));
+
+        final AtomicBoolean offered = new AtomicBoolean();
+        Thread sender = new Thread() {
+            public void run() {
+                offered.set(writer.offer(Frames.KIND_CHAT, msg(2)));
+            }
+        };
+        sender.start();
+        Thread.sleep(50);
+        assertFalse(offered.get());
+
+        out.gate.countDown();
+        sender.join(5000);
+        assertTrue(offered.get());
+        waitFor(written, 3);
+    }
+
+    @Test
+    public void tryOfferNeverWaitsOrDrops() {
+        writer = new OutboundWriter(new ByteArrayOutputStream(), pool,
+                OutboundWriter.Backpressure.BLOCK, listener, 1, 1024);
+        assertTrue(writer.tryOffer(Frames.KIND_GROUP, msg(0)));
+        assertFalse(writer.tryOffer(Frames.KIND_GROUP, msg(1)));
+        writer = new OutboundWriter(new ByteArrayOutputStream(), pool,
+                OutboundWriter.Backpressure.DROP_OLDEST, listener, 1, 1024);
+        assertTrue(writer.tryOffer(Frames.KIND_GROUP, msg(0)));
+        assertFalse(writer.tryOffer(Frames.KIND_GROUP, msg(1)));
+        assertTrue(dropped.isEmpty());
+    }
+
+    @Test
+    public void controlFramesNeverWaitOrDrop() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer = new OutboundWriter(out, pool, OutboundWriter.Backpressure.BLOCK, listener, 1, 1024);
+        assertTrue(writer.offer(Frames.KIND_CHAT, msg(0)));
+        //Past the limit, where a plain offer would block the reader that owes these
+        for (int i = 1; i <= 5; i++)
+            assertTrue(writer.offerControl(Frames.KIND_CREDIT, msg(i)));
+        assertEquals(6, writer.queued());
+        assertTrue(dropped.isEmpty());
+        Workers.serial("OutboundWriter").execute(writer);
+        waitFor(written, 6);
+
+        List<byte[]> frames = decode(out.toByteArray());
+        for (int i = 1; i <= 5; i++)
+            assertArrayEquals(msg(i), frames.get(i - 1));
+        assertArrayEquals(msg(0), frames.get(5));
+    }
+
+    @Test
+    public void offerFailsAfterCancel() {
+        writer = new OutboundWriter(new ByteArrayOutputStream(), pool,
+                OutboundWriter.Backpressure.BLOCK, listener);
+        writer.cancel();
+        assertFalse(writer.offer(Frames.KIND_CHAT, msg(0)));
+    }
+
+    @Test
+    public void cancelReportsEveryQueuedPayload() {
+        writer = new OutboundWriter(new ByteArrayOutputStream(), pool,
+                OutboundWriter.Backpressure.BLOCK, listener);
+        byte[] chunk = new byte[FileTransfers.CHUNK_PAYLOAD];
+        writer.offer(Frames.KIND_FILE_CHUNK, chunk);
+        writer.offer(Frames.KIND_GROUP, msg(0));
+        writer.offer(Frames.KIND_CHAT, msg(1));
+        writer.cancel();
+        assertEquals(3, dropped.size());
+        assertTrue(dropped.contains(chunk));
+        assertEquals(0, writer.queued());
+        writer.cancel();
+        assertEquals(3, dropped.size());
+    }
+
+    @Test
+    public void chatOvertakesQueuedBulk() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer = new OutboundWriter(out, pool, OutboundWriter.Backpressure.BLOCK, listener);
+        for (int i = 0; i < 20; i++)
+            writer.offer(Frames.KIND_FILE_CHUNK, new byte[FileTransfers.CHUNK_PAYLOAD]);
+        byte[] chat = msg(0);
+        writer.offer(Frames.KIND_CHAT, chat);
+        Workers.serial("OutboundWriter").execute(writer);
+        waitFor(written, 21);
+
+        List<byte[]> frames = decode(out.toByteArray());
+        int at = 0;
+        while (!Arrays.equals(chat, frames.get(at)))
+            at++;
+        //Queued last, sent after at most one bulk frame
+        assertTrue("chat went out as frame " + at, at <= 1);
+    }
+
+    @Test
+    public void unscheduledWriterKeepsOfferOrder() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer = new OutboundWriter(out, pool, OutboundWriter.Backpressure.BLOCK, listener);
+        writer.setScheduled(false);
+        for (int i = 0; i < 5; i++)
+            writer.offer(Frames.KIND_FILE_CHUNK, new byte[1000]);
+        writer.offer(Frames.KIND_CHAT, msg(0));
+        Workers.serial("OutboundWriter").execute(writer);
+        waitFor(written, 6);
+        assertArrayEquals(msg(0), decode(out.toByteArray()).get(5));
+    }
+
+    @Test
+    public void creditStopsOneChannelOnly() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer = new OutboundWriter(out, pool, OutboundWriter.Backpressure.BLOCK, listener);
+        writer.limitCredits(true);
+        int chunks = Frames.BULK_WINDOW / FileTransfers.CHUNK_PAYLOAD;
+        for (int i = 0; i < chunks + 10; i++)
+            writer.offer(Frames.KIND_FILE_CHUNK, new byte[FileTransfers.CHUNK_PAYLOAD]);
+        Workers.serial("OutboundWriter").execute(writer);
+        waitFor(written, chunks);
+        Thread.sleep(20);
+        assertEquals(chunks, written.size());
+
+        //Chat has its own window, and control frames need none
+        writer.offer(Frames.KIND_CHAT, msg(1));
+        writer.offer(Frames.KIND_CREDIT, new byte[Frames.CREDIT_LEN]);
+        waitFor(written, chunks + 2);
+        assertTrue(writer.getCreditWaits() > 0);
+
+        writer.addCredit(Frames.CHANNEL_BULK, 4 * FileTransfers.CHUNK_PAYLOAD);
+        waitFor(written, chunks + 6);
+        writer.limitCredits(false);
+        waitFor(written, chunks + 12);
+    }
+
+    //Holds every write until the gate opens, counting write calls
+    private static class GatedStream extends OutputStream {
+        final CountDownLatch firstWrite = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        volatile int writes;
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            firstWrite.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (data) {
+                data.write(b, off, len);
+            }
+            writes++;
+        }
+
+        byte[] toByteArray() {
+            synchronized (data) {
+                return data.toByteArray();
+            }
+        }
+    }
+}
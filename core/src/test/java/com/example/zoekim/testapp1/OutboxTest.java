@@ -0,0 +1,218 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+    private static final String PEER = "00:11:22:33:44:55";
+
+    private File dir;
+    private final List<Outbox> outboxes = new ArrayList<>();
+    private final List<ConnectionManager> managers = new ArrayList<>();
+    private final MemoryTransport.Network network = new MemoryTransport.Network();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("outbox", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (ConnectionManager m : managers)
+            m.stop();
+        for (Outbox o : outboxes)
+            o.close();
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++)
+            files[i].delete();
+        dir.delete();
+    }
+
+    private Outbox open() {
+        Outbox o = new Outbox(dir);
+        outboxes.add(o);
+        return o;
+    }
+
+    private File file() {
+        return new File(dir, ChatLogStore.fileName(PEER) + Outbox.EXT);
+    }
+
+    @Test
+    public void pendingMessagesSurviveReopenUntilAcknowledged() throws IOException {
+        Outbox o = open();
+        for (int i = 0; i < 10; i++)
+            assertEquals(i + 1, o.append(PEER, new byte[] {(byte) i}));
+        o.acknowledge(PEER, 4);
+        o.close();
+
+        Outbox reopened = open();
+        assertEquals(6, reopened.pending(PEER));
+        assertEquals(java.util.Collections.singletonList(PEER), reopened.addresses());
+        List<Outbox.Entry> rest = reopened.after(PEER, 0, Integer.MAX_VALUE);
+        assertEquals(5, rest.get(0).id);
+        assertArrayEquals(new byte[] {4}, rest.get(0).body);
+        //Ids carry on where they left off
+        assertEquals(11, reopened.append(PEER, new byte[0]));
+
+        reopened.acknowledge(PEER, 11);
+        assertEquals(0, reopened.pending(PEER));
+        assertEquals(Outbox.FILE_HEADER_LEN, file().length());
+        assertTrue(reopened.addresses().isEmpty());
+    }
+
+    @Test
+    public void tornRecordIsDropped() throws IOException {
+        Outbox o = open();
+        o.append(PEER, new byte[] {1, 2, 3});
+        o.append(PEER, new byte[] {4, 5, 6});
+        o.close();
+        RandomAccessFile raf = new RandomAccessFile(file(), "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+
+        Outbox reopened = open();
+        assertEquals(1, reopened.pending(PEER));
+        assertEquals(2, reopened.append(PEER, new byte[] {7}));
+        reopened.close();
+        assertEquals(2, open().pending(PEER));
+    }
+
+    @Test
+    public void batchesStopAtTheByteLimitButTakeAtLeastOne() throws IOException {
+        Outbox o = open();
+        o.append(PEER, new byte[100]);
+        o.append(PEER, new byte[100]);
+        o.append(PEER, new byte[100]);
+        assertEquals(1, o.after(PEER, 0, 0).size());
+        assertEquals(2, o.after(PEER, 0, 250).size());
+        assertEquals(1, o.after(PEER, 2, 250).size());
+    }
+
+    @Test
+    public void compactsOnceMostOfTheFileIsAcknowledged() throws IOException {
+        Outbox o = open();
+        byte[] body = new byte[1000];
+        for (int i = 0; i < 400; i++)
+            o.append(PEER, body);
+        o.acknowledge(PEER, 350);
+        assertTrue(file().length() < 60 * 1024);
+        o.close();
+        Outbox reopened = open();
+        assertEquals(50, reopened.pending(PEER));
+        assertEquals(351, reopened.after(PEER, 0, 0).get(0).id);
+    }
+
+    @Test
+    public void backlogQueuedOfflineArrivesInOrderInFewFrames() throws Exception {
+        ConnectionManagerTest.RecordingListener serverEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManagerTest.RecordingListener clientEvents = new ConnectionManagerTest.RecordingListener();
+        Metrics serverMetrics = new Metrics();
+        ConnectionManager server = new ConnectionManager(network.endpoint("server"), serverEvents,
+                ConnectionManager.DEFAULT_MAX_PEERS, serverMetrics);
+        ConnectionManager client = new ConnectionManager(network.endpoint("client"), clientEvents);
+        serverEvents.manager = server;
+        clientEvents.manager = client;
+        managers.add(server);
+        managers.add(client);
+        client.setReconnect(false, 0, 0);
+        client.setOutbox(open());
+
+        //Nobody is listening yet, the dial fails but the peer keeps its id
+        int peer = client.connect("server");
+        clientEvents.awaitFailure(peer);
+        int total = 5000;
+        for (int i = 0; i < total; i++)
+            assertTrue(client.write(peer, ("queued " + i).getBytes("UTF-8")));
+
+        server.start();
+        assertEquals(peer, client.connect("server"));
+        List<byte[]> reads = serverEvents.awaitReads(serverEvents.awaitConnected(1), total);
+        for (int i = 0; i < total; i++)
+            assertEquals("queued " + i, new String(reads.get(i), "UTF-8"));
+        long frames = serverMetrics.snapshot().get("read.frames");
+        System.out.println(String.format("outbox: %d messages in %d frames", total, frames));
+        assertTrue(frames < total / 20);
+
+        //Acknowledged messages leave the outbox
+        long deadline = System.currentTimeMillis() + 5000;
+        while (outboxes.get(0).pending("server") > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(0, outboxes.get(0).pending("server"));
+    }
+
+    @Test
+    public void senderRestartedBeforeTheAckDeliversOnce() throws Exception {
+        final CountDownLatch read = new CountDownLatch(1);
+        final CountDownLatch restarted = new CountDownLatch(1);
+        ConnectionManagerTest.RecordingListener serverEvents = new ConnectionManagerTest.RecordingListener() {
+            @Override
+            public void onRead(int peer, byte[] buffer, int length) {
+                super.onRead(peer, buffer, length);
+                read.countDown();
+                //Holds the reader, so no ack goes out before the sender is gone
+                try {
+                    restarted.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        ConnectionManager server = new ConnectionManager(network.endpoint("server"), serverEvents);
+        serverEvents.manager = server;
+        managers.add(server);
+        server.start();
+
+        ConnectionManagerTest.RecordingListener firstEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManager first = new ConnectionManager(network.endpoint("client"), firstEvents);
+        firstEvents.manager = first;
+        first.setReconnect(false, 0, 0);
+        Outbox box = open();
+        first.setOutbox(box);
+        int peer = first.connect("server");
+        firstEvents.awaitConnected("server");
+        assertTrue(first.write(peer, "only once".getBytes("UTF-8")));
+        assertTrue(read.await(5, TimeUnit.SECONDS));
+
+        //The app dies with the message delivered but not acknowledged
+        first.stop();
+        box.close();
+        restarted.countDown();
+        serverEvents.awaitLoss(serverEvents.idOf("client"));
+
+        ConnectionManagerTest.RecordingListener againEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManager again = new ConnectionManager(network.endpoint("client"), againEvents);
+        againEvents.manager = again;
+        managers.add(again);
+        Outbox reopened = open();
+        assertEquals(1, reopened.pending("server"));
+        again.setOutbox(reopened);
+        again.connect("server");
+        againEvents.awaitConnected("server");
+
+        //The server's hello says it has the message, so it leaves the outbox unsent
+        long deadline = System.currentTimeMillis() + 5000;
+        while (reopened.pending("server") > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(0, reopened.pending("server"));
+        assertTrue(again.write(again.getConnectedPeers().get(0), "next".getBytes("UTF-8")));
+        List<byte[]> reads = serverEvents.awaitReads(serverEvents.idOf("client"), 2);
+        assertEquals(2, reads.size());
+        assertEquals("only once", new String(reads.get(0), "UTF-8"));
+        assertEquals("next", new String(reads.get(1), "UTF-8"));
+        assertEquals(0, server.getChatDuplicates());
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PagedHistoryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ChatLogStore store;
+    private final Executor direct = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    private final PagedHistory.Listener ignore = new PagedHistory.Listener() {
+        @Override
+        public void onChanged() {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        store = new ChatLogStore(folder.newFolder("chatlogs"));
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    private void fill(String peer, int count) {
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            lines.add("line " + i);
+        store.importLegacy(peer, lines, null);
+    }
+
+    //Returns once the newest page has arrived, woken by the listener rather than polling
+    private PagedHistory open(String peer) throws Exception {
+        final CountDownLatch arrived = new CountDownLatch(1);
+        PagedHistory history = new PagedHistory(store, peer, 50, 4, direct, new PagedHistory.Listener() {
+            @Override
+            public void onChanged() {
+                arrived.countDown();
+            }
+        });
+        history.open();
+        assertTrue(arrived.await(5, TimeUnit.SECONDS));
+        assertTrue(history.isOpened());
+        return history;
+    }
+
+    //get() until the page holding position has been read
+    private String await(PagedHistory history, int position) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        ChatLine line;
+        while ((line = history.get(position)) == null && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        return line != null ? line.body : null;
+    }
+
+    @Test
+    public void opensOnNewestPageOnly() throws Exception {
+        fill("peer", 1234);
+        PagedHistory history = open("peer");
+
+        assertEquals(1234, history.size());
+        assertEquals(1, history.pagesInMemory());
+        assertEquals("line 1233", history.get(1233).body);
+        assertEquals("line 1200", history.get(1200).body);
+        assertNull(history.get(0));
+        assertEquals("line 0", await(history, 0));
+    }
+
+    @Test
+    public void scrollingKeepsPagesBounded() throws Exception {
+        fill("peer", 5000);
+        PagedHistory history = open("peer");
+
+        for (int i = history.size() - 1; i >= 0; i--) {
+            assertEquals("line " + i, await(history, i));
+            assertTrue(history.pagesInMemory() <= 4);
+        }
+    }
+
+    @Test
+    public void addedLinesShowAtTheEndAndPersist() throws Exception {
+        fill("peer", 100);
+        PagedHistory history = new PagedHistory(store, "peer", 50, 4, direct, ignore);
+        history.open();
+        history.add(ChatLogStoreTest.line("early"));
+        while (!history.isOpened())
+            Thread.sleep(1);
+        for (int i = 0; i < 60; i++)
+            history.add(ChatLogStoreTest.line("new " + i));
+
+        assertEquals(161, history.size());
+        assertEquals("early", history.get(100).body);
+        assertEquals("new 59", history.get(160).body);
+        assertEquals("line 99", await(history, 99));
+        assertEquals(161, store.count("peer"));
+        assertEquals("new 59", store.read("peer", 160, 1).get(0).body);
+    }
+
+    @Test
+    public void openCostDoesNotGrowWithHistory() throws Exception {
+        fill("small", 100);
+        fill("large", 100000);
+        store.flush();
+
+        long small = Long.MAX_VALUE;
+        long large = Long.MAX_VALUE;
+        PagedHistory smallHistory = null;
+        PagedHistory largeHistory = null;
+        //Best of many rounds, after the first ones have warmed up the code and the page cache
+        for (int round = 0; round < 50; round++) {
+            long start = System.nanoTime();
+            smallHistory = open("small");
+            small = Math.min(small, System.nanoTime() - start);
+            assertEquals("line 99", smallHistory.get(99).body);
+
+            start = System.nanoTime();
+            largeHistory = open("large");
+            large = Math.min(large, System.nanoTime() - start);
+            assertEquals("line 99999", largeHistory.get(99999).body);
+            assertEquals(1, largeHistory.pagesInMemory());
+        }
+        long smallBytes = smallHistory.estimatedBytes();
+        long largeBytes = largeHistory.estimatedBytes();
+        System.out.println("open: " + small / 1000 + " us and " + smallBytes + " bytes at 100 lines, "
+                + large / 1000 + " us and " + largeBytes + " bytes at 100k");
+        //A thousand times the lines, one page read either way
+        assertTrue(large + " ns against " + small, large < small * 3 + 100000);
+        //Only the digits of the longer line numbers differ
+        assertTrue(largeBytes + " bytes against " + smallBytes, largeBytes < smallBytes * 11 / 10);
+    }
+}
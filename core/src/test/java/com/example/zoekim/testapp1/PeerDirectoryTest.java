@@ -0,0 +1,156 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PeerDirectoryTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long MS = 1000000L;
+
+    private File dir;
+    private final List<PeerDirectory> directories = new ArrayList<>();
+    private final List<ConnectionManager> managers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("peers", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (ConnectionManager m : managers)
+            m.stop();
+        for (PeerDirectory d : directories)
+            d.close();
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++)
+            files[i].delete();
+        dir.delete();
+    }
+
+    private PeerDirectory open() {
+        PeerDirectory d = new PeerDirectory(new File(dir, "peers.dat"));
+        directories.add(d);
+        return d;
+    }
+
+    @Test
+    public void ranksReliableRecentFastPeersFirst() {
+        PeerDirectory d = open();
+        long now = 1000 * HOUR;
+        //Reliable and fast, seen an hour ago
+        for (int i = 0; i < 5; i++)
+            d.recordConnect("fast", "Fast", true, 80 * MS, now - HOUR);
+        //Reliable but slow
+        for (int i = 0; i < 5; i++)
+            d.recordConnect("slow", "Slow", true, 2000 * MS, now - HOUR);
+        //Fails most of the time
+        d.recordConnect("flaky", "Flaky", true, 80 * MS, now - HOUR);
+        for (int i = 0; i < 6; i++)
+            d.recordConnect("flaky", null, false, 0, now - HOUR);
+        //Good, but not seen for two weeks
+        for (int i = 0; i < 5; i++)
+            d.recordConnect("stale", "Stale", true, 80 * MS, now - 14 * 24 * HOUR);
+        //Only ever connected to us
+        d.recordSeen("incoming", "Incoming", now);
+
+        List<PeerDirectory.Entry> ranked = d.ranked(10, now);
+        assertEquals("fast", ranked.get(0).address);
+        assertEquals(ranked.get(ranked.size() - 1).address, "stale");
+        assertTrue(indexOf(ranked, "slow") < indexOf(ranked, "flaky"));
+        assertEquals(3, d.ranked(3, now).size());
+
+        PeerDirectory.Entry flaky = d.get("flaky");
+        assertEquals("Flaky", flaky.name);
+        assertEquals(7, flaky.attempts);
+        assertEquals(1, flaky.successes);
+        assertEquals(80, flaky.latencyMillis);
+        assertEquals(-1, d.get("incoming").latencyMillis);
+        assertEquals("fast", d.best(now).address);
+        //Nothing reached within the last week is worth dialing unasked
+        assertNull(d.best(now + 8 * 24 * HOUR));
+    }
+
+    @Test
+    public void survivesRestartAndEvictsTheWorstWhenFull() {
+        PeerDirectory d = open();
+        long now = 1000 * HOUR;
+        for (int i = 0; i < PeerDirectory.MAX_ENTRIES + 5; i++)
+            d.recordConnect("peer" + i, "Peer " + i, true, (10 + i) * MS, now);
+        d.close();
+
+        PeerDirectory reopened = open();
+        List<PeerDirectory.Entry> ranked = reopened.ranked(1000, now);
+        assertEquals(PeerDirectory.MAX_ENTRIES, ranked.size());
+        //The slowest were evicted
+        assertEquals("peer0", ranked.get(0).address);
+        assertNull(reopened.get("peer" + (PeerDirectory.MAX_ENTRIES + 4)));
+        assertEquals("Peer 3", reopened.get("peer3").name);
+        assertEquals(13, reopened.get("peer3").latencyMillis);
+    }
+
+    @Test
+    public void managerRecordsDialsAndRedialsTheBestPeerAfterRestart() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        ConnectionManagerTest.RecordingListener serverEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManager server = new ConnectionManager(network.endpoint("server"), serverEvents);
+        serverEvents.manager = server;
+        managers.add(server);
+        PeerDirectory serverPeers = new PeerDirectory(new File(dir, "server.dat"));
+        directories.add(serverPeers);
+        server.setPeerDirectory(serverPeers);
+        server.start();
+
+        PeerDirectory d = open();
+        ConnectionManagerTest.RecordingListener events = new ConnectionManagerTest.RecordingListener();
+        ConnectionManager client = new ConnectionManager(network.endpoint("client"), events);
+        events.manager = client;
+        managers.add(client);
+        client.setReconnect(false, 0, 0);
+        client.setPeerDirectory(d);
+        events.awaitFailure(client.connect("nobody"));
+        client.connect("server");
+        events.awaitConnected("server");
+        serverEvents.awaitConnected("client");
+        client.stop();
+        d.close();
+
+        assertEquals(0, d.get("nobody").successes);
+        assertEquals(1, d.get("nobody").attempts);
+        assertEquals(1, d.get("server").successes);
+        assertTrue(d.get("server").latencyMillis >= 0);
+        //The server only saw the client arrive
+        assertEquals(0, serverPeers.get("client").attempts);
+
+        //Next launch: the directory alone says whom to dial
+        long launched = System.nanoTime();
+        PeerDirectory restarted = open();
+        ConnectionManagerTest.RecordingListener restartedEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManager again = new ConnectionManager(network.endpoint("client"), restartedEvents);
+        restartedEvents.manager = again;
+        managers.add(again);
+        again.setPeerDirectory(restarted);
+        PeerDirectory.Entry best = restarted.best();
+        assertEquals("server", best.address);
+        again.connect(best.address);
+        restartedEvents.awaitConnected("server");
+        System.out.printf("directory: first connection %.2f ms after launch%n", (System.nanoTime() - launched) / 1e6);
+    }
+
+    private static int indexOf(List<PeerDirectory.Entry> ranked, String address) {
+        for (int i = 0; i < ranked.size(); i++)
+            if (ranked.get(i).address.equals(address))
+                return i;
+        return -1;
+    }
+}
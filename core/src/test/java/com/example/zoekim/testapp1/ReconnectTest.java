@@ -0,0 +1,136 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReconnectTest {
+    private final MemoryTransport.Network network = new MemoryTransport.Network();
+    private final List<ConnectionManager> managers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ConnectionManager m : managers)
+            m.stop();
+    }
+
+    private ConnectionManager manager(String address, ConnectionManagerTest.RecordingListener events) {
+        ConnectionManager m = new ConnectionManager(network.endpoint(address), events);
+        m.setReconnect(true, 20, 200);
+        events.manager = m;
+        managers.add(m);
+        return m;
+    }
+
+    private static void awaitConnected(ConnectionManager m, int peer) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (m.getState(peer) != ConnectionManager.BT_CONNECTED && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(ConnectionManager.BT_CONNECTED, m.getState(peer));
+    }
+
+    @Test
+    public void droppedLinkResumesWithoutLossOrDuplicates() throws Exception {
+        ConnectionManagerTest.RecordingListener serverEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManagerTest.RecordingListener clientEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManager server = manager("server", serverEvents);
+        ConnectionManager client = manager("client", clientEvents);
+        server.start();
+        int peer = client.connect("server");
+        awaitConnected(client, peer);
+
+        int total = 2000;
+        long recoverMillis = 0;
+        for (int i = 0; i < total; i++) {
+            if (i == total / 2) {
+                long dropped = System.nanoTime();
+                network.dropLinks();
+                clientEvents.awaitLoss(peer);
+                awaitConnected(client, peer);
+                recoverMillis = (System.nanoTime() - dropped) / 1000000;
+            }
+            //A write refused while too much is unacknowledged is tried again, so every message is accepted once
+            while (!client.write(peer, ("message " + i).getBytes("UTF-8")))
+                Thread.sleep(1);
+        }
+
+        serverEvents.awaitReads(serverEvents.idOf("client"), total);
+        //Late duplicates would show up as extra reads
+        Thread.sleep(50);
+        List<byte[]> reads = serverEvents.awaitReads(serverEvents.idOf("client"), total);
+        int lost = 0;
+        for (int i = 0; i < total; i++)
+            if (i >= reads.size() || !new String(reads.get(i), "UTF-8").equals("message " + i))
+                lost++;
+        System.out.println(String.format("reconnect: recovered in %d ms, %d lost, %d replayed, %d duplicates dropped",
+                recoverMillis, lost, client.getChatReplayed(), server.getChatDuplicates()));
+        assertEquals(0, lost);
+        assertEquals(total, reads.size());
+        assertTrue(client.getReconnects() >= 1);
+    }
+
+    @Test
+    public void restartedPeerStartsSequenceOver() throws Exception {
+        ConnectionManagerTest.RecordingListener serverEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManagerTest.RecordingListener clientEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManager server = manager("server", serverEvents);
+        ConnectionManager client = manager("client", clientEvents);
+        server.start();
+        int peer = client.connect("server");
+        int toClient = serverEvents.awaitConnected(1);
+        for (int i = 0; i < 5; i++)
+            assertTrue(server.write(toClient, new byte[] {(byte) i}));
+        clientEvents.awaitReads(peer, 5);
+
+        server.stop();
+        ConnectionManagerTest.RecordingListener restartedEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManager restarted = manager("server", restartedEvents);
+        restarted.start();
+        int again = restartedEvents.awaitConnected(1);
+        awaitConnected(client, peer);
+
+        //Numbered from 1 again, which the client must not take for a duplicate
+        assertTrue(restarted.write(again, new byte[] {42}));
+        assertArrayEquals(new byte[] {42}, clientEvents.awaitReads(peer, 6).get(5));
+        assertTrue(client.write(peer, new byte[] {7}));
+        assertArrayEquals(new byte[] {7}, restartedEvents.awaitReads(again, 1).get(0));
+    }
+
+    @Test
+    public void disconnectDoesNotRedial() throws Exception {
+        ConnectionManagerTest.RecordingListener serverEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManagerTest.RecordingListener clientEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManager server = manager("server", serverEvents);
+        ConnectionManager client = manager("client", clientEvents);
+        server.start();
+        int peer = client.connect("server");
+        awaitConnected(client, peer);
+
+        client.disconnect(peer);
+        clientEvents.awaitLoss(peer);
+        Thread.sleep(100);
+        assertEquals(ConnectionManager.BT_NONE, client.getState(peer));
+        assertEquals(0, client.getReconnects());
+    }
+
+    @Test
+    public void unreachablePeerIsGivenUp() throws Exception {
+        ConnectionManagerTest.RecordingListener serverEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManagerTest.RecordingListener clientEvents = new ConnectionManagerTest.RecordingListener();
+        ConnectionManager server = manager("server", serverEvents);
+        ConnectionManager client = manager("client", clientEvents);
+        client.setReconnect(true, 1, 4);
+        server.start();
+        int peer = client.connect("server");
+        awaitConnected(client, peer);
+
+        server.stop();
+        clientEvents.awaitFailure(peer);
+        assertEquals(ConnectionManager.RECONNECT_ATTEMPTS, client.getReconnects());
+        assertEquals(ConnectionManager.BT_NONE, client.getState(peer));
+    }
+}
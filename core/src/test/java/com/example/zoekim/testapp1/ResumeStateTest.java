@@ -0,0 +1,68 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ResumeStateTest {
+    private final List<Long> written = Collections.synchronizedList(new ArrayList<Long>());
+
+    @Test
+    public void fullWriterNeitherBlocksNorLosesMessages() throws Exception {
+        final ResumeState resume = new ResumeState(1, 8, new Metrics().histogram("ack"));
+        //A writer with room for one frame, which would block a sender under the lock before
+        OutboundWriter writer = new OutboundWriter(new ByteArrayOutputStream(), new BufferPool(),
+                OutboundWriter.Backpressure.BLOCK, new OutboundWriter.Listener() {
+            @Override
+            public void onWritten(int kind, byte[] payload) {
+                //Takes the resume lock on the writer thread, as the session's listener does
+                if (resume.markWritten(ChatLogStore.getLong(payload, 0)))
+                    written.add(ChatLogStore.getLong(payload, 0));
+                if (resume.clearStalled())
+                    resume.retry();
+            }
+
+            @Override
+            public void onDropped(int kind, byte[] payload) {
+                fail("dropped " + kind);
+            }
+
+            @Override
+            public void onWriteFailed(IOException e) {
+            }
+        }, 1, 1024);
+        resume.onHello(writer, true, false, 2, 1, 0);
+
+        for (int i = 0; i < 5; i++)
+            assertTrue(resume.send(("message " + i).getBytes()));
+        assertEquals(1, writer.queued());
+        assertEquals(5, resume.unacknowledged());
+
+        Workers.serial("OutboundWriter").execute(writer);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (written.size() < 5 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        writer.cancel();
+        assertEquals("[1, 2, 3, 4, 5]", written.toString());
+    }
+
+    @Test
+    public void plainPeerGetsWhatDidNotFitLater() {
+        ResumeState resume = new ResumeState(1, 8, new Metrics().histogram("ack"));
+        for (int i = 0; i < 3; i++)
+            assertTrue(resume.send(("message " + i).getBytes()));
+        OutboundWriter writer = new OutboundWriter(new ByteArrayOutputStream(), new BufferPool(),
+                OutboundWriter.Backpressure.DROP_OLDEST, null, 2, 1024);
+        //Without resume nothing is acknowledged, only what the writer took is let go
+        resume.onHello(writer, false, false, 0, 0, 0);
+        assertEquals(2, writer.queued());
+        assertEquals(1, resume.unacknowledged());
+        assertTrue(resume.clearStalled());
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String where(SearchIndex.Hit hit) {
+        return hit.peer + "#" + hit.offset;
+    }
+
+    @Test
+    public void tokenAndPrefixQueriesAcrossPeers() {
+        SearchIndex index = new SearchIndex();
+        index.add("alice", 0, "Me: see you at the Station");
+        index.add("bob", 0, "bob:  station closed, take the bus");
+        index.add("alice", 1, "alice:  stationery shop?");
+        index.add("bob", 1, "Me: ok");
+
+        List<SearchIndex.Hit> hits = index.search("station", 10);
+        assertEquals(2, hits.size());
+        assertEquals("bob#0", where(hits.get(0)));
+        assertEquals("alice#0", where(hits.get(1)));
+
+        assertEquals(3, index.search("STAT*", 10).size());
+        assertEquals("bob#0", where(index.search("the stat*", 10).get(0)));
+        assertEquals(1, index.search("bus station", 10).size());
+        assertTrue(index.search("train", 10).isEmpty());
+        assertTrue(index.search("  ", 10).isEmpty());
+    }
+
+    @Test
+    public void rarerAndRepeatedTermsRankHigher() {
+        SearchIndex index = new SearchIndex();
+        for (int i = 0; i < 50; i++)
+            index.add("p", i, "hello there " + i);
+        index.add("p", 50, "hello hello hello");
+        index.add("p", 51, "hello zebra");
+
+        assertEquals("p#50", where(index.search("hello", 1).get(0)));
+        List<SearchIndex.Hit> hits = index.search("hello*", 3);
+        assertEquals(Arrays.asList("p#50", "p#51", "p#49"),
+                Arrays.asList(where(hits.get(0)), where(hits.get(1)), where(hits.get(2))));
+        assertEquals("p#51", where(index.search("zeb* hello", 5).get(0)));
+    }
+
+    @Test
+    public void prefixCountsEveryTermItExpandsTo() {
+        SearchIndex index = new SearchIndex();
+        //Each a rare term of its own, none may be left out for being rare
+        for (int i = 0; i < 500; i++)
+            index.add("p", i, "ticket" + i);
+        index.add("p", 500, "ticket7 ticket8");
+        assertEquals(501, index.search("ticket*", 1000).size());
+        assertEquals("p#500", where(index.search("ticket*", 1).get(0)));
+    }
+
+    @Test
+    public void savedIndexReplaysOnlyNewLines() throws Exception {
+        File file = new File(folder.getRoot(), "search.idx");
+        ChatLogStore store = new ChatLogStore(folder.newFolder("chatlogs"));
+        try {
+            for (int i = 0; i < 100; i++)
+                store.append("erin", ChatLogStoreTest.line("erin:  old news " + i));
+            SearchIndex first = new SearchIndex();
+            store.setAppendListener(first);
+            assertTrue(store.awaitReplay(5000));
+            first.save(file);
+            store.append("erin", ChatLogStoreTest.line("Me: fresh news"));
+            store.append("finn", ChatLogStoreTest.line("finn:  fresh too"));
+            store.flush();
+
+            //A later launch: what was saved comes from the file, only the two new lines from the logs
+            SearchIndex index = new SearchIndex();
+            assertTrue(index.load(file));
+            assertEquals(100, index.documents());
+            assertEquals(Integer.valueOf(100), index.indexedLines().get("erin"));
+            store.setAppendListener(index, index.indexedLines());
+            assertTrue(store.awaitReplay(5000));
+
+            assertEquals(102, index.documents());
+            assertEquals(100, index.search("old", 1000).size());
+            assertEquals(2, index.search("fresh", 10).size());
+            assertEquals("erin#100", where(index.search("fresh news", 10).get(0)));
+            assertEquals("erin#42", where(index.search("42", 10).get(0)));
+        } finally {
+            store.close();
+        }
+        assertFalse(new SearchIndex().load(new File(folder.getRoot(), "missing.idx")));
+    }
+
+    @Test
+    public void followsStoreReplayThenAppends() throws Exception {
+        ChatLogStore store = new ChatLogStore(folder.newFolder("chatlogs"));
+        try {
+            store.append("caf\u00e9", ChatLogStoreTest.line("Me: lunch at noon"));
+            store.append("dan", ChatLogStoreTest.line("dan:  lunch?"));
+            store.flush();
+
+            SearchIndex index = new SearchIndex();
+            store.setAppendListener(index);
+            store.append("dan", ChatLogStoreTest.line("Me: lunch tomorrow then"));
+            store.flush();
+            assertTrue(store.awaitReplay(5000));
+
+            assertEquals(3, index.documents());
+            assertEquals(3, index.search("lunch", 10).size());
+            SearchIndex.Hit hit = index.search("tomorrow", 10).get(0);
+            assertEquals("dan#1", where(hit));
+            assertEquals("Me: lunch tomorrow then", store.read(hit.peer, hit.offset, 1).get(0).body);
+            assertEquals("caf\u00e9#0", where(index.search("noon", 10).get(0)));
+        } finally {
+            store.close();
+        }
+    }
+}
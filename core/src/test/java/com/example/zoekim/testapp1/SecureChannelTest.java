@@ -0,0 +1,190 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SecureChannelTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //Counts what the reader takes off the wire and can flip one byte of it
+    static class Tap extends FilterInputStream {
+        long count;
+        long corruptAt = -1;
+
+        Tap(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (corruptAt >= count && corruptAt < count + n)
+                b[off + (int) (corruptAt - count)] ^= 1;
+            count += Math.max(n, 0);
+            return n;
+        }
+    }
+
+    private BytePipe toB;
+    private BytePipe toA;
+    private Tap tap;
+    private SecureChannel a;
+    private SecureChannel b;
+
+    @Before
+    public void setUp() throws Exception {
+        toB = new BytePipe(256 * 1024);
+        toA = new BytePipe(256 * 1024);
+        tap = new Tap(toB.getInputStream());
+        a = new SecureChannel(toA.getInputStream(), toB.getOutputStream());
+        b = new SecureChannel(tap, toA.getOutputStream());
+    }
+
+    private void handshake() throws Exception {
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    a.handshake();
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }
+        };
+        other.start();
+        b.handshake();
+        other.join(5000);
+        assertNull(failure.get());
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int filled = 0;
+        while (filled < length) {
+            int n = in.read(data, filled, length - filled);
+            if (n < 0)
+                throw new IOException("Short read " + filled);
+            filled += n;
+        }
+        return data;
+    }
+
+    @Test
+    public void bothSidesReadWhatTheOtherWrote() throws Exception {
+        handshake();
+        assertTrue(a.getVerificationCode() >= 0 && a.getVerificationCode() < 1000000);
+        assertEquals(a.getVerificationCode(), b.getVerificationCode());
+
+        byte[] large = new byte[3 * SecureChannel.MAX_RECORD + 100];
+        new Random(7).nextBytes(large);
+        byte[] hello = "hello over the air".getBytes(UTF_8);
+        a.getOutputStream().write(hello);
+        a.getOutputStream().write(large);
+        b.getOutputStream().write(hello);
+
+        assertArrayEquals(hello, readFully(b.getInputStream(), hello.length));
+        assertArrayEquals(large, readFully(b.getInputStream(), large.length));
+        assertArrayEquals(hello, readFully(a.getInputStream(), hello.length));
+        //The large write went out as four records
+        assertEquals(0, b.getInputStream().available());
+    }
+
+    @Test
+    public void wireCarriesNoPlaintext() throws Exception {
+        handshake();
+        byte[] line = "meet me at the north entrance".getBytes(UTF_8);
+        a.getOutputStream().write(line);
+        a.getOutputStream().write(line);
+        byte[] wire = readFully(toB.getInputStream(), 2 * (SecureChannel.RECORD_HEADER + line.length + SecureChannel.TAG_LEN));
+        String seen = new String(wire, UTF_8);
+        assertFalse(seen.contains("north"));
+        //The keystream runs on, so the same line does not encrypt the same way twice
+        int record = SecureChannel.RECORD_HEADER + line.length + SecureChannel.TAG_LEN;
+        assertFalse(Arrays.equals(Arrays.copyOfRange(wire, 0, record), Arrays.copyOfRange(wire, record, 2 * record)));
+    }
+
+    @Test
+    public void alteredRecordIsRejected() throws Exception {
+        handshake();
+        tap.corruptAt = tap.count + SecureChannel.RECORD_HEADER + 3;
+        a.getOutputStream().write("transfer 10 to bob".getBytes(UTF_8));
+        try {
+            b.getInputStream().read(new byte[64]);
+            fail("Read an altered record");
+        } catch (IOException e) {
+            assertEquals("Record failed authentication", e.getMessage());
+        }
+    }
+
+    @Test
+    public void droppedRecordIsRejected() throws Exception {
+        handshake();
+        byte[] first = "first".getBytes(UTF_8);
+        a.getOutputStream().write(first);
+        a.getOutputStream().write("second".getBytes(UTF_8));
+        //Whoever sits on the link swallows the first record whole
+        readFully(tap, SecureChannel.RECORD_HEADER + first.length + SecureChannel.TAG_LEN);
+        try {
+            b.getInputStream().read(new byte[64]);
+            fail("Read past a dropped record");
+        } catch (IOException e) {
+            assertEquals("Record failed authentication", e.getMessage());
+        }
+    }
+
+    @Test
+    public void peerSpeakingPlainFramesIsRefused() throws Exception {
+        //A peer without encryption opens with its hello frame
+        byte[] hello = new byte[FrameDecoder.HEADER_LEN + Frames.HELLO_LEN];
+        ChatLogStore.putInt(hello, 0, Frames.HELLO_LEN);
+        toB.getOutputStream().write(hello);
+        try {
+            b.handshake();
+            fail("Keyed with a plain peer");
+        } catch (IOException e) {
+            assertEquals("Peer does not encrypt", e.getMessage());
+        }
+        assertEquals(-1, b.getVerificationCode());
+    }
+
+    @Test
+    public void recordsAllocateNothing() throws Exception {
+        handshake();
+        byte[] message = new byte[1024];
+        byte[] received = new byte[1024];
+        InputStream in = b.getInputStream();
+        long sum = 0;
+        for (int i = 0; i < 1000; i++) {
+            a.getOutputStream().write(message);
+            sum += in.read(received, 0, received.length);
+        }
+
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int records = 50000;
+        long before = mx.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < records; i++) {
+            message[0] = (byte) i;
+            a.getOutputStream().write(message);
+            sum += in.read(received, 0, received.length) + received[0];
+        }
+        double perRecord = (mx.getThreadAllocatedBytes(thread) - before) / (double) records;
+
+        System.out.printf("secure channel: %.2f bytes allocated per 1 KB record%n", perRecord);
+        assertTrue(sum > 0);
+        assertTrue(perRecord < 1.0);
+    }
+}
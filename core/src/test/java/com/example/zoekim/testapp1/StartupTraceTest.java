@@ -0,0 +1,54 @@
+package com.example.zoekim.testapp1;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StartupTraceTest {
+    @Test
+    public void sectionsAndMilestonesAreRecordedOnce() throws Exception {
+        Metrics metrics = new Metrics();
+        final List<String> sink = new ArrayList<>();
+        StartupTrace trace = new StartupTrace(metrics, System.nanoTime(), new StartupTrace.Sink() {
+            @Override
+            public void beginSection(String name) {
+                sink.add("begin " + name);
+            }
+
+            @Override
+            public void endSection() {
+                sink.add("end");
+            }
+        });
+        assertEquals(-1, trace.getFirstFrame());
+
+        StartupTrace.Section storage = trace.begin("storage");
+        Thread.sleep(2);
+        storage.end();
+        storage.end();
+        trace.firstFrame();
+        long firstFrame = trace.getFirstFrame();
+        trace.firstFrame();
+        trace.interactive();
+
+        assertEquals(firstFrame, trace.getFirstFrame());
+        assertTrue(trace.getInteractive() >= firstFrame);
+        assertEquals(2, sink.size());
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getHistogram("startup.storage").getCount());
+        assertTrue(snapshot.getHistogram("startup.storage").getMax() >= 2000000);
+        assertEquals(1, snapshot.getHistogram("startup.first.frame").getCount());
+        assertEquals(1, snapshot.getHistogram("startup.interactive").getCount());
+        assertTrue(trace.report(), trace.report().matches(".* \\| storage \\+\\d+ \\d+ ms"));
+    }
+
+    @Test
+    public void reportShowsMissingMilestonesAsUnknown() {
+        StartupTrace trace = new StartupTrace(new Metrics(), System.nanoTime(), null);
+        trace.begin("layout").end();
+        assertTrue(trace.report(), trace.report().startsWith("first.frame -1 ms, interactive -1 ms | layout +"));
+    }
+}
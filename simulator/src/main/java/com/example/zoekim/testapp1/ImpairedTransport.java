@@ -0,0 +1,318 @@
+package com.example.zoekim.testapp1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+Class: ImpairedTransport
+Transport wrapper that makes a perfect in-memory link behave more like a
+radio one. Every write reaches the peer latency after it was made, and a
+fraction of writes is held back a further loss penalty, the way RFCOMM
+retransmits a lost baseband packet: the stream stays reliable and in
+order, so everything behind a lost write waits for it. Links of every
+endpoint sharing one Conditions can be cut at random.
+Without latency or loss, writes go straight through and no threads are
+added. Otherwise each direction of a link gets a pump thread that writes
+queued chunks once they are due, and a writer that gets more than
+MAX_IN_FLIGHT bytes ahead of it waits, like a full socket buffer.
+ */
+public class ImpairedTransport implements Transport
+{
+    static final int MAX_IN_FLIGHT = 64 * 1024;
+
+    //Impairments shared by every endpoint of one simulated network
+    public static class Conditions
+    {
+        final long latencyNanos;
+        final double loss;
+        final long lossPenaltyNanos;
+        private final Random random;
+        private final Set<ImpairedLink> live = Collections.newSetFromMap(new ConcurrentHashMap<ImpairedLink, Boolean>());
+
+        //loss is the fraction of writes held back an extra lossPenaltyMillis
+        public Conditions(long latencyMillis, double loss, long lossPenaltyMillis, Random random)
+        {
+            this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+            this.loss = loss;
+            this.lossPenaltyNanos = TimeUnit.MILLISECONDS.toNanos(lossPenaltyMillis);
+            this.random = random;
+        }
+
+        boolean delays()
+        {
+            return latencyNanos > 0 || (loss > 0 && lossPenaltyNanos > 0);
+        }
+
+        //Closes one connected link chosen at random, both ends see it drop, false if there was none
+        public boolean dropRandomLink()
+        {
+            List<ImpairedLink> links = new ArrayList<>(live);
+            if (links.isEmpty())
+                return false;
+            ImpairedLink link;
+            synchronized (random)
+            {
+                link = links.get(random.nextInt(links.size()));
+            }
+            try
+            {
+                link.close();
+            }
+            catch (IOException e)
+            {
+                //Already closed by its session
+            }
+            return true;
+        }
+
+        public int liveLinks()
+        {
+            return live.size();
+        }
+
+        private long delayFor()
+        {
+            boolean lost;
+            synchronized (random)
+            {
+                lost = loss > 0 && random.nextDouble() < loss;
+            }
+            return latencyNanos + (lost ? lossPenaltyNanos : 0);
+        }
+    }
+
+    private final Transport inner;
+    private final Conditions conditions;
+
+    public ImpairedTransport(Transport inner, Conditions conditions)
+    {
+        this.inner = inner;
+        this.conditions = conditions;
+    }
+
+    @Override
+    public Server listen() throws IOException
+    {
+        final Server server = inner.listen();
+        return new Server()
+        {
+            @Override
+            public Link accept() throws IOException
+            {
+                ImpairedLink link = new ImpairedLink(server.accept());
+                link.connected();
+                return link;
+            }
+
+            @Override
+            public String getAddress()
+            {
+                return server.getAddress();
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                server.close();
+            }
+        };
+    }
+
+    @Override
+    public Link open(String address) throws IOException
+    {
+        return new ImpairedLink(inner.open(address));
+    }
+
+    private class ImpairedLink implements Link
+    {
+        private final Link link;
+        private DelayedOutputStream out;
+        private volatile boolean closed;
+
+        ImpairedLink(Link link)
+        {
+            this.link = link;
+        }
+
+        void connected()
+        {
+            conditions.live.add(this);
+            //Closed while connecting, the close may have missed the set
+            if (closed)
+                conditions.live.remove(this);
+        }
+
+        @Override
+        public void connect() throws IOException
+        {
+            link.connect();
+            connected();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            return link.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException
+        {
+            if (!conditions.delays())
+                return link.getOutputStream();
+            if (out == null)
+            {
+                out = new DelayedOutputStream(link.getOutputStream(), "delay-" + link.getRemoteAddress());
+                out.pump.start();
+            }
+            return out;
+        }
+
+        @Override
+        public String getRemoteAddress()
+        {
+            return link.getRemoteAddress();
+        }
+
+        @Override
+        public String getRemoteName()
+        {
+            return link.getRemoteName();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            closed = true;
+            conditions.live.remove(this);
+            DelayedOutputStream delayed;
+            synchronized (this)
+            {
+                delayed = out;
+            }
+            if (delayed != null)
+                delayed.close();
+            link.close();
+        }
+    }
+
+    //Writes each chunk to the underlying stream once its delay has passed, in order
+    private class DelayedOutputStream extends OutputStream
+    {
+        private final OutputStream out;
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private final ArrayDeque<Long> due = new ArrayDeque<>();
+        private final Thread pump;
+        private int queuedBytes;
+        private long lastDue;
+        private boolean closed;
+
+        DelayedOutputStream(OutputStream out, String name)
+        {
+            this.out = out;
+            pump = new Thread(name)
+            {
+                @Override
+                public void run()
+                {
+                    pump();
+                }
+            };
+            pump.setDaemon(true);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException
+        {
+            while (!closed && queuedBytes > 0 && queuedBytes + len > MAX_IN_FLIGHT)
+                await(0);
+            if (closed)
+                throw new IOException("Link closed");
+            //A held back write delays everything after it, the stream stays in order
+            long when = Math.max(System.nanoTime() + conditions.delayFor(), lastDue);
+            lastDue = when;
+            byte[] chunk = new byte[len];
+            System.arraycopy(b, off, chunk, 0, len);
+            chunks.add(chunk);
+            due.add(when);
+            queuedBytes += len;
+            notifyAll();
+        }
+
+        //The pump flushes once it has caught up
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            closed = true;
+            notifyAll();
+        }
+
+        private void pump()
+        {
+            try
+            {
+                while (true)
+                {
+                    byte[] chunk;
+                    boolean last;
+                    synchronized (this)
+                    {
+                        while (!closed && (chunks.isEmpty() || due.peek() > System.nanoTime()))
+                            await(chunks.isEmpty() ? 0 : due.peek() - System.nanoTime());
+                        if (closed)
+                            return;
+                        chunk = chunks.poll();
+                        due.poll();
+                        queuedBytes -= chunk.length;
+                        last = chunks.isEmpty();
+                        notifyAll();
+                    }
+                    out.write(chunk);
+                    if (last)
+                        out.flush();
+                }
+            }
+            catch (IOException e)
+            {
+                close();
+            }
+        }
+
+        private void await(long nanos)
+        {
+            try
+            {
+                if (nanos <= 0)
+                    wait();
+                else
+                    wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos)));
+            }
+            catch (InterruptedException e)
+            {
+                closed = true;
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.zoekim.testapp1;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeSet;
+
+/*
+Class: Scenario
+What one Simulator run does, read from a properties file and key=value
+arguments, later ones winning. Durations take ms, s, m or h ("500ms",
+"4h") or are 0, sizes are weighted message sizes in bytes ("64:70,4096:5" sends
+64 bytes 70 times for every 5 times it sends 4 KB). A threshold of 0 is
+not checked.
+ */
+public class Scenario
+{
+    static final String DEFAULTS =
+            "peers=8\n"
+            + "duration=60s\n"
+            //Reports during warmup are printed but left out of the summary and thresholds
+            + "warmup=10s\n"
+            + "report.every=10s\n"
+            //Chat messages per second each peer sends the hub, and the hub to the whole group
+            + "rate=5\n"
+            + "group.rate=1\n"
+            + "sizes=64:70,512:25,4096:5\n"
+            + "seed=1\n"
+            + "latency=0ms\n"
+            //Fraction of writes held back loss.penalty, as if retransmitted
+            + "loss=0\n"
+            + "loss.penalty=40ms\n"
+            //Cut a random link, and stop a random peer and start it again, this often
+            + "drop.every=0\n"
+            + "churn.every=0\n"
+            + "encryption=true\n"
+            + "compression=true\n"
+            + "max.p99.ms=0\n"
+            + "min.throughput=0\n"
+            + "max.heap.growth.mb=0\n"
+            + "max.threads=0\n"
+            + "min.delivered.percent=0\n";
+
+    private final Properties values = new Properties();
+    private int[] sizes;
+    private int[] weights;
+    private int totalWeight;
+
+    //args are an optional properties file followed by key=value overrides
+    public Scenario(String[] args) throws IOException
+    {
+        values.load(new StringReader(DEFAULTS));
+        for (String arg : args)
+        {
+            int eq = arg.indexOf('=');
+            if (eq > 0)
+            {
+                String key = arg.substring(0, eq).trim();
+                if (values.getProperty(key) == null)
+                    throw new IllegalArgumentException("Unknown key " + key);
+                values.setProperty(key, arg.substring(eq + 1).trim());
+            }
+            else
+                load(arg);
+        }
+        parseSizes(get("sizes"));
+        //Fail on a bad value now rather than hours into a soak
+        for (String key : values.stringPropertyNames())
+        {
+            if (key.equals("duration") || key.equals("warmup") || key.equals("report.every")
+                    || key.equals("latency") || key.equals("loss.penalty") || key.endsWith(".every"))
+                millis(key);
+            else if (!key.equals("sizes") && !key.equals("encryption") && !key.equals("compression"))
+                number(key);
+        }
+        if (integer("peers") < 1 || millis("report.every") <= 0 || number("loss") < 0 || number("loss") >= 1)
+            throw new IllegalArgumentException("Need peers >= 1, report.every > 0 and 0 <= loss < 1");
+    }
+
+    private void load(String path) throws IOException
+    {
+        Properties file = new Properties();
+        InputStream in = new FileInputStream(path);
+        try
+        {
+            file.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        for (String key : file.stringPropertyNames())
+        {
+            if (values.getProperty(key) == null)
+                throw new IllegalArgumentException("Unknown key " + key + " in " + path);
+            values.setProperty(key, file.getProperty(key).trim());
+        }
+    }
+
+    private void parseSizes(String spec)
+    {
+        List<int[]> entries = new ArrayList<>();
+        for (String part : spec.split(","))
+        {
+            String[] pair = part.trim().split(":");
+            int size = Integer.parseInt(pair[0].trim());
+            int weight = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+            //Room for the send time stamped at the front
+            if (size < 8 || weight < 1)
+                throw new IllegalArgumentException("Bad size " + part + ", sizes are at least 8 bytes");
+            entries.add(new int[] {size, weight});
+        }
+        sizes = new int[entries.size()];
+        weights = new int[entries.size()];
+        for (int i = 0; i < sizes.length; i++)
+        {
+            sizes[i] = entries.get(i)[0];
+            weights[i] = entries.get(i)[1];
+            totalWeight += weights[i];
+        }
+    }
+
+    public String get(String key)
+    {
+        return values.getProperty(key);
+    }
+
+    public double number(String key)
+    {
+        try
+        {
+            return Double.parseDouble(get(key));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Bad number " + key + "=" + get(key));
+        }
+    }
+
+    public int integer(String key)
+    {
+        return (int) number(key);
+    }
+
+    public boolean flag(String key)
+    {
+        return Boolean.parseBoolean(get(key));
+    }
+
+    public long millis(String key)
+    {
+        String value = get(key).trim().toLowerCase();
+        long unit;
+        if (value.equals("0"))
+            return 0;
+        if (value.endsWith("ms"))
+        {
+            unit = 1;
+            value = value.substring(0, value.length() - 2);
+        }
+        else if (value.endsWith("s"))
+            unit = 1000;
+        else if (value.endsWith("m"))
+            unit = 60 * 1000;
+        else if (value.endsWith("h"))
+            unit = 60 * 60 * 1000;
+        else
+            throw new IllegalArgumentException("Bad duration " + key + "=" + get(key) + ", give ms, s, m or h");
+        if (unit != 1)
+            value = value.substring(0, value.length() - 1);
+        try
+        {
+            return (long) (Double.parseDouble(value.trim()) * unit);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Bad duration " + key + "=" + get(key));
+        }
+    }
+
+    //Message size drawn from the sizes distribution
+    public int nextSize(Random random)
+    {
+        int pick = random.nextInt(totalWeight);
+        for (int i = 0; i < sizes.length; i++)
+        {
+            pick -= weights[i];
+            if (pick < 0)
+                return sizes[i];
+        }
+        return sizes[sizes.length - 1];
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder();
+        for (String key : new TreeSet<>(values.stringPropertyNames()))
+            s.append(key).append('=').append(get(key)).append(' ');
+        return s.toString().trim();
+    }
+}
@@ -0,0 +1,401 @@
+package com.example.zoekim.testapp1;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Class: Simulator
+Headless load and soak run of the connection pipeline: a hub and a number
+of virtual peers, each with its own ConnectionManager, in one JVM over
+MemoryTransport wrapped in ImpairedTransport. Every peer sends the hub
+chat messages at the scenario's rate and the hub sends the whole group,
+while links are cut and peers stopped and started again as scripted.
+Each message carries its send time, so the receiver records latency end
+to end, queueing and replay included.
+A line is printed every report interval: messages and bytes delivered per
+second, latency percentiles, heap in use after a full GC, live and peak
+threads, hub sessions, reconnects and refused writes. The summary covers
+everything after warmup and is checked against the scenario's
+thresholds; the exit code is 0 if all hold, 1 if one does not and 2 if
+the scenario could not be read.
+Usage: Simulator [scenario.properties] [key=value ...]
+ */
+public class Simulator
+{
+    static final String HUB = "hub";
+    static final int STAMP_LEN = 8;
+    //How often the driver thread sends what is due
+    static final long TICK_MILLIS = 10;
+    private static final byte[] FILLER = ("the quick brown fox jumps over the lazy dog, "
+            + "meet at the north entrance at ten, ").getBytes(Charset.forName("UTF-8"));
+
+    private final Scenario scenario;
+    private final Random random;
+    private final MemoryTransport.Network network = new MemoryTransport.Network();
+    private final ImpairedTransport.Conditions conditions;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private ConnectionManager hub;
+    private ChatGroup group;
+    private VirtualPeer[] peers;
+
+    private volatile boolean measuring;
+    private volatile Metrics.Histogram interval = new Metrics.Histogram();
+    private final Metrics.Histogram total = new Metrics.Histogram();
+    private final AtomicLong intervalBytes = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong groupDelivered = new AtomicLong();
+    private final AtomicLong groupFailed = new AtomicLong();
+    private long reconnectsOfStopped;
+    private long drops;
+    private long churns;
+
+    public Simulator(Scenario scenario)
+    {
+        this.scenario = scenario;
+        random = new Random(scenario.integer("seed"));
+        conditions = new ImpairedTransport.Conditions(scenario.millis("latency"), scenario.number("loss"),
+                scenario.millis("loss.penalty"), new Random(random.nextLong()));
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Scenario scenario;
+        try
+        {
+            scenario = new Scenario(args);
+        }
+        catch (IllegalArgumentException | IOException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: Simulator [scenario.properties] [key=value ...]");
+            System.exit(2);
+            return;
+        }
+        System.out.println(scenario);
+        int code = new Simulator(scenario).run();
+        //Manager threads still winding down would keep the JVM up
+        System.exit(code);
+    }
+
+    //Runs the scenario, returns the exit code
+    public int run() throws InterruptedException
+    {
+        hub = newManager(HUB, scenario.integer("peers"));
+        hub.start();
+        group = hub.createGroup("simulation", new ChatGroup.Listener()
+        {
+            @Override
+            public void onStatusChanged(ChatGroup group, long messageId, int peer, int status)
+            {
+                if (!measuring)
+                    return;
+                if (status == ChatGroup.DELIVERED)
+                    groupDelivered.incrementAndGet();
+                else if (status == ChatGroup.FAILED)
+                    groupFailed.incrementAndGet();
+            }
+        });
+        peers = new VirtualPeer[scenario.integer("peers")];
+        for (int i = 0; i < peers.length; i++)
+        {
+            peers[i] = new VirtualPeer("peer" + i);
+            peers[i].start();
+        }
+
+        long start = System.currentTimeMillis();
+        long warmupEnd = start + scenario.millis("warmup");
+        long end = start + scenario.millis("duration");
+        long reportEvery = scenario.millis("report.every");
+        long nextReport = start + reportEvery;
+        long dropEvery = scenario.millis("drop.every");
+        long nextDrop = dropEvery > 0 ? start + dropEvery : Long.MAX_VALUE;
+        long churnEvery = scenario.millis("churn.every");
+        long nextChurn = churnEvery > 0 ? start + churnEvery : Long.MAX_VALUE;
+        double rate = scenario.number("rate");
+        double groupRate = scenario.number("group.rate");
+        double groupCredit = 0;
+        long baselineHeap = -1;
+        long lastHeap = 0;
+        int maxThreads = 0;
+        long lastTick = start;
+        long lastReport = start;
+
+        System.out.println("  time    msg/s     MB/s   p50 ms   p99 ms   max ms  heap MB  threads  peak  sessions  reconn  refused");
+        while (true)
+        {
+            Thread.sleep(TICK_MILLIS);
+            long now = System.currentTimeMillis();
+            double elapsed = (now - lastTick) / 1000.0;
+            lastTick = now;
+            if (now >= end)
+                break;
+            if (baselineHeap < 0 && now >= warmupEnd)
+            {
+                baselineHeap = heapUsed();
+                threads.resetPeakThreadCount();
+                measuring = true;
+            }
+
+            for (VirtualPeer peer : peers)
+                peer.tick(rate * elapsed);
+            groupCredit += groupRate * elapsed;
+            for (; groupCredit >= 1; groupCredit--)
+                hub.sendToGroup(group, message());
+
+            if (now >= nextDrop)
+            {
+                if (conditions.dropRandomLink())
+                    drops++;
+                nextDrop += dropEvery;
+            }
+            if (now >= nextChurn)
+            {
+                peers[random.nextInt(peers.length)].restart();
+                churns++;
+                nextChurn += churnEvery;
+            }
+            if (now >= nextReport)
+            {
+                lastHeap = heapUsed();
+                int live = threads.getThreadCount();
+                if (measuring)
+                    maxThreads = Math.max(maxThreads, threads.getPeakThreadCount());
+                report(now - start, now - lastReport, lastHeap, live);
+                lastReport = now;
+                nextReport += reportEvery;
+            }
+        }
+        measuring = false;
+        for (VirtualPeer peer : peers)
+            peer.stop();
+        hub.stop();
+        return summarize(end - Math.max(start, warmupEnd), baselineHeap < 0 ? 0 : lastHeap - baselineHeap, maxThreads);
+    }
+
+    private void report(long at, long span, long heap, int live)
+    {
+        Metrics.HistogramSnapshot latency = interval.snapshot();
+        interval = new Metrics.Histogram();
+        long bytes = intervalBytes.getAndSet(0);
+        System.out.println(String.format("%5ds %8.1f %8.3f %8.1f %8.1f %8.1f %8.1f %8d %5d %9d %7d %8d%s",
+                at / 1000, latency.getCount() * 1000.0 / span, bytes / 1048576.0 * 1000 / span,
+                ms(latency.getPercentile(0.5)), ms(latency.getPercentile(0.99)), ms(latency.getMax()),
+                heap / 1048576.0, live, threads.getPeakThreadCount(), hub.getMetrics().snapshot().get("sessions"),
+                reconnects(), refused.get(), measuring ? "" : "  warmup"));
+    }
+
+    private int summarize(long measuredMillis, long heapGrowth, int maxThreads)
+    {
+        Metrics.HistogramSnapshot latency = total.snapshot();
+        double throughput = received.get() * 1000.0 / Math.max(1, measuredMillis);
+        double p99 = ms(latency.getPercentile(0.99));
+        double growthMb = heapGrowth / 1048576.0;
+        long expected = sent.get() + groupDelivered.get() + groupFailed.get();
+        long delivered = received.get();
+        double deliveredPercent = expected == 0 ? 100 : Math.min(100, 100.0 * delivered / expected);
+
+        System.out.println();
+        System.out.println(String.format("messages %d delivered of %d sent, %.2f%%, %d refused, %d group members failed",
+                delivered, expected, deliveredPercent, refused.get(), groupFailed.get()));
+        System.out.println(String.format("throughput %.1f msg/s %.3f MB/s", throughput,
+                receivedBytes.get() / 1048576.0 * 1000 / Math.max(1, measuredMillis)));
+        System.out.println(String.format("latency p50 %.1f ms p99 %.1f ms p99.9 %.1f ms max %.1f ms",
+                ms(latency.getPercentile(0.5)), p99, ms(latency.getPercentile(0.999)), ms(latency.getMax())));
+        System.out.println(String.format("heap growth %.1f MB, peak threads %d, %d links cut, %d peers restarted, %d reconnects",
+                growthMb, maxThreads, drops, churns, reconnects()));
+
+        List<String> failed = new ArrayList<>();
+        check(failed, "max.p99.ms", p99 > scenario.number("max.p99.ms"), p99);
+        check(failed, "min.throughput", throughput < scenario.number("min.throughput"), throughput);
+        check(failed, "max.heap.growth.mb", growthMb > scenario.number("max.heap.growth.mb"), growthMb);
+        check(failed, "max.threads", maxThreads > scenario.number("max.threads"), maxThreads);
+        check(failed, "min.delivered.percent", deliveredPercent < scenario.number("min.delivered.percent"), deliveredPercent);
+        for (String line : failed)
+            System.out.println("FAIL " + line);
+        System.out.println(failed.isEmpty() ? "PASS" : "FAIL");
+        return failed.isEmpty() ? 0 : 1;
+    }
+
+    //Thresholds of 0 are off
+    private void check(List<String> failed, String key, boolean exceeded, double actual)
+    {
+        if (scenario.number(key) != 0 && exceeded)
+            failed.add(String.format("%s=%s, was %.2f", key, scenario.get(key), actual));
+    }
+
+    private long heapUsed()
+    {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private synchronized long reconnects()
+    {
+        long n = reconnectsOfStopped;
+        for (VirtualPeer peer : peers)
+            n += peer.reconnects();
+        return n;
+    }
+
+    private static double ms(long nanos)
+    {
+        return nanos / 1000000.0;
+    }
+
+    //Send time followed by filler up to a size drawn from the scenario
+    private byte[] message()
+    {
+        int size;
+        synchronized (random)
+        {
+            size = scenario.nextSize(random);
+        }
+        byte[] message = new byte[size];
+        for (int i = STAMP_LEN; i < size; i += FILLER.length)
+            System.arraycopy(FILLER, 0, message, i, Math.min(FILLER.length, size - i));
+        ChatLogStore.putLong(message, 0, System.nanoTime());
+        return message;
+    }
+
+    private ConnectionManager newManager(String address, int maxPeers)
+    {
+        Receiver receiver = new Receiver();
+        ConnectionManager manager = new ConnectionManager(new ImpairedTransport(network.endpoint(address), conditions),
+                receiver, maxPeers);
+        receiver.manager = manager;
+        manager.setEncryption(scenario.flag("encryption"));
+        manager.setCompression(scenario.flag("compression"), FrameCompressor.DEFAULT_THRESHOLD);
+        return manager;
+    }
+
+    //One peer dialing the hub, its manager is replaced when it restarts
+    private class VirtualPeer
+    {
+        final String address;
+        private ConnectionManager manager;
+        private int hubId = ConnectionManager.NO_PEER;
+        private double credit;
+
+        VirtualPeer(String address)
+        {
+            this.address = address;
+        }
+
+        synchronized void start()
+        {
+            manager = newManager(address, 1);
+            hubId = manager.connect(HUB);
+        }
+
+        synchronized void stop()
+        {
+            manager.stop();
+        }
+
+        //Stops the peer as if the app was closed and opens it again
+        void restart()
+        {
+            synchronized (Simulator.this)
+            {
+                synchronized (this)
+                {
+                    reconnectsOfStopped += manager.getReconnects();
+                    manager.stop();
+                    start();
+                }
+            }
+        }
+
+        synchronized long reconnects()
+        {
+            return manager.getReconnects();
+        }
+
+        //Sends what the peer owes after credit more messages fell due
+        synchronized void tick(double due)
+        {
+            credit += due;
+            for (; credit >= 1; credit--)
+            {
+                //A refusal is the pipeline pushing back, the message is counted and not sent
+                if (manager.write(hubId, message()))
+                {
+                    if (measuring)
+                        sent.incrementAndGet();
+                }
+                else if (measuring)
+                    refused.incrementAndGet();
+            }
+        }
+    }
+
+    //Records the latency of every message read, chat or group, on the hub or a peer
+    private class Receiver implements ConnectionListener
+    {
+        volatile ConnectionManager manager;
+
+        @Override
+        public void onRead(int peer, byte[] buffer, int length)
+        {
+            if (length >= STAMP_LEN)
+            {
+                long latency = System.nanoTime() - ChatLogStore.getLong(buffer, 0);
+                interval.record(latency);
+                intervalBytes.addAndGet(length);
+                if (measuring)
+                {
+                    total.record(latency);
+                    received.incrementAndGet();
+                    receivedBytes.addAndGet(length);
+                }
+            }
+            manager.recycle(buffer);
+        }
+
+        @Override
+        public void onConnected(int peer, String address, String name)
+        {
+            if (HUB.equals(address))
+                return;
+            //Only the hub is dialed, so this is the hub seeing a peer
+            group.add(peer);
+        }
+
+        @Override
+        public void onStateChanged(int peer, int state)
+        {
+        }
+
+        @Override
+        public void onRelayed(int peer, long messageId, String origin, int hops, byte[] buffer, int offset, int length)
+        {
+        }
+
+        @Override
+        public void onWritten(int peer, byte[] payload)
+        {
+        }
+
+        @Override
+        public void onConnectionFailed(int peer)
+        {
+        }
+
+        @Override
+        public void onConnectionLost(int peer)
+        {
+        }
+    }
+}